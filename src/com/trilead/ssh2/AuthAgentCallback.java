@@ -12,6 +12,11 @@ import java.util.Map;
 public interface AuthAgentCallback {
 
 	/**
+	 * Called for every identities request of every forwarded agent channel.
+	 * Returning the very same map for as long as the identities do not
+	 * change lets the answer sent to the server be reused; the map must not
+	 * be modified afterwards.
+	 *
 	 * @return array of blobs containing the OpenSSH-format encoded public keys
 	 */
 	Map<String,byte[]> retrieveIdentities();
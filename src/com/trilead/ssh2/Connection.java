@@ -5,9 +5,11 @@ import java.io.CharArrayWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.security.KeyPair;
+import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.util.Set;
@@ -111,6 +113,12 @@ public class Connection
 
 	private Vector<ConnectionMonitor> connectionMonitors = new Vector<ConnectionMonitor>();
 
+	private final ConnectionTrace trace = new ConnectionTrace();
+
+	private volatile ConnectionMetrics metrics = null;
+
+	private HostnameResolver resolver = null;
+
 	/**
 	 * Prepares a fresh <code>Connection</code> object which can then be used
 	 * to establish a connection to the specified SSH-2 server.
@@ -501,6 +509,53 @@ public class Connection
 
 		return authenticated;
 	}
+
+	/**
+	 * Finds out which of several public keys the server would accept for
+	 * <code>user</code>, without using any private key (the "publickey"
+	 * query of RFC 4252). The queries are pipelined, so trying many keys
+	 * costs about one round trip instead of one signature and one round trip
+	 * per key. Sign in with the key found using
+	 * {@link #authenticateWithPublicKey(String, KeyPair)}; if that key is
+	 * not wanted after all, ask again starting behind it. Keys the server
+	 * has already answered for are not asked about again.
+	 * <p>
+	 * Each key the server turns down counts as a failed authentication
+	 * attempt, like it would when signing with it.
+	 * 
+	 * @param user
+	 *            A <code>String</code> holding the username.
+	 * @param keys
+	 *            RSA, DSA or EC public keys.
+	 * @param from
+	 *            index of the first key to ask about.
+	 * @return the index of the first key at or after <code>from</code> that
+	 *         the server accepts, or -1 if none.
+	 * @throws IOException
+	 */
+	public synchronized int queryPublicKeys(String user, PublicKey[] keys, int from) throws IOException
+	{
+		if (tm == null)
+			throw new IllegalStateException("Connection is not established!");
+
+		if (authenticated)
+			throw new IllegalStateException("Connection is already authenticated!");
+
+		if (am == null)
+			am = new AuthenticationManager(tm);
+
+		if (cm == null)
+			cm = new ChannelManager(tm);
+
+		if (user == null)
+			throw new IllegalArgumentException("user argument is null");
+
+		if (keys == null)
+			throw new IllegalArgumentException("keys argument is null");
+
+		return am.queryPublicKeys(user, keys, from);
+	}
+
 	/**
 	 * A convenience wrapper function which reads in a private key (PEM format,
 	 * either DSA or RSA) and then calls
@@ -578,6 +633,58 @@ public class Connection
 			tm.setConnectionMonitors(connectionMonitors);
 	}
 
+	/**
+	 * Returns the timing record of this connection's setup. It is filled in
+	 * by <code>connect()</code> and the <code>authenticateWith...()</code>
+	 * methods; the session phases are left to the caller (see
+	 * {@link ConnectionTrace}).
+	 * 
+	 * @return the <code>ConnectionTrace</code>, never <code>null</code>.
+	 */
+	public ConnectionTrace getConnectionTrace()
+	{
+		return trace;
+	}
+
+	/**
+	 * Registers a listener that is called whenever a setup phase completes.
+	 * Set it before calling <code>connect()</code> to see all phases.
+	 * 
+	 * @param listener
+	 *            the listener, or <code>null</code> to remove it.
+	 */
+	public void setConnectionTraceListener(ConnectionTraceListener listener)
+	{
+		trace.setListener(listener);
+	}
+
+	/**
+	 * Starts (or stops) collecting {@link ConnectionMetrics} for this
+	 * connection. May be called at any time; counting starts from then on.
+	 * Round trip times are only measured by {@link #ping()}, so call that
+	 * now and then to get them.
+	 * 
+	 * @param metrics
+	 *            where to count, or <code>null</code> to stop.
+	 */
+	public synchronized void setConnectionMetrics(ConnectionMetrics metrics)
+	{
+		this.metrics = metrics;
+
+		if (tm != null)
+			tm.setConnectionMetrics(metrics);
+	}
+
+	/**
+	 * @return the metrics set with
+	 *         {@link #setConnectionMetrics(ConnectionMetrics)}, or
+	 *         <code>null</code>.
+	 */
+	public ConnectionMetrics getConnectionMetrics()
+	{
+		return metrics;
+	}
+
 	/**
 	 * Controls whether compression is used on the link or not.
 	 * <p>
@@ -752,6 +859,9 @@ public class Connection
 		tm = new TransportManager(hostname, port);
 
 		tm.setConnectionMonitors(connectionMonitors);
+		tm.setConnectionTrace(trace);
+		tm.setConnectionMetrics(metrics);
+		tm.setHostnameResolver(resolver);
 
 		// Don't offer compression if not requested
 		if (!compression) {
@@ -1452,6 +1562,39 @@ public class Connection
 		this.proxyData = proxyData;
 	}
 
+	/**
+	 * Lets the application resolve the server's hostname, e.g. from a cache.
+	 * It only makes sense to call this method before calling the
+	 * {@link #connect() connect()} method, and it is not used when connecting
+	 * through a proxy.
+	 * <p>
+	 * If the host has several addresses they are all tried, starting with the
+	 * first one and alternating between IPv6 and IPv4. Every 250 ms without a
+	 * connection another attempt is started in parallel and the first one to
+	 * connect wins (RFC 8305). Use {@link #getRemoteAddress()} to find out
+	 * which one it was.
+	 * 
+	 * @param resolver
+	 *            the resolver to use, or <code>null</code> (the default) to use
+	 *            <code>InetAddress.getAllByName()</code>.
+	 */
+	public synchronized void setHostnameResolver(HostnameResolver resolver)
+	{
+		this.resolver = resolver;
+	}
+
+	/**
+	 * @return the address of the server that the connection was established
+	 *         to, or <code>null</code> if there is no connection.
+	 */
+	public synchronized InetAddress getRemoteAddress()
+	{
+		if (tm == null)
+			return null;
+
+		return tm.getRemoteAddress();
+	}
+
 	/**
 	 * Request a remote port forwarding. If successful, then forwarded
 	 * connections will be redirected to the given target address. You can
@@ -1610,18 +1753,28 @@ public class Connection
 	 * <p>
 	 * Implementation details: this method sends a SSH_MSG_GLOBAL_REQUEST
 	 * request ('trilead-ping') to the server and waits for the
-	 * SSH_MSG_REQUEST_FAILURE reply packet from the server.
+	 * SSH_MSG_REQUEST_FAILURE reply packet from the server. The round trip
+	 * is recorded in the {@link ConnectionMetrics}, if any. The connection is
+	 * not locked while waiting for the reply, so a ping on a stalled link
+	 * does not keep anybody from calling {@link #close()}.
 	 * 
 	 * @throws IOException
 	 *             in case of any problem
 	 */
-	public synchronized void ping() throws IOException
+	public void ping() throws IOException
 	{
-		if (tm == null)
-			throw new IllegalStateException("You need to establish a connection first.");
+		ChannelManager cm;
 
-		if (!authenticated)
-			throw new IllegalStateException("The connection is not authenticated.");
+		synchronized (this)
+		{
+			if (tm == null)
+				throw new IllegalStateException("You need to establish a connection first.");
+
+			if (!authenticated)
+				throw new IllegalStateException("The connection is not authenticated.");
+
+			cm = this.cm;
+		}
 
 		cm.requestGlobalTrileadPing();
 	}
@@ -50,4 +50,11 @@ public class ConnectionInfo
 	 * Number of kex exchanges performed on this connection so far.
 	 */
 	public int keyExchangeCounter = 0;
+
+	/**
+	 * Timing of the connection setup phases, see {@link ConnectionTrace}. The
+	 * same (live) object is handed out for every key exchange, so it also
+	 * reflects phases that complete after <code>connect()</code> returned.
+	 */
+	public ConnectionTrace trace;
 }
@@ -0,0 +1,228 @@
+package com.trilead.ssh2;
+
+/**
+ * Running counters about the quality of an established connection: traffic
+ * in both directions, the round trip time seen by pings, the time senders
+ * spent waiting for the peer to open its channel windows and the key
+ * exchanges done so far.
+ * <p>
+ * Metrics are off unless an instance is handed to
+ * {@link Connection#setConnectionMetrics(ConnectionMetrics)}; without one
+ * the library only pays for a <code>null</code> check per packet. Byte counts
+ * are SSH payload bytes, before compression and encryption. The round trip
+ * time is smoothed the way TCP does it (RFC 6298), so one sample only moves
+ * it by an eighth. All times are in nanoseconds.
+ */
+public class ConnectionMetrics
+{
+	private final long created = System.nanoTime();
+
+	private long bytesSent;
+	private long bytesReceived;
+	private long packetsSent;
+	private long packetsReceived;
+
+	private long rttSamples;
+	private long smoothedRtt;
+	private long rttVariance;
+	private long lastRtt;
+
+	private long windowStalls;
+	private long windowStallTime;
+
+	private int kexCount;
+	private long kexStarted = -1;
+	private long kexTime;
+	private long lastKexTime;
+
+	public synchronized void packetSent(int length)
+	{
+		packetsSent++;
+		bytesSent += length;
+	}
+
+	public synchronized void packetReceived(int length)
+	{
+		packetsReceived++;
+		bytesReceived += length;
+	}
+
+	/**
+	 * Adds a round trip time measurement.
+	 */
+	public synchronized void rttSample(long rtt)
+	{
+		if (rttSamples++ == 0)
+		{
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+		}
+		else
+		{
+			rttVariance += (Math.abs(smoothedRtt - rtt) - rttVariance) / 4;
+			smoothedRtt += (rtt - smoothedRtt) / 8;
+		}
+
+		lastRtt = rtt;
+	}
+
+	/**
+	 * A sender had to wait <code>stalled</code> for window space.
+	 */
+	public synchronized void windowStall(long stalled)
+	{
+		windowStalls++;
+		windowStallTime += stalled;
+	}
+
+	/**
+	 * A key exchange started. Does nothing if one is already running.
+	 */
+	public synchronized void kexBegin()
+	{
+		if (kexStarted < 0)
+			kexStarted = System.nanoTime();
+	}
+
+	/**
+	 * The running key exchange finished.
+	 */
+	public synchronized void kexEnd()
+	{
+		if (kexStarted < 0)
+			return;
+
+		lastKexTime = System.nanoTime() - kexStarted;
+		kexTime += lastKexTime;
+		kexCount++;
+		kexStarted = -1;
+	}
+
+	public synchronized long getBytesSent()
+	{
+		return bytesSent;
+	}
+
+	public synchronized long getBytesReceived()
+	{
+		return bytesReceived;
+	}
+
+	public synchronized long getPacketsSent()
+	{
+		return packetsSent;
+	}
+
+	public synchronized long getPacketsReceived()
+	{
+		return packetsReceived;
+	}
+
+	/**
+	 * @return how many round trips were measured.
+	 */
+	public synchronized long getRttSamples()
+	{
+		return rttSamples;
+	}
+
+	/**
+	 * @return the smoothed round trip time, or 0 if none was measured.
+	 */
+	public synchronized long getSmoothedRtt()
+	{
+		return smoothedRtt;
+	}
+
+	/**
+	 * @return the mean deviation of the round trip time.
+	 */
+	public synchronized long getRttVariance()
+	{
+		return rttVariance;
+	}
+
+	/**
+	 * @return the last round trip time measured, or 0 if none was.
+	 */
+	public synchronized long getLastRtt()
+	{
+		return lastRtt;
+	}
+
+	/**
+	 * @return how often a sender found the remote window closed.
+	 */
+	public synchronized long getWindowStalls()
+	{
+		return windowStalls;
+	}
+
+	/**
+	 * @return total time senders waited for the remote window to open.
+	 */
+	public synchronized long getWindowStallTime()
+	{
+		return windowStallTime;
+	}
+
+	/**
+	 * @return the number of completed key exchanges, the initial one
+	 *         included.
+	 */
+	public synchronized int getKexCount()
+	{
+		return kexCount;
+	}
+
+	/**
+	 * @return total time spent in key exchanges.
+	 */
+	public synchronized long getKexTime()
+	{
+		return kexTime;
+	}
+
+	/**
+	 * @return duration of the last completed key exchange.
+	 */
+	public synchronized long getLastKexTime()
+	{
+		return lastKexTime;
+	}
+
+	/**
+	 * @return nanoseconds since these metrics were created.
+	 */
+	public long getElapsed()
+	{
+		return System.nanoTime() - created;
+	}
+
+	/**
+	 * Multi line summary with times in milliseconds, meant for people.
+	 */
+	public synchronized String toString()
+	{
+		StringBuffer sb = new StringBuffer();
+
+		sb.append("sent ").append(bytesSent).append(" bytes in ").append(packetsSent).append(" packets\n");
+		sb.append("received ").append(bytesReceived).append(" bytes in ").append(packetsReceived)
+				.append(" packets\n");
+
+		if (rttSamples > 0)
+		{
+			sb.append("rtt ").append(smoothedRtt / 1000000L).append(" ms (+/- ").append(rttVariance / 1000000L)
+					.append(", last ").append(lastRtt / 1000000L).append(")\n");
+		}
+
+		sb.append("window stalls ").append(windowStalls).append(", ").append(windowStallTime / 1000000L)
+				.append(" ms\n");
+		sb.append("kex ").append(kexCount).append(", ").append(kexTime / 1000000L).append(" ms");
+
+		if (kexCount > 0)
+			sb.append(" (last ").append(lastKexTime / 1000000L).append(")");
+
+		return sb.toString();
+	}
+}
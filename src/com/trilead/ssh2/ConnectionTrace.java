@@ -0,0 +1,145 @@
+package com.trilead.ssh2;
+
+/**
+ * Wall-clock breakdown of the connection setup, one slot per phase. Times are
+ * taken from {@link System#nanoTime()} so they are not affected by changes of
+ * the system clock. A phase may be entered more than once (e.g. several
+ * authentication attempts); its duration is then the sum of all runs.
+ * <p>
+ * The library fills in the transport phases (DNS up to host key verification)
+ * and the authentication round trips. The session phases are up to the
+ * application, which can call {@link #begin(int)} and {@link #end(int)}
+ * around its own <code>openSession()</code>, <code>requestPTY()</code> and
+ * <code>startShell()</code> calls.
+ */
+public class ConnectionTrace
+{
+	public static final int PHASE_DNS = 0;
+	public static final int PHASE_TCP_CONNECT = 1;
+	public static final int PHASE_BANNER = 2;
+	public static final int PHASE_KEX = 3;
+	public static final int PHASE_KEX_COMPUTE = 4;
+	public static final int PHASE_HOSTKEY_VERIFY = 5;
+	public static final int PHASE_AUTH = 6;
+	public static final int PHASE_CHANNEL_OPEN = 7;
+	public static final int PHASE_PTY = 8;
+	public static final int PHASE_SHELL = 9;
+
+	public static final int PHASE_COUNT = 10;
+
+	private static final String[] PHASE_NAMES = { "dns", "tcp", "banner", "kex", "kex-compute", "hostkey",
+			"auth", "channel", "pty", "shell" };
+
+	private final long created = System.nanoTime();
+
+	private final long[] started = new long[PHASE_COUNT];
+	private final boolean[] running = new boolean[PHASE_COUNT];
+	private final long[] durations = new long[PHASE_COUNT];
+	private final int[] runs = new int[PHASE_COUNT];
+
+	private ConnectionTraceListener listener;
+
+	public ConnectionTrace()
+	{
+	}
+
+	public ConnectionTrace(ConnectionTraceListener listener)
+	{
+		this.listener = listener;
+	}
+
+	public static String getPhaseName(int phase)
+	{
+		return PHASE_NAMES[phase];
+	}
+
+	public synchronized void setListener(ConnectionTraceListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Marks the start of a phase. A second <code>begin()</code> without an
+	 * intervening {@link #end(int)} restarts the measurement.
+	 */
+	public synchronized void begin(int phase)
+	{
+		started[phase] = System.nanoTime();
+		running[phase] = true;
+	}
+
+	/**
+	 * Marks the end of a phase. Does nothing if the phase was not begun.
+	 */
+	public void end(int phase)
+	{
+		ConnectionTraceListener l;
+		long elapsed;
+
+		synchronized (this)
+		{
+			if (!running[phase])
+				return;
+
+			elapsed = System.nanoTime() - started[phase];
+			running[phase] = false;
+			durations[phase] += elapsed;
+			runs[phase]++;
+			l = listener;
+		}
+
+		/* Outside the lock, the listener may well want to read us */
+		if (l != null)
+			l.phaseCompleted(this, phase, elapsed);
+	}
+
+	/**
+	 * @return total time spent in <code>phase</code>, in nanoseconds, or 0 if
+	 *         it never completed.
+	 */
+	public synchronized long getDuration(int phase)
+	{
+		return durations[phase];
+	}
+
+	/**
+	 * @return how many times <code>phase</code> was completed.
+	 */
+	public synchronized int getCount(int phase)
+	{
+		return runs[phase];
+	}
+
+	/**
+	 * @return nanoseconds since this trace was created.
+	 */
+	public long getElapsed()
+	{
+		return System.nanoTime() - created;
+	}
+
+	/**
+	 * One line summary of all completed phases in milliseconds, e.g.
+	 * <code>dns=12 tcp=48 banner=51 ...</code>.
+	 */
+	public synchronized String toString()
+	{
+		StringBuffer sb = new StringBuffer();
+
+		for (int i = 0; i < PHASE_COUNT; i++)
+		{
+			if (runs[i] == 0)
+				continue;
+
+			if (sb.length() > 0)
+				sb.append(' ');
+
+			sb.append(PHASE_NAMES[i]).append('=').append(durations[i] / 1000000L);
+
+			if (runs[i] > 1)
+				sb.append('x').append(runs[i]);
+		}
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,18 @@
+package com.trilead.ssh2;
+
+/**
+ * A <code>ConnectionTraceListener</code> is notified each time a phase of
+ * the connection setup recorded in a {@link ConnectionTrace} completes.
+ * <p>
+ * Implementations must not block, the callback runs on whichever thread
+ * finished the phase (the receive thread in case of the key exchange).
+ */
+public interface ConnectionTraceListener
+{
+	/**
+	 * @param trace the trace the phase was recorded in.
+	 * @param phase one of the <code>ConnectionTrace.PHASE_*</code> constants.
+	 * @param duration duration of this run of the phase, in nanoseconds.
+	 */
+	public void phaseCompleted(ConnectionTrace trace, int phase, long duration);
+}
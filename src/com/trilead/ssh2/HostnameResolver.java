@@ -0,0 +1,23 @@
+package com.trilead.ssh2;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A callback interface that lets the application take over name resolution
+ * for a {@link Connection}, e.g. to cache results across reconnects.
+ */
+
+public interface HostnameResolver
+{
+	/**
+	 * Resolves <code>hostname</code> to all of its addresses. If they are
+	 * of different families, the family of the first address is tried first
+	 * (see {@link Connection#setHostnameResolver(HostnameResolver)}).
+	 * 
+	 * @param hostname the hostname used to create the {@link Connection} object
+	 * @return at least one address
+	 * @throws UnknownHostException if the name cannot be resolved
+	 */
+	public InetAddress[] resolve(String hostname) throws UnknownHostException;
+}
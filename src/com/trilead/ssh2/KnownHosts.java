@@ -30,6 +30,8 @@ import javax.crypto.spec.SecretKeySpec;
 import com.trilead.ssh2.crypto.Base64;
 import com.trilead.ssh2.signature.DSASHA1Verify;
 import com.trilead.ssh2.signature.ECDSASHA2Verify;
+import com.trilead.ssh2.signature.Ed25519PublicKey;
+import com.trilead.ssh2.signature.Ed25519Verify;
 import com.trilead.ssh2.signature.RSASHA1Verify;
 
 
@@ -125,6 +127,14 @@ public class KnownHosts
 				publicKeys.add(new KnownHostsEntry(hostnames, epk));
 			}
 		}
+		else if (Ed25519Verify.ED25519_ID.equals(serverHostKeyAlgorithm))
+		{
+			Ed25519PublicKey edpk = Ed25519Verify.decodeSSHEd25519PublicKey(serverHostKey);
+
+			synchronized (publicKeys) {
+				publicKeys.add(new KnownHostsEntry(hostnames, edpk));
+			}
+		}
 		else
 			throw new IOException("Unknwon host key type (" + serverHostKeyAlgorithm + ")");
 	}
@@ -206,7 +216,7 @@ public class KnownHosts
 		return hmac.doFinal();
 	}
 
-	private final boolean checkHashed(String entry, String hostname)
+	private static final boolean checkHashed(String entry, String hostname)
 	{
 		if (entry.startsWith("|1|") == false)
 			return false;
@@ -338,7 +348,21 @@ public class KnownHosts
 		return null;
 	}
 
-	private final boolean hostnameMatches(String[] hostpatterns, String hostname)
+	/**
+	 * Checks a hostname against the first field of a known_hosts line, i.e., a
+	 * comma separated list of patterns that may contain wildcards, negations
+	 * and hashed entries.
+	 * 
+	 * @param hostpatterns e.g. "*.example.com,!gw.example.com"
+	 * @param hostname in known_hosts notation, i.e., "[host]:port" for ports other than 22
+	 * @return whether the hostname matches
+	 */
+	public static final boolean matchesHostPatterns(String hostpatterns, String hostname)
+	{
+		return hostnameMatches(hostpatterns.split(","), hostname);
+	}
+
+	private static final boolean hostnameMatches(String[] hostpatterns, String hostname)
 	{
 		boolean isMatch = false;
 		boolean negate = false;
@@ -428,7 +452,8 @@ public class KnownHosts
 
 			if (arr.length >= 3)
 			{
-				if ((arr[1].compareTo("ssh-rsa") == 0) || (arr[1].compareTo("ssh-dss") == 0))
+				if ((arr[1].compareTo("ssh-rsa") == 0) || (arr[1].compareTo("ssh-dss") == 0)
+						|| (arr[1].compareTo(Ed25519Verify.ED25519_ID) == 0))
 				{
 					String[] hostnames = arr[0].split(",");
 
@@ -468,7 +493,7 @@ public class KnownHosts
 		return key1.equals(key2);
 	}
 
-	private final boolean pseudoRegex(char[] pattern, int i, char[] match, int j)
+	private static final boolean pseudoRegex(char[] pattern, int i, char[] match, int j)
 	{
 		/* This matching logic is equivalent to the one present in OpenSSH 4.1 */
 
@@ -604,6 +629,10 @@ public class KnownHosts
 		{
 			remoteKey = ECDSASHA2Verify.decodeSSHECDSAPublicKey(serverHostKey);
 		}
+		else if (Ed25519Verify.ED25519_ID.equals(serverHostKeyAlgorithm))
+		{
+			remoteKey = Ed25519Verify.decodeSSHEd25519PublicKey(serverHostKey);
+		}
 		else
 			throw new IllegalArgumentException("Unknown hostkey type " + serverHostKeyAlgorithm);
 
@@ -728,6 +757,9 @@ public class KnownHosts
 		else if ("ssh-dss".equals(keyType))
 		{
 		}
+		else if (Ed25519Verify.ED25519_ID.equals(keyType))
+		{
+		}
 		else
 			throw new IllegalArgumentException("Unknown key type " + keyType);
 
@@ -4,6 +4,7 @@ package com.trilead.ssh2.auth;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.interfaces.DSAPrivateKey;
 import java.security.interfaces.DSAPublicKey;
@@ -11,8 +12,10 @@ import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
 import java.util.Vector;
 
+import com.trilead.ssh2.ConnectionTrace;
 import com.trilead.ssh2.InteractiveCallback;
 import com.trilead.ssh2.crypto.PEMDecoder;
 import com.trilead.ssh2.packets.PacketServiceAccept;
@@ -42,6 +45,13 @@ import com.trilead.ssh2.transport.TransportManager;
  */
 public class AuthenticationManager implements MessageHandler
 {
+	/*
+	 * Public key queries in flight at once. Every key the server turns down
+	 * counts as a failed attempt (OpenSSH's MaxAuthTries), even one queried
+	 * after the key that it accepts, so do not get too far ahead.
+	 */
+	private static final int PUBLICKEY_QUERY_WINDOW = 3;
+
 	TransportManager tm;
 
 	Vector packets = new Vector();
@@ -55,6 +65,23 @@ public class AuthenticationManager implements MessageHandler
 	boolean authenticated = false;
 	boolean initDone = false;
 
+	/* What the server said to each publickey query so far */
+	private static class QueryAnswer
+	{
+		final String user;
+		final byte[] blob;
+		final boolean accepted;
+
+		QueryAnswer(String user, byte[] blob, boolean accepted)
+		{
+			this.user = user;
+			this.blob = blob;
+			this.accepted = accepted;
+		}
+	}
+
+	Vector queryAnswers = new Vector();
+
 	public AuthenticationManager(TransportManager tm)
 	{
 		this.tm = tm;
@@ -98,18 +125,36 @@ public class AuthenticationManager implements MessageHandler
 		}
 	}
 
+	/*
+	 * Every call waits for the server to answer a request we just sent, so
+	 * the time spent in here is the authentication round trip time (user
+	 * input for keyboard-interactive happens outside of it).
+	 */
 	byte[] getNextMessage() throws IOException
 	{
-		while (true)
+		ConnectionTrace trace = tm.getConnectionTrace();
+
+		if (trace != null)
+			trace.begin(ConnectionTrace.PHASE_AUTH);
+
+		try
 		{
-			byte[] msg = deQueue();
+			while (true)
+			{
+				byte[] msg = deQueue();
 
-			if (msg[0] != Packets.SSH_MSG_USERAUTH_BANNER)
-				return msg;
+				if (msg[0] != Packets.SSH_MSG_USERAUTH_BANNER)
+					return msg;
 
-			PacketUserauthBanner sb = new PacketUserauthBanner(msg, 0, msg.length);
+				PacketUserauthBanner sb = new PacketUserauthBanner(msg, 0, msg.length);
 
-			banner = sb.getBanner();
+				banner = sb.getBanner();
+			}
+		}
+		finally
+		{
+			if (trace != null)
+				trace.end(ConnectionTrace.PHASE_AUTH);
 		}
 	}
 
@@ -310,6 +355,141 @@ e.printStackTrace();
 		}
 	}
 
+	private static String getPublicKeyAlgorithm(PublicKey key) throws IOException
+	{
+		if (key instanceof DSAPublicKey)
+			return "ssh-dss";
+
+		if (key instanceof RSAPublicKey)
+			return "ssh-rsa";
+
+		if (key instanceof ECPublicKey)
+			return ECDSASHA2Verify.ECDSA_SHA2_PREFIX + ECDSASHA2Verify.getCurveName(((ECPublicKey) key).getParams());
+
+		throw new IOException("Unknown public key type.");
+	}
+
+	private static byte[] encodePublicKey(PublicKey key) throws IOException
+	{
+		if (key instanceof DSAPublicKey)
+			return DSASHA1Verify.encodeSSHDSAPublicKey((DSAPublicKey) key);
+
+		if (key instanceof RSAPublicKey)
+			return RSASHA1Verify.encodeSSHRSAPublicKey((RSAPublicKey) key);
+
+		if (key instanceof ECPublicKey)
+			return ECDSASHA2Verify.encodeSSHECDSAPublicKey((ECPublicKey) key);
+
+		throw new IOException("Unknown public key type.");
+	}
+
+	/**
+	 * Asks the server which key it would accept, without signing anything
+	 * (RFC 4252, section 7). Up to {@link #PUBLICKEY_QUERY_WINDOW} queries
+	 * are sent before waiting for the answers, which come back in order.
+	 * Once a key is accepted no more queries are sent. Every answer is
+	 * remembered, so asking again from behind a key that was not wanted
+	 * after all does not send the same query twice.
+	 * 
+	 * @return the index of the first key from <code>from</code> on that the
+	 *         server accepts, or -1 if it accepts none of them.
+	 */
+	public int queryPublicKeys(String user, PublicKey[] keys, int from) throws IOException
+	{
+		try
+		{
+			initialize(user);
+
+			if (methodPossible("publickey") == false)
+				throw new IOException("Authentication method publickey not supported by the server at this stage.");
+
+			int next = from;
+			int accepted = -1;
+
+			/* Queries sent but not answered yet, oldest first */
+			int[] inFlight = new int[PUBLICKEY_QUERY_WINDOW];
+			byte[][] inFlightBlobs = new byte[PUBLICKEY_QUERY_WINDOW][];
+			int head = 0;
+			int count = 0;
+
+			while (true)
+			{
+				while ((accepted < 0) && (next < keys.length) && (count < PUBLICKEY_QUERY_WINDOW))
+				{
+					int index = next++;
+					PublicKey key = keys[index];
+					byte[] blob = encodePublicKey(key);
+
+					QueryAnswer known = findQueryAnswer(user, blob);
+					if (known != null)
+					{
+						/* Anything still in flight comes before this one */
+						if (known.accepted)
+							accepted = index;
+						continue;
+					}
+
+					PacketUserauthRequestPublicKey ua = new PacketUserauthRequestPublicKey("ssh-connection", user,
+							getPublicKeyAlgorithm(key), blob);
+					tm.sendMessage(ua.getPayload());
+
+					int slot = (head + count++) % PUBLICKEY_QUERY_WINDOW;
+					inFlight[slot] = index;
+					inFlightBlobs[slot] = blob;
+				}
+
+				if (count == 0)
+					return accepted;
+
+				byte[] ar = getNextMessage();
+				boolean ok;
+
+				if (ar[0] == Packets.SSH_MSG_USERAUTH_PK_OK)
+				{
+					ok = true;
+				}
+				else if (ar[0] == Packets.SSH_MSG_USERAUTH_FAILURE)
+				{
+					PacketUserauthFailure puf = new PacketUserauthFailure(ar, 0, ar.length);
+
+					remainingMethods = puf.getAuthThatCanContinue();
+					isPartialSuccess = puf.isPartialSuccess();
+					ok = false;
+				}
+				else
+				{
+					throw new IOException("Unexpected SSH message (type " + ar[0] + ")");
+				}
+
+				int index = inFlight[head];
+				queryAnswers.addElement(new QueryAnswer(user, inFlightBlobs[head], ok));
+				inFlightBlobs[head] = null;
+				head = (head + 1) % PUBLICKEY_QUERY_WINDOW;
+				count--;
+
+				if (ok && ((accepted < 0) || (index < accepted)))
+					accepted = index;
+			}
+		}
+		catch (IOException e)
+		{
+			tm.close(e, false);
+			throw (IOException) new IOException("Publickey query failed.").initCause(e);
+		}
+	}
+
+	private QueryAnswer findQueryAnswer(String user, byte[] blob)
+	{
+		for (int i = 0; i < queryAnswers.size(); i++)
+		{
+			QueryAnswer answer = (QueryAnswer) queryAnswers.elementAt(i);
+
+			if (answer.user.equals(user) && Arrays.equals(answer.blob, blob))
+				return answer;
+		}
+		return null;
+	}
+
 	public boolean authenticateNone(String user) throws IOException
 	{
 		try
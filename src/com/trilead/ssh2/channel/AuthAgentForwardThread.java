@@ -19,6 +19,7 @@ package com.trilead.ssh2.channel;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.KeyFactory;
@@ -39,8 +40,16 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.security.spec.RSAPrivateCrtKeySpec;
 import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.trilead.ssh2.AuthAgentCallback;
 import com.trilead.ssh2.log.Logger;
@@ -52,6 +61,15 @@ import com.trilead.ssh2.signature.RSASHA1Verify;
 
 /**
  * AuthAgentForwardThread.
+ * <p>
+ * Sign requests are checked on this thread, which may ask the user for
+ * confirmation, but the signing itself runs on a pool shared by all
+ * forwarded agent channels. Requests that arrive together are signed in
+ * parallel and the answers are written in the order of the requests, as
+ * the agent protocol wants.
+ * <p>
+ * The identities answer is built once and reused as long as
+ * {@link AuthAgentCallback#retrieveIdentities()} returns the same map.
  *
  * @author Kenny Root
  * @version $Id$
@@ -89,6 +107,18 @@ public class AuthAgentForwardThread extends Thread implements IChannelWorkerThre
 
 	private static final Logger log = Logger.getLogger(RemoteAcceptThread.class);
 
+	/* Same limit as the OpenSSH agent */
+	private static final int MAX_MESSAGE_SIZE = 256 * 1024;
+
+	/* Signatures in flight per channel before answers are written anyway */
+	private static final int MAX_PENDING = 16;
+
+	private static ExecutorService signer;
+
+	/* Last identities map seen and the answer built from it; locked by the class */
+	private static Map<String,byte[]> answeredKeys;
+	private static byte[] identitiesAnswer;
+
 	AuthAgentCallback authAgent;
 	OutputStream os;
 	InputStream is;
@@ -96,6 +126,8 @@ public class AuthAgentForwardThread extends Thread implements IChannelWorkerThre
 
 	byte[] buffer = new byte[Channel.CHANNEL_BUFFER_SIZE];
 
+	private final List<Future<byte[]>> pending = new ArrayList<Future<byte[]>>();
+
 	public AuthAgentForwardThread(Channel c, AuthAgentCallback authAgent)
 	{
 		this.c = c;
@@ -125,15 +157,46 @@ public class AuthAgentForwardThread extends Thread implements IChannelWorkerThre
 			is = c.getStdoutStream();
 			os = c.getStdinStream();
 
-			int totalSize = 4;
-			int readSoFar = 0;
+			int filled = 0;
 
 			while (true) {
+				int off = 0;
+
+				/* Handle every complete message, a read may bring several */
+				while (filled - off >= 4) {
+					int size = new TypesReader(buffer, off, 4).readUINT32();
+					if (size <= 0 || size > MAX_MESSAGE_SIZE)
+						throw new IOException("Illegal agent message size " + size);
+
+					if (filled - off - 4 < size) {
+						if (size + 4 > buffer.length) {
+							byte[] bigger = new byte[size + 4];
+							System.arraycopy(buffer, off, bigger, 0, filled - off);
+							buffer = bigger;
+							filled -= off;
+							off = 0;
+						}
+						break;
+					}
+
+					handleMessage(new TypesReader(buffer, off + 4, size));
+					off += 4 + size;
+				}
+
+				if (off > 0) {
+					System.arraycopy(buffer, off, buffer, 0, filled - off);
+					filled -= off;
+				}
+
+				/* Answer what has been signed before waiting for more */
+				if (!pending.isEmpty() && is.available() == 0)
+					flush();
+
 				int len;
 
 				try
 				{
-					len = is.read(buffer, readSoFar, buffer.length - readSoFar);
+					len = is.read(buffer, filled, buffer.length - filled);
 				}
 				catch (IOException e)
 				{
@@ -144,51 +207,10 @@ public class AuthAgentForwardThread extends Thread implements IChannelWorkerThre
 				if (len <= 0)
 					break;
 
-				readSoFar += len;
-
-				if (readSoFar >= 4) {
-					TypesReader tr = new TypesReader(buffer, 0, 4);
-					totalSize = tr.readUINT32() + 4;
-				}
-
-				if (totalSize == readSoFar) {
-					TypesReader tr = new TypesReader(buffer, 4, readSoFar - 4);
-					int messageType = tr.readByte();
-
-					switch (messageType) {
-					case SSH2_AGENTC_REQUEST_IDENTITIES:
-						sendIdentities();
-						break;
-					case SSH2_AGENTC_ADD_IDENTITY:
-						addIdentity(tr, false);
-						break;
-					case SSH2_AGENTC_ADD_ID_CONSTRAINED:
-						addIdentity(tr, true);
-						break;
-					case SSH2_AGENTC_REMOVE_IDENTITY:
-						removeIdentity(tr);
-						break;
-					case SSH2_AGENTC_REMOVE_ALL_IDENTITIES:
-						removeAllIdentities(tr);
-						break;
-					case SSH2_AGENTC_SIGN_REQUEST:
-						processSignRequest(tr);
-						break;
-					case SSH_AGENTC_LOCK:
-						processLockRequest(tr);
-						break;
-					case SSH_AGENTC_UNLOCK:
-						processUnlockRequest(tr);
-						break;
-					default:
-						os.write(SSH_AGENT_FAILURE);
-						break;
-					}
-
-					readSoFar = 0;
-				}
+				filled += len;
 			}
 
+			flush();
 			c.cm.closeChannel(c, "EOF on both streams reached.", true);
 		}
 		catch (IOException e)
@@ -221,6 +243,94 @@ public class AuthAgentForwardThread extends Thread implements IChannelWorkerThre
 		}
 	}
 
+	private void handleMessage(TypesReader tr) throws IOException
+	{
+		int messageType = tr.readByte();
+
+		/* Everything but signing is answered right away, after what came before */
+		if (messageType != SSH2_AGENTC_SIGN_REQUEST)
+			flush();
+
+		switch (messageType) {
+		case SSH2_AGENTC_REQUEST_IDENTITIES:
+			sendIdentities();
+			break;
+		case SSH2_AGENTC_ADD_IDENTITY:
+			addIdentity(tr, false);
+			break;
+		case SSH2_AGENTC_ADD_ID_CONSTRAINED:
+			addIdentity(tr, true);
+			break;
+		case SSH2_AGENTC_REMOVE_IDENTITY:
+			removeIdentity(tr);
+			break;
+		case SSH2_AGENTC_REMOVE_ALL_IDENTITIES:
+			removeAllIdentities(tr);
+			break;
+		case SSH2_AGENTC_SIGN_REQUEST:
+			processSignRequest(tr);
+			break;
+		case SSH_AGENTC_LOCK:
+			processLockRequest(tr);
+			break;
+		case SSH_AGENTC_UNLOCK:
+			processUnlockRequest(tr);
+			break;
+		default:
+			os.write(SSH_AGENT_FAILURE);
+			break;
+		}
+	}
+
+	/**
+	 * Writes the answers to all sign requests still in flight, in order.
+	 */
+	private void flush() throws IOException
+	{
+		for (int i = 0; i < pending.size(); i++)
+		{
+			byte[] answer;
+
+			try
+			{
+				answer = pending.get(i).get();
+			}
+			catch (InterruptedException e)
+			{
+				pending.clear();
+				throw new InterruptedIOException("Interrupted while signing");
+			}
+			catch (ExecutionException e)
+			{
+				log.log(20, "Signing failed: " + e.getCause());
+				answer = SSH_AGENT_FAILURE;
+			}
+
+			os.write(answer);
+		}
+
+		pending.clear();
+	}
+
+	private static synchronized ExecutorService getSigner()
+	{
+		if (signer == null)
+		{
+			int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+			signer = Executors.newFixedThreadPool(threads, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "AuthAgentSigner");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		return signer;
+	}
+
 	public void stopWorking() {
 		try
 		{
@@ -248,17 +358,20 @@ public class AuthAgentForwardThread extends Thread implements IChannelWorkerThre
 	{
 		Map<String,byte[]> keys = null;
 
-		TypesWriter tw = new TypesWriter();
-		tw.writeByte(SSH2_AGENT_IDENTITIES_ANSWER);
-		int numKeys = 0;
-
 		if (!authAgent.isAgentLocked())
 			keys = authAgent.retrieveIdentities();
 
-		if (keys != null)
-			numKeys = keys.size();
+		os.write(identitiesAnswer(keys));
+	}
+
+	private static synchronized byte[] identitiesAnswer(Map<String,byte[]> keys)
+	{
+		if (keys != null && keys == answeredKeys)
+			return identitiesAnswer;
 
-		tw.writeUINT32(numKeys);
+		TypesWriter tw = new TypesWriter();
+		tw.writeByte(SSH2_AGENT_IDENTITIES_ANSWER);
+		tw.writeUINT32(keys != null ? keys.size() : 0);
 
 		if (keys != null) {
 			for (Entry<String,byte[]> entry : keys.entrySet()) {
@@ -268,7 +381,14 @@ public class AuthAgentForwardThread extends Thread implements IChannelWorkerThre
 			}
 		}
 
-		sendPacket(tw.getBytes());
+		byte[] answer = packet(tw.getBytes());
+
+		if (keys != null) {
+			answeredKeys = keys;
+			identitiesAnswer = answer;
+		}
+
+		return answer;
 	}
 
 	/**
@@ -452,63 +572,83 @@ public class AuthAgentForwardThread extends Thread implements IChannelWorkerThre
 		}
 	}
 
-	private void processSignRequest(TypesReader tr)
+	private void processSignRequest(TypesReader tr) throws IOException
 	{
-		try
-		{
-			if (failWhenLocked())
-				return;
-
-			byte[] publicKeyBytes = tr.readByteString();
-			byte[] challenge = tr.readByteString();
-
-			int flags = tr.readUINT32();
-
-			if (flags != 0) {
-				// We don't understand any flags; abort!
-				os.write(SSH_AGENT_FAILURE);
-				return;
-			}
+		if (authAgent.isAgentLocked()) {
+			flush();
+			os.write(SSH_AGENT_FAILURE);
+			return;
+		}
 
-			KeyPair pair = authAgent.getKeyPair(publicKeyBytes);
+		byte[] publicKeyBytes;
+		final byte[] challenge;
+		int flags;
 
-			if (pair == null) {
-				os.write(SSH_AGENT_FAILURE);
-				return;
-			}
+		try
+		{
+			publicKeyBytes = tr.readByteString();
+			challenge = tr.readByteString();
+			flags = tr.readUINT32();
+		}
+		catch (IOException e)
+		{
+			flush();
+			os.write(SSH_AGENT_FAILURE);
+			return;
+		}
 
-			byte[] response;
-
-			PrivateKey privKey = pair.getPrivate();
-			if (privKey instanceof RSAPrivateKey) {
-				byte[] signature = RSASHA1Verify.generateSignature(challenge,
-						(RSAPrivateKey) privKey);
-				response = RSASHA1Verify.encodeSSHRSASignature(signature);
-			} else if (privKey instanceof DSAPrivateKey) {
-				byte[] signature = DSASHA1Verify.generateSignature(challenge,
-						(DSAPrivateKey) privKey, new SecureRandom());
-				response = DSASHA1Verify.encodeSSHDSASignature(signature);
-			} else {
-				os.write(SSH_AGENT_FAILURE);
-				return;
-			}
+		if (flags != 0) {
+			// We don't understand any flags; abort!
+			flush();
+			os.write(SSH_AGENT_FAILURE);
+			return;
+		}
 
-			TypesWriter tw = new TypesWriter();
-			tw.writeByte(SSH2_AGENT_SIGN_RESPONSE);
-			tw.writeString(response, 0, response.length);
+		KeyPair pair = authAgent.getKeyPair(publicKeyBytes);
 
-			sendPacket(tw.getBytes());
+		final PrivateKey privKey = pair != null ? pair.getPrivate() : null;
+		if (!(privKey instanceof RSAPrivateKey) && !(privKey instanceof DSAPrivateKey)) {
+			flush();
+			os.write(SSH_AGENT_FAILURE);
+			return;
 		}
-		catch (IOException e)
+
+		pending.add(getSigner().submit(new Callable<byte[]>()
 		{
-			try
-			{
-				os.write(SSH_AGENT_FAILURE);
-			}
-			catch (IOException e1)
+			public byte[] call() throws IOException
 			{
+				return sign(privKey, challenge);
 			}
+		}));
+
+		if (pending.size() >= MAX_PENDING)
+			flush();
+	}
+
+	/**
+	 * Runs on the signer pool.
+	 *
+	 * @return the complete sign response, length included
+	 */
+	private static byte[] sign(PrivateKey privKey, byte[] challenge) throws IOException
+	{
+		byte[] response;
+
+		if (privKey instanceof RSAPrivateKey) {
+			byte[] signature = RSASHA1Verify.generateSignature(challenge,
+					(RSAPrivateKey) privKey);
+			response = RSASHA1Verify.encodeSSHRSASignature(signature);
+		} else {
+			byte[] signature = DSASHA1Verify.generateSignature(challenge,
+					(DSAPrivateKey) privKey, new SecureRandom());
+			response = DSASHA1Verify.encodeSSHDSASignature(signature);
 		}
+
+		TypesWriter tw = new TypesWriter();
+		tw.writeByte(SSH2_AGENT_SIGN_RESPONSE);
+		tw.writeString(response, 0, response.length);
+
+		return packet(tw.getBytes());
 	}
 
 	/**
@@ -566,14 +706,13 @@ public class AuthAgentForwardThread extends Thread implements IChannelWorkerThre
 	}
 
 	/**
-	 * @param tw
-	 * @throws IOException
+	 * @return the message with its length in front
 	 */
-	private void sendPacket(byte[] message) throws IOException
+	private static byte[] packet(byte[] message)
 	{
 		TypesWriter packet = new TypesWriter();
 		packet.writeUINT32(message.length);
 		packet.writeBytes(message);
-		os.write(packet.getBytes());
+		return packet.getBytes();
 	}
 }
@@ -1,6 +1,8 @@
 
 package com.trilead.ssh2.channel;
 
+import com.trilead.ssh2.packets.TypesWriter;
+
 /**
  * Channel.
  * 
@@ -98,6 +100,16 @@ public class Channel
 
 	final byte[] msgWindowAdjust = new byte[9];
 
+	/*
+	 * The same for outgoing data, grown to the largest packet sent so far,
+	 * and for channel requests. May only be used while holding the
+	 * channelSendLock
+	 */
+
+	byte[] msgData;
+
+	final TypesWriter msgWriter = new TypesWriter();
+
 	// If you access (read or write) any of the following fields, then you have
 	// to synchronize on the channel.
 
@@ -7,6 +7,7 @@ import java.util.Vector;
 
 import com.trilead.ssh2.AuthAgentCallback;
 import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.ConnectionMetrics;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketChannelAuthAgentReq;
 import com.trilead.ssh2.packets.PacketChannelOpenConfirmation;
@@ -25,6 +26,7 @@ import com.trilead.ssh2.packets.PacketSessionSubsystemRequest;
 import com.trilead.ssh2.packets.PacketSessionX11Request;
 import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.packets.TypesWriter;
 import com.trilead.ssh2.transport.MessageHandler;
 import com.trilead.ssh2.transport.TransportManager;
 
@@ -50,6 +52,9 @@ public class ChannelManager implements MessageHandler
 	private int globalSuccessCounter = 0;
 	private int globalFailedCounter = 0;
 
+	/* Global requests are answered in order, one has to finish before the next */
+	private final Object globalRequestLock = new Object();
+
 	private HashMap remoteForwardings = new HashMap();
 
 	private AuthAgentCallback authAgent;
@@ -374,10 +379,12 @@ public class ChannelManager implements MessageHandler
 		while (len > 0)
 		{
 			int thislen = 0;
-			byte[] msg;
+			int remoteID;
 
 			synchronized (c)
 			{
+				long stalledSince = -1;
+
 				while (true)
 				{
 					if (c.state == Channel.STATE_CLOSED)
@@ -389,6 +396,9 @@ public class ChannelManager implements MessageHandler
 					if (c.remoteWindow != 0)
 						break;
 
+					if (stalledSince < 0)
+						stalledSince = System.nanoTime();
+
 					try
 					{
 						c.wait();
@@ -398,6 +408,13 @@ public class ChannelManager implements MessageHandler
 					}
 				}
 
+				if (stalledSince >= 0)
+				{
+					ConnectionMetrics metrics = tm.getConnectionMetrics();
+					if (metrics != null)
+						metrics.windowStall(System.nanoTime() - stalledSince);
+				}
+
 				/* len > 0, no sign extension can happen when comparing */
 
 				thislen = (c.remoteWindow >= len) ? len : (int) c.remoteWindow;
@@ -416,27 +433,34 @@ public class ChannelManager implements MessageHandler
 
 				c.remoteWindow -= thislen;
 
-				msg = new byte[1 + 8 + thislen];
+				remoteID = c.remoteID;
+			}
+
+			synchronized (c.channelSendLock)
+			{
+				if (c.closeMessageSent == true)
+					throw new IOException("SSH channel is closed. (" + c.getReasonClosed() + ")");
+
+				/* Reuse the buffer of the last packet, the transport copies it anyway */
+
+				byte[] msg = c.msgData;
+
+				if ((msg == null) || (msg.length < 1 + 8 + thislen))
+					msg = c.msgData = new byte[1 + 8 + thislen];
 
 				msg[0] = Packets.SSH_MSG_CHANNEL_DATA;
-				msg[1] = (byte) (c.remoteID >> 24);
-				msg[2] = (byte) (c.remoteID >> 16);
-				msg[3] = (byte) (c.remoteID >> 8);
-				msg[4] = (byte) (c.remoteID);
+				msg[1] = (byte) (remoteID >> 24);
+				msg[2] = (byte) (remoteID >> 16);
+				msg[3] = (byte) (remoteID >> 8);
+				msg[4] = (byte) (remoteID);
 				msg[5] = (byte) (thislen >> 24);
 				msg[6] = (byte) (thislen >> 16);
 				msg[7] = (byte) (thislen >> 8);
 				msg[8] = (byte) (thislen);
 
 				System.arraycopy(buffer, pos, msg, 9, thislen);
-			}
 
-			synchronized (c.channelSendLock)
-			{
-				if (c.closeMessageSent == true)
-					throw new IOException("SSH channel is closed. (" + c.getReasonClosed() + ")");
-
-				tm.sendMessage(msg);
+				tm.sendMessage(msg, 0, 1 + 8 + thislen);
 			}
 
 			pos += thislen;
@@ -466,29 +490,32 @@ public class ChannelManager implements MessageHandler
 			remoteForwardings.put(key, rfd);
 		}
 
-		synchronized (channels)
+		synchronized (globalRequestLock)
 		{
-			globalSuccessCounter = globalFailedCounter = 0;
-		}
+			synchronized (channels)
+			{
+				globalSuccessCounter = globalFailedCounter = 0;
+			}
 
-		PacketGlobalForwardRequest pgf = new PacketGlobalForwardRequest(true, bindAddress, bindPort);
-		tm.sendMessage(pgf.getPayload());
+			PacketGlobalForwardRequest pgf = new PacketGlobalForwardRequest(true, bindAddress, bindPort);
+			tm.sendMessage(pgf.getPayload());
 
-		if (log.isEnabled())
-			log.log(50, "Requesting a remote forwarding ('" + bindAddress + "', " + bindPort + ")");
+			if (log.isEnabled())
+				log.log(50, "Requesting a remote forwarding ('" + bindAddress + "', " + bindPort + ")");
 
-		try
-		{
-			if (waitForGlobalRequestResult() == false)
-				throw new IOException("The server denied the request (did you enable port forwarding?)");
-		}
-		catch (IOException e)
-		{
-			synchronized (remoteForwardings)
+			try
 			{
-				remoteForwardings.remove(rfd);
+				if (waitForGlobalRequestResult() == false)
+					throw new IOException("The server denied the request (did you enable port forwarding?)");
+			}
+			catch (IOException e)
+			{
+				synchronized (remoteForwardings)
+				{
+					remoteForwardings.remove(rfd);
+				}
+				throw e;
 			}
-			throw e;
 		}
 
 		return bindPort;
@@ -506,29 +533,32 @@ public class ChannelManager implements MessageHandler
 				throw new IOException("Sorry, there is no known remote forwarding for remote port " + bindPort);
 		}
 
-		synchronized (channels)
+		synchronized (globalRequestLock)
 		{
-			globalSuccessCounter = globalFailedCounter = 0;
-		}
+			synchronized (channels)
+			{
+				globalSuccessCounter = globalFailedCounter = 0;
+			}
 
-		PacketGlobalCancelForwardRequest pgcf = new PacketGlobalCancelForwardRequest(true, rfd.bindAddress,
-				rfd.bindPort);
-		tm.sendMessage(pgcf.getPayload());
+			PacketGlobalCancelForwardRequest pgcf = new PacketGlobalCancelForwardRequest(true, rfd.bindAddress,
+					rfd.bindPort);
+			tm.sendMessage(pgcf.getPayload());
 
-		if (log.isEnabled())
-			log.log(50, "Requesting cancelation of remote forward ('" + rfd.bindAddress + "', " + rfd.bindPort + ")");
+			if (log.isEnabled())
+				log.log(50, "Requesting cancelation of remote forward ('" + rfd.bindAddress + "', " + rfd.bindPort + ")");
 
-		try
-		{
-			if (waitForGlobalRequestResult() == false)
-				throw new IOException("The server denied the request.");
-		}
-		finally
-		{
-			synchronized (remoteForwardings)
+			try
 			{
-				/* Only now we are sure that no more forwarded connections will arrive */
-				remoteForwardings.remove(rfd);
+				if (waitForGlobalRequestResult() == false)
+					throw new IOException("The server denied the request.");
+			}
+			finally
+			{
+				synchronized (remoteForwardings)
+				{
+					/* Only now we are sure that no more forwarded connections will arrive */
+					remoteForwardings.remove(rfd);
+				}
 			}
 		}
 
@@ -620,41 +650,50 @@ public class ChannelManager implements MessageHandler
 
 	public void requestGlobalTrileadPing() throws IOException
 	{
-		synchronized (channels)
+		synchronized (globalRequestLock)
 		{
-			globalSuccessCounter = globalFailedCounter = 0;
-		}
+			synchronized (channels)
+			{
+				globalSuccessCounter = globalFailedCounter = 0;
+			}
 
-		PacketGlobalTrileadPing pgtp = new PacketGlobalTrileadPing();
+			PacketGlobalTrileadPing pgtp = new PacketGlobalTrileadPing();
 
-		tm.sendMessage(pgtp.getPayload());
+			tm.sendMessage(pgtp.getPayload());
 
-		if (log.isEnabled())
-			log.log(50, "Sending SSH_MSG_GLOBAL_REQUEST 'trilead-ping'.");
+			/* Starts after sending, waiting for a key exchange is not part of it */
+			long sent = System.nanoTime();
 
-		try
-		{
-			if (waitForGlobalRequestResult() == true)
-				throw new IOException("Your server is alive - but buggy. "
-						+ "It replied with SSH_MSG_REQUEST_SUCCESS when it actually should not.");
+			if (log.isEnabled())
+				log.log(50, "Sending SSH_MSG_GLOBAL_REQUEST 'trilead-ping'.");
 
-		}
-		catch (IOException e)
-		{
-			throw (IOException) new IOException("The ping request failed.").initCause(e);
+			try
+			{
+				if (waitForGlobalRequestResult() == true)
+					throw new IOException("Your server is alive - but buggy. "
+							+ "It replied with SSH_MSG_REQUEST_SUCCESS when it actually should not.");
+
+				ConnectionMetrics metrics = tm.getConnectionMetrics();
+				if (metrics != null)
+					metrics.rttSample(System.nanoTime() - sent);
+			}
+			catch (IOException e)
+			{
+				throw (IOException) new IOException("The ping request failed.").initCause(e);
+			}
 		}
 	}
 
 	public void requestChannelTrileadPing(Channel c) throws IOException
 	{
-		PacketChannelTrileadPing pctp;
+		int remoteID;
 
 		synchronized (c)
 		{
 			if (c.state != Channel.STATE_OPEN)
 				throw new IOException("Cannot ping this channel (" + c.getReasonClosed() + ")");
 
-			pctp = new PacketChannelTrileadPing(c.remoteID);
+			remoteID = c.remoteID;
 
 			c.successCounter = c.failedCounter = 0;
 		}
@@ -663,7 +702,10 @@ public class ChannelManager implements MessageHandler
 		{
 			if (c.closeMessageSent)
 				throw new IOException("Cannot ping this channel (" + c.getReasonClosed() + ")");
-			tm.sendMessage(pctp.getPayload());
+			TypesWriter tw = c.msgWriter;
+			tw.reset();
+			PacketChannelTrileadPing.writeTo(tw, remoteID);
+			tm.sendMessage(tw.getArray(), 0, tw.length());
 		}
 
 		try
@@ -716,15 +758,14 @@ public class ChannelManager implements MessageHandler
 
 	public void resizePTY(Channel c, int term_width_characters, int term_height_characters,
 			int term_width_pixels, int term_height_pixels) throws IOException {
-		PacketSessionPtyResize spr;
+		int remoteID;
 
 		synchronized (c) {
 			if (c.state != Channel.STATE_OPEN)
 				throw new IOException("Cannot request PTY on this channel ("
 						+ c.getReasonClosed() + ")");
 
-			spr = new PacketSessionPtyResize(c.remoteID, term_width_characters, term_height_characters,
-					term_width_pixels, term_height_pixels);
+			remoteID = c.remoteID;
 			c.successCounter = c.failedCounter = 0;
 		}
 
@@ -732,7 +773,11 @@ public class ChannelManager implements MessageHandler
 			if (c.closeMessageSent)
 				throw new IOException("Cannot request PTY on this channel ("
 						+ c.getReasonClosed() + ")");
-			tm.sendMessage(spr.getPayload());
+			TypesWriter tw = c.msgWriter;
+			tw.reset();
+			PacketSessionPtyResize.writeTo(tw, remoteID, term_width_characters, term_height_characters,
+					term_width_pixels, term_height_pixels);
+			tm.sendMessage(tw.getArray(), 0, tw.length());
 		}
 	}
 
@@ -42,8 +42,17 @@ public class CompressionFactory {
 	{
 		/* Higher Priority First */
 
-		compressors.addElement(new CompressorEntry("zlib", "com.trilead.ssh2.compression.Zlib"));
-		compressors.addElement(new CompressorEntry("zlib@openssh.com", "com.trilead.ssh2.compression.ZlibOpenSSH"));
+		/* Prefer the platform's zlib if it can do what SSH needs */
+		if (DeflaterZlib.isSupported())
+		{
+			compressors.addElement(new CompressorEntry("zlib", "com.trilead.ssh2.compression.DeflaterZlib"));
+			compressors.addElement(new CompressorEntry("zlib@openssh.com", "com.trilead.ssh2.compression.DeflaterZlibOpenSSH"));
+		}
+		else
+		{
+			compressors.addElement(new CompressorEntry("zlib", "com.trilead.ssh2.compression.Zlib"));
+			compressors.addElement(new CompressorEntry("zlib@openssh.com", "com.trilead.ssh2.compression.ZlibOpenSSH"));
+		}
 		compressors.addElement(new CompressorEntry("none", ""));
 	}
 
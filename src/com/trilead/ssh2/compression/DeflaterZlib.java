@@ -0,0 +1,304 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.compression;
+
+import java.lang.reflect.Method;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * "zlib" compression on top of the platform's native
+ * {@link Deflater}/{@link Inflater}.
+ * <p>
+ * The outgoing stream adapts to what it is sending. Every
+ * {@link #WINDOW_SIZE} bytes of input the achieved ratio and the time spent
+ * deflating are compared with what the saved bytes are worth on the link
+ * (see {@link #linkWriteCompleted(int, long)}). The level is then moved up
+ * or down. Data that does not compress (JPEGs, tarballs, ...) is passed
+ * through as stored deflate blocks for a while instead of burning CPU on it.
+ * Stored blocks keep the zlib stream intact, so the peer never notices.
+ * <p>
+ * SSH needs every packet flushed to a byte boundary, which needs
+ * <code>Deflater.SYNC_FLUSH</code> (Java 7, Android API 19). Older platforms
+ * should use {@link Zlib}; see {@link #isSupported()}.
+ */
+public class DeflaterZlib implements ICompressor {
+	private static final Logger log = Logger.getLogger(DeflaterZlib.class);
+
+	static private final int DEFAULT_BUF_SIZE = 4096;
+
+	/* Deflater.SYNC_FLUSH, which our build target does not know about yet */
+	static private final int SYNC_FLUSH = 2;
+
+	static private final int DEFAULT_LEVEL = 5;
+	static private final int MIN_LEVEL = 1;
+	static private final int MAX_LEVEL = 9;
+
+	/** Bytes of input between two adaptation decisions. */
+	static final int WINDOW_SIZE = 32 * 1024;
+
+	/** Compressed/uncompressed ratio (in percent) above which we stop trying. */
+	static final int INCOMPRESSIBLE_PERCENT = 90;
+
+	static private final int MIN_BYPASS = 64 * 1024;
+	static private final int MAX_BYPASS = 1024 * 1024;
+
+	/* Writes shorter than this did not wait for the link, they only filled the socket buffer */
+	static private final long MIN_WRITE_NANOS = 1000000L;
+	static private final int MIN_WRITE_BYTES = 1024;
+
+	static private final Method deflateWithFlush;
+
+	static {
+		Method m = null;
+		try {
+			m = Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+		} catch (NoSuchMethodException e) {
+		}
+		deflateWithFlush = m;
+	}
+
+	/* Each instance only goes one way, so only one of these is ever created */
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] inflated_buf;
+
+	private int level = DEFAULT_LEVEL;
+
+	/* Input bytes still to be sent stored before compressing is tried again */
+	private int bypassRemaining;
+	private int bypassLength = MIN_BYPASS;
+
+	private long windowIn;
+	private long windowOut;
+	private long windowNanos;
+
+	/* Estimated link throughput in bytes per second, 0 if unknown */
+	private long throughput;
+
+	/**
+	 * @return whether this platform can flush a {@link Deflater} without
+	 *         finishing the stream.
+	 */
+	public static boolean isSupported() {
+		return deflateWithFlush != null;
+	}
+
+	public DeflaterZlib() {
+		inflated_buf = new byte[DEFAULT_BUF_SIZE];
+	}
+
+	public boolean canCompressPreauth() {
+		return true;
+	}
+
+	public int getBufferSize() {
+		return DEFAULT_BUF_SIZE;
+	}
+
+	/**
+	 * Compresses <code>len</code> bytes of <code>buf</code> starting at
+	 * <code>start</code> into the beginning of <code>output</code>, which
+	 * has to have room for <code>len</code> plus some slack for the deflate
+	 * block headers.
+	 */
+	public int compress(byte[] buf, int start, int len, byte[] output) {
+		final boolean sampling = bypassRemaining <= 0;
+		final long begin = sampling ? System.nanoTime() : 0;
+
+		if (deflater == null)
+			deflater = new Deflater(level);
+
+		deflater.setInput(buf, start, len);
+
+		int outputlen = deflate(output);
+
+		if (sampling) {
+			windowNanos += System.nanoTime() - begin;
+			windowIn += len;
+			windowOut += outputlen;
+
+			if (windowIn >= WINDOW_SIZE)
+				adapt();
+		} else {
+			bypassRemaining -= len;
+			if (bypassRemaining <= 0)
+				deflater.setLevel(level);
+		}
+
+		return outputlen;
+	}
+
+	private int deflate(byte[] output) {
+		int outputlen = 0;
+
+		/*
+		 * After a level change the first call may only switch parameters and
+		 * leave the input alone, so go on until all of it has been taken.
+		 */
+		do {
+			try {
+				outputlen += ((Integer) deflateWithFlush.invoke(deflater, output, outputlen,
+						output.length - outputlen, SYNC_FLUSH)).intValue();
+			} catch (Exception e) {
+				throw new IllegalStateException("compress: deflate failed", e);
+			}
+
+			/* A completely filled buffer means the flush could not complete */
+			if (outputlen == output.length)
+				throw new IllegalArgumentException("compress: output buffer too small");
+		} while (!deflater.needsInput());
+
+		return outputlen;
+	}
+
+	/**
+	 * Compression is worth it while deflating a window takes less time than
+	 * the bytes it saved would have spent on the wire. As long as we have no
+	 * idea of the link speed the link is assumed to be slow, the user asked
+	 * for compression after all.
+	 */
+	private void adapt() {
+		final long saved = windowIn - windowOut;
+
+		if (windowOut * 100 > windowIn * INCOMPRESSIBLE_PERCENT) {
+			startBypass();
+		} else if (throughput > 0) {
+			final long savedNanos = saved * 1000000000L / throughput;
+
+			if (windowNanos > savedNanos) {
+				if (level > MIN_LEVEL)
+					deflater.setLevel(--level);
+				else
+					startBypass();
+			} else if (windowNanos * 4 < savedNanos && level < MAX_LEVEL) {
+				deflater.setLevel(++level);
+				bypassLength = MIN_BYPASS;
+			} else {
+				bypassLength = MIN_BYPASS;
+			}
+		} else {
+			bypassLength = MIN_BYPASS;
+		}
+
+		windowIn = 0;
+		windowOut = 0;
+		windowNanos = 0;
+	}
+
+	/*
+	 * Back off exponentially while the data keeps being incompressible, so a
+	 * long download does not pay for a probe every 64k.
+	 */
+	private void startBypass() {
+		deflater.setLevel(Deflater.NO_COMPRESSION);
+		bypassRemaining = bypassLength;
+		bypassLength = Math.min(bypassLength * 2, MAX_BYPASS);
+	}
+
+	/**
+	 * Reports how long it took to hand a packet to the network. Only writes
+	 * that actually had to wait for the link say anything about its speed.
+	 *
+	 * @param bytes size of the packet on the wire
+	 * @param nanos time spent writing and flushing it
+	 */
+	public void linkWriteCompleted(int bytes, long nanos) {
+		if (bytes < MIN_WRITE_BYTES || nanos < MIN_WRITE_NANOS)
+			return;
+
+		long sample = bytes * 1000000000L / nanos;
+		if (throughput == 0)
+			throughput = sample;
+		else
+			throughput = (throughput * 7 + sample) / 8;
+	}
+
+	/**
+	 * @return the current deflate level, or 0 while compression is bypassed.
+	 */
+	public int getLevel() {
+		return bypassRemaining > 0 ? Deflater.NO_COMPRESSION : level;
+	}
+
+	public byte[] uncompress(byte[] buffer, int start, int[] length) {
+		int inflated_end = 0;
+
+		/*
+		 * Inflater keeps reading from the input array, so inflate into our
+		 * own buffer first and only then copy over the input.
+		 */
+		if (inflater == null)
+			inflater = new Inflater();
+
+		inflater.setInput(buffer, start, length[0]);
+
+		try {
+			while (true) {
+				inflated_end += inflater.inflate(inflated_buf, inflated_end,
+						inflated_buf.length - inflated_end);
+
+				if (inflated_end < inflated_buf.length)
+					break;
+
+				byte[] foo = new byte[inflated_buf.length * 2];
+				System.arraycopy(inflated_buf, 0, foo, 0, inflated_end);
+				inflated_buf = foo;
+			}
+		} catch (DataFormatException e) {
+			if (log.isEnabled())
+				log.log(20, "uncompress: " + e.getMessage());
+			return null;
+		}
+
+		if (inflater.needsDictionary() || inflater.finished()) {
+			if (log.isEnabled())
+				log.log(20, "uncompress: unexpected end of zlib stream");
+			return null;
+		}
+
+		if (inflated_end > buffer.length - start) {
+			byte[] foo = new byte[inflated_end + start];
+			System.arraycopy(buffer, 0, foo, 0, start);
+			buffer = foo;
+		}
+		System.arraycopy(inflated_buf, 0, buffer, start, inflated_end);
+
+		length[0] = inflated_end;
+		return buffer;
+	}
+
+	/**
+	 * Ends the native streams right away instead of leaving them to the
+	 * finalizer.
+	 */
+	public void close() {
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+}
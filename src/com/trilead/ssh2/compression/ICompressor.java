@@ -29,4 +29,10 @@ public interface ICompressor {
 	byte[] uncompress(byte[] buf, int start, int[] len);
 
 	boolean canCompressPreauth();
+
+	/**
+	 * Free whatever the compressor holds, native zlib memory in particular.
+	 * It must not be used afterwards.
+	 */
+	void close();
 }
@@ -127,4 +127,9 @@ public class Zlib implements ICompressor {
 			}
 		}
 	}
+
+	public void close() {
+		deflate.deflateEnd();
+		inflate.inflateEnd();
+	}
 }
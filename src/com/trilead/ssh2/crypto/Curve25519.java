@@ -0,0 +1,452 @@
+package com.trilead.ssh2.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Curve25519 arithmetic for X25519 key agreement (RFC 7748) and Ed25519
+ * signature verification (RFC 8032).
+ * <p>
+ * Field elements are sixteen 16-bit limbs held in <code>long</code>s, as in
+ * TweetNaCl. The X25519 ladder and the Ed25519 scalar multiplication use
+ * conditional swaps rather than branches on secret bits.
+ */
+public final class Curve25519
+{
+	public static final int KEY_SIZE = 32;
+
+	private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+
+	/** Order of the Ed25519 base point. */
+	public static final BigInteger L = BigInteger.ONE.shiftLeft(252).add(
+			new BigInteger("27742317777372353535851937790883648493"));
+
+	private static final long[] GF0 = new long[16];
+	private static final long[] GF1 = gf(BigInteger.ONE);
+	private static final long[] A24 = gf(BigInteger.valueOf(121665));
+
+	/* d = -121665 / 121666 */
+	private static final BigInteger D_INT = BigInteger.valueOf(-121665).multiply(
+			BigInteger.valueOf(121666).modInverse(P)).mod(P);
+	private static final long[] D = gf(D_INT);
+	private static final long[] D2 = gf(D_INT.shiftLeft(1).mod(P));
+
+	/* sqrt(-1) = 2^((p - 1) / 4) */
+	private static final long[] SQRT_M1 = gf(BigInteger.valueOf(2).modPow(
+			P.subtract(BigInteger.ONE).shiftRight(2), P));
+
+	/* Base point: y = 4/5, x even */
+	private static final long[] BASE_X;
+	private static final long[] BASE_Y;
+	static
+	{
+		BigInteger y = BigInteger.valueOf(4).multiply(BigInteger.valueOf(5).modInverse(P)).mod(P);
+		BigInteger y2 = y.multiply(y);
+		BigInteger x2 = y2.subtract(BigInteger.ONE).multiply(
+				D_INT.multiply(y2).add(BigInteger.ONE).modInverse(P)).mod(P);
+		BigInteger x = x2.modPow(P.add(BigInteger.valueOf(3)).shiftRight(3), P);
+		if (!x.multiply(x).subtract(x2).mod(P).equals(BigInteger.ZERO))
+			x = x.multiply(BigInteger.valueOf(2).modPow(P.subtract(BigInteger.ONE).shiftRight(2), P)).mod(P);
+		if (x.testBit(0))
+			x = P.subtract(x);
+		BASE_X = gf(x);
+		BASE_Y = gf(y);
+	}
+
+	private static final byte[] BASE_U = new byte[KEY_SIZE];
+	static
+	{
+		BASE_U[0] = 9;
+	}
+
+	private Curve25519()
+	{
+	}
+
+	private static long[] gf(BigInteger v)
+	{
+		long[] o = new long[16];
+		for (int i = 0; i < 16; i++)
+			o[i] = v.shiftRight(16 * i).intValue() & 0xffff;
+		return o;
+	}
+
+	/*
+	 * Field arithmetic mod 2^255 - 19
+	 */
+
+	private static void car25519(long[] o)
+	{
+		for (int i = 0; i < 16; i++)
+		{
+			long c = o[i] >> 16;
+			o[i] -= c << 16;
+			if (i < 15)
+				o[i + 1] += c;
+			else
+				o[0] += 38 * c;
+		}
+	}
+
+	private static void sel25519(long[] p, long[] q, int b)
+	{
+		long c = ~(b - 1);
+		for (int i = 0; i < 16; i++)
+		{
+			long t = c & (p[i] ^ q[i]);
+			p[i] ^= t;
+			q[i] ^= t;
+		}
+	}
+
+	private static void pack25519(byte[] o, long[] n)
+	{
+		long[] m = new long[16];
+		long[] t = n.clone();
+		car25519(t);
+		car25519(t);
+		car25519(t);
+		for (int j = 0; j < 2; j++)
+		{
+			m[0] = t[0] - 0xffed;
+			for (int i = 1; i < 15; i++)
+			{
+				m[i] = t[i] - 0xffff - ((m[i - 1] >> 16) & 1);
+				m[i - 1] &= 0xffff;
+			}
+			m[15] = t[15] - 0x7fff - ((m[14] >> 16) & 1);
+			int b = (int) ((m[15] >> 16) & 1);
+			m[14] &= 0xffff;
+			sel25519(t, m, 1 - b);
+		}
+		for (int i = 0; i < 16; i++)
+		{
+			o[2 * i] = (byte) t[i];
+			o[2 * i + 1] = (byte) (t[i] >> 8);
+		}
+	}
+
+	private static boolean neq25519(long[] a, long[] b)
+	{
+		byte[] c = new byte[32];
+		byte[] d = new byte[32];
+		pack25519(c, a);
+		pack25519(d, b);
+		int diff = 0;
+		for (int i = 0; i < 32; i++)
+			diff |= c[i] ^ d[i];
+		return diff != 0;
+	}
+
+	private static int par25519(long[] a)
+	{
+		byte[] d = new byte[32];
+		pack25519(d, a);
+		return d[0] & 1;
+	}
+
+	private static void unpack25519(long[] o, byte[] n)
+	{
+		for (int i = 0; i < 16; i++)
+			o[i] = (n[2 * i] & 0xff) + ((long) (n[2 * i + 1] & 0xff) << 8);
+		o[15] &= 0x7fff;
+	}
+
+	private static void add(long[] o, long[] a, long[] b)
+	{
+		for (int i = 0; i < 16; i++)
+			o[i] = a[i] + b[i];
+	}
+
+	private static void sub(long[] o, long[] a, long[] b)
+	{
+		for (int i = 0; i < 16; i++)
+			o[i] = a[i] - b[i];
+	}
+
+	private static void mul(long[] o, long[] a, long[] b)
+	{
+		long[] t = new long[31];
+		for (int i = 0; i < 16; i++)
+			for (int j = 0; j < 16; j++)
+				t[i + j] += a[i] * b[j];
+		for (int i = 0; i < 15; i++)
+			t[i] += 38 * t[i + 16];
+		System.arraycopy(t, 0, o, 0, 16);
+		car25519(o);
+		car25519(o);
+	}
+
+	private static void sqr(long[] o, long[] a)
+	{
+		mul(o, a, a);
+	}
+
+	private static void inv25519(long[] o, long[] i)
+	{
+		long[] c = i.clone();
+		for (int a = 253; a >= 0; a--)
+		{
+			sqr(c, c);
+			if (a != 2 && a != 4)
+				mul(c, c, i);
+		}
+		System.arraycopy(c, 0, o, 0, 16);
+	}
+
+	private static void pow2523(long[] o, long[] i)
+	{
+		long[] c = i.clone();
+		for (int a = 250; a >= 0; a--)
+		{
+			sqr(c, c);
+			if (a != 1)
+				mul(c, c, i);
+		}
+		System.arraycopy(c, 0, o, 0, 16);
+	}
+
+	/*
+	 * X25519
+	 */
+
+	/**
+	 * Computes the X25519 function of a 32-byte scalar and u-coordinate.
+	 */
+	public static byte[] scalarMult(byte[] scalar, byte[] u)
+	{
+		if (scalar.length != KEY_SIZE || u.length != KEY_SIZE)
+			throw new IllegalArgumentException("X25519 inputs must be 32 bytes");
+
+		byte[] z = scalar.clone();
+		z[31] = (byte) ((z[31] & 127) | 64);
+		z[0] &= (byte) 248;
+
+		long[] x = new long[16];
+		unpack25519(x, u);
+
+		long[] a = new long[16];
+		long[] b = x.clone();
+		long[] c = new long[16];
+		long[] d = new long[16];
+		long[] e = new long[16];
+		long[] f = new long[16];
+		a[0] = d[0] = 1;
+
+		for (int i = 254; i >= 0; i--)
+		{
+			int r = (z[i >>> 3] >>> (i & 7)) & 1;
+			sel25519(a, b, r);
+			sel25519(c, d, r);
+			add(e, a, c);
+			sub(a, a, c);
+			add(c, b, d);
+			sub(b, b, d);
+			sqr(d, e);
+			sqr(f, a);
+			mul(a, c, a);
+			mul(c, b, e);
+			add(e, a, c);
+			sub(a, a, c);
+			sqr(b, a);
+			sub(c, d, f);
+			mul(a, c, A24);
+			add(a, a, d);
+			mul(c, c, a);
+			mul(a, d, f);
+			mul(d, b, x);
+			sqr(b, e);
+			sel25519(a, b, r);
+			sel25519(c, d, r);
+		}
+
+		inv25519(c, c);
+		mul(a, a, c);
+
+		byte[] q = new byte[KEY_SIZE];
+		pack25519(q, a);
+		return q;
+	}
+
+	/**
+	 * Computes the X25519 public key for a 32-byte private key.
+	 */
+	public static byte[] publicKey(byte[] privateKey)
+	{
+		return scalarMult(privateKey, BASE_U);
+	}
+
+	/*
+	 * Ed25519 points in extended coordinates (X, Y, Z, T)
+	 */
+
+	private static void edAdd(long[][] p, long[][] q)
+	{
+		long[] a = new long[16], b = new long[16], c = new long[16], d = new long[16];
+		long[] e = new long[16], f = new long[16], g = new long[16], h = new long[16];
+		long[] t = new long[16];
+
+		sub(a, p[1], p[0]);
+		sub(t, q[1], q[0]);
+		mul(a, a, t);
+		add(b, p[0], p[1]);
+		add(t, q[0], q[1]);
+		mul(b, b, t);
+		mul(c, p[3], q[3]);
+		mul(c, c, D2);
+		mul(d, p[2], q[2]);
+		add(d, d, d);
+		sub(e, b, a);
+		sub(f, d, c);
+		add(g, d, c);
+		add(h, b, a);
+
+		mul(p[0], e, f);
+		mul(p[1], h, g);
+		mul(p[2], g, f);
+		mul(p[3], e, h);
+	}
+
+	private static void edSwap(long[][] p, long[][] q, int b)
+	{
+		for (int i = 0; i < 4; i++)
+			sel25519(p[i], q[i], b);
+	}
+
+	private static void edPack(byte[] r, long[][] p)
+	{
+		long[] tx = new long[16], ty = new long[16], zi = new long[16];
+		inv25519(zi, p[2]);
+		mul(tx, p[0], zi);
+		mul(ty, p[1], zi);
+		pack25519(r, ty);
+		r[31] ^= par25519(tx) << 7;
+	}
+
+	/* p = s * q, s little-endian; q is clobbered */
+	private static void edScalarMult(long[][] p, long[][] q, byte[] s)
+	{
+		p[0] = GF0.clone();
+		p[1] = GF1.clone();
+		p[2] = GF1.clone();
+		p[3] = GF0.clone();
+		for (int i = 255; i >= 0; i--)
+		{
+			int b = (s[i >>> 3] >>> (i & 7)) & 1;
+			edSwap(p, q, b);
+			edAdd(q, p);
+			edAdd(p, p);
+			edSwap(p, q, b);
+		}
+	}
+
+	private static void edScalarBase(long[][] p, byte[] s)
+	{
+		long[][] q = new long[4][16];
+		q[0] = BASE_X.clone();
+		q[1] = BASE_Y.clone();
+		q[2] = GF1.clone();
+		mul(q[3], BASE_X, BASE_Y);
+		edScalarMult(p, q, s);
+	}
+
+	/* Decodes a public key and negates it, for use in verification. */
+	private static boolean edUnpackNeg(long[][] r, byte[] p)
+	{
+		long[] t = new long[16], chk = new long[16], num = new long[16], den = new long[16];
+		long[] den2 = new long[16], den4 = new long[16], den6 = new long[16];
+
+		r[2] = GF1.clone();
+		unpack25519(r[1], p);
+		sqr(num, r[1]);
+		mul(den, num, D);
+		sub(num, num, r[2]);
+		add(den, r[2], den);
+
+		sqr(den2, den);
+		sqr(den4, den2);
+		mul(den6, den4, den2);
+		mul(t, den6, num);
+		mul(t, t, den);
+
+		pow2523(t, t);
+		mul(t, t, num);
+		mul(t, t, den);
+		mul(t, t, den);
+		mul(r[0], t, den);
+
+		sqr(chk, r[0]);
+		mul(chk, chk, den);
+		if (neq25519(chk, num))
+			mul(r[0], r[0], SQRT_M1);
+
+		sqr(chk, r[0]);
+		mul(chk, chk, den);
+		if (neq25519(chk, num))
+			return false;
+
+		if (par25519(r[0]) == ((p[31] & 0xff) >> 7))
+			sub(r[0], GF0, r[0]);
+
+		mul(r[3], r[0], r[1]);
+		return true;
+	}
+
+	private static byte[] toLittleEndian(BigInteger v)
+	{
+		byte[] out = new byte[32];
+		byte[] be = v.toByteArray();
+		for (int i = 0; i < 32 && i < be.length; i++)
+			out[i] = be[be.length - 1 - i];
+		return out;
+	}
+
+	private static BigInteger fromLittleEndian(byte[] in, int off, int len)
+	{
+		byte[] be = new byte[len];
+		for (int i = 0; i < len; i++)
+			be[len - 1 - i] = in[off + i];
+		return new BigInteger(1, be);
+	}
+
+	/**
+	 * Verifies an Ed25519 signature.
+	 *
+	 * @param sig the 64-byte signature R || S
+	 * @param publicKey the 32-byte encoded public key A
+	 * @param hram SHA-512(R || A || message)
+	 */
+	public static boolean verify(byte[] sig, byte[] publicKey, byte[] hram)
+	{
+		if (sig.length != 64 || publicKey.length != KEY_SIZE)
+			return false;
+
+		/* Reject non-canonical S */
+		BigInteger s = fromLittleEndian(sig, 32, 32);
+		if (s.compareTo(L) >= 0)
+			return false;
+
+		long[][] q = new long[4][16];
+		if (!edUnpackNeg(q, publicKey))
+			return false;
+
+		byte[] h = toLittleEndian(fromLittleEndian(hram, 0, hram.length).mod(L));
+
+		long[][] p = new long[4][16];
+		edScalarMult(p, q, h);
+
+		long[][] sb = new long[4][16];
+		byte[] sBytes = new byte[32];
+		System.arraycopy(sig, 32, sBytes, 0, 32);
+		edScalarBase(sb, sBytes);
+
+		edAdd(p, sb);
+
+		byte[] t = new byte[32];
+		edPack(t, p);
+
+		int diff = 0;
+		for (int i = 0; i < 32; i++)
+			diff |= t[i] ^ sig[i];
+		return diff == 0;
+	}
+}
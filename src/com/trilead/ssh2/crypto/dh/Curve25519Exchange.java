@@ -0,0 +1,76 @@
+package com.trilead.ssh2.crypto.dh;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import com.trilead.ssh2.crypto.Curve25519;
+
+/**
+ * X25519 key agreement for <code>curve25519-sha256</code> and
+ * <code>curve25519-sha256@libssh.org</code> (RFC 8731).
+ */
+public class Curve25519Exchange extends GenericDhExchange {
+	public static final String NAME = "curve25519-sha256";
+	public static final String ALT_NAME = "curve25519-sha256@libssh.org";
+
+	private static final SecureRandom rnd = new SecureRandom();
+
+	private byte[] clientPrivate;
+	private byte[] clientPublic;
+	private byte[] serverPublic;
+
+	@Override
+	public void init(String name) throws IOException {
+		if (!NAME.equals(name) && !ALT_NAME.equals(name)) {
+			throw new IllegalArgumentException("Unknown curve25519 method " + name);
+		}
+
+		clientPrivate = new byte[Curve25519.KEY_SIZE];
+		rnd.nextBytes(clientPrivate);
+		clientPublic = Curve25519.publicKey(clientPrivate);
+	}
+
+	@Override
+	public byte[] getE() {
+		if (clientPublic == null)
+			throw new IllegalStateException("Curve25519Exchange not initialized!");
+
+		return clientPublic.clone();
+	}
+
+	@Override
+	protected byte[] getServerE() {
+		if (serverPublic == null)
+			throw new IllegalStateException("Curve25519Exchange not initialized!");
+
+		return serverPublic.clone();
+	}
+
+	@Override
+	public void setF(byte[] f) throws IOException {
+		if (clientPublic == null)
+			throw new IllegalStateException("Curve25519Exchange not initialized!");
+
+		if (f.length != Curve25519.KEY_SIZE)
+			throw new IOException("Server sent invalid key length " + f.length + " (expected "
+					+ Curve25519.KEY_SIZE + ")");
+
+		byte[] shared = Curve25519.scalarMult(clientPrivate, f);
+
+		/* Reject low-order points, which give an all-zero result. */
+		int acc = 0;
+		for (int i = 0; i < shared.length; i++)
+			acc |= shared[i];
+		if (acc == 0)
+			throw new IOException("Invalid key computed; all zeroes");
+
+		serverPublic = f.clone();
+		sharedSecret = new BigInteger(1, shared);
+	}
+
+	@Override
+	public String getHashAlgo() {
+		return "SHA256";
+	}
+}
@@ -23,6 +23,11 @@ import javax.crypto.KeyAgreement;
 import com.trilead.ssh2.signature.ECDSASHA2Verify;
 
 /**
+ * ECDH over the NIST curves. The ephemeral private key is only ever used by
+ * the platform KeyAgreement; the faster engine in
+ * {@link org.keyczar.jce.EcCore} is not constant-time and is kept for work on
+ * public data.
+ *
  * @author kenny
  *
  */
@@ -96,7 +101,8 @@ public class EcDhExchange extends GenericDhExchange {
 			throw (IOException) new IOException("Invalid ECDH key").initCause(e);
 		}
 
-		sharedSecret = new BigInteger(ka.generateSecret());
+		/* The secret is the x coordinate, a positive number whatever its top bit */
+		sharedSecret = new BigInteger(1, ka.generateSecret());
 	}
 
 	@Override
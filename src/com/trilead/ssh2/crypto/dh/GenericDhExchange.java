@@ -30,7 +30,9 @@ public abstract class GenericDhExchange
 	}
 
 	public static GenericDhExchange getInstance(String algo) {
-		if (algo.startsWith("ecdh-sha2-")) {
+		if (Curve25519Exchange.NAME.equals(algo) || Curve25519Exchange.ALT_NAME.equals(algo)) {
+			return new Curve25519Exchange();
+		} else if (algo.startsWith("ecdh-sha2-")) {
 			return new EcDhExchange();
 		} else {
 			return new DhExchange();
@@ -19,15 +19,24 @@ public class PacketChannelTrileadPing
 		this.recipientChannelID = recipientChannelID;
 	}
 
+	/**
+	 * Appends the packet to a writer that may be reused for other packets,
+	 * without creating a packet object first.
+	 */
+	public static void writeTo(TypesWriter tw, int recipientChannelID)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeString("trilead-ping");
+		tw.writeBoolean(true);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeString("trilead-ping");
-			tw.writeBoolean(true);
+			writeTo(tw, recipientChannelID);
 			payload = tw.getBytes();
 		}
 		return payload;
@@ -17,20 +17,29 @@ public class PacketSessionPtyResize {
 		this.pixelHeight = pixelHeight;
 	}
 
+	/**
+	 * Appends the packet to a writer that may be reused for other packets,
+	 * without creating a packet object first.
+	 */
+	public static void writeTo(TypesWriter tw, int recipientChannelID, int width, int height,
+			int pixelWidth, int pixelHeight)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeString("window-change");
+		tw.writeBoolean(false);
+		tw.writeUINT32(width);
+		tw.writeUINT32(height);
+		tw.writeUINT32(pixelWidth);
+		tw.writeUINT32(pixelHeight);
+	}
+
 	public byte[] getPayload()
 	{
 		if (payload == null)
 		{
 			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeString("window-change");
-			tw.writeBoolean(false);
-			tw.writeUINT32(width);
-			tw.writeUINT32(height);
-			tw.writeUINT32(pixelWidth);
-			tw.writeUINT32(pixelHeight);
-
+			writeTo(tw, recipientChannelID, width, height, pixelWidth, pixelHeight);
 			payload = tw.getBytes();
 		}
 		return payload;
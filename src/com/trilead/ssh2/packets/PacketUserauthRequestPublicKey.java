@@ -29,6 +29,15 @@ public class PacketUserauthRequestPublicKey
 		this.sig = sig;
 	}
 
+	/**
+	 * A query whether the server would accept the key, without a signature.
+	 */
+	public PacketUserauthRequestPublicKey(String serviceName, String user,
+			String pkAlgorithmName, byte[] pk)
+	{
+		this(serviceName, user, pkAlgorithmName, pk, null);
+	}
+
 	public PacketUserauthRequestPublicKey(byte payload[], int off, int len) throws IOException
 	{
 		this.payload = new byte[len];
@@ -54,10 +63,11 @@ public class PacketUserauthRequestPublicKey
 			tw.writeString(userName);
 			tw.writeString(serviceName);
 			tw.writeString("publickey");
-			tw.writeBoolean(true);
+			tw.writeBoolean(sig != null);
 			tw.writeString(pkAlgoName);
 			tw.writeString(pk, 0, pk.length);
-			tw.writeString(sig, 0, sig.length);
+			if (sig != null)
+				tw.writeString(sig, 0, sig.length);
 			payload = tw.getBytes();
 		}
 		return payload;
@@ -33,6 +33,26 @@ public class TypesWriter
 		return pos;
 	}
 
+	/**
+	 * Start over, keeping the buffer, so that one writer can build many
+	 * packets without allocating.
+	 */
+	public void reset()
+	{
+		pos = 0;
+	}
+
+	/**
+	 * Saves the copy {@link #getBytes()} makes.
+	 * 
+	 * @return the buffer written to, valid up to {@link #length()} until the
+	 *         next write or {@link #reset()}.
+	 */
+	public byte[] getArray()
+	{
+		return arr;
+	}
+
 	public byte[] getBytes()
 	{
 		byte[] dst = new byte[pos];
@@ -130,6 +150,29 @@ public class TypesWriter
 	}
 
 	public void writeString(String v)
+	{
+		int len = v.length();
+
+		/* Latin-1 only strings, as in all packets we build, need no copy */
+		for (int i = 0; i < len; i++)
+		{
+			if (v.charAt(i) > 0xff)
+			{
+				writeEncodedString(v);
+				return;
+			}
+		}
+
+		writeUINT32(len);
+
+		if ((pos + len) > arr.length)
+			resize(arr.length + len + 32);
+
+		for (int i = 0; i < len; i++)
+			arr[pos++] = (byte) v.charAt(i);
+	}
+
+	private void writeEncodedString(String v)
 	{
 		byte[] b;
 
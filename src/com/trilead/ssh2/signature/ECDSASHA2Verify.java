@@ -9,6 +9,7 @@ import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
 import java.security.SignatureException;
@@ -24,6 +25,8 @@ import java.security.spec.KeySpec;
 import java.util.Map;
 import java.util.TreeMap;
 
+import org.keyczar.jce.EcCore;
+
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.TypesReader;
 import com.trilead.ssh2.packets.TypesWriter;
@@ -331,28 +334,102 @@ public class ECDSASHA2Verify {
 		}
 	}
 
+	/**
+	 * Verifies an ECDSA signature in ASN.1 DER form, as returned by
+	 * {@link #decodeSSHECDSASignature(byte[])}. The u1 * G + u2 * Q step runs
+	 * on the Jacobian engine in {@link EcCore}.
+	 */
 	public static boolean verifySignature(byte[] message, byte[] ds, ECPublicKey dpk) throws IOException
 	{
-		final String algo = getSignatureAlgorithmForParams(dpk.getParams());
+		final ECParameterSpec params = dpk.getParams();
+		final BigInteger n = params.getOrder();
+
+		BigInteger[] rs = decodeDERSignature(ds);
+		if (rs == null)
+			return false;
+
+		final BigInteger r = rs[0];
+		final BigInteger s = rs[1];
+		if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0 || s.compareTo(n) >= 0)
+			return false;
 
+		final byte[] digest;
 		try {
-			Signature s = Signature.getInstance(algo);
-			s.initVerify(dpk);
-			s.update(message);
-			return s.verify(ds);
+			digest = MessageDigest.getInstance(getDigestAlgorithmForParams(params)).digest(message);
 		} catch (NoSuchAlgorithmException e) {
 			IOException ex = new IOException("No such algorithm");
 			ex.initCause(e);
 			throw ex;
-		} catch (InvalidKeyException e) {
-			IOException ex = new IOException("No such algorithm");
-			ex.initCause(e);
-			throw ex;
-		} catch (SignatureException e) {
-			IOException ex = new IOException();
-			ex.initCause(e);
-			throw ex;
 		}
+
+		BigInteger e = new BigInteger(1, digest);
+		if (digest.length * 8 > n.bitLength())
+			e = e.shiftRight(digest.length * 8 - n.bitLength());
+
+		final BigInteger sInv = s.modInverse(n);
+		final BigInteger u1 = e.multiply(sInv).mod(n);
+		final BigInteger u2 = r.multiply(sInv).mod(n);
+
+		final ECPoint w = dpk.getW();
+		final BigInteger[] q = new BigInteger[] { w.getAffineX(), w.getAffineY() };
+		if (!EcCore.isOnCurve(q, params))
+			return false;
+
+		final BigInteger[] point = EcCore.multiplyGeneratorAndPoint(u1, q, u2, params);
+		if (point[0] == null)
+			return false;
+
+		return point[0].mod(n).equals(r);
+	}
+
+	/**
+	 * Decodes an ASN.1 SEQUENCE of two INTEGERs into {r, s}, or returns null
+	 * if it is malformed.
+	 */
+	private static BigInteger[] decodeDERSignature(byte[] sig) {
+		int[] pos = new int[] { 0 };
+
+		if (sig.length < 2 || sig[pos[0]++] != 0x30)
+			return null;
+		int seqLength = readLength(sig, pos);
+		if (seqLength < 0 || pos[0] + seqLength != sig.length)
+			return null;
+
+		BigInteger[] rs = new BigInteger[2];
+		for (int i = 0; i < 2; i++) {
+			if (pos[0] >= sig.length || sig[pos[0]++] != 0x02)
+				return null;
+			int length = readLength(sig, pos);
+			if (length <= 0 || pos[0] + length > sig.length)
+				return null;
+			byte[] value = new byte[length];
+			System.arraycopy(sig, pos[0], value, 0, length);
+			pos[0] += length;
+			rs[i] = new BigInteger(value);
+		}
+
+		if (pos[0] != sig.length)
+			return null;
+
+		return rs;
+	}
+
+	private static int readLength(byte[] in, int[] pos) {
+		if (pos[0] >= in.length)
+			return -1;
+
+		int length = in[pos[0]++] & 0xFF;
+		if ((length & 0x80) == 0)
+			return length;
+
+		int numOctets = length & 0x7F;
+		if (numOctets == 0 || numOctets > 3 || pos[0] + numOctets > in.length)
+			return -1;
+
+		length = 0;
+		for (int i = 0; i < numOctets; i++)
+			length = (length << 8) | (in[pos[0]++] & 0xFF);
+		return length;
 	}
 
 	private static String getSignatureAlgorithmForParams(ECParameterSpec params) {
@@ -0,0 +1,56 @@
+package com.trilead.ssh2.signature;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * An Ed25519 public key. The platform has no key class for it, so this
+ * simply wraps the 32-byte encoding from RFC 8032.
+ */
+public class Ed25519PublicKey implements PublicKey
+{
+	private static final long serialVersionUID = 1L;
+
+	private final byte[] keyBytes;
+
+	public Ed25519PublicKey(byte[] keyBytes)
+	{
+		if (keyBytes.length != 32)
+			throw new IllegalArgumentException("Ed25519 public keys are 32 bytes");
+		this.keyBytes = keyBytes.clone();
+	}
+
+	public String getAlgorithm()
+	{
+		return "Ed25519";
+	}
+
+	public String getFormat()
+	{
+		return "RAW";
+	}
+
+	public byte[] getEncoded()
+	{
+		return keyBytes.clone();
+	}
+
+	byte[] getKeyBytes()
+	{
+		return keyBytes;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof Ed25519PublicKey))
+			return false;
+		return Arrays.equals(keyBytes, ((Ed25519PublicKey) o).keyBytes);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Arrays.hashCode(keyBytes);
+	}
+}
@@ -0,0 +1,95 @@
+package com.trilead.ssh2.signature;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.trilead.ssh2.crypto.Curve25519;
+import com.trilead.ssh2.log.Logger;
+import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.packets.TypesWriter;
+
+/**
+ * Ed25519Verify.
+ */
+public class Ed25519Verify
+{
+	private static final Logger log = Logger.getLogger(Ed25519Verify.class);
+
+	public static final String ED25519_ID = "ssh-ed25519";
+
+	public static Ed25519PublicKey decodeSSHEd25519PublicKey(byte[] key) throws IOException
+	{
+		TypesReader tr = new TypesReader(key);
+
+		String key_format = tr.readString();
+
+		if (key_format.equals(ED25519_ID) == false)
+			throw new IllegalArgumentException("This is not an Ed25519 public key");
+
+		byte[] keyBytes = tr.readByteString();
+
+		if (tr.remain() != 0)
+			throw new IOException("Padding in Ed25519 public key!");
+
+		if (keyBytes.length != Curve25519.KEY_SIZE)
+			throw new IOException("Ed25519 public key has the wrong length: " + keyBytes.length);
+
+		return new Ed25519PublicKey(keyBytes);
+	}
+
+	public static byte[] encodeSSHEd25519PublicKey(Ed25519PublicKey key)
+	{
+		TypesWriter tw = new TypesWriter();
+
+		byte[] keyBytes = key.getKeyBytes();
+		tw.writeString(ED25519_ID);
+		tw.writeString(keyBytes, 0, keyBytes.length);
+
+		return tw.getBytes();
+	}
+
+	public static byte[] decodeSSHEd25519Signature(byte[] sig) throws IOException
+	{
+		TypesReader tr = new TypesReader(sig);
+
+		String sig_format = tr.readString();
+
+		if (sig_format.equals(ED25519_ID) == false)
+			throw new IOException("Peer sent wrong signature format");
+
+		byte[] s = tr.readByteString();
+
+		if (s.length != 64)
+			throw new IOException("Peer sent corrupt signature");
+
+		if (tr.remain() != 0)
+			throw new IOException("Padding in Ed25519 signature!");
+
+		return s;
+	}
+
+	public static boolean verifySignature(byte[] message, byte[] sig, Ed25519PublicKey key) throws IOException
+	{
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-512");
+		} catch (NoSuchAlgorithmException e) {
+			IOException ex = new IOException("No such algorithm");
+			ex.initCause(e);
+			throw ex;
+		}
+
+		md.update(sig, 0, 32);
+		md.update(key.getKeyBytes());
+		md.update(message);
+		byte[] hram = md.digest();
+
+		boolean res = Curve25519.verify(sig, key.getKeyBytes(), hram);
+
+		if (!res)
+			log.log(20, "Ed25519 signature does not verify");
+
+		return res;
+	}
+}
@@ -0,0 +1,236 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Vector;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * Connects to the first reachable address of a multi-homed host by racing
+ * staggered attempts, as described in RFC 8305 ("Happy Eyeballs Version 2").
+ * A broken IPv6 path then costs {@link #ATTEMPT_DELAY} milliseconds instead
+ * of a full connect timeout.
+ */
+class HappyEyeballs
+{
+	private static final Logger log = Logger.getLogger(HappyEyeballs.class);
+
+	/**
+	 * Time to wait for an attempt before starting the next one ("Connection
+	 * Attempt Delay", RFC 8305 section 5).
+	 */
+	static final int ATTEMPT_DELAY = 250;
+
+	private final InetAddress[] addresses;
+	private final int port;
+	private final int connectTimeout;
+
+	private final Vector<Socket> attempts = new Vector<Socket>();
+
+	private Socket winner;
+	private IOException lastError;
+	private int failed;
+	private boolean done;
+	private boolean cancelled;
+
+	HappyEyeballs(InetAddress[] addresses, int port, int connectTimeout)
+	{
+		this.addresses = interleave(addresses);
+		this.port = port;
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Orders the addresses so that the families alternate, starting with the
+	 * family of the first address (RFC 8305 section 4). The order within a
+	 * family is kept.
+	 */
+	static InetAddress[] interleave(InetAddress[] addresses)
+	{
+		if (addresses.length < 3)
+			return addresses;
+
+		Class<?> first = addresses[0].getClass();
+		Vector<InetAddress> preferred = new Vector<InetAddress>();
+		Vector<InetAddress> other = new Vector<InetAddress>();
+
+		for (int i = 0; i < addresses.length; i++)
+		{
+			if (addresses[i].getClass() == first)
+				preferred.addElement(addresses[i]);
+			else
+				other.addElement(addresses[i]);
+		}
+
+		InetAddress[] res = new InetAddress[addresses.length];
+		int p = 0, o = 0;
+
+		for (int i = 0; i < res.length; i++)
+		{
+			if ((o == other.size()) || (((i % 2) == 0) && (p < preferred.size())))
+				res[i] = preferred.elementAt(p++);
+			else
+				res[i] = other.elementAt(o++);
+		}
+
+		return res;
+	}
+
+	/**
+	 * @return the connected socket of the attempt that won.
+	 * @throws IOException the error of the last attempt to fail if all of
+	 *             them did, or if {@link #cancel()} was called.
+	 */
+	Socket connect() throws IOException
+	{
+		int started = 0;
+
+		for (int i = 0; i < addresses.length; i++)
+		{
+			startAttempt(addresses[i]);
+			started++;
+
+			synchronized (this)
+			{
+				long deadline = System.currentTimeMillis() + ATTEMPT_DELAY;
+
+				/* Go on early if everything started so far has failed already */
+				while ((winner == null) && !cancelled && (failed < started))
+				{
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						break;
+
+					try
+					{
+						wait(remaining);
+					}
+					catch (InterruptedException e)
+					{
+					}
+				}
+
+				if ((winner != null) || cancelled)
+					break;
+			}
+		}
+
+		synchronized (this)
+		{
+			while ((winner == null) && !cancelled && (failed < started))
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+
+			done = true;
+
+			for (int i = 0; i < attempts.size(); i++)
+			{
+				Socket s = attempts.elementAt(i);
+				if (s != winner)
+					closeQuietly(s);
+			}
+
+			if (cancelled)
+			{
+				if (winner != null)
+					closeQuietly(winner);
+				throw new IOException("The connection attempt was cancelled.");
+			}
+
+			if (winner == null)
+				throw lastError;
+
+			if (log.isEnabled())
+				log.log(20, "Connected to " + winner.getInetAddress() + " after " + started + " attempt(s)");
+
+			return winner;
+		}
+	}
+
+	/**
+	 * Aborts all attempts still in progress; {@link #connect()} will fail.
+	 */
+	synchronized void cancel()
+	{
+		cancelled = true;
+
+		for (int i = 0; i < attempts.size(); i++)
+			closeQuietly(attempts.elementAt(i));
+
+		notifyAll();
+	}
+
+	private void startAttempt(final InetAddress addr)
+	{
+		final Socket s = new Socket();
+
+		synchronized (this)
+		{
+			if (cancelled)
+				return;
+			attempts.addElement(s);
+		}
+
+		Thread t = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					s.connect(new InetSocketAddress(addr, port), connectTimeout);
+				}
+				catch (IOException e)
+				{
+					if (log.isEnabled())
+						log.log(50, "Connect to " + addr + " failed: " + e.getMessage());
+
+					synchronized (HappyEyeballs.this)
+					{
+						lastError = e;
+						failed++;
+						HappyEyeballs.this.notifyAll();
+					}
+					return;
+				}
+
+				synchronized (HappyEyeballs.this)
+				{
+					if ((winner == null) && !done && !cancelled)
+					{
+						winner = s;
+						HappyEyeballs.this.notifyAll();
+						return;
+					}
+				}
+
+				/* Somebody else was faster */
+				closeQuietly(s);
+			}
+		});
+
+		t.setName("HappyEyeballs " + addr.getHostAddress());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static void closeQuietly(Socket s)
+	{
+		try
+		{
+			s.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+	}
+}
@@ -10,6 +10,7 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import com.trilead.ssh2.ConnectionInfo;
+import com.trilead.ssh2.ConnectionTrace;
 import com.trilead.ssh2.DHGexParameters;
 import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.compression.CompressionFactory;
@@ -18,6 +19,7 @@ import com.trilead.ssh2.crypto.CryptoWishList;
 import com.trilead.ssh2.crypto.KeyMaterial;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.cipher.BlockCipherFactory;
+import com.trilead.ssh2.crypto.dh.Curve25519Exchange;
 import com.trilead.ssh2.crypto.dh.DhGroupExchange;
 import com.trilead.ssh2.crypto.dh.GenericDhExchange;
 import com.trilead.ssh2.crypto.digest.MAC;
@@ -34,6 +36,8 @@ import com.trilead.ssh2.packets.PacketNewKeys;
 import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.signature.DSASHA1Verify;
 import com.trilead.ssh2.signature.ECDSASHA2Verify;
+import com.trilead.ssh2.signature.Ed25519PublicKey;
+import com.trilead.ssh2.signature.Ed25519Verify;
 import com.trilead.ssh2.signature.RSASHA1Verify;
 
 
@@ -49,6 +53,7 @@ public class KexManager
 
 	private static final Set<String> HOSTKEY_ALGS = new TreeSet<String>();
 	static {
+		HOSTKEY_ALGS.add(Ed25519Verify.ED25519_ID);
 		HOSTKEY_ALGS.add("ecdsa-sha2-nistp256");
 		HOSTKEY_ALGS.add("ecdsa-sha2-nistp384");
 		HOSTKEY_ALGS.add("ecdsa-sha2-nistp521");
@@ -58,6 +63,8 @@ public class KexManager
 
 	private static final Set<String> KEX_ALGS = new TreeSet<String>();
 	static {
+		KEX_ALGS.add(Curve25519Exchange.NAME);
+		KEX_ALGS.add(Curve25519Exchange.ALT_NAME);
 		KEX_ALGS.add("ecdh-sha2-nistp256");
 		KEX_ALGS.add("ecdh-sha2-nistp384");
 		KEX_ALGS.add("ecdh-sha2-nistp521");
@@ -102,6 +109,24 @@ public class KexManager
 		this.rnd = rnd;
 	}
 
+	/*
+	 * Only the initial key exchange is part of the connection setup, later
+	 * re-keying is not traced.
+	 */
+	private void traceBegin(int phase)
+	{
+		ConnectionTrace trace = tm.getConnectionTrace();
+		if (trace != null && kexCount == 0)
+			trace.begin(phase);
+	}
+
+	private void traceEnd(int phase)
+	{
+		ConnectionTrace trace = tm.getConnectionTrace();
+		if (trace != null && kexCount == 0)
+			trace.end(phase);
+	}
+
 	public ConnectionInfo getOrWaitForConnectionInfo(int minKexCount) throws IOException
 	{
 		synchronized (accessLock)
@@ -263,6 +288,8 @@ public class KexManager
 		{
 			kxs = new KexState();
 
+			traceBegin(ConnectionTrace.PHASE_KEX);
+
 			kxs.dhgexParameters = nextKEXdhgexParameters;
 			PacketKexInit kp = new PacketKexInit(nextKEXcryptoWishList);
 			kxs.localKEX = kp;
@@ -356,8 +383,29 @@ public class KexManager
 		}
 	}
 
+	private static boolean isSimpleKex(String kex_algo)
+	{
+		return kex_algo.equals("diffie-hellman-group1-sha1")
+				|| kex_algo.equals("diffie-hellman-group14-sha1")
+				|| kex_algo.equals("ecdh-sha2-nistp256")
+				|| kex_algo.equals("ecdh-sha2-nistp384")
+				|| kex_algo.equals("ecdh-sha2-nistp521")
+				|| kex_algo.equals(Curve25519Exchange.NAME)
+				|| kex_algo.equals(Curve25519Exchange.ALT_NAME);
+	}
+
 	private boolean verifySignature(byte[] sig, byte[] hostkey) throws IOException
 	{
+		if (kxs.np.server_host_key_algo.equals(Ed25519Verify.ED25519_ID))
+		{
+			byte[] eds = Ed25519Verify.decodeSSHEd25519Signature(sig);
+			Ed25519PublicKey edpk = Ed25519Verify.decodeSSHEd25519PublicKey(hostkey);
+
+			log.log(50, "Verifying ssh-ed25519 signature");
+
+			return Ed25519Verify.verifySignature(kxs.H, eds, edpk);
+		}
+
 		if (kxs.np.server_host_key_algo.startsWith("ecdsa-sha2-"))
 		{
 			byte[] rs = ECDSASHA2Verify.decodeSSHECDSASignature(sig);
@@ -425,6 +473,8 @@ public class KexManager
 				 * Ah, OK, peer wants to do KEX. Let's be nice and play
 				 * together.
 				 */
+				traceBegin(ConnectionTrace.PHASE_KEX);
+
 				kxs = new KexState();
 				kxs.dhgexParameters = nextKEXdhgexParameters;
 				kip = new PacketKexInit(nextKEXcryptoWishList);
@@ -467,17 +517,15 @@ public class KexManager
 				return;
 			}
 
-			if (kxs.np.kex_algo.equals("diffie-hellman-group1-sha1")
-					|| kxs.np.kex_algo.equals("diffie-hellman-group14-sha1")
-					|| kxs.np.kex_algo.equals("ecdh-sha2-nistp256")
-					|| kxs.np.kex_algo.equals("ecdh-sha2-nistp384")
-					|| kxs.np.kex_algo.equals("ecdh-sha2-nistp521")) {
+			if (isSimpleKex(kxs.np.kex_algo)) {
 				kxs.dhx = GenericDhExchange.getInstance(kxs.np.kex_algo);
 
+				traceBegin(ConnectionTrace.PHASE_KEX_COMPUTE);
 				kxs.dhx.init(kxs.np.kex_algo);
 				kxs.hashAlgo = kxs.dhx.getHashAlgo();
 
 				PacketKexDHInit kp = new PacketKexDHInit(kxs.dhx.getE());
+				traceEnd(ConnectionTrace.PHASE_KEX_COMPUTE);
 				tm.sendKexMessage(kp.getPayload());
 				kxs.state = 1;
 				return;
@@ -512,6 +560,8 @@ public class KexManager
 			tm.changeRecvCipher(cbc, mac);
 			tm.changeRecvCompression(comp);
 
+			traceEnd(ConnectionTrace.PHASE_KEX);
+
 			ConnectionInfo sci = new ConnectionInfo();
 
 			kexCount++;
@@ -524,6 +574,7 @@ public class KexManager
 			sci.serverToClientMACAlgorithm = kxs.np.mac_algo_server_to_client;
 			sci.serverHostKeyAlgorithm = kxs.np.server_host_key_algo;
 			sci.serverHostKey = kxs.hostkey;
+			sci.trace = tm.getConnectionTrace();
 
 			synchronized (accessLock)
 			{
@@ -543,9 +594,11 @@ public class KexManager
 			if (kxs.state == 1)
 			{
 				PacketKexDhGexGroup dhgexgrp = new PacketKexDhGexGroup(msg, 0, msglen);
+				traceBegin(ConnectionTrace.PHASE_KEX_COMPUTE);
 				kxs.dhgx = new DhGroupExchange(dhgexgrp.getP(), dhgexgrp.getG());
 				kxs.dhgx.init(rnd);
 				PacketKexDhGexInit dhgexinit = new PacketKexDhGexInit(kxs.dhgx.getE());
+				traceEnd(ConnectionTrace.PHASE_KEX_COMPUTE);
 				tm.sendKexMessage(dhgexinit.getPayload());
 				kxs.state = 2;
 				return;
@@ -561,6 +614,8 @@ public class KexManager
 				{
 					boolean vres = false;
 
+					traceBegin(ConnectionTrace.PHASE_HOSTKEY_VERIFY);
+
 					try
 					{
 						vres = verifier.verifyServerHostKey(hostname, port, kxs.np.server_host_key_algo, kxs.hostkey);
@@ -570,11 +625,16 @@ public class KexManager
 						throw (IOException) new IOException(
 								"The server hostkey was not accepted by the verifier callback.").initCause(e);
 					}
+					finally
+					{
+						traceEnd(ConnectionTrace.PHASE_HOSTKEY_VERIFY);
+					}
 
 					if (vres == false)
 						throw new IOException("The server hostkey was not accepted by the verifier callback");
 				}
 
+				traceBegin(ConnectionTrace.PHASE_KEX_COMPUTE);
 				kxs.dhgx.setF(dhgexrpl.getF());
 
 				try
@@ -590,6 +650,8 @@ public class KexManager
 
 				boolean res = verifySignature(dhgexrpl.getSignature(), kxs.hostkey);
 
+				traceEnd(ConnectionTrace.PHASE_KEX_COMPUTE);
+
 				if (res == false)
 					throw new IOException("Hostkey signature sent by remote is wrong!");
 
@@ -603,11 +665,7 @@ public class KexManager
 			throw new IllegalStateException("Illegal State in KEX Exchange!");
 		}
 
-		if (kxs.np.kex_algo.equals("diffie-hellman-group1-sha1")
-				|| kxs.np.kex_algo.equals("diffie-hellman-group14-sha1")
-				|| kxs.np.kex_algo.equals("ecdh-sha2-nistp256")
-				|| kxs.np.kex_algo.equals("ecdh-sha2-nistp384")
-				|| kxs.np.kex_algo.equals("ecdh-sha2-nistp521"))
+		if (isSimpleKex(kxs.np.kex_algo))
 		{
 			if (kxs.state == 1)
 			{
@@ -620,6 +678,8 @@ public class KexManager
 				{
 					boolean vres = false;
 
+					traceBegin(ConnectionTrace.PHASE_HOSTKEY_VERIFY);
+
 					try
 					{
 						vres = verifier.verifyServerHostKey(hostname, port, kxs.np.server_host_key_algo, kxs.hostkey);
@@ -629,11 +689,16 @@ public class KexManager
 						throw (IOException) new IOException(
 								"The server hostkey was not accepted by the verifier callback.").initCause(e);
 					}
+					finally
+					{
+						traceEnd(ConnectionTrace.PHASE_HOSTKEY_VERIFY);
+					}
 
 					if (vres == false)
 						throw new IOException("The server hostkey was not accepted by the verifier callback");
 				}
 
+				traceBegin(ConnectionTrace.PHASE_KEX_COMPUTE);
 				kxs.dhx.setF(dhr.getF());
 
 				try
@@ -648,6 +713,8 @@ public class KexManager
 
 				boolean res = verifySignature(dhr.getSignature(), kxs.hostkey);
 
+				traceEnd(ConnectionTrace.PHASE_KEX_COMPUTE);
+
 				if (res == false)
 					throw new IOException("Hostkey signature sent by remote is wrong!");
 
@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.SecureRandom;
 
+import com.trilead.ssh2.compression.DeflaterZlib;
 import com.trilead.ssh2.compression.ICompressor;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.cipher.CipherInputStream;
@@ -55,6 +56,8 @@ public class TransportConnection
 	ICompressor recv_comp = null;
 	
 	ICompressor send_comp = null;
+
+	DeflaterZlib send_comp_adaptive = null;
 	
 	boolean can_recv_compress = false;
 
@@ -117,6 +120,9 @@ public class TransportConnection
 	
 	public void changeRecvCompression(ICompressor comp)
 	{
+		if (recv_comp != null && recv_comp != comp)
+			recv_comp.close();
+
 		recv_comp = comp;
 		
 		if (comp != null) {
@@ -127,7 +133,11 @@ public class TransportConnection
 
 	public void changeSendCompression(ICompressor comp)
 	{
+		if (send_comp != null && send_comp != comp)
+			send_comp.close();
+
 		send_comp = comp;
+		send_comp_adaptive = (comp instanceof DeflaterZlib) ? (DeflaterZlib) comp : null;
 		
 		if (comp != null) {
 			send_comp_buffer = new byte[comp.getBufferSize()];
@@ -135,6 +145,22 @@ public class TransportConnection
 		}
 	}
 	
+	/**
+	 * Frees the outgoing compressor. Nothing may be sent afterwards.
+	 */
+	public void closeSendCompression()
+	{
+		changeSendCompression(null);
+	}
+
+	/**
+	 * Frees the incoming compressor. Nothing may be received afterwards.
+	 */
+	public void closeRecvCompression()
+	{
+		changeRecvCompression(null);
+	}
+
 	public void sendMessage(byte[] message) throws IOException
 	{
 		sendMessage(message, 0, message.length, 0);
@@ -159,10 +185,11 @@ public class TransportConnection
 			padd = 64;
 		
 		if (send_comp != null && can_send_compress) {
-			if (send_comp_buffer.length < message.length + 1024)
-				send_comp_buffer = new byte[message.length + 1024];
+			if (send_comp_buffer.length < len + 1024)
+				send_comp_buffer = new byte[len + 1024];
 			len = send_comp.compress(message, off, len, send_comp_buffer);
 			message = send_comp_buffer;
+			off = 0;
 		}
 
 		int packet_len = 5 + len + padd; /* Minimum allowed padding is 4 */
@@ -215,6 +242,8 @@ public class TransportConnection
 		send_packet_header_buffer[3] = (byte) ((packet_len - 4));
 		send_packet_header_buffer[4] = (byte) padd_len;
 
+		long writeStart = (send_comp_adaptive != null) ? System.nanoTime() : 0;
+
 		cos.write(send_packet_header_buffer, 0, 5);
 		cos.write(message, off, len);
 		cos.write(send_padding_buffer, 0, padd_len);
@@ -232,6 +261,9 @@ public class TransportConnection
 
 		cos.flush();
 
+		if (send_comp_adaptive != null)
+			send_comp_adaptive.linkWriteCompleted(packet_len + 4, System.nanoTime() - writeStart);
+
 		if (log.isEnabled())
 		{
 			log.log(90, "Sent " + Packets.getMessageName(message[off] & 0xff) + " " + len + " bytes payload");
@@ -12,10 +12,13 @@ import java.security.SecureRandom;
 import java.util.Vector;
 
 import com.trilead.ssh2.ConnectionInfo;
+import com.trilead.ssh2.ConnectionMetrics;
 import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.ConnectionTrace;
 import com.trilead.ssh2.DHGexParameters;
 import com.trilead.ssh2.HTTPProxyData;
 import com.trilead.ssh2.HTTPProxyException;
+import com.trilead.ssh2.HostnameResolver;
 import com.trilead.ssh2.ProxyData;
 import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.compression.ICompressor;
@@ -125,7 +128,10 @@ public class TransportManager
 
 	String hostname;
 	int port;
-	final Socket sock = new Socket();
+	volatile Socket sock = new Socket();
+
+	HostnameResolver resolver;
+	volatile HappyEyeballs racer;
 
 	Object connectionSemaphore = new Object();
 
@@ -142,6 +148,11 @@ public class TransportManager
 	Thread receiveThread;
 
 	Vector connectionMonitors = new Vector();
+
+	ConnectionTrace trace;
+
+	volatile ConnectionMetrics metrics;
+
 	boolean monitorsWereInformed = false;
 
 	/**
@@ -166,6 +177,26 @@ public class TransportManager
 		return InetAddress.getByName(host);
 	}
 
+	/**
+	 * Like {@link #createInetAddress(String)}, but returns all addresses of
+	 * the host so that they can be raced against each other. Goes through
+	 * the {@link HostnameResolver}, if there is one.
+	 */
+	private InetAddress[] resolveAll(String host) throws UnknownHostException
+	{
+		InetAddress addr = parseIPv4Address(host);
+
+		if (addr != null)
+			return new InetAddress[] { addr };
+
+		InetAddress[] addrs = (resolver != null) ? resolver.resolve(host) : InetAddress.getAllByName(host);
+
+		if ((addrs == null) || (addrs.length == 0))
+			throw new UnknownHostException(host);
+
+		return addrs;
+	}
+
 	private InetAddress parseIPv4Address(String host) throws UnknownHostException
 	{
 		if (host == null)
@@ -226,6 +257,52 @@ public class TransportManager
 		sock.setSoTimeout(timeout);
 	}
 
+	public void setHostnameResolver(HostnameResolver resolver)
+	{
+		this.resolver = resolver;
+	}
+
+	/**
+	 * @return the address we are connected to, <code>null</code> if not
+	 *         connected (yet).
+	 */
+	public InetAddress getRemoteAddress()
+	{
+		return sock.getInetAddress();
+	}
+
+	public void setConnectionTrace(ConnectionTrace trace)
+	{
+		this.trace = trace;
+	}
+
+	public ConnectionTrace getConnectionTrace()
+	{
+		return trace;
+	}
+
+	public void setConnectionMetrics(ConnectionMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	public ConnectionMetrics getConnectionMetrics()
+	{
+		return metrics;
+	}
+
+	private void traceBegin(int phase)
+	{
+		if (trace != null)
+			trace.begin(phase);
+	}
+
+	private void traceEnd(int phase)
+	{
+		if (trace != null)
+			trace.end(phase);
+	}
+
 	public ConnectionInfo getConnectionInfo(int kexNumber) throws IOException
 	{
 		return km.getOrWaitForConnectionInfo(kexNumber);
@@ -246,6 +323,10 @@ public class TransportManager
 
 	public void close(Throwable cause, boolean useDisconnectPacket)
 	{
+		HappyEyeballs r = racer;
+		if (r != null)
+			r.cancel();
+
 		if (useDisconnectPacket == false)
 		{
 			/* OK, hard shutdown - do not aquire the semaphore,
@@ -294,6 +375,10 @@ public class TransportManager
 
 				connectionClosed = true;
 				reasonClosedCause = cause; /* may be null */
+
+				/* Senders check connectionClosed under this lock, so nobody is compressing */
+				if (tc != null)
+					tc.closeSendCompression();
 			}
 			connectionSemaphore.notifyAll();
 		}
@@ -338,8 +423,28 @@ public class TransportManager
 
 		if (proxyData == null)
 		{
-			InetAddress addr = createInetAddress(hostname);
-			sock.connect(new InetSocketAddress(addr, port), connectTimeout);
+			traceBegin(ConnectionTrace.PHASE_DNS);
+			InetAddress[] addrs = resolveAll(hostname);
+			traceEnd(ConnectionTrace.PHASE_DNS);
+
+			traceBegin(ConnectionTrace.PHASE_TCP_CONNECT);
+			if (addrs.length == 1)
+			{
+				sock.connect(new InetSocketAddress(addrs[0], port), connectTimeout);
+			}
+			else
+			{
+				racer = new HappyEyeballs(addrs, port, connectTimeout);
+				try
+				{
+					sock = racer.connect();
+				}
+				finally
+				{
+					racer = null;
+				}
+			}
+			traceEnd(ConnectionTrace.PHASE_TCP_CONNECT);
 			sock.setSoTimeout(0);
 			return;
 		}
@@ -350,8 +455,13 @@ public class TransportManager
 
 			/* At the moment, we only support HTTP proxies */
 
+			traceBegin(ConnectionTrace.PHASE_DNS);
 			InetAddress addr = createInetAddress(pd.proxyHost);
+			traceEnd(ConnectionTrace.PHASE_DNS);
+
+			traceBegin(ConnectionTrace.PHASE_TCP_CONNECT);
 			sock.connect(new InetSocketAddress(addr, pd.proxyPort), connectTimeout);
+			traceEnd(ConnectionTrace.PHASE_TCP_CONNECT);
 			sock.setSoTimeout(0);
 
 			/* OK, now tell the proxy where we actually want to connect to */
@@ -454,7 +564,9 @@ public class TransportManager
 		 * for later use.
 		 */
 
+		traceBegin(ConnectionTrace.PHASE_BANNER);
 		ClientServerHello csh = new ClientServerHello(sock.getInputStream(), sock.getOutputStream());
+		traceEnd(ConnectionTrace.PHASE_BANNER);
 
 		tc = new TransportConnection(sock.getInputStream(), sock.getOutputStream(), rnd);
 
@@ -480,6 +592,9 @@ public class TransportManager
 				if (log.isEnabled())
 					log.log(50, "Receive thread: back from receiveLoop");
 
+				/* Only this thread ever decompresses */
+				tc.closeRecvCompression();
+
 				/* Tell all handlers that it is time to say goodbye */
 
 				if (km != null)
@@ -549,6 +664,9 @@ public class TransportManager
 				throw (IOException) new IOException("Sorry, this connection is closed.").initCause(reasonClosedCause);
 			}
 
+			if (flagKexOngoing == false && metrics != null)
+				metrics.kexBegin();
+
 			flagKexOngoing = true;
 
 			try
@@ -560,6 +678,9 @@ public class TransportManager
 				close(e, false);
 				throw e;
 			}
+
+			if (metrics != null)
+				metrics.packetSent(msg.length);
 		}
 	}
 
@@ -569,6 +690,9 @@ public class TransportManager
 		{
 			flagKexOngoing = false;
 			connectionSemaphore.notifyAll();
+
+			if (metrics != null)
+				metrics.kexEnd();
 		}
 	}
 
@@ -645,6 +769,15 @@ public class TransportManager
 	}
 
 	public void sendMessage(byte[] msg) throws IOException
+	{
+		sendMessage(msg, 0, msg.length);
+	}
+
+	/**
+	 * Sends <code>len</code> bytes of <code>msg</code> starting at
+	 * <code>off</code>, so that callers can reuse a larger buffer.
+	 */
+	public void sendMessage(byte[] msg, int off, int len) throws IOException
 	{
 		if (Thread.currentThread() == receiveThread)
 			throw new IOException("Assertion error: sendMessage may never be invoked by the receiver thread!");
@@ -673,13 +806,16 @@ public class TransportManager
 
 			try
 			{
-				tc.sendMessage(msg);
+				tc.sendMessage(msg, off, len);
 			}
 			catch (IOException e)
 			{
 				close(e, false);
 				throw e;
 			}
+
+			if (metrics != null)
+				metrics.packetSent(len);
 		}
 	}
 
@@ -691,6 +827,9 @@ public class TransportManager
 		{
 			int msglen = tc.receiveMessage(msg, 0, msg.length);
 
+			if (metrics != null)
+				metrics.packetReceived(msglen);
+
 			int type = msg[0] & 0xff;
 
 			if (type == Packets.SSH_MSG_IGNORE)
@@ -1,10 +1,7 @@
-
 package com.trilead.ssh2.util;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Collections;
-import java.util.LinkedList;
 
 import com.trilead.ssh2.log.Logger;
 
@@ -16,7 +13,14 @@ import com.trilead.ssh2.log.Logger;
  * that rely on timeouts, then there will be only one timeout thread. Once all timeouts
  * have expired/are cancelled, the thread will (sooner or later) exit.
  * Only after new timeouts arrive a new thread (singleton) will be instantiated.
- * 
+ * <p>
+ * Timeouts are kept in a hashed timing wheel of {@link #WHEEL_SIZE} slots,
+ * {@link #TICK_MILLIS} apart. Adding and cancelling a timeout are O(1), no
+ * matter how many are pending, and handlers are run without holding the
+ * lock, so a slow handler does not hold up anyone adding or cancelling
+ * timeouts. Timeouts fire up to one tick late. The thread sleeps until the
+ * next slot that has something in it instead of waking up every tick.
+ *
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: TimeoutService.java,v 1.1 2007/10/15 12:49:57 cplattne Exp $
  */
@@ -24,25 +28,28 @@ public class TimeoutService
 {
 	private static final Logger log = Logger.getLogger(TimeoutService.class);
 
-	public static class TimeoutToken implements Comparable
+	static final int WHEEL_SIZE = 512;
+
+	static final long TICK_MILLIS = 100;
+
+	private static final int MASK = WHEEL_SIZE - 1;
+
+	private static final long TICK_NANOS = TICK_MILLIS * 1000000L;
+
+	public static class TimeoutToken
 	{
-		private long runTime;
-		private Runnable handler;
+		private final long deadlineTick;
+		private final Runnable handler;
 
-		private TimeoutToken(long runTime, Runnable handler)
-		{
-			this.runTime = runTime;
-			this.handler = handler;
-		}
+		/* Doubly linked list of the slot this token is in; slot is -1 if none */
+		private TimeoutToken prev;
+		private TimeoutToken next;
+		private int slot = -1;
 
-		public int compareTo(Object o)
+		private TimeoutToken(long deadlineTick, Runnable handler)
 		{
-			TimeoutToken t = (TimeoutToken) o;
-			if (runTime > t.runTime)
-				return 1;
-			if (runTime == t.runTime)
-				return 0;
-			return -1;
+			this.deadlineTick = deadlineTick;
+			this.handler = handler;
 		}
 	}
 
@@ -50,42 +57,50 @@ public class TimeoutService
 	{
 		public void run()
 		{
-			synchronized (todolist)
+			TimeoutToken expired = null;
+
+			while (true)
 			{
-				while (true)
+				synchronized (wheel)
 				{
-					if (todolist.size() == 0)
+					/* Whatever expired last round has been run by now */
+					expired = null;
+
+					while (true)
 					{
-						timeoutThread = null;
-						return;
-					}
+						if (pending == 0)
+						{
+							timeoutThread = null;
+							return;
+						}
 
-					long now = System.currentTimeMillis();
+						long now = currentTick();
 
-					TimeoutToken tt = (TimeoutToken) todolist.getFirst();
+						if (now > currentTick)
+						{
+							expired = advance(now);
+							if (expired != null)
+								break;
+						}
 
-					if (tt.runTime > now)
-					{
-						/* Not ready yet, sleep a little bit */
+						long wakeTick = nextTick();
+						wakeAt = wakeTick;
 
 						try
 						{
-							todolist.wait(tt.runTime - now);
+							long nanos = (wakeTick - now) * TICK_NANOS;
+							wheel.wait(nanos / 1000000L, (int) (nanos % 1000000L));
 						}
 						catch (InterruptedException e)
 						{
 						}
 
-						/* We cannot simply go on, since it could be that the token
-						 * was removed (cancelled) or another one has been inserted in
-						 * the meantime.
-						 */
-
-						continue;
+						wakeAt = Long.MAX_VALUE;
 					}
+				}
 
-					todolist.removeFirst();
-
+				for (TimeoutToken tt = expired; tt != null; tt = tt.next)
+				{
 					try
 					{
 						tt.handler.run();
@@ -101,48 +116,167 @@ public class TimeoutService
 		}
 	}
 
-	/* The list object is also used for locking purposes */
-	private static final LinkedList todolist = new LinkedList();
+	/* The wheel is also used for locking purposes */
+	private static final TimeoutToken[] wheel = new TimeoutToken[WHEEL_SIZE];
+
+	private static final long epoch = System.nanoTime();
+
+	/* Last tick whose slot has been processed */
+	private static long currentTick = currentTick();
+
+	/* Tick the timeout thread is sleeping until, if it is */
+	private static long wakeAt = Long.MAX_VALUE;
+
+	private static int pending = 0;
 
 	private static Thread timeoutThread = null;
 
+	private static long currentTick()
+	{
+		return (System.nanoTime() - epoch) / TICK_NANOS;
+	}
+
+	/*
+	 * Processes every slot from the last processed tick up to now and
+	 * returns the expired tokens as a list linked through "next".
+	 */
+	private static TimeoutToken advance(long now)
+	{
+		TimeoutToken expired = null;
+
+		/* After a long sleep every slot has to be looked at just once */
+		long from = Math.max(currentTick + 1, now - MASK);
+
+		for (long tick = from; tick <= now; tick++)
+		{
+			int slot = (int) (tick & MASK);
+			TimeoutToken tt = wheel[slot];
+
+			while (tt != null)
+			{
+				TimeoutToken next = tt.next;
+
+				if (tt.deadlineTick <= now)
+				{
+					unlink(tt);
+					tt.next = expired;
+					expired = tt;
+				}
+
+				tt = next;
+			}
+		}
+
+		currentTick = now;
+		return expired;
+	}
+
+	/*
+	 * The tick of the nearest non-empty slot; slots hold timeouts of later
+	 * revolutions too, so this is when to look again, not necessarily
+	 * when something expires.
+	 */
+	private static long nextTick()
+	{
+		for (int i = 1; i <= WHEEL_SIZE; i++)
+		{
+			long tick = currentTick + i;
+			if (wheel[(int) (tick & MASK)] != null)
+				return tick;
+		}
+
+		return currentTick + WHEEL_SIZE;
+	}
+
+	private static void unlink(TimeoutToken token)
+	{
+		if (token.prev != null)
+			token.prev.next = token.next;
+		else
+			wheel[token.slot] = token.next;
+
+		if (token.next != null)
+			token.next.prev = token.prev;
+
+		token.prev = null;
+		token.next = null;
+		token.slot = -1;
+		pending--;
+	}
+
 	/**
 	 * It is assumed that the passed handler will not execute for a long time.
-	 * 
+	 *
 	 * @param runTime
+	 *            absolute time, as in {@link System#currentTimeMillis()}
 	 * @param handler
 	 * @return a TimeoutToken that can be used to cancel the timeout.
 	 */
 	public static final TimeoutToken addTimeoutHandler(long runTime, Runnable handler)
 	{
-		TimeoutToken token = new TimeoutToken(runTime, handler);
+		return schedule(runTime - System.currentTimeMillis(), handler);
+	}
 
-		synchronized (todolist)
+	/**
+	 * Like {@link #addTimeoutHandler(long, Runnable)}, but relative to now.
+	 * Suited for timeouts that are rescheduled all the time, like keepalives
+	 * or idle timeouts: cancel the old token and schedule a new one.
+	 *
+	 * @param delay
+	 *            milliseconds from now
+	 * @param handler
+	 * @return a TimeoutToken that can be used to cancel the timeout.
+	 */
+	public static final TimeoutToken schedule(long delay, Runnable handler)
+	{
+		synchronized (wheel)
 		{
-			todolist.add(token);
-			Collections.sort(todolist);
+			/*
+			 * Round the exact deadline up to the tick it falls in, so that
+			 * the timeout never fires early, however late in the current
+			 * tick it is scheduled
+			 */
+			long deadline = System.nanoTime() - epoch + Math.max(delay, 0) * 1000000L;
+			long deadlineTick = (deadline + TICK_NANOS - 1) / TICK_NANOS;
+
+			/* Never put anything into a slot that has already been processed */
+			deadlineTick = Math.max(deadlineTick, Math.max(currentTick(), currentTick) + 1);
 
-			if (timeoutThread != null)
-				timeoutThread.interrupt();
-			else
+			TimeoutToken token = new TimeoutToken(deadlineTick, handler);
+
+			int slot = (int) (deadlineTick & MASK);
+			token.slot = slot;
+			token.next = wheel[slot];
+			if (token.next != null)
+				token.next.prev = token;
+			wheel[slot] = token;
+			pending++;
+
+			if (timeoutThread == null)
 			{
 				timeoutThread = new TimeoutThread();
 				timeoutThread.setDaemon(true);
 				timeoutThread.start();
 			}
-		}
+			else if (deadlineTick < wakeAt)
+			{
+				wheel.notify();
+			}
 
-		return token;
+			return token;
+		}
 	}
 
+	/**
+	 * Cancels a timeout. Does nothing if it has already expired; its handler
+	 * may even be running right now.
+	 */
 	public static final void cancelTimeoutHandler(TimeoutToken token)
 	{
-		synchronized (todolist)
+		synchronized (wheel)
 		{
-			todolist.remove(token);
-
-			if (timeoutThread != null)
-				timeoutThread.interrupt();
+			if (token.slot >= 0)
+				unlink(token);
 		}
 	}
 
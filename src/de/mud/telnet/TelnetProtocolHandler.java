@@ -43,8 +43,19 @@ public abstract class TelnetProtocolHandler {
   /** debug level */
   private final static int debug = 0;
 
-  /** temporary buffer for data-telnetstuff-data transformation */
+  /** input fed by inputfeed() that negotiate() has not handed out yet */
   private byte[] tempbuf = new byte[0];
+  private int tempoff = 0, templen = 0;
+
+  /** output of transpose(), reused between calls */
+  private byte[] outbuf = new byte[OUTBUF_SIZE];
+  private final static int OUTBUF_SIZE = 4096;
+
+  /** the byte written by transpose(byte) */
+  private final byte[] single = new byte[1];
+
+  /** replies to IAC WILL/WONT/DO, reused */
+  private final byte[] sendbuf = new byte[3];
 
   /** the data sent on pressing <RETURN>  \n */
   private byte[] crlf = new byte[2];
@@ -91,6 +102,23 @@ public abstract class TelnetProtocolHandler {
    */
   protected abstract void write(byte[] b) throws IOException;
 
+  /**
+   * Send part of a buffer to the remote host. Override this to spare the
+   * copy the default implementation makes.
+   * @param b array of bytes to send from
+   * @param offset where the bytes to send start
+   * @param length how many bytes to send
+   */
+  protected void write(byte[] b, int offset, int length) throws IOException {
+    if (offset == 0 && length == b.length) {
+      write(b);
+    } else {
+      byte[] part = new byte[length];
+      System.arraycopy(b, offset, part, 0, length);
+      write(part);
+    }
+  }
+
   /**
    * Read the charset name from terminal.
    */
@@ -101,7 +129,7 @@ public abstract class TelnetProtocolHandler {
    * @param b the byte to be sent
    * @see #write(byte[] b)
    */
-  private static byte[] one = new byte[1];
+  private final byte[] one = new byte[1];
   private void write(byte b) throws IOException {
     one[0] = b;
     write(one);
@@ -141,8 +169,9 @@ public abstract class TelnetProtocolHandler {
   /** What IAC SB <xx> we are handling right now */
   private byte current_sb;
 
-  /** current SB negotiation buffer */
-  private byte[] sbbuf;
+  /** current SB negotiation buffer, grown as needed */
+  private byte[] sbbuf = new byte[64];
+  private int sblen = 0;
 
   /** IAC - init sequence for telnet negotiation. */
   private final static byte IAC  = (byte)255;
@@ -222,12 +251,18 @@ public abstract class TelnetProtocolHandler {
     	System.err.println("not allowed to send NAWS? (DONT NAWS)");
 	return;
     }
-    write(IAC);write(SB);write(TELOPT_NAWS);
-    write((byte) (columns >> 8));
-    write((byte) (columns & 0xff));
-    write((byte) (rows >> 8));
-    write((byte) (rows & 0xff));
-    write(IAC);write(SE);
+    sendNAWS(columns, rows);
+  }
+
+  /**
+   * Send IAC SB NAWS with the window size as one write, since it may
+   * happen while the reader is answering negotiations.
+   */
+  private void sendNAWS(int columns, int rows) throws IOException {
+    write(new byte[] { IAC, SB, TELOPT_NAWS,
+                       (byte) (columns >> 8), (byte) (columns & 0xff),
+                       (byte) (rows >> 8), (byte) (rows & 0xff),
+                       IAC, SE });
   }
 
 
@@ -235,14 +270,15 @@ public abstract class TelnetProtocolHandler {
    * Handle an incoming IAC SB &lt;type&gt; &lt;bytes&gt; IAC SE
    * @param type type of SB
    * @param sbata byte array as &lt;bytes&gt;
+   * @param sblen number of bytes in sbdata
    */
-  private void handle_sb(byte type, byte[] sbdata)
+  private void handle_sb(byte type, byte[] sbdata, int sblen)
     throws IOException {
     if(debug > 1)
       System.err.println("TelnetIO.handle_sb("+type+")");
     switch (type) {
     case TELOPT_TTYPE:
-      if (sbdata.length>0 && sbdata[0]==TELQUAL_SEND) {
+      if (sblen>0 && sbdata[0]==TELQUAL_SEND) {
         write(IACSB);write(TELOPT_TTYPE);write(TELQUAL_IS);
         /* FIXME: need more logic here if we use
          * more than one terminal type
@@ -256,7 +292,7 @@ public abstract class TelnetProtocolHandler {
     case TELOPT_CHARSET:
         System.out.println("Got SB CHARSET");
 
-      String charsetStr = new String(sbdata, "US-ASCII");
+      String charsetStr = new String(sbdata, 0, sblen, "US-ASCII");
       if (charsetStr.startsWith("TTABLE ")) {
         charsetStr = charsetStr.substring(7);
       }
@@ -293,62 +329,90 @@ public abstract class TelnetProtocolHandler {
    * @param buf the data buffer to be sent
    */
   public void transpose(byte[] buf) throws IOException {
-    int i;
+    transpose(buf, 0, buf.length);
+  }
 
-    byte[] nbuf,xbuf;
-    int nbufptr=0;
-    nbuf = new byte[buf.length*2]; // FIXME: buffer overflows possible
+  /**
+   * Transpose and send part of a buffer. Data without anything to
+   * transpose in it, which is most of it, is sent as it is without being
+   * copied; the rest goes through a buffer that is reused between calls.
+   * @param buf the data buffer to be sent from
+   * @param offset where the data starts
+   * @param length how many bytes to send
+   * @see #transpose(byte[])
+   */
+  public synchronized void transpose(byte[] buf, int offset, int length)
+    throws IOException {
+    // We need to heed RFC 854. LF (\n) is 10, CR (\r) is 13
+    // we assume that the Terminal sends \n for lf+cr and \r for just cr
+    // this is not done in binary mode, but IAC is escaped in both.
+    boolean binary = receivedDX[TELOPT_BINARY + 128] == DO;
+    int end = offset + length;
+
+    int i = offset;
+    while (i < end && buf[i] != IAC && (binary || (buf[i] != 10 && buf[i] != 13)))
+      i++;
+
+    if (i == end) {
+      write(buf, offset, length);
+      return;
+    }
+
+    int widest = Math.max(2, Math.max(crlf.length, cr.length));
+    if (outbuf.length < widest)
+      outbuf = new byte[widest];
+
+    if (i > offset)
+      write(buf, offset, i - offset);
+
+    int nbufptr = 0;
+    for (; i < end; i++) {
+      if (outbuf.length - nbufptr < widest) {
+        write(outbuf, 0, nbufptr);
+        nbufptr = 0;
+      }
 
-    for (i = 0; i < buf.length ; i++) {
       switch (buf[i]) {
       // Escape IAC twice in stream ... to be telnet protocol compliant
       // this is there in binary and non-binary mode.
       case IAC:
-	nbuf[nbufptr++]=IAC;
-	nbuf[nbufptr++]=IAC;
-	break;
-      // We need to heed RFC 854. LF (\n) is 10, CR (\r) is 13
-      // we assume that the Terminal sends \n for lf+cr and \r for just cr
+        outbuf[nbufptr++] = IAC;
+        outbuf[nbufptr++] = IAC;
+        break;
       // linefeed+carriage return is CR LF */
       case 10:	// \n
-        if (receivedDX[TELOPT_BINARY + 128 ] != DO) {
-	    while (nbuf.length - nbufptr < crlf.length) {
-		    xbuf = new byte[nbuf.length*2];
-		    System.arraycopy(nbuf,0,xbuf,0,nbufptr);
-		    nbuf = xbuf;
-	    }
-	    for (int j=0;j<crlf.length;j++)
-		nbuf[nbufptr++]=crlf[j];
-	    break;
-	} else {
-	    // copy verbatim in binary mode.
-	    nbuf[nbufptr++]=buf[i];
-	}
-	break;
+        if (!binary) {
+          System.arraycopy(crlf, 0, outbuf, nbufptr, crlf.length);
+          nbufptr += crlf.length;
+        } else
+          outbuf[nbufptr++] = buf[i];
+        break;
       // carriage return is CR NUL */
       case 13:	// \r
-        if (receivedDX[TELOPT_BINARY + 128 ] != DO) {
-	    while (nbuf.length - nbufptr < cr.length) {
-		    xbuf = new byte[nbuf.length*2];
-		    System.arraycopy(nbuf,0,xbuf,0,nbufptr);
-		    nbuf = xbuf;
-	    }
-	    for (int j=0;j<cr.length;j++)
-		nbuf[nbufptr++]=cr[j];
-	} else {
-	    // copy verbatim in binary mode.
-	    nbuf[nbufptr++]=buf[i];
-	}
-	break;
+        if (!binary) {
+          System.arraycopy(cr, 0, outbuf, nbufptr, cr.length);
+          nbufptr += cr.length;
+        } else
+          outbuf[nbufptr++] = buf[i];
+        break;
       // all other characters are just copied
       default:
-	nbuf[nbufptr++]=buf[i];
-	break;
+        outbuf[nbufptr++] = buf[i];
+        break;
       }
     }
-    xbuf = new byte[nbufptr];
-    System.arraycopy(nbuf,0,xbuf,0,nbufptr);
-    write(xbuf);
+
+    write(outbuf, 0, nbufptr);
+  }
+
+  /**
+   * Transpose and send a single byte.
+   * @param b the byte to be sent
+   * @see #transpose(byte[])
+   */
+  public synchronized void transpose(byte b) throws IOException {
+    single[0] = b;
+    transpose(single, 0, 1);
   }
 
   public void setCRLF(String xcrlf) { crlf = xcrlf.getBytes(); }
@@ -358,47 +422,73 @@ public abstract class TelnetProtocolHandler {
    * Handle telnet protocol negotiation. The buffer will be parsed
    * and necessary actions are taken according to the telnet protocol.
    * See <A HREF="RFC-Telnet-URL">RFC-Telnet</A>
+   * <P>
+   * Takes its input from what was given to {@link #inputfeed}, at most as
+   * much as fits into nbuf.
    * @param nbuf the byte buffer put out after negotiation
    * @return number of bytes processed, 0 for none, and -1 for end of buffer.
    */
   public int negotiate(byte nbuf[], int offset)
   throws IOException
   {
-    int count = tempbuf.length;
-    byte[] buf = tempbuf;
-    byte sendbuf[] = new byte[3];
-    byte b,reply;
-    int boffset = 0, noffset = offset;
-    boolean dobreak = false;
-
-    if (count == 0) 	// buffer is empty.
+    if (templen == 0) 	// buffer is empty.
       return -1;
 
-    while(!dobreak && (boffset < count) && (noffset < nbuf.length)) {
+    int count = Math.min(templen, nbuf.length - offset);
+    System.arraycopy(tempbuf, tempoff, nbuf, offset, count);
+    tempoff += count;
+    templen -= count;
+
+    return negotiate(nbuf, offset, count);
+  }
+
+  /**
+   * Handle telnet protocol negotiation on data just read, in place: the
+   * data left over once the telnet commands are taken out is moved to the
+   * front of the range. Reads without any IAC in them are left alone, so
+   * they cost one scan and no copying.
+   * @param buf the bytes read from the remote host
+   * @param offset where they start
+   * @param length how many there are
+   * @return number of data bytes now starting at offset, 0 for none
+   */
+  public int negotiate(byte buf[], int offset, int length)
+  throws IOException
+  {
+    byte b,reply;
+    int end = offset + length;
+    int boffset = offset, noffset = offset;
+
+    while (boffset < end) {
+      if (neg_state == STATE_DATA) {
+        // pass everything up to the next IAC through at once
+        int run = boffset;
+        while (run < end && buf[run] != IAC)
+          run++;
+        if (noffset != boffset)
+          System.arraycopy(buf, boffset, buf, noffset, run - boffset);
+        noffset += run - boffset;
+        boffset = run;
+        if (boffset == end)
+          break;
+
+        boffset++;
+        neg_state = STATE_IAC;
+        continue;
+      }
+
       b=buf[boffset++];
-      // of course, byte is a signed entity (-128 -> 127)
-      // but apparently the SGI Netscape 3.0 doesn't seem
-      // to care and provides happily values up to 255
-      if (b>=128)
-        b=(byte)(b-256);
       if(debug > 2) {
         Byte B = new Byte(b);
         System.err.print("byte: " + B.intValue()+ " ");
       }
       switch (neg_state) {
-      case STATE_DATA:
-        if (b==IAC) {
-          neg_state = STATE_IAC;
-	  dobreak = true; // leave the loop so we can sync.
-        } else
-          nbuf[noffset++]=b;
-        break;
       case STATE_IAC:
         switch (b) {
         case IAC:
           if(debug > 2) System.err.print("IAC ");
           neg_state = STATE_DATA;
-          nbuf[noffset++]=IAC;
+          buf[noffset++]=IAC;
           break;
         case WILL:
           if(debug > 2) System.err.print("WILL ");
@@ -419,7 +509,6 @@ public abstract class TelnetProtocolHandler {
         case EOR:
           if(debug > 1) System.err.print("EOR ");
   	  notifyEndOfRecord();
-	  dobreak = true; // leave the loop so we can sync.
           neg_state = STATE_DATA;
           break;
         case SB:
@@ -539,12 +628,7 @@ public abstract class TelnetProtocolHandler {
           sendbuf[1]=WILL;
           sendbuf[2]=TELOPT_NAWS;
           write(sendbuf);
-          write(IAC);write(SB);write(TELOPT_NAWS);
-          write((byte) (size[0] >> 8));
-          write((byte) (size[0] & 0xff));
-          write((byte) (size[1] >> 8));
-          write((byte) (size[1] & 0xff));
-          write(IAC);write(SE);
+          sendNAWS(size[0], size[1]);
           break;
         default:
           if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
@@ -595,7 +679,7 @@ public abstract class TelnetProtocolHandler {
       case STATE_IACSBIAC:
         if(debug > 2) System.err.println(""+b+" ");
         if (b == IAC) {
-	  sbbuf = new byte[0];
+	  sblen = 0;
           current_sb = b;
           neg_state = STATE_IACSBDATA;
         } else {
@@ -611,7 +695,7 @@ public abstract class TelnetProtocolHandler {
           break;
         default:
           current_sb = b;
-	  sbbuf = new byte[0];
+	  sblen = 0;
           neg_state = STATE_IACSBDATA;
           break;
         }
@@ -623,10 +707,7 @@ public abstract class TelnetProtocolHandler {
           neg_state = STATE_IACSBDATAIAC;
           break;
         default:
-	  byte[] xsb = new byte[sbbuf.length+1];
-          System.arraycopy(sbbuf,0,xsb,0,sbbuf.length);
-	  sbbuf = xsb;
-          sbbuf[sbbuf.length-1] = b;
+          addSubnegotiation(b);
           break;
         }
         break;
@@ -635,18 +716,15 @@ public abstract class TelnetProtocolHandler {
         switch (b) {
         case IAC:
           neg_state = STATE_IACSBDATA;
-	  byte[] xsb = new byte[sbbuf.length+1];
-          System.arraycopy(sbbuf,0,xsb,0,sbbuf.length);
-	  sbbuf = xsb;
-          sbbuf[sbbuf.length-1] = IAC;
+          addSubnegotiation(IAC);
           break;
         case SE:
-          handle_sb(current_sb,sbbuf);
+          handle_sb(current_sb,sbbuf,sblen);
           current_sb = 0;
           neg_state = STATE_DATA;
           break;
         case SB:
-          handle_sb(current_sb,sbbuf);
+          handle_sb(current_sb,sbbuf,sblen);
           neg_state = STATE_IACSB;
           break;
         default:
@@ -661,18 +739,33 @@ public abstract class TelnetProtocolHandler {
         break;
       }
     }
-    // shrink tempbuf to new processed size.
-    byte[] xb = new byte[count-boffset];
-    System.arraycopy(tempbuf,boffset,xb,0,count-boffset);
-    tempbuf = xb;
     return noffset - offset;
   }
 
+  private void addSubnegotiation(byte b) {
+    if (sblen == sbbuf.length) {
+      byte[] xsb = new byte[sbbuf.length * 2];
+      System.arraycopy(sbbuf, 0, xsb, 0, sblen);
+      sbbuf = xsb;
+    }
+    sbbuf[sblen++] = b;
+  }
+
+  /**
+   * Queue input for {@link #negotiate(byte[], int)}. The queue is reused,
+   * so feeding it only copies.
+   */
   public void inputfeed(byte[] b, int offset, int len) {
-    byte[] xb = new byte[tempbuf.length+len];
+    if (tempoff + templen + len > tempbuf.length) {
+      byte[] xb = tempbuf;
+      if (templen + len > tempbuf.length)
+        xb = new byte[Math.max(templen + len, tempbuf.length * 2)];
+      System.arraycopy(tempbuf, tempoff, xb, 0, templen);
+      tempbuf = xb;
+      tempoff = 0;
+    }
 
-    System.arraycopy(tempbuf,0,xb,0,tempbuf.length);
-    System.arraycopy(b,offset,xb,tempbuf.length,len);
-    tempbuf = xb;
+    System.arraycopy(b, offset, tempbuf, tempoff + templen, len);
+    templen += len;
   }
 }
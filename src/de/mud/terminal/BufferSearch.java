@@ -0,0 +1,372 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.terminal;
+
+/**
+ * Incremental, case-insensitive search through everything a
+ * {@link VDUBuffer} remembers: the screen, the in-memory scrollback and the
+ * lines kept by its {@link ScrollbackStore}.
+ * <p>
+ * Searching happens on a background thread. The buffer is only locked for
+ * {@link #CHUNK_LINES} lines at a time, so the terminal keeps running while
+ * a long history is searched. A new request abandons the one in progress.
+ * Lines are matched with Boyer-Moore-Horspool. Lines in the scrollback store
+ * whose signature rules out a match are skipped without being paged in.
+ * <p>
+ * Matches are reported as (line, column) where line is a row of the buffer
+ * plus {@link VDUBuffer#getScrolledLines()}, so it keeps pointing at the
+ * same text while new output scrolls in.
+ */
+public class BufferSearch {
+	/** Number of lines searched per lock of the buffer. */
+	public final static int CHUNK_LINES = 256;
+
+	public interface Listener {
+		/**
+		 * Called on the search thread when a match was found.
+		 * @param line buffer row plus {@link VDUBuffer#getScrolledLines()}
+		 * @param column first column of the match
+		 * @param length number of columns matched
+		 */
+		public void onFound(long line, int column, int length);
+
+		/**
+		 * Called on the search thread when there is no (further) match.
+		 * @param query the string that was searched for
+		 */
+		public void onNotFound(String query);
+	}
+
+	private static class Request {
+		String query;
+		char[] pattern;
+		int[] shift;
+		long signature;
+		long line;
+		int column;
+		boolean older;
+		boolean inclusive;
+		int generation;
+	}
+
+	private final VDUBuffer buffer;
+	private final Listener listener;
+
+	private String query;
+	private boolean hasMatch;
+	private long matchLine;
+	private int matchColumn;
+	private int matchLength;
+
+	private int generation;
+	private Request pending;
+	private Thread worker;
+
+	public BufferSearch(VDUBuffer buffer, Listener listener) {
+		this.buffer = buffer;
+		this.listener = listener;
+	}
+
+	/**
+	 * Search for a new or changed query. If the current match still
+	 * matches it stays, otherwise the search continues towards older lines.
+	 * A fresh search starts at the bottom of the visible window.
+	 * @param query string to look for; empty to stop searching
+	 */
+	public synchronized void setQuery(String query) {
+		if (query == null || query.length() == 0) {
+			cancel();
+			return;
+		}
+
+		this.query = query;
+		if (hasMatch)
+			submit(matchLine, matchColumn, true, true);
+		else
+			submitFromWindow();
+	}
+
+	/**
+	 * Find the next match above the current one.
+	 */
+	public synchronized void findOlder() {
+		if (query == null)
+			return;
+		if (hasMatch)
+			submit(matchLine, matchColumn, true, false);
+		else
+			submitFromWindow();
+	}
+
+	/**
+	 * Find the next match below the current one.
+	 */
+	public synchronized void findNewer() {
+		if (query == null)
+			return;
+		if (hasMatch)
+			submit(matchLine, matchColumn, false, false);
+		else
+			submitFromWindow();
+	}
+
+	/**
+	 * Stop searching and forget the current match.
+	 */
+	public synchronized void cancel() {
+		generation++;
+		pending = null;
+		query = null;
+		hasMatch = false;
+		notifyAll();
+	}
+
+	/**
+	 * Stop searching and end the search thread. A later request starts a
+	 * new one.
+	 */
+	public synchronized void close() {
+		cancel();
+
+		if (worker != null) {
+			worker.interrupt();
+			worker = null;
+		}
+	}
+
+	public synchronized boolean hasMatch() {
+		return hasMatch;
+	}
+
+	public synchronized long getMatchLine() {
+		return matchLine;
+	}
+
+	public synchronized int getMatchColumn() {
+		return matchColumn;
+	}
+
+	public synchronized int getMatchLength() {
+		return matchLength;
+	}
+
+	private void submitFromWindow() {
+		long line;
+		synchronized (buffer) {
+			line = buffer.getScrolledLines() + buffer.getWindowBase() + buffer.getRows() - 1;
+		}
+		submit(line, Integer.MAX_VALUE, true, true);
+	}
+
+	private void submit(long line, int column, boolean older, boolean inclusive) {
+		Request request = new Request();
+		request.query = query;
+		request.pattern = query.toLowerCase().toCharArray();
+		request.shift = shiftTable(request.pattern);
+		request.signature = ScrollbackStore.signature(request.pattern, request.pattern.length);
+		request.line = line;
+		request.column = column;
+		request.older = older;
+		request.inclusive = inclusive;
+		request.generation = ++generation;
+
+		pending = request;
+
+		if (worker == null) {
+			worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			});
+			worker.setName("BufferSearch");
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		notifyAll();
+	}
+
+	private void work() {
+		while (true) {
+			Request request;
+			synchronized (this) {
+				// close() may already have started a replacement
+				while (worker == Thread.currentThread() && pending == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						if (worker == Thread.currentThread())
+							worker = null;
+						return;
+					}
+				}
+				if (worker != Thread.currentThread())
+					return;
+				request = pending;
+				pending = null;
+			}
+
+			search(request);
+		}
+	}
+
+	private synchronized boolean isCurrent(Request request) {
+		return request.generation == generation;
+	}
+
+	private void search(Request request) {
+		final int m = request.pattern.length;
+		long line = request.line;
+		boolean first = true;
+
+		while (isCurrent(request)) {
+			long found = -1;
+			int foundColumn = -1;
+			boolean exhausted = false;
+
+			synchronized (buffer) {
+				final ScrollbackStore store = buffer.getScrollbackStore();
+				final long scrolled = buffer.getScrolledLines();
+				final int top = -buffer.getHistoryLines();
+				final int bottom = buffer.getBufferSize() - 1;
+
+				// the start may have dropped out of the buffer in the meantime
+				long row = line - scrolled;
+				if (row < top && !request.older) {
+					row = top;
+					first = false;
+				} else if (row > bottom && request.older) {
+					row = bottom;
+					first = false;
+				}
+
+				for (int n = 0; n < CHUNK_LINES; n++) {
+					if (row < top || row > bottom) {
+						exhausted = true;
+						break;
+					}
+
+					// let the index rule out lines that are only on disk
+					if (row < 0 && store != null && (store.getSignature(store.getLineCount() + (int) row)
+							& request.signature) != request.signature) {
+						row += request.older ? -1 : 1;
+						first = false;
+						continue;
+					}
+
+					char[] chars = buffer.getLineChars((int) row);
+					int column;
+					if (request.older) {
+						int limit = chars.length - m;
+						if (first)
+							limit = Math.min(limit, request.inclusive ? request.column : request.column - 1);
+						column = lastIndexOf(chars, limit, request.pattern, request.shift);
+					} else {
+						int from = 0;
+						if (first)
+							from = request.inclusive ? request.column : request.column + 1;
+						column = indexOf(chars, from, request.pattern, request.shift);
+					}
+					first = false;
+
+					if (column >= 0) {
+						found = row + scrolled;
+						foundColumn = column;
+						break;
+					}
+
+					row += request.older ? -1 : 1;
+				}
+
+				line = row + scrolled;
+			}
+
+			if (foundColumn >= 0) {
+				synchronized (this) {
+					if (!isCurrent(request))
+						return;
+					hasMatch = true;
+					matchLine = found;
+					matchColumn = foundColumn;
+					matchLength = m;
+				}
+				listener.onFound(found, foundColumn, m);
+				return;
+			}
+
+			if (exhausted) {
+				if (isCurrent(request))
+					listener.onNotFound(request.query);
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Horspool's bad character table, indexed by the low byte of the
+	 * character. Characters that share a low byte get the smallest shift of
+	 * them, which is always safe.
+	 */
+	private static int[] shiftTable(char[] pattern) {
+		final int m = pattern.length;
+		int[] shift = new int[256];
+		for (int i = 0; i < shift.length; i++)
+			shift[i] = m;
+		for (int k = 0; k < m - 1; k++)
+			shift[pattern[k] & 0xff] = m - 1 - k;
+		return shift;
+	}
+
+	/**
+	 * Find the first match starting at or after <code>from</code>.
+	 * @param pattern lower case pattern
+	 * @return column of the match, or -1
+	 */
+	static int indexOf(char[] text, int from, char[] pattern, int[] shift) {
+		final int m = pattern.length;
+		int i = from < 0 ? 0 : from;
+
+		while (i + m <= text.length) {
+			int j = m - 1;
+			while (j >= 0 && Character.toLowerCase(text[i + j]) == pattern[j])
+				j--;
+			if (j < 0)
+				return i;
+			i += shift[Character.toLowerCase(text[i + m - 1]) & 0xff];
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Find the last match starting at or before <code>limit</code>.
+	 * @param pattern lower case pattern
+	 * @return column of the match, or -1
+	 */
+	static int lastIndexOf(char[] text, int limit, char[] pattern, int[] shift) {
+		int last = -1;
+		int i = indexOf(text, 0, pattern, shift);
+
+		while (i >= 0 && i <= limit) {
+			last = i;
+			i = indexOf(text, i + 1, pattern, shift);
+		}
+
+		return last;
+	}
+}
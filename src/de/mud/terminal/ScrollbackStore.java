@@ -0,0 +1,510 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.terminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+/**
+ * Disk tier for the scrollback of a {@link VDUBuffer}. Lines that scroll
+ * off the in-memory part of the buffer are appended here and read back only
+ * when somebody looks at them.
+ * <p>
+ * Lines are collected into pages of {@link #PAGE_LINES} lines. A full page
+ * has its trailing blanks stripped, its attributes run-length encoded and is
+ * optionally deflated, then it is appended to a memory-mapped file. The file
+ * is mapped in segments; once every page of a segment has been dropped the
+ * segment is reused. The heap holds the page index, the page being filled
+ * and a few decoded pages, so its size depends on the screen width rather
+ * than on the length of the history.
+ * <p>
+ * Every line also gets a {@link #signature(char[], int)} when it is
+ * appended. The signatures are written uncompressed in front of each page,
+ * so a search can skip lines without inflating their page.
+ * <p>
+ * Lines are numbered from 0 (the oldest line still kept) to
+ * {@link #getLineCount()} - 1 (the line that scrolled off last).
+ */
+public class ScrollbackStore {
+	private static final String TAG = "ConnectBot.ScrollbackStore";
+
+	/** Number of lines that are stored together. */
+	public final static int PAGE_LINES = 64;
+
+	private final static int SEGMENT_SIZE = 1024 * 1024;
+	private final static int SIGNATURE_BYTES = PAGE_LINES * 8;
+	private final static int CACHED_PAGES = 4;
+
+	private static class Page {
+		int segment;
+		int offset;
+		int length;
+		int rawLength;
+		boolean compressed;
+	}
+
+	private static class DecodedPage {
+		int width;
+		char[][] chars;
+		int[][] attributes;
+	}
+
+	private final File file;
+	private final boolean compress;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private int[] segmentPages = new int[4];
+	private final ArrayList<Integer> freeSegments = new ArrayList<Integer>();
+	private int writeSegment = -1;
+	private int writePosition;
+
+	private final ArrayList<Page> pages = new ArrayList<Page>();
+
+	private final char[][] pendingChars = new char[PAGE_LINES][];
+	private final int[][] pendingAttributes = new int[PAGE_LINES][];
+	private final long[] pendingSignatures = new long[PAGE_LINES];
+	private int pendingLines;
+
+	private int capacity;
+
+	private final Map<Page, DecodedPage> cache =
+		new LinkedHashMap<Page, DecodedPage>(CACHED_PAGES + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Page, DecodedPage> eldest) {
+				return size() > CACHED_PAGES;
+			}
+		};
+
+	private Deflater deflater;
+	private Inflater inflater;
+
+	private final ByteArrayOutputStream pageBytes = new ByteArrayOutputStream();
+	private byte[] ioBuffer = new byte[8192];
+
+	/**
+	 * Create a store backed by the given file, which is created or truncated.
+	 * @param file where to keep the lines, usually in the application cache
+	 * @param compress whether to deflate pages before writing them
+	 * @throws IOException if the file cannot be opened
+	 */
+	public ScrollbackStore(File file, boolean compress) throws IOException {
+		this.file = file;
+		this.compress = compress;
+
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+
+		if (compress) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			inflater = new Inflater();
+		}
+	}
+
+	/**
+	 * Set the maximum number of lines to keep. Older lines are dropped a page
+	 * at a time.
+	 * @param lines number of lines
+	 */
+	public synchronized void setCapacity(int lines) {
+		capacity = lines < 0 ? 0 : lines;
+		trim();
+	}
+
+	/**
+	 * @return maximum number of lines kept
+	 */
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return number of lines currently stored
+	 */
+	public synchronized int getLineCount() {
+		return pages.size() * PAGE_LINES + pendingLines;
+	}
+
+	/**
+	 * Append a line that just scrolled off the in-memory buffer.
+	 * @param chars characters of the line
+	 * @param attributes attributes of the line
+	 */
+	public synchronized void append(char[] chars, int[] attributes) {
+		if (channel == null || capacity == 0)
+			return;
+
+		pendingChars[pendingLines] = chars.clone();
+		pendingAttributes[pendingLines] = attributes.clone();
+		pendingSignatures[pendingLines] = signature(chars, chars.length);
+		pendingLines++;
+
+		if (pendingLines == PAGE_LINES) {
+			try {
+				writePage();
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot write page, dropping it", e);
+			}
+			Arrays.fill(pendingChars, null);
+			Arrays.fill(pendingAttributes, null);
+			pendingLines = 0;
+		}
+
+		trim();
+	}
+
+	/**
+	 * Get the characters of a stored line, padded or cut to <code>width</code>.
+	 * Lines that are not (or no longer) stored come back blank.
+	 * @param line line number, 0 being the oldest
+	 * @param width number of columns wanted
+	 */
+	public synchronized char[] getChars(int line, int width) {
+		int pageLines = pages.size() * PAGE_LINES;
+
+		if (line >= pageLines && line < pageLines + pendingLines)
+			return fit(pendingChars[line - pageLines], width, ' ');
+
+		DecodedPage page = getPage(line, width);
+		if (page == null) {
+			char[] blank = new char[width];
+			Arrays.fill(blank, ' ');
+			return blank;
+		}
+		return page.chars[line % PAGE_LINES];
+	}
+
+	/**
+	 * Get the attributes of a stored line, padded or cut to <code>width</code>.
+	 * @param line line number, 0 being the oldest
+	 * @param width number of columns wanted
+	 */
+	public synchronized int[] getAttributes(int line, int width) {
+		int pageLines = pages.size() * PAGE_LINES;
+
+		if (line >= pageLines && line < pageLines + pendingLines)
+			return fit(pendingAttributes[line - pageLines], width);
+
+		DecodedPage page = getPage(line, width);
+		if (page == null)
+			return new int[width];
+		return page.attributes[line % PAGE_LINES];
+	}
+
+	/**
+	 * Get the signature of a stored line without decoding it.
+	 * @param line line number, 0 being the oldest
+	 * @return the signature, or 0 if the line is not stored
+	 * @see #signature(char[], int)
+	 */
+	public synchronized long getSignature(int line) {
+		int pageLines = pages.size() * PAGE_LINES;
+
+		if (line >= pageLines && line < pageLines + pendingLines)
+			return pendingSignatures[line - pageLines];
+
+		if (line < 0 || line >= pageLines)
+			return 0;
+
+		Page page = pages.get(line / PAGE_LINES);
+		return segments.get(page.segment).getLong(page.offset + (line % PAGE_LINES) * 8);
+	}
+
+	/**
+	 * Compute a 64-bit signature of a line: one bit for each pair of
+	 * adjacent characters, ignoring case. A line can only contain a string
+	 * if its signature has all the bits of the string's signature set.
+	 * @param chars characters of the line or string
+	 * @param length number of characters to look at
+	 */
+	public static long signature(char[] chars, int length) {
+		long signature = 0;
+		if (length < 2)
+			return signature;
+
+		char previous = Character.toLowerCase(chars[0]);
+
+		for (int i = 1; i < length; i++) {
+			char c = Character.toLowerCase(chars[i]);
+			signature |= 1L << (((previous * 31 + c) * 0x9E3779B1) >>> 26);
+			previous = c;
+		}
+
+		return signature;
+	}
+
+	/**
+	 * Drop all lines, close and delete the backing file.
+	 */
+	public synchronized void close() {
+		pages.clear();
+		cache.clear();
+		segments.clear();
+		Arrays.fill(pendingChars, null);
+		Arrays.fill(pendingAttributes, null);
+		pendingLines = 0;
+
+		try {
+			if (channel != null)
+				channel.close();
+			if (raf != null)
+				raf.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Error closing " + file, e);
+		}
+		channel = null;
+		raf = null;
+
+		if (deflater != null)
+			deflater.end();
+		if (inflater != null)
+			inflater.end();
+		deflater = null;
+		inflater = null;
+
+		file.delete();
+	}
+
+	private static char[] fit(char[] chars, int width, char fill) {
+		if (chars.length == width)
+			return chars;
+		char[] fitted = Arrays.copyOf(chars, width);
+		if (width > chars.length)
+			Arrays.fill(fitted, chars.length, width, fill);
+		return fitted;
+	}
+
+	private static int[] fit(int[] attributes, int width) {
+		if (attributes.length == width)
+			return attributes;
+		return Arrays.copyOf(attributes, width);
+	}
+
+	private void trim() {
+		while (!pages.isEmpty() && getLineCount() - PAGE_LINES >= capacity)
+			dropPage(pages.remove(0));
+
+		if (capacity == 0) {
+			Arrays.fill(pendingChars, null);
+			Arrays.fill(pendingAttributes, null);
+			pendingLines = 0;
+		}
+	}
+
+	private void dropPage(Page page) {
+		cache.remove(page);
+
+		if (--segmentPages[page.segment] == 0 && page.segment != writeSegment)
+			freeSegments.add(page.segment);
+	}
+
+	/*
+	 * Line format: number of significant columns, the characters, then the
+	 * attributes as (run length, value) pairs covering those columns.
+	 */
+	private void writePage() throws IOException {
+		pageBytes.reset();
+		DataOutputStream out = new DataOutputStream(pageBytes);
+
+		for (int i = 0; i < PAGE_LINES; i++) {
+			char[] chars = pendingChars[i];
+			int[] attributes = pendingAttributes[i];
+
+			int length = Math.min(chars.length, attributes.length);
+			while (length > 0 && (chars[length - 1] == ' ' || chars[length - 1] == 0)
+					&& attributes[length - 1] == 0)
+				length--;
+
+			out.writeShort(length);
+			for (int c = 0; c < length; c++)
+				out.writeChar(chars[c]);
+
+			int c = 0;
+			while (c < length) {
+				int run = 1;
+				while (c + run < length && attributes[c + run] == attributes[c])
+					run++;
+				out.writeShort(run);
+				out.writeInt(attributes[c]);
+				c += run;
+			}
+		}
+		out.flush();
+
+		byte[] data = pageBytes.toByteArray();
+		int rawLength = data.length;
+		int length = rawLength;
+		boolean compressed = false;
+
+		if (compress) {
+			if (ioBuffer.length < rawLength)
+				ioBuffer = new byte[rawLength];
+
+			deflater.reset();
+			deflater.setInput(data);
+			deflater.finish();
+
+			int deflated = 0;
+			while (!deflater.finished() && deflated < rawLength)
+				deflated += deflater.deflate(ioBuffer, deflated, rawLength - deflated);
+
+			if (deflater.finished() && deflated < rawLength) {
+				data = ioBuffer;
+				length = deflated;
+				compressed = true;
+			}
+		}
+
+		if (SIGNATURE_BYTES + length > SEGMENT_SIZE)
+			throw new IOException("page of " + length + " bytes does not fit a segment");
+
+		if (writeSegment < 0 || writePosition + SIGNATURE_BYTES + length > SEGMENT_SIZE)
+			nextSegment();
+
+		MappedByteBuffer segment = segments.get(writeSegment);
+		segment.position(writePosition);
+		for (int i = 0; i < PAGE_LINES; i++)
+			segment.putLong(pendingSignatures[i]);
+		segment.put(data, 0, length);
+
+		Page page = new Page();
+		page.segment = writeSegment;
+		page.offset = writePosition;
+		page.length = length;
+		page.rawLength = rawLength;
+		page.compressed = compressed;
+		pages.add(page);
+
+		segmentPages[writeSegment]++;
+		writePosition += SIGNATURE_BYTES + length;
+	}
+
+	private void nextSegment() throws IOException {
+		if (writeSegment >= 0 && segmentPages[writeSegment] == 0)
+			freeSegments.add(writeSegment);
+
+		if (!freeSegments.isEmpty()) {
+			writeSegment = freeSegments.remove(0);
+		} else {
+			writeSegment = segments.size();
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE,
+					(long) writeSegment * SEGMENT_SIZE, SEGMENT_SIZE));
+			if (writeSegment >= segmentPages.length)
+				segmentPages = Arrays.copyOf(segmentPages, segmentPages.length * 2);
+		}
+
+		writePosition = 0;
+	}
+
+	private DecodedPage getPage(int line, int width) {
+		if (line < 0 || line >= pages.size() * PAGE_LINES)
+			return null;
+
+		Page page = pages.get(line / PAGE_LINES);
+		DecodedPage decoded = cache.get(page);
+		if (decoded != null && decoded.width == width)
+			return decoded;
+
+		try {
+			decoded = readPage(page, width);
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot read page", e);
+			return null;
+		}
+
+		cache.put(page, decoded);
+		return decoded;
+	}
+
+	private DecodedPage readPage(Page page, int width) throws IOException {
+		if (ioBuffer.length < page.length)
+			ioBuffer = new byte[page.length];
+
+		MappedByteBuffer segment = segments.get(page.segment);
+		segment.position(page.offset + SIGNATURE_BYTES);
+		segment.get(ioBuffer, 0, page.length);
+
+		byte[] data = ioBuffer;
+		if (page.compressed) {
+			data = new byte[page.rawLength];
+			inflater.reset();
+			inflater.setInput(ioBuffer, 0, page.length);
+			try {
+				int inflated = 0;
+				while (inflated < page.rawLength && !inflater.finished())
+					inflated += inflater.inflate(data, inflated, page.rawLength - inflated);
+			} catch (DataFormatException e) {
+				throw new IOException("corrupt page: " + e.getMessage());
+			}
+		}
+
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(data, 0, page.rawLength));
+
+		DecodedPage decoded = new DecodedPage();
+		decoded.width = width;
+		decoded.chars = new char[PAGE_LINES][width];
+		decoded.attributes = new int[PAGE_LINES][width];
+
+		for (int i = 0; i < PAGE_LINES; i++) {
+			char[] chars = decoded.chars[i];
+			int[] attributes = decoded.attributes[i];
+			Arrays.fill(chars, ' ');
+
+			int length = in.readUnsignedShort();
+			for (int c = 0; c < length; c++) {
+				char ch = in.readChar();
+				if (c < width)
+					chars[c] = ch;
+			}
+
+			int c = 0;
+			while (c < length) {
+				int run = in.readUnsignedShort();
+				int attr = in.readInt();
+				int end = Math.min(c + run, width);
+				if (c < end)
+					Arrays.fill(attributes, c, end, attr);
+				c += run;
+			}
+		}
+
+		return decoded;
+	}
+}
@@ -25,6 +25,7 @@
 
 package de.mud.terminal;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
@@ -53,6 +54,18 @@ public class VDUBuffer {
   public int windowBase;                   /* where the start displaying */
   public int scrollMarker;               /* marks the last line inserted */
 
+  /** disk tier for lines that scrolled off the in-memory buffer, or null */
+  private ScrollbackStore scrollbackStore;
+
+  /** lines that have moved off the top of the in-memory buffer so far */
+  private long scrolledLines;
+
+  /** rewrap the screen when its width changes */
+  private boolean reflow;
+
+  /** lines kept in memory above the screen when a scrollback store is set */
+  public final static int RECENT_LINES = 256;
+
   private int topMargin;                               /* top scroll margin */
   private int bottomMargin;                         /* bottom scroll margin */
 
@@ -93,6 +106,8 @@ public class VDUBuffer {
   public final static int INVISIBLE = 0x10;
   /** Unicode full-width character (CJK, et al.) */
   public final static int FULLWIDTH = 0x8000000;
+  /** Set on the last column of a line that wrapped around to the next. */
+  public final static int WRAPPED = 0x10000000;
 
   /** how much to left shift the foreground color */
   public final static int COLOR_FG_SHIFT = 5;
@@ -389,6 +404,12 @@ public class VDUBuffer {
           cbuf = charArray;
           abuf = charAttributes;
         }
+        // lines about to fall off the top of the scrollback go to disk
+        if (scrollbackStore != null && offset > 0 && oldBase > 0) {
+          for (int i = 0; i < offset && i < oldBase; i++)
+            scrollbackStore.append(charArray[i], charAttributes[i]);
+        }
+        scrolledLines += offset;
         // copy anything from the top of the buffer (+offset) to the new top
         // up to the screenBase.
         if (oldBase > 0) {
@@ -529,8 +550,10 @@ public class VDUBuffer {
     int endColumn = c + w;
     int targetRow = screenBase + l;
     for (int i = 0; i < h && l + i < height; i++) {
-      Arrays.fill(charAttributes[targetRow], c, endColumn, curAttr);
-      Arrays.fill(charArray[targetRow], c, endColumn, ' ');
+      // a row kept wider than the screen is cleared to its real end
+      int end = endColumn >= width ? charArray[targetRow].length : endColumn;
+      Arrays.fill(charAttributes[targetRow], c, end, curAttr);
+      Arrays.fill(charArray[targetRow], c, end, ' ');
       targetRow++;
     }
     markLine(l, h);
@@ -600,15 +623,17 @@ public class VDUBuffer {
   public void setWindowBase(int line) {
     if (line > screenBase)
       line = screenBase;
-    else if (line < 0) line = 0;
+    else if (line < -getHistoryLines()) line = -getHistoryLines();
     windowBase = line;
     update[0] = true;
     redraw();
   }
 
   /**
-   * Get the current window base.
+   * Get the current window base. A negative window base means the window
+   * starts in the lines kept by the scrollback store.
    * @see #setWindowBase
+   * @see #getHistoryLines
    */
   public int getWindowBase() {
     return windowBase;
@@ -684,9 +709,16 @@ public class VDUBuffer {
    */
   public void setBufferSize(int amount) {
     if (amount < height) amount = height;
+    if (scrollbackStore != null) {
+      // only the most recent lines stay on the heap, the rest goes to disk
+      int recent = height + RECENT_LINES;
+      scrollbackStore.setCapacity(amount - recent);
+      if (amount > recent) amount = recent;
+    }
     if (amount < maxBufSize) {
-      char cbuf[][] = new char[amount][width];
-      int abuf[][] = new int[amount][width];
+      // rows past bufSize are only created once something scrolls into them
+      char cbuf[][] = new char[amount][];
+      int abuf[][] = new int[amount][];
       int copyStart = bufSize - amount < 0 ? 0 : bufSize - amount;
       int copyCount = bufSize - amount < 0 ? bufSize : amount;
       if (charArray != null)
@@ -695,6 +727,7 @@ public class VDUBuffer {
         System.arraycopy(charAttributes, copyStart, abuf, 0, copyCount);
       charArray = cbuf;
       charAttributes = abuf;
+      scrolledLines += copyStart;
       bufSize = copyCount;
       screenBase = bufSize - height;
       windowBase = screenBase;
@@ -713,6 +746,128 @@ public class VDUBuffer {
     return bufSize;
   }
 
+  /**
+   * Attach a disk tier to the scrollback. Lines that scroll off the top of
+   * the in-memory buffer are appended to it instead of being lost, and the
+   * in-memory buffer is limited to the screen plus {@link #RECENT_LINES}.
+   * Call this before {@link #setBufferSize} so that the requested size is
+   * split between the two tiers.
+   * @param store the store to use, or null to keep everything in memory
+   */
+  public synchronized void setScrollbackStore(ScrollbackStore store) {
+    scrollbackStore = store;
+  }
+
+  /**
+   * Get the disk tier of the scrollback, if any.
+   * @see #setScrollbackStore
+   */
+  public ScrollbackStore getScrollbackStore() {
+    return scrollbackStore;
+  }
+
+  /**
+   * Move every in-memory line above the screen to the scrollback store,
+   * leaving only the screen on the heap. Line numbers given out before
+   * stay valid relative to {@link #getScrolledLines}. Does nothing without
+   * a scrollback store.
+   * @return the number of lines moved
+   */
+  public synchronized int spillScrollback() {
+    int lines = screenBase;
+    if (scrollbackStore == null || lines <= 0)
+      return 0;
+
+    for (int i = 0; i < lines; i++)
+      scrollbackStore.append(charArray[i], charAttributes[i]);
+
+    char cbuf[][] = new char[bufSize - lines][];
+    int abuf[][] = new int[bufSize - lines][];
+    System.arraycopy(charArray, lines, cbuf, 0, cbuf.length);
+    System.arraycopy(charAttributes, lines, abuf, 0, abuf.length);
+    charArray = cbuf;
+    charAttributes = abuf;
+
+    bufSize -= lines;
+    screenBase -= lines;
+    scrolledLines += lines;
+    windowBase -= lines;
+    if (windowBase < -getHistoryLines())
+      windowBase = -getHistoryLines();
+
+    update[0] = true;
+    return lines;
+  }
+
+  /**
+   * Estimate the heap taken by the lines held in memory, in bytes.
+   */
+  public synchronized long getHeapSize() {
+    long size = 0;
+    for (int i = 0; i < bufSize; i++) {
+      if (charArray[i] != null)
+        size += 2 * charArray[i].length;
+      if (charAttributes[i] != null)
+        size += 4 * charAttributes[i].length;
+    }
+    return size;
+  }
+
+  /**
+   * Retrieve the number of lines kept in the scrollback store. These are
+   * addressed by negative line numbers in front of the in-memory buffer.
+   * @see #getLineChars
+   */
+  public int getHistoryLines() {
+    return scrollbackStore == null ? 0 : scrollbackStore.getLineCount();
+  }
+
+  /**
+   * Get the number of lines that have moved off the top of the in-memory
+   * buffer since it was created. Adding this to a line number gives a
+   * position that stays with the line while more output scrolls in.
+   */
+  public long getScrolledLines() {
+    return scrolledLines;
+  }
+
+  /**
+   * Get the characters of a line of the whole buffer. Line 0 is the top of
+   * the in-memory buffer; negative lines are paged in from the scrollback
+   * store. The array must not be modified. It is at least as long as the
+   * screen is wide, longer if the line was written on a wider screen.
+   * @param row line number, between -getHistoryLines() and getBufferSize() - 1
+   * @see #getHistoryLines
+   */
+  public char[] getLineChars(int row) {
+    if (row >= 0) {
+      widenRow(row, width);
+      return charArray[row];
+    }
+    if (scrollbackStore == null) {
+      char[] blank = new char[width];
+      Arrays.fill(blank, ' ');
+      return blank;
+    }
+    return scrollbackStore.getChars(scrollbackStore.getLineCount() + row, width);
+  }
+
+  /**
+   * Get the attributes of a line of the whole buffer.
+   * The array must not be modified.
+   * @param row line number, between -getHistoryLines() and getBufferSize() - 1
+   * @see #getLineChars
+   */
+  public int[] getLineAttributes(int row) {
+    if (row >= 0) {
+      widenRow(row, width);
+      return charAttributes[row];
+    }
+    if (scrollbackStore == null)
+      return new int[width];
+    return scrollbackStore.getAttributes(scrollbackStore.getLineCount() + row, width);
+  }
+
   /**
    * Retrieve maximum buffer Size.
    * @see #getBufferSize
@@ -724,14 +879,16 @@ public class VDUBuffer {
   /**
    * Change the size of the screen. This will include adjustment of the
    * scrollback buffer.
+   * <p>
+   * Lines are not copied to the new width. Each keeps the width it was
+   * written with: lines on the screen are widened when the screen grows,
+   * lines in the scrollback only once they are read. A narrower screen just
+   * shows less of every line, so widening it again brings the rest back.
+   * With {@link #setReflow reflow} on, the screen is rewrapped instead.
    * @param w of the screen
    * @param h of the screen
    */
   public void setScreenSize(int w, int h, boolean broadcast) {
-    char cbuf[][];
-    int abuf[][];
-    int maxSize = bufSize;
-
     if (w < 1 || h < 1) return;
 
     if (debug > 0)
@@ -740,57 +897,57 @@ public class VDUBuffer {
     if (h > maxBufSize)
       maxBufSize = h;
 
-    if (h > bufSize) {
-      bufSize = h;
-      screenBase = 0;
-      windowBase = 0;
-    }
-
-    if (windowBase + h >= bufSize)
-      windowBase = bufSize - h;
-
-    if (screenBase + h >= bufSize)
-      screenBase = bufSize - h;
+    if (reflow && charArray != null && w != width) {
+      reflowScreen(w, h);
+    } else {
+      int oldSize = bufSize;
 
+      if (h > bufSize) {
+        bufSize = h;
+        screenBase = 0;
+        windowBase = 0;
+      }
 
-    cbuf = new char[bufSize][w];
-    abuf = new int[bufSize][w];
+      if (windowBase + h >= bufSize)
+        windowBase = bufSize - h;
 
+      if (screenBase + h >= bufSize)
+        screenBase = bufSize - h;
 
-    for (int i = 0; i < bufSize; i++) {
-      Arrays.fill(cbuf[i], ' ');
-    }
+      if (charArray == null) {
+        charArray = new char[bufSize][];
+        charAttributes = new int[bufSize][];
+        oldSize = 0;
+      } else if (charArray.length < bufSize) {
+        charArray = Arrays.copyOf(charArray, bufSize);
+        charAttributes = Arrays.copyOf(charAttributes, bufSize);
+      }
 
-    if (bufSize < maxSize)
-      maxSize = bufSize;
-
-    int rowLength;
-    if (charArray != null && charAttributes != null) {
-      for (int i = 0; i < maxSize && charArray[i] != null; i++) {
-        rowLength = charArray[i].length;
-        System.arraycopy(charArray[i], 0, cbuf[i], 0,
-                         w < rowLength ? w : rowLength);
-        System.arraycopy(charAttributes[i], 0, abuf[i], 0,
-                         w < rowLength ? w : rowLength);
+      for (int i = oldSize; i < bufSize; i++) {
+        charArray[i] = new char[w];
+        Arrays.fill(charArray[i], ' ');
+        charAttributes[i] = new int[w];
       }
-    }
 
-    int C = getCursorColumn();
-    if (C < 0)
-      C = 0;
-    else if (C >= width)
-      C = width - 1;
+      // whatever can be written to has to be at least as wide as the screen
+      for (int i = screenBase; i < screenBase + h; i++)
+        widenRow(i, w);
 
-    int R = getCursorRow();
-    if (R < 0)
-      R = 0;
-    else if (R >= height)
-      R = height - 1;
+      int C = getCursorColumn();
+      if (C < 0)
+        C = 0;
+      else if (C >= width)
+        C = width - 1;
 
-    setCursorPosition(C, R);
+      int R = getCursorRow();
+      if (R < 0)
+        R = 0;
+      else if (R >= height)
+        R = height - 1;
+
+      setCursorPosition(C, R);
+    }
 
-    charArray = cbuf;
-    charAttributes = abuf;
     width = w;
     height = h;
     topMargin = 0;
@@ -803,6 +960,194 @@ public class VDUBuffer {
     */
   }
 
+  /**
+   * Rewrap the lines on the screen when its width changes: lines that
+   * wrapped around are joined up again on a wider screen and wrapped anew
+   * on a narrower one, and the cursor stays on the character it was on.
+   * Lines in the scrollback are left as they were written.
+   * @param reflow whether to rewrap
+   * @see #setLineWrapped
+   */
+  public void setReflow(boolean reflow) {
+    this.reflow = reflow;
+  }
+
+  /**
+   * Check whether the screen is rewrapped on resize.
+   * @see #setReflow
+   */
+  public boolean isReflow() {
+    return reflow;
+  }
+
+  /**
+   * Note that a line continues on the next one because the cursor wrapped
+   * around, not because of a line feed. Only needed for reflow.
+   * @param l the line that wrapped
+   * @see #setReflow
+   */
+  public void setLineWrapped(int l) {
+    charAttributes[screenBase + l][width - 1] |= WRAPPED;
+  }
+
+  /*
+   * Make a row of the buffer at least w columns wide, padded with blanks.
+   * Rows that can be written to are widened when the screen is resized, so
+   * this only replaces arrays that nobody is writing to.
+   */
+  private void widenRow(int row, int w) {
+    char[] chars = charArray[row];
+    if (chars.length >= w)
+      return;
+
+    char[] wider = Arrays.copyOf(chars, w);
+    Arrays.fill(wider, chars.length, w, ' ');
+    charArray[row] = wider;
+    charAttributes[row] = Arrays.copyOf(charAttributes[row], w);
+  }
+
+  private boolean isWrapped(int row) {
+    int[] attributes = charAttributes[row];
+    return attributes.length >= width && (attributes[width - 1] & WRAPPED) != 0;
+  }
+
+  /*
+   * Columns of a row up to its last non blank one, within the screen width.
+   */
+  private int contentLength(int row) {
+    char[] chars = charArray[row];
+    int[] attributes = charAttributes[row];
+    int n = Math.min(chars.length, width);
+    while (n > 0 && chars[n - 1] == ' ' && (attributes[n - 1] & ~WRAPPED) == 0)
+      n--;
+    return n;
+  }
+
+  /*
+   * Rewrap the screen to w columns and make it h rows high. Rows that no
+   * longer fit above the cursor move into the scrollback, which is not
+   * rewrapped itself: that would renumber every line in it.
+   */
+  private void reflowScreen(int w, int h) {
+    ArrayList<char[]> rows = new ArrayList<char[]>();
+    ArrayList<int[]> rowAttributes = new ArrayList<int[]>();
+    char[] chars = null;
+    int[] attributes = null;
+    int col = 0;
+
+    int oldRows = Math.min(height, bufSize - screenBase);
+    int cursorLine = Math.max(0, Math.min(cursorY, oldRows - 1));
+    int cursorRow = 0;
+    int cursorCol = 0;
+
+    // blank lines below both the cursor and the last text are dropped
+    int last = cursorLine;
+    for (int r = oldRows - 1; r > last; r--) {
+      if (contentLength(screenBase + r) > 0) {
+        last = r;
+        break;
+      }
+    }
+
+    for (int first = 0; first <= last; ) {
+      // a logical line is made of rows that wrapped and one that did not
+      int end = first;
+      while (end < last && isWrapped(screenBase + end))
+        end++;
+
+      int length = (end - first) * width + contentLength(screenBase + end);
+      int offset = -1;
+      if (cursorLine >= first && cursorLine <= end) {
+        offset = (cursorLine - first) * width + Math.min(Math.max(cursorX, 0), width);
+        length = Math.max(length, offset);
+      }
+
+      chars = new char[w];
+      Arrays.fill(chars, ' ');
+      attributes = new int[w];
+      rows.add(chars);
+      rowAttributes.add(attributes);
+      col = 0;
+
+      boolean trailing = false;
+      for (int i = 0; i <= length; i++) {
+        char c = ' ';
+        int a = 0;
+        boolean lead = false;
+        if (i < length) {
+          int row = screenBase + first + i / width;
+          c = charArray[row][i % width];
+          a = charAttributes[row][i % width] & ~WRAPPED;
+          // both halves of a full width character go on the same row
+          lead = (a & FULLWIDTH) != 0 && !trailing;
+          trailing = lead;
+        }
+
+        if (col == w || (lead && col == w - 1 && w > 1)) {
+          attributes[w - 1] |= WRAPPED;
+          chars = new char[w];
+          Arrays.fill(chars, ' ');
+          attributes = new int[w];
+          rows.add(chars);
+          rowAttributes.add(attributes);
+          col = 0;
+        }
+
+        if (i == offset) {
+          cursorRow = rows.size() - 1;
+          cursorCol = col;
+        }
+
+        if (i == length)
+          break;
+
+        chars[col] = c;
+        attributes[col] = a;
+        col++;
+      }
+
+      first = end + 1;
+    }
+
+    // show the last h rows, unless that would hide the cursor
+    int n = rows.size();
+    int top = Math.min(Math.max(0, n - h), cursorRow);
+
+    int total = screenBase + top + h;
+    if (charArray.length < total) {
+      charArray = Arrays.copyOf(charArray, total);
+      charAttributes = Arrays.copyOf(charAttributes, total);
+    }
+
+    for (int i = 0; i < top + h; i++) {
+      if (i < n) {
+        charArray[screenBase + i] = rows.get(i);
+        charAttributes[screenBase + i] = rowAttributes.get(i);
+      } else {
+        charArray[screenBase + i] = new char[w];
+        Arrays.fill(charArray[screenBase + i], ' ');
+        charAttributes[screenBase + i] = new int[w];
+      }
+    }
+
+    if (total > maxBufSize) {
+      int drop = total - maxBufSize;
+      if (scrollbackStore != null) {
+        for (int i = 0; i < drop; i++)
+          scrollbackStore.append(charArray[i], charAttributes[i]);
+      }
+      scrolledLines += drop;
+      charArray = Arrays.copyOfRange(charArray, drop, total);
+      charAttributes = Arrays.copyOfRange(charAttributes, drop, total);
+      total = maxBufSize;
+    }
+
+    bufSize = total;
+    screenBase = bufSize - h;
+    windowBase = screenBase;
+    setCursorPosition(cursorCol, cursorRow - top);
+  }
+
   /**
    * Get amount of rows on the screen.
    */
@@ -144,6 +144,7 @@ public abstract class vt320 extends VDUBuffer implements VDUInput {
   @Override
 public void setScreenSize(int c, int r, boolean broadcast) {
     int oldrows = height;
+    int oldcols = width;
 
     if (debug>2) {
       if (debugStr == null)
@@ -164,6 +165,13 @@ public void setScreenSize(int c, int r, boolean broadcast) {
 
     boolean cursorChanged = false;
 
+    // Reflow moved the cursor along with the text
+    if (isReflow() && oldcols != c) {
+      C = getCursorColumn();
+      R = getCursorRow();
+      cursorChanged = true;
+    }
+
     // Don't let the cursor go off the screen.
     if (C >= c) {
       C = c - 1;
@@ -329,6 +337,14 @@ public void setScreenSize(int c, int r, boolean broadcast) {
     }
   }
 
+  /**
+   * Whether the application asked for pasted text to be wrapped in
+   * ESC [200~ and ESC [201~ (DEC private mode 2004).
+   */
+  public boolean isBracketedPaste() {
+    return bracketedpaste;
+  }
+
   /**
    * Create a default vt320 terminal with 80 columns and 24 lines.
    */
@@ -611,6 +627,7 @@ public void setScreenSize(int c, int r, boolean broadcast) {
   boolean numlock = false;
   int mouserpt = 0;
   byte mousebut = 0;
+  boolean bracketedpaste = false;
 
   boolean useibmcharset = false;
 
@@ -1704,6 +1721,8 @@ public void setScreenSize(int c, int r, boolean broadcast) {
                 if (wraparound) {
                   int bot = rows;
 
+                  setLineWrapped(R);
+
                   // If we're in the scroll region, check against the bottom margin
                   if (R <= getBottomMargin() && R >= getTopMargin())
                     bot = getBottomMargin() + 1;
@@ -1784,6 +1803,8 @@ public void setScreenSize(int c, int r, boolean broadcast) {
                   if (wraparound) {
                     int bot = rows;
 
+                    setLineWrapped(R);
+
                     // If we're in the scroll region, check against the bottom margin
                     if (R <= getBottomMargin() && R >= getTopMargin())
                       bot = getBottomMargin() + 1;
@@ -2206,6 +2227,9 @@ public void setScreenSize(int c, int r, boolean broadcast) {
                 case 1003:
                   mouserpt = DCEvars[i];
                   break;
+                case 2004: /* bracketed paste */
+                  bracketedpaste = true;
+                  break;
 
                   /* unimplemented stuff, fall through */
                   /* 4  - scrolling mode, smooth */
@@ -2280,6 +2304,9 @@ public void setScreenSize(int c, int r, boolean broadcast) {
                 case 1003:
                   mouserpt = 0;
                   break;
+                case 2004: /* bracketed paste */
+                  bracketedpaste = false;
+                  break;
                 default:
                   debug("ESC [ ? " + DCEvars[0] + " l, unsupported.");
                   break;
@@ -3026,6 +3053,7 @@ public void setScreenSize(int c, int r, boolean broadcast) {
       display.resetColors();
 
     showCursor(true);
+    bracketedpaste = false;
     /*FIXME:*/
     term_state = TSTATE_DATA;
   }
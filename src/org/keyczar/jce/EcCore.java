@@ -19,6 +19,10 @@ package org.keyczar.jce;
 import java.math.BigInteger;
 import java.security.spec.ECFieldFp;
 import java.security.spec.ECParameterSpec;
+// BEGIN connectbot-added
+import java.util.HashMap;
+import java.util.Map;
+// END connectbot-added
 
 /**
  * This class implements the basic EC operations such as point addition and
@@ -267,6 +271,337 @@ public final class EcCore {
     return Q;
   }
 
+// BEGIN connectbot-added
+  /*
+   * Jacobian coordinate engine. A point (X, Y, Z) represents the affine point
+   * (X/Z^2, Y/Z^3); Z = 0 is the point at infinity. Field elements are
+   * reduced with the curve-specific routines in EcPrimeField so that no
+   * step needs a modular inverse except the final conversion to affine.
+   *
+   * BigInteger arithmetic is not constant-time, and neither are the table
+   * lookups, so this engine only speeds up ECDSA signature verification.
+   * Key exchange and anything else that involves a private scalar is left
+   * to the platform provider.
+   */
+
+  /** Window width for the variable-base multiplication. */
+  private static final int WINDOW = 4;
+  private static final int WINDOW_SIZE = 1 << WINDOW;
+  private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+  private static final Map<BigInteger, Curve> curves = new HashMap<BigInteger, Curve>();
+
+  private static final class Curve {
+    final EcPrimeField f;
+    final BigInteger a;
+    final BigInteger b;
+    final boolean aIsMinus3;
+    final BigInteger[] g;
+
+    /**
+     * gTable[j][d] is the affine point d * 2^(WINDOW * j) * G, built on first
+     * use of multiplyGenerator.
+     */
+    private BigInteger[][][] gTable;
+
+    Curve(ECParameterSpec params) {
+      final BigInteger p = ((ECFieldFp) params.getCurve().getField()).getP();
+      f = EcPrimeField.getInstance(p);
+      a = params.getCurve().getA();
+      b = params.getCurve().getB();
+      aIsMinus3 = a.equals(p.subtract(THREE));
+      g = new BigInteger[] {params.getGenerator().getAffineX(),
+          params.getGenerator().getAffineY()};
+    }
+
+    boolean matches(ECParameterSpec params) {
+      return a.equals(params.getCurve().getA())
+          && b.equals(params.getCurve().getB())
+          && g[0].equals(params.getGenerator().getAffineX())
+          && g[1].equals(params.getGenerator().getAffineY());
+    }
+
+    synchronized BigInteger[][][] getGeneratorTable(int bits) {
+      final int rows = (bits + WINDOW - 1) / WINDOW;
+      if (gTable != null && gTable.length >= rows) return gTable;
+
+      BigInteger[][][] table = new BigInteger[rows][][];
+      BigInteger[] base = g;
+      for (int j = 0; j < rows; j++) {
+        table[j] = affineMultiples(base, this);
+        // Next base is 2^WINDOW times this one.
+        BigInteger[] next = new BigInteger[] {base[0], base[1], BigInteger.ONE};
+        for (int i = 0; i < WINDOW; i++)
+          next = doublePointJ(next, this);
+        base = toAffine(next, this);
+      }
+      gTable = table;
+      return table;
+    }
+  }
+
+  private static Curve getCurve(ECParameterSpec params) {
+    final BigInteger p = ((ECFieldFp) params.getCurve().getField()).getP();
+    synchronized (curves) {
+      Curve c = curves.get(p);
+      if (c == null) {
+        c = new Curve(params);
+        curves.put(p, c);
+      } else if (!c.matches(params)) {
+        // Same prime but a different curve; don't cache it.
+        return new Curve(params);
+      }
+      return c;
+    }
+  }
+
+  // dbl-2001-b for a = -3, dbl-2007-bl otherwise
+  private static BigInteger[] doublePointJ(BigInteger[] P, Curve c) {
+    final EcPrimeField f = c.f;
+
+    if (P[2].signum() == 0 || P[1].signum() == 0)
+      return new BigInteger[] {BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO};
+
+    final BigInteger delta = f.sqr(P[2]);
+    final BigInteger gamma = f.sqr(P[1]);
+    final BigInteger beta = f.mul(P[0], gamma);
+
+    BigInteger alpha;
+    if (c.aIsMinus3) {
+      // 3 * (X - Z^2) * (X + Z^2) = 3 * X^2 - 3 * Z^4
+      alpha = f.mul(f.sub(P[0], delta), f.add(P[0], delta));
+      alpha = f.add(f.twice(alpha), alpha);
+    } else {
+      final BigInteger xx = f.sqr(P[0]);
+      alpha = f.add(f.add(f.twice(xx), xx), f.mul(c.a.mod(f.p), f.sqr(delta)));
+    }
+
+    final BigInteger beta4 = f.twice(f.twice(beta));
+    final BigInteger x3 = f.sub(f.sqr(alpha), f.twice(beta4));
+    final BigInteger z3 = f.sub(f.sub(f.sqr(f.add(P[1], P[2])), gamma), delta);
+    final BigInteger gamma2x8 = f.twice(f.twice(f.twice(f.sqr(gamma))));
+    final BigInteger y3 = f.sub(f.mul(alpha, f.sub(beta4, x3)), gamma2x8);
+
+    return new BigInteger[] {x3, y3, z3};
+  }
+
+  // madd-2007-bl: Jacobian P1 plus affine P2
+  private static BigInteger[] addPointsJA(BigInteger[] P1, BigInteger[] P2,
+      Curve c) {
+    final EcPrimeField f = c.f;
+
+    if (P2[0] == null) return P1;
+    if (P1[2].signum() == 0)
+      return new BigInteger[] {P2[0], P2[1], BigInteger.ONE};
+
+    final BigInteger z1z1 = f.sqr(P1[2]);
+    final BigInteger u2 = f.mul(P2[0], z1z1);
+    final BigInteger s2 = f.mul(P2[1], f.mul(P1[2], z1z1));
+    final BigInteger h = f.sub(u2, P1[0]);
+    final BigInteger r = f.twice(f.sub(s2, P1[1]));
+
+    if (h.signum() == 0) {
+      if (r.signum() == 0) return doublePointJ(P1, c);
+      return new BigInteger[] {BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO};
+    }
+
+    final BigInteger hh = f.sqr(h);
+    final BigInteger i = f.twice(f.twice(hh));
+    final BigInteger j = f.mul(h, i);
+    final BigInteger v = f.mul(P1[0], i);
+
+    final BigInteger x3 = f.sub(f.sub(f.sqr(r), j), f.twice(v));
+    final BigInteger y3 = f.sub(f.mul(r, f.sub(v, x3)),
+        f.twice(f.mul(P1[1], j)));
+    final BigInteger z3 = f.sub(f.sub(f.sqr(f.add(P1[2], h)), z1z1), hh);
+
+    return new BigInteger[] {x3, y3, z3};
+  }
+
+  // add-2007-bl: Jacobian P1 plus Jacobian P2
+  private static BigInteger[] addPointsJJ(BigInteger[] P1, BigInteger[] P2,
+      Curve c) {
+    final EcPrimeField f = c.f;
+
+    if (P1[2].signum() == 0) return P2;
+    if (P2[2].signum() == 0) return P1;
+
+    final BigInteger z1z1 = f.sqr(P1[2]);
+    final BigInteger z2z2 = f.sqr(P2[2]);
+    final BigInteger u1 = f.mul(P1[0], z2z2);
+    final BigInteger u2 = f.mul(P2[0], z1z1);
+    final BigInteger s1 = f.mul(P1[1], f.mul(P2[2], z2z2));
+    final BigInteger s2 = f.mul(P2[1], f.mul(P1[2], z1z1));
+    final BigInteger h = f.sub(u2, u1);
+    final BigInteger r = f.twice(f.sub(s2, s1));
+
+    if (h.signum() == 0) {
+      if (r.signum() == 0) return doublePointJ(P1, c);
+      return new BigInteger[] {BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO};
+    }
+
+    final BigInteger i = f.sqr(f.twice(h));
+    final BigInteger j = f.mul(h, i);
+    final BigInteger v = f.mul(u1, i);
+
+    final BigInteger x3 = f.sub(f.sub(f.sqr(r), j), f.twice(v));
+    final BigInteger y3 = f.sub(f.mul(r, f.sub(v, x3)),
+        f.twice(f.mul(s1, j)));
+    final BigInteger z3 = f.mul(f.sub(f.sub(f.sqr(f.add(P1[2], P2[2])), z1z1),
+        z2z2), h);
+
+    return new BigInteger[] {x3, y3, z3};
+  }
+
+  private static BigInteger[] toAffine(BigInteger[] P, Curve c) {
+    if (P[2].signum() == 0) return new BigInteger[] {null, null};
+
+    final EcPrimeField f = c.f;
+    final BigInteger zInv = f.inv(P[2]);
+    final BigInteger zInv2 = f.sqr(zInv);
+    return new BigInteger[] {f.mul(P[0], zInv2), f.mul(P[1], f.mul(zInv2, zInv))};
+  }
+
+  /**
+   * Returns the affine points [null, P, 2P, ..., 15P] for P != infinity,
+   * normalised with a single inversion (Montgomery's trick).
+   */
+  private static BigInteger[][] affineMultiples(BigInteger[] P, Curve c) {
+    final EcPrimeField f = c.f;
+
+    BigInteger[][] jac = new BigInteger[WINDOW_SIZE][];
+    jac[1] = new BigInteger[] {P[0], P[1], BigInteger.ONE};
+    jac[2] = doublePointJ(jac[1], c);
+    for (int i = 3; i < WINDOW_SIZE; i++)
+      jac[i] = addPointsJA(jac[i - 1], P, c);
+
+    // Any of the multiples can only be infinity for tiny-order points, which
+    // don't occur on the prime-order curves this is used with.
+    BigInteger[] prod = new BigInteger[WINDOW_SIZE];
+    prod[1] = jac[1][2];
+    for (int i = 2; i < WINDOW_SIZE; i++)
+      prod[i] = f.mul(prod[i - 1], jac[i][2]);
+
+    BigInteger inv = f.inv(prod[WINDOW_SIZE - 1]);
+    BigInteger[][] res = new BigInteger[WINDOW_SIZE][];
+    res[0] = new BigInteger[] {null, null};
+    for (int i = WINDOW_SIZE - 1; i >= 1; i--) {
+      BigInteger zInv = i > 1 ? f.mul(inv, prod[i - 1]) : inv;
+      inv = f.mul(inv, jac[i][2]);
+      BigInteger zInv2 = f.sqr(zInv);
+      res[i] = new BigInteger[] {f.mul(jac[i][0], zInv2),
+          f.mul(jac[i][1], f.mul(zInv2, zInv))};
+    }
+    return res;
+  }
+
+  /**
+   * Fixed-window multiplication in Jacobian coordinates. An all-zero window
+   * still performs its addition and discards the result, which keeps the
+   * schedule regular, but the BigInteger arithmetic underneath is not
+   * constant-time.
+   */
+  private static BigInteger[] multiplyPointJ(BigInteger[] P, BigInteger k,
+      Curve c) {
+    BigInteger[] Q = new BigInteger[] {BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO};
+    if (P[0] == null || k.signum() == 0) return Q;
+
+    final BigInteger[][] table = affineMultiples(P, c);
+    final int windows = (k.bitLength() + WINDOW - 1) / WINDOW;
+
+    for (int i = windows - 1; i >= 0; i--) {
+      for (int j = 0; j < WINDOW; j++)
+        Q = doublePointJ(Q, c);
+
+      final int d = window(k, i);
+      final BigInteger[] R = addPointsJA(Q, table[d == 0 ? 1 : d], c);
+      if (d != 0) Q = R;
+    }
+
+    return Q;
+  }
+
+  private static BigInteger[] multiplyGeneratorJ(BigInteger k, Curve c) {
+    BigInteger[] Q = new BigInteger[] {BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO};
+    if (k.signum() == 0) return Q;
+
+    final BigInteger[][][] table = c.getGeneratorTable(k.bitLength());
+    final int windows = (k.bitLength() + WINDOW - 1) / WINDOW;
+
+    for (int i = 0; i < windows; i++) {
+      final int d = window(k, i);
+      final BigInteger[] R = addPointsJA(Q, table[i][d == 0 ? 1 : d], c);
+      if (d != 0) Q = R;
+    }
+
+    return Q;
+  }
+
+  private static int window(BigInteger k, int i) {
+    int d = 0;
+    for (int j = WINDOW - 1; j >= 0; j--) {
+      d <<= 1;
+      if (k.testBit(i * WINDOW + j)) d |= 1;
+    }
+    return d;
+  }
+
+  /**
+   * Computes k * P for an affine point P. Equivalent to
+   * {@link #multiplyPointA(BigInteger[], BigInteger, ECParameterSpec)} but
+   * works in Jacobian coordinates with one inversion at the end.
+   * <p>
+   * Not constant-time: meant for public data such as signature verification,
+   * never for a secret scalar an attacker can time, like an ECDH key.
+   *
+   * @return the affine result; {null, null} for the point at infinity
+   */
+  public static BigInteger[] multiplyPoint(BigInteger[] P, BigInteger k,
+      ECParameterSpec params) {
+    final Curve c = getCurve(params);
+    return toAffine(multiplyPointJ(P, k, c), c);
+  }
+
+  /**
+   * Computes k * G using a per-curve precomputed table of multiples of the
+   * generator, so no doublings are needed. Not constant-time, see
+   * {@link #multiplyPoint(BigInteger[], BigInteger, ECParameterSpec)}.
+   */
+  public static BigInteger[] multiplyGenerator(BigInteger k,
+      ECParameterSpec params) {
+    final Curve c = getCurve(params);
+    return toAffine(multiplyGeneratorJ(k, c), c);
+  }
+
+  /**
+   * Computes k * G + l * Q, as needed for ECDSA verification.
+   */
+  public static BigInteger[] multiplyGeneratorAndPoint(BigInteger k,
+      BigInteger[] Q, BigInteger l, ECParameterSpec params) {
+    final Curve c = getCurve(params);
+    return toAffine(addPointsJJ(multiplyGeneratorJ(k, c),
+        multiplyPointJ(Q, l, c), c), c);
+  }
+
+  /**
+   * Checks that the affine point P satisfies y^2 = x^3 + ax + b and has
+   * coordinates in the field.
+   */
+  public static boolean isOnCurve(BigInteger[] P, ECParameterSpec params) {
+    if (P[0] == null || P[1] == null) return false;
+
+    final Curve c = getCurve(params);
+    final EcPrimeField f = c.f;
+    if (P[0].signum() < 0 || P[0].compareTo(f.p) >= 0 || P[1].signum() < 0
+        || P[1].compareTo(f.p) >= 0) return false;
+
+    final BigInteger lhs = f.sqr(P[1]);
+    BigInteger rhs = f.mul(f.add(f.sqr(P[0]), c.a.mod(f.p)), P[0]);
+    rhs = f.add(rhs, c.b.mod(f.p));
+    return lhs.equals(rhs);
+  }
+// END connectbot-added
+
 // BEGIN connectbot-removed
 //  private static BigInteger[] doublePointJ(BigInteger[] P,
 //      ECParameterSpec params) {
@@ -0,0 +1,216 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar.jce;
+
+import java.math.BigInteger;
+
+/**
+ * Arithmetic in the prime field GF(p) used by the Jacobian point routines in
+ * {@link EcCore}. All elements are kept fully reduced in [0, p). The NIST
+ * primes get their own reduction step so that a field multiplication never
+ * has to go through a general long division.
+ *
+ * References:
+ *
+ * [1] FIPS 186-3, Appendix D.2, "Implementation of Modular Arithmetic".
+ */
+abstract class EcPrimeField {
+  static final BigInteger P256 = new BigInteger(
+      "FFFFFFFF00000001000000000000000000000000FFFFFFFFFFFFFFFFFFFFFFFF", 16);
+  static final BigInteger P384 = new BigInteger(
+      "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFFFF0000000000000000FFFFFFFF",
+      16);
+  static final BigInteger P521 = BigInteger.ONE.shiftLeft(521).subtract(BigInteger.ONE);
+
+  final BigInteger p;
+
+  EcPrimeField(BigInteger p) {
+    this.p = p;
+  }
+
+  /**
+   * Returns the field for prime {@code p}, using a specialised reduction if
+   * {@code p} is one of the NIST primes.
+   */
+  static EcPrimeField getInstance(BigInteger p) {
+    if (P256.equals(p)) return new P256Field();
+    if (P384.equals(p)) return new P384Field();
+    if (P521.equals(p)) return new P521Field();
+    return new GenericField(p);
+  }
+
+  /**
+   * Reduces {@code x}, where 0 <= x < p^2, modulo p.
+   */
+  abstract BigInteger reduce(BigInteger x);
+
+  final BigInteger mul(BigInteger a, BigInteger b) {
+    return reduce(a.multiply(b));
+  }
+
+  final BigInteger sqr(BigInteger a) {
+    return reduce(a.multiply(a));
+  }
+
+  final BigInteger add(BigInteger a, BigInteger b) {
+    BigInteger r = a.add(b);
+    return r.compareTo(p) >= 0 ? r.subtract(p) : r;
+  }
+
+  final BigInteger sub(BigInteger a, BigInteger b) {
+    BigInteger r = a.subtract(b);
+    return r.signum() < 0 ? r.add(p) : r;
+  }
+
+  final BigInteger twice(BigInteger a) {
+    return add(a, a);
+  }
+
+  final BigInteger inv(BigInteger a) {
+    return a.modInverse(p);
+  }
+
+  private static final class GenericField extends EcPrimeField {
+    GenericField(BigInteger p) {
+      super(p);
+    }
+
+    @Override
+    BigInteger reduce(BigInteger x) {
+      return x.mod(p);
+    }
+  }
+
+  /**
+   * p = 2^521 - 1, so x = hi * 2^521 + lo is congruent to hi + lo.
+   */
+  private static final class P521Field extends EcPrimeField {
+    P521Field() {
+      super(P521);
+    }
+
+    @Override
+    BigInteger reduce(BigInteger x) {
+      BigInteger r = x.and(p).add(x.shiftRight(521));
+      while (r.compareTo(p) >= 0)
+        r = r.subtract(p);
+      return r;
+    }
+  }
+
+  /**
+   * Solinas reduction for p = 2^256 - 2^224 + 2^192 + 2^96 - 1 [1, D.2.3].
+   */
+  private static final class P256Field extends EcPrimeField {
+    P256Field() {
+      super(P256);
+    }
+
+    @Override
+    BigInteger reduce(BigInteger x) {
+      final long[] c = toWords(x, 16);
+      final long[] r = new long[8];
+
+      // r = T + 2 S1 + 2 S2 + S3 + S4 - D1 - D2 - D3 - D4
+      r[0] = c[0] + c[8] + c[9] - c[11] - c[12] - c[13] - c[14];
+      r[1] = c[1] + c[9] + c[10] - c[12] - c[13] - c[14] - c[15];
+      r[2] = c[2] + c[10] + c[11] - c[13] - c[14] - c[15];
+      r[3] = c[3] + 2 * (c[11] + c[12]) + c[13] - c[15] - c[8] - c[9];
+      r[4] = c[4] + 2 * (c[12] + c[13]) + c[14] - c[9] - c[10];
+      r[5] = c[5] + 2 * (c[13] + c[14]) + c[15] - c[10] - c[11];
+      r[6] = c[6] + 3 * c[14] + 2 * c[15] + c[13] - c[8] - c[9];
+      r[7] = c[7] + 3 * c[15] + c[8] - c[10] - c[11] - c[12] - c[13];
+
+      return fromWords(r, 256, p);
+    }
+  }
+
+  /**
+   * Solinas reduction for p = 2^384 - 2^128 - 2^96 + 2^32 - 1 [1, D.2.4].
+   */
+  private static final class P384Field extends EcPrimeField {
+    P384Field() {
+      super(P384);
+    }
+
+    @Override
+    BigInteger reduce(BigInteger x) {
+      final long[] c = toWords(x, 24);
+      final long[] r = new long[12];
+
+      // r = T + 2 S1 + S2 + S3 + S4 + S5 + S6 - D1 - D2 - D3
+      r[0] = c[0] + c[12] + c[21] + c[20] - c[23];
+      r[1] = c[1] + c[13] + c[22] + c[23] - c[12] - c[20];
+      r[2] = c[2] + c[14] + c[23] - c[13] - c[21];
+      r[3] = c[3] + c[15] + c[12] + c[20] + c[21] - c[14] - c[22] - c[23];
+      r[4] = c[4] + 2 * c[21] + c[16] + c[13] + c[12] + c[20] + c[22] - c[15] - 2 * c[23];
+      r[5] = c[5] + 2 * c[22] + c[17] + c[14] + c[13] + c[21] + c[23] - c[16];
+      r[6] = c[6] + 2 * c[23] + c[18] + c[15] + c[14] + c[22] - c[17];
+      r[7] = c[7] + c[19] + c[16] + c[15] + c[23] - c[18];
+      r[8] = c[8] + c[20] + c[17] + c[16] - c[19];
+      r[9] = c[9] + c[21] + c[18] + c[17] - c[20];
+      r[10] = c[10] + c[22] + c[19] + c[18] - c[21];
+      r[11] = c[11] + c[23] + c[20] + c[19] - c[22];
+
+      return fromWords(r, 384, p);
+    }
+  }
+
+  /**
+   * Splits a non-negative {@code x} into {@code n} little-endian unsigned
+   * 32-bit words.
+   */
+  static long[] toWords(BigInteger x, int n) {
+    final byte[] b = x.toByteArray();
+    final long[] w = new long[n];
+    for (int i = 0, j = b.length - 1; i < n && j >= 0; i++) {
+      long v = 0;
+      for (int s = 0; s < 32 && j >= 0; s += 8, j--)
+        v |= (b[j] & 0xFFL) << s;
+      w[i] = v;
+    }
+    return w;
+  }
+
+  /**
+   * Propagates the signed carries through {@code r} and brings the result,
+   * which is at most a few multiples of p away, back into [0, p).
+   */
+  static BigInteger fromWords(long[] r, int bits, BigInteger p) {
+    long carry = 0;
+    final byte[] b = new byte[r.length * 4];
+    for (int i = 0, j = b.length - 1; i < r.length; i++, j -= 4) {
+      long v = r[i] + carry;
+      carry = v >> 32;
+      b[j] = (byte) v;
+      b[j - 1] = (byte) (v >>> 8);
+      b[j - 2] = (byte) (v >>> 16);
+      b[j - 3] = (byte) (v >>> 24);
+    }
+
+    BigInteger res = new BigInteger(1, b);
+    if (carry != 0)
+      res = res.add(BigInteger.valueOf(carry).shiftLeft(bits));
+
+    while (res.signum() < 0)
+      res = res.add(p);
+    while (res.compareTo(p) >= 0)
+      res = res.subtract(p);
+    return res;
+  }
+}
@@ -24,6 +24,7 @@ import java.util.List;
 
 import sk.vx.connectbot.bean.SelectionArea;
 import sk.vx.connectbot.service.PromptHelper;
+import sk.vx.connectbot.service.ReconnectScheduler;
 import sk.vx.connectbot.service.TerminalBridge;
 import sk.vx.connectbot.service.TerminalKeyListener;
 import sk.vx.connectbot.service.TerminalManager;
@@ -50,7 +51,9 @@ import android.os.IBinder;
 import android.os.Message;
 import android.preference.PreferenceManager;
 import android.text.ClipboardManager;
+import android.text.Editable;
 import android.text.InputType;
+import android.text.TextWatcher;
 import android.text.method.PasswordTransformationMethod;
 import android.text.method.SingleLineTransformationMethod;
 import android.util.FloatMath;
@@ -79,6 +82,8 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ViewFlipper;
+import com.trilead.ssh2.ConnectionTrace;
+import de.mud.terminal.BufferSearch;
 import de.mud.terminal.vt320;
 
 public class ConsoleActivity extends Activity implements FileChooserCallback {
@@ -130,7 +135,7 @@ public class ConsoleActivity extends Activity implements FileChooserCallback {
 
 	private InputMethodManager inputManager;
 
-	private MenuItem disconnect, copy, paste, portForward, resize, urlscan, screenCapture, download, upload;
+	private MenuItem disconnect, copy, paste, portForward, resize, urlscan, search, screenCapture, download, upload, timing, link, perf;
 
 	protected TerminalBridge copySource = null;
 	private int lastTouchRow, lastTouchCol;
@@ -884,7 +889,7 @@ public class ConsoleActivity extends Activity implements FileChooserCallback {
 
 				// pull string from clipboard and generate all events to force down
 				String clip = clipboard.getText().toString();
-				bridge.injectString(clip);
+				bridge.paste(clip);
 
 				return true;
 			}
@@ -993,6 +998,78 @@ public class ConsoleActivity extends Activity implements FileChooserCallback {
 			}
 		});
 
+		search = menu.add(R.string.console_menu_search);
+		search.setIcon(android.R.drawable.ic_menu_search);
+		search.setEnabled(activeTerminal);
+		search.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				View flip = findCurrentView(R.id.console_flip);
+				if (flip == null) return true;
+
+				final TerminalBridge bridge = ((TerminalView) flip).bridge;
+
+				final View searchView = inflater.inflate(R.layout.dia_search, null, false);
+				final EditText query = (EditText) searchView.findViewById(R.id.search_query);
+
+				query.addTextChangedListener(new TextWatcher() {
+					public void afterTextChanged(Editable s) {
+						bridge.searchFor(s.toString());
+					}
+
+					public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+					}
+
+					public void onTextChanged(CharSequence s, int start, int before, int count) {
+					}
+				});
+
+				searchView.findViewById(R.id.search_older).setOnClickListener(new OnClickListener() {
+					public void onClick(View v) {
+						bridge.searchOlder();
+					}
+				});
+
+				searchView.findViewById(R.id.search_newer).setOnClickListener(new OnClickListener() {
+					public void onClick(View v) {
+						bridge.searchNewer();
+					}
+				});
+
+				bridge.setSearchListener(new BufferSearch.Listener() {
+					public void onFound(long line, int column, int length) {
+						handler.post(new Runnable() {
+							public void run() {
+								query.setError(null);
+							}
+						});
+					}
+
+					public void onNotFound(String notFound) {
+						handler.post(new Runnable() {
+							public void run() {
+								query.setError(getString(R.string.console_search_not_found));
+							}
+						});
+					}
+				});
+
+				AlertDialog dialog = new AlertDialog.Builder(ConsoleActivity.this)
+					.setTitle(R.string.console_menu_search)
+					.setView(searchView)
+					.setNegativeButton(R.string.button_close, null)
+					.create();
+				dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+					public void onDismiss(DialogInterface dialog) {
+						bridge.setSearchListener(null);
+						bridge.stopSearch();
+					}
+				});
+				dialog.show();
+
+				return true;
+			}
+		});
+
 		download = menu.add(R.string.console_menu_download);
 		download.setAlphabeticShortcut('d');
 		download.setEnabled(sessionOpen && canTransferFiles);
@@ -1032,6 +1109,81 @@ public class ConsoleActivity extends Activity implements FileChooserCallback {
 			}
 		});
 
+		timing = menu.add(R.string.console_menu_timing);
+		timing.setEnabled(activeTerminal);
+		timing.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				View flip = findCurrentView(R.id.console_flip);
+				if (flip == null || bound == null) return true;
+
+				TerminalBridge bridge = ((TerminalView) flip).bridge;
+				List<ConnectionTrace> traces = bound.getConnectionTraces(bridge.host.getNickname());
+
+				String[] phases = getResources().getStringArray(R.array.list_timing_phases);
+
+				StringBuilder message = new StringBuilder();
+				for (ReconnectScheduler.Status status : bound.getReconnectQueue()) {
+					if (status.nickname.equals(bridge.host.getNickname()))
+						message.append(getString(R.string.console_timing_reconnect,
+								status.failures, (status.delay + 999) / 1000));
+				}
+				for (ConnectionTrace trace : traces) {
+					if (message.length() > 0)
+						message.append("\n");
+					for (int phase = 0; phase < ConnectionTrace.PHASE_COUNT; phase++) {
+						int count = trace.getCount(phase);
+						long millis = trace.getDuration(phase) / 1000000L;
+						if (count == 1)
+							message.append(getString(R.string.console_timing_phase, phases[phase], millis));
+						else if (count > 1)
+							message.append(getString(R.string.console_timing_phase_repeated,
+									phases[phase], millis, count));
+						else
+							continue;
+						message.append('\n');
+					}
+				}
+				if (message.length() == 0)
+					message.append(getString(R.string.console_timing_empty));
+
+				new AlertDialog.Builder(ConsoleActivity.this)
+					.setTitle(R.string.console_menu_timing)
+					.setMessage(message.toString().trim())
+					.setPositiveButton(android.R.string.ok, null)
+					.create().show();
+
+				return true;
+			}
+		});
+
+		link = menu.add(R.string.console_menu_link);
+		link.setCheckable(true);
+		link.setEnabled(false);
+		link.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				View flip = findCurrentView(R.id.console_flip);
+				if (flip == null) return true;
+
+				TerminalBridge bridge = ((TerminalView) flip).bridge;
+				bridge.setShowLinkMetrics(!bridge.isShowingLinkMetrics());
+				return true;
+			}
+		});
+
+		perf = menu.add(R.string.console_menu_perf);
+		perf.setCheckable(true);
+		perf.setEnabled(false);
+		perf.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				View flip = findCurrentView(R.id.console_flip);
+				if (flip == null) return true;
+
+				TerminalBridge bridge = ((TerminalView) flip).bridge;
+				bridge.setShowSessionMetrics(!bridge.isShowingSessionMetrics());
+				return true;
+			}
+		});
+
 		return true;
 	}
 
@@ -1121,6 +1273,10 @@ public class ConsoleActivity extends Activity implements FileChooserCallback {
 		boolean disconnected = false;
 		boolean canForwardPorts = false;
 		boolean canTransferFiles = false;
+		boolean hasLinkMetrics = false;
+		boolean showingLinkMetrics = false;
+		boolean hasSessionMetrics = false;
+		boolean showingSessionMetrics = false;
 
 		if (activeTerminal) {
 			TerminalBridge bridge = ((TerminalView) view).bridge;
@@ -1128,6 +1284,10 @@ public class ConsoleActivity extends Activity implements FileChooserCallback {
 			disconnected = bridge.isDisconnected();
 			canForwardPorts = bridge.canFowardPorts();
 			canTransferFiles = bridge.canTransferFiles();
+			hasLinkMetrics = bridge.getLinkMetrics() != null;
+			showingLinkMetrics = bridge.isShowingLinkMetrics();
+			hasSessionMetrics = bridge.getSessionMetrics() != null;
+			showingSessionMetrics = bridge.isShowingSessionMetrics();
 		}
 
 		disconnect.setEnabled(activeTerminal);
@@ -1139,9 +1299,15 @@ public class ConsoleActivity extends Activity implements FileChooserCallback {
 		paste.setEnabled(clipboard.hasText() && sessionOpen);
 		portForward.setEnabled(sessionOpen && canForwardPorts);
 		urlscan.setEnabled(activeTerminal);
+		search.setEnabled(activeTerminal);
 		resize.setEnabled(sessionOpen);
 		download.setEnabled(sessionOpen && canTransferFiles);
 		upload.setEnabled(sessionOpen && canTransferFiles);
+		timing.setEnabled(activeTerminal);
+		link.setEnabled(hasLinkMetrics);
+		link.setChecked(showingLinkMetrics);
+		perf.setEnabled(hasSessionMetrics);
+		perf.setChecked(showingSessionMetrics);
 
 		return true;
 	}
@@ -1313,7 +1479,7 @@ public class ConsoleActivity extends Activity implements FileChooserCallback {
 
 		TerminalView terminal = (TerminalView)view;
 		if(bound == null) return;
-		bound.defaultBridge = terminal.bridge;
+		bound.onBridgeShown(terminal.bridge);
 	}
 
 	protected void updateEmptyVisible() {
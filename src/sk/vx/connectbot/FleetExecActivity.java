@@ -0,0 +1,292 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import sk.vx.connectbot.bean.HostBean;
+import sk.vx.connectbot.service.FleetExec;
+import sk.vx.connectbot.service.FleetExec.Result;
+import sk.vx.connectbot.service.TerminalManager;
+import sk.vx.connectbot.transport.SSH;
+import sk.vx.connectbot.util.HostDatabase;
+import android.app.AlertDialog;
+import android.app.ListActivity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.view.ContextMenu;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.MenuItem.OnMenuItemClickListener;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * Run one command on a set of saved SSH hosts at once and show how it went
+ * on each of them.
+ */
+public class FleetExecActivity extends ListActivity {
+	public final static String TAG = "ConnectBot.FleetExecActivity";
+
+	protected HostDatabase hostdb;
+
+	private List<HostBean> hosts;
+	private final Map<Long, Result> results = new HashMap<Long, Result>();
+
+	protected TerminalManager bound = null;
+
+	private EditText command;
+
+	private ServiceConnection connection = new ServiceConnection() {
+		public void onServiceConnected(ComponentName className, IBinder service) {
+			bound = ((TerminalManager.TerminalBinder) service).getService();
+			bound.fleetExec.setListener(listener);
+			updateHandler.sendEmptyMessage(-1);
+		}
+
+		public void onServiceDisconnected(ComponentName className) {
+			bound = null;
+		}
+	};
+
+	private final FleetExec.Listener listener = new FleetExec.Listener() {
+		public void onHostUpdated(Result result) {
+			updateHandler.sendEmptyMessage(-1);
+		}
+
+		public void onFinished() {
+			updateHandler.sendEmptyMessage(-1);
+		}
+	};
+
+	protected Handler updateHandler = new Handler() {
+		@Override
+		public void handleMessage(Message msg) {
+			// coalesce the updates of many hosts into one redraw
+			removeMessages(-1);
+			FleetExecActivity.this.updateResults();
+		}
+	};
+
+	@Override
+	public void onStart() {
+		super.onStart();
+
+		this.bindService(new Intent(this, TerminalManager.class), connection, Context.BIND_AUTO_CREATE);
+
+		if(this.hostdb == null)
+			this.hostdb = new HostDatabase(this);
+	}
+
+	@Override
+	public void onStop() {
+		super.onStop();
+
+		if (bound != null)
+			bound.fleetExec.setListener(null);
+		this.unbindService(connection);
+
+		if(this.hostdb != null) {
+			this.hostdb.close();
+			this.hostdb = null;
+		}
+	}
+
+	@Override
+	public void onCreate(Bundle icicle) {
+		super.onCreate(icicle);
+
+		setContentView(R.layout.act_fleetexec);
+
+		this.setTitle(String.format("%s: %s",
+				getResources().getText(R.string.app_name),
+				getResources().getText(R.string.title_fleet)));
+
+		this.hostdb = new HostDatabase(this);
+
+		hosts = new ArrayList<HostBean>();
+		for (HostBean host : hostdb.getHosts(false)) {
+			if (SSH.getProtocolName().equals(host.getProtocol()))
+				hosts.add(host);
+		}
+
+		this.setListAdapter(new FleetAdapter(this, hosts));
+		this.getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
+		this.registerForContextMenu(this.getListView());
+
+		command = (EditText) findViewById(R.id.fleet_command);
+
+		findViewById(R.id.fleet_run).setOnClickListener(new OnClickListener() {
+			public void onClick(View v) {
+				run();
+			}
+		});
+	}
+
+	private void run() {
+		String cmd = command.getText().toString().trim();
+		if (bound == null || cmd.length() == 0)
+			return;
+
+		List<HostBean> selected = new ArrayList<HostBean>();
+		ListView list = getListView();
+		for (int i = 0; i < hosts.size(); i++) {
+			if (list.isItemChecked(i))
+				selected.add(hosts.get(i));
+		}
+
+		if (selected.isEmpty())
+			return;
+
+		bound.fleetExec.run(selected, cmd, FleetExec.DEFAULT_CONCURRENCY);
+		updateResults();
+	}
+
+	protected void updateResults() {
+		results.clear();
+		if (bound != null) {
+			for (Result result : bound.fleetExec.getResults())
+				results.put(result.host.getId(), result);
+		}
+
+		((FleetAdapter) getListAdapter()).notifyDataSetChanged();
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		super.onCreateOptionsMenu(menu);
+
+		MenuItem all = menu.add(R.string.fleet_menu_select_all);
+		all.setIcon(android.R.drawable.ic_menu_agenda);
+		all.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				setAllChecked(true);
+				return true;
+			}
+		});
+
+		MenuItem none = menu.add(R.string.fleet_menu_select_none);
+		none.setIcon(android.R.drawable.ic_menu_close_clear_cancel);
+		none.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				setAllChecked(false);
+				return true;
+			}
+		});
+
+		MenuItem cancel = menu.add(R.string.fleet_menu_cancel);
+		cancel.setIcon(android.R.drawable.ic_menu_delete);
+		cancel.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				if (bound != null)
+					bound.fleetExec.cancel();
+				return true;
+			}
+		});
+
+		return true;
+	}
+
+	private void setAllChecked(boolean checked) {
+		ListView list = getListView();
+		for (int i = 0; i < hosts.size(); i++)
+			list.setItemChecked(i, checked);
+	}
+
+	@Override
+	public void onCreateContextMenu(ContextMenu menu, View v, ContextMenu.ContextMenuInfo menuInfo) {
+		AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo) menuInfo;
+		final HostBean host = (HostBean) this.getListView().getItemAtPosition(info.position);
+		final Result result = results.get(host.getId());
+
+		menu.setHeaderTitle(host.getNickname());
+
+		MenuItem output = menu.add(R.string.fleet_show_output);
+		output.setEnabled(result != null);
+		output.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				StringBuilder text = new StringBuilder();
+				text.append(result.getStdout(host.getEncoding()));
+				text.append(result.getStderr(host.getEncoding()));
+				if (text.length() == 0)
+					text.append(getString(R.string.fleet_no_output));
+
+				new AlertDialog.Builder(FleetExecActivity.this)
+					.setTitle(host.getNickname() + ": " + describe(result))
+					.setMessage(text)
+					.setNegativeButton(R.string.button_close, null)
+					.create().show();
+				return true;
+			}
+		});
+	}
+
+	private String describe(Result result) {
+		switch (result.getState()) {
+		case Result.STATE_CONNECTING:
+			return getString(R.string.fleet_state_connecting);
+		case Result.STATE_RUNNING:
+			return getString(R.string.fleet_state_running);
+		case Result.STATE_DONE:
+			if (result.getExitSignal() != null)
+				return getString(R.string.fleet_state_signal, result.getExitSignal());
+			if (result.getExitStatus() != null)
+				return getString(R.string.fleet_state_exit, result.getExitStatus());
+			return "";
+		case Result.STATE_FAILED:
+			return getString(R.string.fleet_state_failed, result.getError());
+		default:
+			return getString(R.string.fleet_state_pending);
+		}
+	}
+
+	class FleetAdapter extends ArrayAdapter<HostBean> {
+		public FleetAdapter(Context context, List<HostBean> hosts) {
+			super(context, android.R.layout.simple_list_item_multiple_choice, hosts);
+		}
+
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			TextView view = (TextView) super.getView(position, convertView, parent);
+			HostBean host = getItem(position);
+
+			Result result = results.get(host.getId());
+			if (result == null)
+				view.setText(host.getNickname());
+			else
+				view.setText(host.getNickname() + "\n" + describe(result));
+
+			return view;
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.util.concurrent.CancellationException;
 
 import sk.vx.connectbot.bean.PubkeyBean;
 import sk.vx.connectbot.util.EntropyDialog;
@@ -29,9 +30,11 @@ import sk.vx.connectbot.util.EntropyView;
 import sk.vx.connectbot.util.OnEntropyGatheredListener;
 import sk.vx.connectbot.util.PubkeyDatabase;
 import sk.vx.connectbot.util.PubkeyUtils;
+import sk.vx.connectbot.util.RsaKeyGenerator;
 import android.app.Activity;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -85,6 +88,8 @@ public class GeneratePubkeyActivity extends Activity implements OnEntropyGathere
 
 	private byte[] entropy;
 
+	private volatile RsaKeyGenerator rsaGenerator;
+
 	@Override
 	public void onCreate(Bundle icicle) {
 		super.onCreate(icicle);
@@ -252,6 +257,16 @@ public class GeneratePubkeyActivity extends Activity implements OnEntropyGathere
 		progress.setMessage(GeneratePubkeyActivity.this.getResources().getText(R.string.pubkey_generating));
 		progress.setIndeterminate(true);
 		progress.setCancelable(false);
+		if (PubkeyDatabase.KEY_TYPE_RSA.equals(keyType)) {
+			progress.setButton(DialogInterface.BUTTON_NEGATIVE, getText(android.R.string.cancel),
+					new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {
+					RsaKeyGenerator generator = rsaGenerator;
+					if (generator != null)
+						generator.cancel();
+				}
+			});
+		}
 		progress.show();
 
 		Thread keyGenThread = new Thread(mKeyGen);
@@ -274,11 +289,20 @@ public class GeneratePubkeyActivity extends Activity implements OnEntropyGathere
 				random.nextInt();
 				random.setSeed(entropy);
 
-				KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance(keyType);
+				KeyPair pair;
+				if (PubkeyDatabase.KEY_TYPE_RSA.equals(keyType)) {
+					// search for the primes on all cores, this takes long on a phone
+					RsaKeyGenerator generator = new RsaKeyGenerator(tmpbits, random);
+					generator.setProgressListener(rsaProgress);
+					rsaGenerator = generator;
+					pair = generator.generate();
+				} else {
+					KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance(keyType);
 
-				keyPairGen.initialize(tmpbits, random);
+					keyPairGen.initialize(tmpbits, random);
 
-				KeyPair pair = keyPairGen.generateKeyPair();
+					pair = keyPairGen.generateKeyPair();
+				}
 				PrivateKey priv = pair.getPrivate();
 				PublicKey pub = pair.getPublic();
 
@@ -301,6 +325,8 @@ public class GeneratePubkeyActivity extends Activity implements OnEntropyGathere
 				PubkeyDatabase pubkeydb = new PubkeyDatabase(GeneratePubkeyActivity.this);
 				pubkeydb.savePubkey(pubkey);
 				pubkeydb.close();
+			} catch (CancellationException e) {
+				Log.d(TAG, "Key generation cancelled");
 			} catch (Exception e) {
 				Log.e(TAG, "Could not generate key pair");
 
@@ -317,6 +343,24 @@ public class GeneratePubkeyActivity extends Activity implements OnEntropyGathere
 
 	};
 
+	final private RsaKeyGenerator.ProgressListener rsaProgress = new RsaKeyGenerator.ProgressListener() {
+		private long lastUpdate = 0;
+
+		public void onProgress(final int tested, final int primes) {
+			// called for every candidate on every core, keep the UI calm
+			long now = System.currentTimeMillis();
+			if (now - lastUpdate < 250)
+				return;
+			lastUpdate = now;
+
+			GeneratePubkeyActivity.this.runOnUiThread(new Runnable() {
+				public void run() {
+					progress.setMessage(getString(R.string.pubkey_generating_progress, primes, tested));
+				}
+			});
+		}
+	};
+
 	final private TextWatcher textChecker = new TextWatcher() {
 		public void afterTextChanged(Editable s) {}
 
@@ -17,12 +17,17 @@
 
 package sk.vx.connectbot;
 
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.List;
 
 import sk.vx.connectbot.bean.HostBean;
 import sk.vx.connectbot.service.TerminalBridge;
 import sk.vx.connectbot.service.TerminalManager;
 import sk.vx.connectbot.transport.TransportFactory;
+import sk.vx.connectbot.util.FileChooser;
+import sk.vx.connectbot.util.FileChooserCallback;
 import sk.vx.connectbot.util.HostDatabase;
 import sk.vx.connectbot.util.PreferenceConstants;
 import android.app.Activity;
@@ -38,6 +43,7 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.res.ColorStateList;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -60,12 +66,17 @@ import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
+
+public class HostListActivity extends ListActivity implements FileChooserCallback {
+	public final static String TAG = "ConnectBot.HostListActivity";
 
-public class HostListActivity extends ListActivity {
 	public final static int REQUEST_EDIT = 1;
 
 	public final static int REQUEST_EULA = 2;
 
+	public final static int REQUEST_IMPORT_KNOWN_HOSTS = 3;
+
 	protected TerminalManager bound = null;
 
 	protected HostDatabase hostdb;
@@ -147,6 +158,59 @@ public class HostListActivity extends ListActivity {
 			}
 		} else if (requestCode == REQUEST_EDIT) {
 			this.updateList();
+		} else if (requestCode == REQUEST_IMPORT_KNOWN_HOSTS) {
+			if (resultCode == RESULT_OK && data != null) {
+				File file = FileChooser.getSelectedFile(data);
+				if (file != null)
+					importKnownHosts(file);
+			}
+		}
+	}
+
+	public void fileSelected(File f) {
+		Log.d(TAG, "File chooser returned " + f);
+		importKnownHosts(f);
+	}
+
+	private void importKnownHosts(File file) {
+		new KnownHostsImporter().execute(file);
+	}
+
+	/*
+	 * Reads a known_hosts file off the UI thread, which a large one would
+	 * block for long. Uses its own database, since ours is closed in
+	 * onStop() and the import may outlive that.
+	 */
+	private class KnownHostsImporter extends AsyncTask<File, Void, Integer> {
+		private final Context context = getApplicationContext();
+
+		@Override
+		protected Integer doInBackground(File... files) {
+			HostDatabase db = new HostDatabase(context);
+			try {
+				FileReader reader = new FileReader(files[0]);
+				try {
+					return db.importKnownHosts(reader);
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Could not import known_hosts from " + files[0], e);
+				return null;
+			} finally {
+				db.close();
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Integer imported) {
+			if (imported != null)
+				Toast.makeText(context,
+						context.getString(R.string.list_import_known_hosts_done, imported),
+						Toast.LENGTH_LONG).show();
+			else
+				Toast.makeText(context, R.string.list_import_known_hosts_problem,
+						Toast.LENGTH_LONG).show();
 		}
 	}
 
@@ -294,6 +358,21 @@ public class HostListActivity extends ListActivity {
 		colors.setIcon(android.R.drawable.ic_menu_slideshow);
 		colors.setIntent(new Intent(HostListActivity.this, ColorsActivity.class));
 
+		MenuItem knownhosts = menu.add(R.string.list_menu_import_known_hosts);
+		knownhosts.setIcon(android.R.drawable.ic_menu_upload);
+		knownhosts.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				FileChooser.selectFile(HostListActivity.this, HostListActivity.this,
+						REQUEST_IMPORT_KNOWN_HOSTS,
+						getString(R.string.file_chooser_select_file, getString(R.string.select_for_known_hosts_import)));
+				return true;
+			}
+		});
+
+		MenuItem fleet = menu.add(R.string.list_menu_fleet);
+		fleet.setIcon(android.R.drawable.ic_menu_send);
+		fleet.setIntent(new Intent(HostListActivity.this, FleetExecActivity.class));
+
 		MenuItem settings = menu.add(R.string.list_menu_settings);
 		settings.setIcon(android.R.drawable.ic_menu_preferences);
 		settings.setIntent(new Intent(HostListActivity.this, SettingsActivity.class));
@@ -21,10 +21,12 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import sk.vx.connectbot.bean.SelectionArea;
+import sk.vx.connectbot.service.CanvasRenderer;
 import sk.vx.connectbot.service.FontSizeChangedListener;
+import sk.vx.connectbot.service.SessionMetrics;
 import sk.vx.connectbot.service.TerminalBridge;
 import sk.vx.connectbot.service.TerminalKeyListener;
+import sk.vx.connectbot.util.TerminalPainter;
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -32,11 +34,13 @@ import android.content.Intent;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PixelXorXfermode;
 import android.graphics.RectF;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.view.KeyEvent;
@@ -65,6 +69,12 @@ public class TerminalView extends View implements FontSizeChangedListener {
 	private final Paint paint;
 	private final Paint cursorPaint;
 	private final Paint cursorStrokePaint;
+	private final Paint linkPaint;
+	private final Paint linkBackgroundPaint;
+
+	// Draws cursor, selection and search match over the bridge bitmap
+	private final CanvasRenderer overlay;
+	private final TerminalPainter painter = new TerminalPainter();
 
 	// Cursor paints to distinguish modes
 	private Path ctrlCursor, altCursor, shiftCursor;
@@ -114,6 +124,16 @@ public class TerminalView extends View implements FontSizeChangedListener {
 		cursorStrokePaint.setStrokeWidth(0.1f);
 		cursorStrokePaint.setStyle(Paint.Style.STROKE);
 
+		overlay = new CanvasRenderer(null, cursorPaint);
+
+		linkPaint = new Paint();
+		linkPaint.setColor(Color.WHITE);
+		linkPaint.setAntiAlias(true);
+		linkPaint.setTypeface(Typeface.MONOSPACE);
+
+		linkBackgroundPaint = new Paint();
+		linkBackgroundPaint.setColor(Color.argb(160, 0, 0, 0));
+
 		/*
 		 * Set up our cursor indicators on a 1x1 Path object which we can later
 		 * transform to our character width and height
@@ -174,10 +194,19 @@ public class TerminalView extends View implements FontSizeChangedListener {
 		// Create a scale matrix to scale our 1x1 representation of the cursor
 		tempDst.set(0.0f, 0.0f, bridge.charWidth, bridge.charHeight);
 		scaleMatrix.setRectToRect(tempSrc, tempDst, scaleType);
+
+		overlay.setCharSize(bridge.charWidth, bridge.charHeight, 0);
 	}
 
 	@Override
 	public void onDraw(Canvas canvas) {
+		SessionMetrics metrics = bridge.getSessionMetrics();
+		long drawStart = metrics != null ? System.nanoTime() : 0;
+
+		// the bitmap may have been released to save memory
+		if (bridge.bitmap == null)
+			bridge.restoreBitmap();
+
 		if(bridge.bitmap != null) {
 			// draw the bitmap
 			bridge.onDraw();
@@ -185,7 +214,13 @@ public class TerminalView extends View implements FontSizeChangedListener {
 			// draw the bridge bitmap if it exists
 			canvas.drawBitmap(bridge.bitmap, 0, 0, paint);
 
-			// also draw cursor if visible
+			// draw the cursor, any highlighted area and the current search match
+			overlay.setCanvas(canvas);
+			painter.paintOverlays(bridge.buffer,
+					bridge.isSelectingForCopy() ? bridge.getSelectionArea() : null,
+					bridge.getSearchArea(), overlay);
+
+			// show dead keys and meta state on the cursor
 			if (bridge.buffer.isCursorVisible()) {
 				int cursorColumn = bridge.buffer.getCursorColumn();
 				final int cursorRow = bridge.buffer.getCursorRow();
@@ -195,64 +230,90 @@ public class TerminalView extends View implements FontSizeChangedListener {
 				if (cursorColumn == columns)
 					cursorColumn = columns - 1;
 
-				if (cursorColumn < 0 || cursorRow < 0)
-					return;
+				if (cursorColumn >= 0 && cursorRow >= 0)
+					drawCursorDecorations(canvas, cursorColumn, cursorRow);
+			}
 
-				int currentAttribute = bridge.buffer.getAttributes(
-						cursorColumn, cursorRow);
-				boolean onWideCharacter = (currentAttribute & VDUBuffer.FULLWIDTH) != 0;
+			if (metrics != null)
+				metrics.frame(System.nanoTime() - drawStart);
 
-				int x = cursorColumn * bridge.charWidth;
-				int y = (bridge.buffer.getCursorRow()
-						+ bridge.buffer.screenBase - bridge.buffer.windowBase)
-						* bridge.charHeight;
+			float top = 0;
+			if (bridge.isShowingLinkMetrics())
+				top = drawSummary(canvas, bridge.getLinkSummary(), top);
+			if (bridge.isShowingSessionMetrics())
+				drawSummary(canvas, bridge.getSessionSummary(), top);
+		}
+	}
 
-				// Save the current clip and translation
-				canvas.save();
+	private void drawCursorDecorations(Canvas canvas, int cursorColumn, int cursorRow) {
+		int currentAttribute = bridge.buffer.getAttributes(
+				cursorColumn, cursorRow);
+		boolean onWideCharacter = (currentAttribute & VDUBuffer.FULLWIDTH) != 0;
 
-				canvas.translate(x, y);
-				canvas.clipRect(0, 0,
-						bridge.charWidth * (onWideCharacter ? 2 : 1),
-						bridge.charHeight);
-				canvas.drawPaint(cursorPaint);
+		int x = cursorColumn * bridge.charWidth;
+		int y = (cursorRow
+				+ bridge.buffer.screenBase - bridge.buffer.windowBase)
+				* bridge.charHeight;
 
-				final int deadKey = bridge.getKeyHandler().getDeadKey();
-				if (deadKey != 0) {
-					canvas.drawText(new char[] { (char)deadKey }, 0, 1, 0, 0, cursorStrokePaint);
-				}
+		// Save the current clip and translation
+		canvas.save();
 
-				// Make sure we scale our decorations to the correct size.
-				canvas.concat(scaleMatrix);
+		canvas.translate(x, y);
+		canvas.clipRect(0, 0,
+				bridge.charWidth * (onWideCharacter ? 2 : 1),
+				bridge.charHeight);
 
-				int metaState = bridge.getKeyHandler().getMetaState();
+		final int deadKey = bridge.getKeyHandler().getDeadKey();
+		if (deadKey != 0) {
+			canvas.drawText(new char[] { (char)deadKey }, 0, 1, 0, 0, cursorStrokePaint);
+		}
 
-				if ((metaState & TerminalKeyListener.SHIFT_ANY_MASK) != 0)
-					canvas.drawPath(shiftCursor, cursorStrokePaint);
+		// Make sure we scale our decorations to the correct size.
+		canvas.concat(scaleMatrix);
 
-				if ((metaState & TerminalKeyListener.ALT_ANY_MASK) != 0)
-					canvas.drawPath(altCursor, cursorStrokePaint);
+		int metaState = bridge.getKeyHandler().getMetaState();
 
-				if ((metaState & TerminalKeyListener.CTRL_ANY_MASK) != 0)
-					canvas.drawPath(ctrlCursor, cursorStrokePaint);
+		if ((metaState & TerminalKeyListener.SHIFT_ANY_MASK) != 0)
+			canvas.drawPath(shiftCursor, cursorStrokePaint);
 
-				// Restore previous clip region
-				canvas.restore();
-			}
+		if ((metaState & TerminalKeyListener.ALT_ANY_MASK) != 0)
+			canvas.drawPath(altCursor, cursorStrokePaint);
 
-			// draw any highlighted area
-			if (bridge.isSelectingForCopy()) {
-				SelectionArea area = bridge.getSelectionArea();
-				canvas.save(Canvas.CLIP_SAVE_FLAG);
-				canvas.clipRect(
-					area.getLeft() * bridge.charWidth,
-					area.getTop() * bridge.charHeight,
-					(area.getRight() + 1) * bridge.charWidth,
-					(area.getBottom() + 1) * bridge.charHeight
-				);
-				canvas.drawPaint(cursorPaint);
-				canvas.restore();
-			}
+		if ((metaState & TerminalKeyListener.CTRL_ANY_MASK) != 0)
+			canvas.drawPath(ctrlCursor, cursorStrokePaint);
+
+		// Restore previous clip region
+		canvas.restore();
+	}
+
+	/**
+	 * Draw measured numbers in the top right corner, starting at
+	 * <code>top</code>, and come back in a second to update them.
+	 * @return where the next summary may go
+	 */
+	private float drawSummary(Canvas canvas, String[] lines, float top) {
+		if (lines == null)
+			return top;
+
+		linkPaint.setTextSize(bridge.charHeight * 0.8f);
+		float lineHeight = linkPaint.getFontSpacing();
+		float width = 0;
+		for (String line : lines)
+			width = Math.max(width, linkPaint.measureText(line));
+
+		float padding = lineHeight / 4;
+		float left = getWidth() - width - 2 * padding;
+		float bottom = top + lines.length * lineHeight + 2 * padding;
+		canvas.drawRect(left, top, getWidth(), bottom, linkBackgroundPaint);
+
+		float y = top + padding - linkPaint.ascent();
+		for (String line : lines) {
+			canvas.drawText(line, left + padding, y, linkPaint);
+			y += lineHeight;
 		}
+
+		postInvalidateDelayed(1000);
+		return bottom;
 	}
 
 	public void notifyUser(String message) {
@@ -1,21 +1,15 @@
 package sk.vx.connectbot.service;
 
 import java.io.IOException;
-import java.security.KeyPair;
-import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.interfaces.DSAPrivateKey;
-import java.security.interfaces.DSAPublicKey;
 import java.security.interfaces.RSAPrivateKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import sk.vx.connectbot.service.TerminalManager.KeyHolder;
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.Intent;
@@ -66,7 +60,7 @@ public class AuthAgentService extends Service {
 			waitForTerminalManager();
 			Log.d(TAG, "getIdentities() manager.loadedKeypairs : " + manager.loadedKeypairs);
 
-			return sshEncodedPubKeysFrom(manager.loadedKeypairs);
+			return new HashMap<String, byte[]>(manager.getAgentIdentities());
 		}
 
 		public byte[] sign(byte[] publicKey, byte[] data) throws RemoteException {
@@ -103,34 +97,6 @@ public class AuthAgentService extends Service {
 			Log.d(TAG, "Got TerminalManager : "+manager);
 		}
 
-		private Map<String, byte[]> sshEncodedPubKeysFrom(Map<String, KeyHolder> keypairs) {
-			Map<String, byte[]> encodedPubKeysByName = new HashMap<String, byte[]>(keypairs.size());
-
-			for (Entry<String, KeyHolder> entry : keypairs.entrySet()) {
-				byte[] encodedKey = sshEncodedPubKeyFrom(entry.getValue().pair);
-				if (encodedKey != null) {
-					encodedPubKeysByName.put(entry.getKey(), encodedKey);
-				}
-			}
-			return encodedPubKeysByName;
-		}
-
-		private byte[] sshEncodedPubKeyFrom(KeyPair pair) {
-			try {
-				PrivateKey privKey = pair.getPrivate();
-				if (privKey instanceof RSAPrivateKey) {
-					RSAPublicKey pubkey = (RSAPublicKey) pair.getPublic();
-					return RSASHA1Verify.encodeSSHRSAPublicKey(pubkey);
-				} else if (privKey instanceof DSAPrivateKey) {
-					DSAPublicKey pubkey = (DSAPublicKey) pair.getPublic();
-					return DSASHA1Verify.encodeSSHDSAPublicKey(pubkey);
-				}
-			} catch (IOException e) {
-				Log.e(TAG, "Couldn't encode " + pair, e);
-			}
-			return null;
-		}
-
 		private byte[] sshEncodedSignatureFor(byte[] data, RSAPrivateKey trileadKey) {
 			try {
 				byte[] signature = RSASHA1Verify.generateSignature(data, trileadKey);
@@ -0,0 +1,155 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.vx.connectbot.service;
+
+import sk.vx.connectbot.util.TerminalRenderer;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Draws the terminal on an Android {@link Canvas}: the bitmap of a
+ * {@link TerminalBridge}, or the screen itself for the cursor and
+ * highlights. Text is copied from a {@link GlyphAtlas} if there is one,
+ * otherwise it is drawn with the text paint every time.
+ */
+public class CanvasRenderer implements TerminalRenderer {
+	private final Paint paint;
+	private final Paint overlayPaint;
+	private final Paint fillPaint = new Paint();
+	private Canvas canvas;
+	private GlyphAtlas glyphs;
+
+	private int charWidth = -1;
+	private int charHeight = -1;
+	private int charTop = -1;
+
+	/**
+	 * @param paint paint for text, with the font to draw in
+	 * @param overlayPaint paint for cursor and highlights, or null if this
+	 *        renderer will not draw any
+	 */
+	public CanvasRenderer(Paint paint, Paint overlayPaint) {
+		this.paint = paint;
+		this.overlayPaint = overlayPaint;
+	}
+
+	public void setCanvas(Canvas canvas) {
+		this.canvas = canvas;
+	}
+
+	/**
+	 * Copy text from glyphs instead of drawing it.
+	 * @param glyphs atlas made with the same text paint, or null
+	 */
+	public void setGlyphAtlas(GlyphAtlas glyphs) {
+		this.glyphs = glyphs;
+		if (glyphs != null && charWidth > 0)
+			glyphs.setCharSize(charWidth, charHeight, charTop);
+	}
+
+	/**
+	 * @param width width of a cell in pixels
+	 * @param height height of a cell in pixels
+	 * @param top the font's top, negative, to place text in its cell
+	 */
+	public void setCharSize(int width, int height, int top) {
+		charWidth = width;
+		charHeight = height;
+		charTop = top;
+
+		if (glyphs != null)
+			glyphs.setCharSize(width, height, top);
+	}
+
+	public void drawRun(int column, int row, int cells, char[] chars, int offset, int length,
+			int fg, int bg, int flags) {
+		if (glyphs != null) {
+			drawRunFromGlyphs(column, row, cells, chars, offset, length, fg, bg, flags);
+			return;
+		}
+
+		// Save the current clip region
+		canvas.save(Canvas.CLIP_SAVE_FLAG);
+
+		// clear this dirty area with background color
+		paint.setColor(bg);
+		canvas.clipRect(column * charWidth,
+				row * charHeight,
+				(column + cells) * charWidth,
+				(row + 1) * charHeight);
+		canvas.drawPaint(paint);
+
+		// write the text string starting at 'column' for 'length' number of characters
+		if ((flags & INVISIBLE) == 0) {
+			paint.setColor(fg);
+			paint.setUnderlineText((flags & UNDERLINE) != 0);
+			canvas.drawText(chars, offset, length,
+					column * charWidth, (row * charHeight) - charTop,
+					paint);
+		}
+
+		// Restore the previous clip region
+		canvas.restore();
+	}
+
+	private void drawRunFromGlyphs(int column, int row, int cells, char[] chars, int offset, int length,
+			int fg, int bg, int flags) {
+		int x = column * charWidth;
+		int y = row * charHeight;
+		int right = (column + cells) * charWidth;
+
+		fillPaint.setColor(bg);
+		canvas.drawRect(x, y, right, y + charHeight, fillPaint);
+
+		if ((flags & INVISIBLE) != 0)
+			return;
+
+		fillPaint.setColor(fg);
+
+		boolean fullWidth = cells > length;
+		int glyphWidth = fullWidth ? 2 * charWidth : charWidth;
+		for (int i = 0; i < length; i++) {
+			char c = chars[offset + i];
+			if (c != ' ')
+				glyphs.draw(canvas, c, fullWidth, x + i * glyphWidth, y, fillPaint);
+		}
+
+		if ((flags & UNDERLINE) != 0) {
+			// a little below the baseline, inside the cell
+			int line = Math.min(y - charTop + Math.max(1, (charHeight + charTop) / 3), y + charHeight - 1);
+			canvas.drawRect(x, line, right, line + 1, fillPaint);
+		}
+	}
+
+	public void drawCursor(int column, int row, int cells) {
+		fillOverlay(column, row, column + cells - 1, row);
+	}
+
+	public void drawHighlight(int left, int top, int right, int bottom) {
+		fillOverlay(left, top, right, bottom);
+	}
+
+	private void fillOverlay(int left, int top, int right, int bottom) {
+		canvas.save(Canvas.CLIP_SAVE_FLAG);
+		canvas.clipRect(left * charWidth,
+				top * charHeight,
+				(right + 1) * charWidth,
+				(bottom + 1) * charHeight);
+		canvas.drawPaint(overlayPaint);
+		canvas.restore();
+	}
+}
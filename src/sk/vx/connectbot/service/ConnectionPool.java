@@ -0,0 +1,145 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.util.TimeoutService;
+import com.trilead.ssh2.util.TimeoutService.TimeoutToken;
+
+/**
+ * Idle, authenticated connections, at most one per key. A connection that
+ * is not taken out again within the idle timeout is closed, whether or not
+ * anybody uses the pool in the meantime.
+ * <p>
+ * Closing a connection sends a disconnect message, which could block, so
+ * it is never done on the {@link TimeoutService} thread or while holding
+ * the pool's lock.
+ */
+class ConnectionPool {
+	private static class Pooled {
+		final Connection connection;
+		TimeoutToken eviction;
+
+		Pooled(Connection connection) {
+			this.connection = connection;
+		}
+	}
+
+	private final long idleTimeout;
+
+	private final Map<String, Pooled> pool = new HashMap<String, Pooled>();
+
+	/**
+	 * @param idleTimeout milliseconds a connection may stay unused
+	 */
+	ConnectionPool(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Take the connection kept for <code>key</code> out of the pool.
+	 *
+	 * @return the connection, or null if there is none
+	 */
+	Connection acquire(String key) {
+		Pooled pooled;
+		synchronized (pool) {
+			pooled = pool.remove(key);
+		}
+
+		if (pooled == null)
+			return null;
+
+		TimeoutService.cancelTimeoutHandler(pooled.eviction);
+		return pooled.connection;
+	}
+
+	/**
+	 * Keep <code>connection</code> for <code>key</code>, closing the one
+	 * that was kept for it before.
+	 */
+	void release(final String key, Connection connection) {
+		final Pooled pooled = new Pooled(connection);
+		Pooled old;
+
+		synchronized (pool) {
+			old = pool.put(key, pooled);
+
+			// scheduled under the lock so that acquire() always finds the token
+			pooled.eviction = TimeoutService.schedule(idleTimeout, new Runnable() {
+				public void run() {
+					evict(key, pooled);
+				}
+			});
+		}
+
+		if (old != null) {
+			TimeoutService.cancelTimeoutHandler(old.eviction);
+			old.connection.close();
+		}
+	}
+
+	/**
+	 * Close every connection in the pool.
+	 */
+	void closeAll() {
+		List<Pooled> closing;
+		synchronized (pool) {
+			closing = new ArrayList<Pooled>(pool.values());
+			pool.clear();
+		}
+
+		for (Pooled pooled : closing) {
+			TimeoutService.cancelTimeoutHandler(pooled.eviction);
+			pooled.connection.close();
+		}
+	}
+
+	/**
+	 * @return number of connections in the pool
+	 */
+	int size() {
+		synchronized (pool) {
+			return pool.size();
+		}
+	}
+
+	private void evict(String key, Pooled pooled) {
+		synchronized (pool) {
+			// taken out or replaced while this was about to run
+			if (pool.get(key) != pooled)
+				return;
+			pool.remove(key);
+		}
+
+		final Connection connection = pooled.connection;
+		Thread closer = new Thread(new Runnable() {
+			public void run() {
+				connection.close();
+			}
+		});
+		closer.setName("ConnectionPool");
+		closer.setDaemon(true);
+		closer.start();
+	}
+}
@@ -0,0 +1,553 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sk.vx.connectbot.R;
+import sk.vx.connectbot.bean.HostBean;
+import sk.vx.connectbot.bean.PubkeyBean;
+import sk.vx.connectbot.service.TerminalManager.KeyHolder;
+import sk.vx.connectbot.transport.SSH;
+import sk.vx.connectbot.util.HostDatabase;
+import sk.vx.connectbot.util.PubkeyDatabase;
+import sk.vx.connectbot.util.PubkeyUtils;
+import android.util.Log;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.KnownHosts;
+import com.trilead.ssh2.ServerHostKeyVerifier;
+import com.trilead.ssh2.Session;
+import com.trilead.ssh2.crypto.PEMDecoder;
+
+/**
+ * Runs one command on many SSH hosts at once.
+ * <p>
+ * Hosts are handled by a pool of at most <code>concurrency</code> threads.
+ * Each host's stdout and stderr are collected into its own {@link Result}.
+ * Authenticated connections are kept for a while after a run, so running
+ * the next command on the same hosts skips key exchange and authentication.
+ * <p>
+ * Nothing here can ask the user anything. Hosts whose key is not known yet
+ * and hosts that need a password or a locked key fail with an explanation;
+ * connecting to them once in a terminal fixes that.
+ */
+public class FleetExec {
+	private static final String TAG = "ConnectBot.FleetExec";
+
+	public static final int DEFAULT_CONCURRENCY = 16;
+
+	/* Output kept per stream and host; the rest is only counted. */
+	public static final int MAX_OUTPUT = 64 * 1024;
+
+	private static final int CONNECT_TIMEOUT = 15 * 1000;
+	private static final int KEX_TIMEOUT = 30 * 1000;
+
+	/* Pooled connections unused for longer than this are closed. */
+	private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	/* Listeners hear about new output at most this often per host. */
+	private static final long UPDATE_INTERVAL = 250;
+
+	private static final int CONDITIONS = ChannelCondition.STDOUT_DATA
+			| ChannelCondition.STDERR_DATA
+			| ChannelCondition.EOF;
+
+	public interface Listener {
+		/**
+		 * A host changed state or produced output. Called on a worker
+		 * thread, or on the thread that cancels the run.
+		 */
+		public void onHostUpdated(Result result);
+
+		/**
+		 * Every host of the run is done. Called on a worker thread.
+		 */
+		public void onFinished();
+	}
+
+	/**
+	 * Progress and output of one host.
+	 */
+	public static class Result {
+		public static final int STATE_PENDING = 0;
+		public static final int STATE_CONNECTING = 1;
+		public static final int STATE_RUNNING = 2;
+		public static final int STATE_DONE = 3;
+		public static final int STATE_FAILED = 4;
+
+		public final HostBean host;
+
+		private volatile int state = STATE_PENDING;
+		private volatile Integer exitStatus;
+		private volatile String exitSignal;
+		private volatile String error;
+
+		private final Output stdout = new Output();
+		private final Output stderr = new Output();
+
+		private long lastUpdate;
+
+		Result(HostBean host) {
+			this.host = host;
+		}
+
+		/*
+		 * Leaves STATE_PENDING for STATE_CONNECTING. Returns false if the
+		 * run was cancelled before this host got its turn.
+		 */
+		synchronized boolean start() {
+			if (state != STATE_PENDING)
+				return false;
+			state = STATE_CONNECTING;
+			return true;
+		}
+
+		/*
+		 * Fails a host that has not started yet. Returns false if it has.
+		 */
+		synchronized boolean cancelIfPending(String error) {
+			if (state != STATE_PENDING)
+				return false;
+			this.error = error;
+			state = STATE_FAILED;
+			return true;
+		}
+
+		public int getState() {
+			return state;
+		}
+
+		/**
+		 * @return the command's exit status, or null if unknown
+		 */
+		public Integer getExitStatus() {
+			return exitStatus;
+		}
+
+		/**
+		 * @return the signal that killed the command, or null
+		 */
+		public String getExitSignal() {
+			return exitSignal;
+		}
+
+		/**
+		 * @return why the command could not be run, or null
+		 */
+		public String getError() {
+			return error;
+		}
+
+		public String getStdout(String encoding) {
+			return stdout.toString(encoding);
+		}
+
+		public String getStderr(String encoding) {
+			return stderr.toString(encoding);
+		}
+
+		/**
+		 * @return bytes of output that did not fit in {@link #MAX_OUTPUT}
+		 */
+		public long getDroppedBytes() {
+			return stdout.dropped + stderr.dropped;
+		}
+	}
+
+	/*
+	 * Starts small and doubles up to MAX_OUTPUT, since most commands print
+	 * little or nothing and a run may cover hundreds of hosts.
+	 */
+	static class Output {
+		private static final int INITIAL_SIZE = 256;
+
+		private byte[] data = new byte[INITIAL_SIZE];
+		private int length;
+		long dropped;
+
+		synchronized void append(byte[] b, int len) {
+			int n = Math.min(len, MAX_OUTPUT - length);
+
+			if (length + n > data.length) {
+				int size = data.length;
+				while (size < length + n)
+					size *= 2;
+				byte[] grown = new byte[Math.min(size, MAX_OUTPUT)];
+				System.arraycopy(data, 0, grown, 0, length);
+				data = grown;
+			}
+
+			System.arraycopy(b, 0, data, length, n);
+			length += n;
+			dropped += len - n;
+		}
+
+		synchronized String toString(String encoding) {
+			try {
+				return new String(data, 0, length, encoding);
+			} catch (UnsupportedEncodingException e) {
+				return new String(data, 0, length);
+			}
+		}
+	}
+
+	private final TerminalManager manager;
+
+	private final ConnectionPool pool = new ConnectionPool(IDLE_TIMEOUT);
+
+	private ExecutorService executor;
+	private List<Result> results = Collections.emptyList();
+	private volatile Listener listener;
+	private volatile int generation;
+
+	public FleetExec(TerminalManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Run <code>command</code> on every SSH host of <code>hosts</code>,
+	 * abandoning a run that is still in progress.
+	 *
+	 * @return one result per host, in the given order
+	 */
+	public synchronized List<Result> run(List<HostBean> hosts, final String command, int concurrency) {
+		cancel();
+
+		final int run = ++generation;
+
+		List<Result> results = new ArrayList<Result>(hosts.size());
+		for (HostBean host : hosts) {
+			if (SSH.getProtocolName().equals(host.getProtocol()))
+				results.add(new Result(host));
+		}
+		this.results = Collections.unmodifiableList(results);
+
+		// snapshot the unlocked keys for use from the worker threads
+		final List<KeyHolder> keys = new ArrayList<KeyHolder>(manager.loadedKeypairs.values());
+
+		final AtomicInteger remaining = new AtomicInteger(results.size());
+
+		executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, results.size())),
+				new ThreadFactory() {
+					private int count;
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "FleetExec-" + ++count);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		for (final Result result : results) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						execute(result, command, keys, run);
+					} finally {
+						if (remaining.decrementAndGet() == 0 && run == generation) {
+							Listener l = listener;
+							if (l != null)
+								l.onFinished();
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+
+		if (results.isEmpty() && listener != null)
+			listener.onFinished();
+
+		return this.results;
+	}
+
+	/**
+	 * Stop the current run. Hosts that were still waiting for their turn
+	 * fail as cancelled. Commands that already started keep running on
+	 * their hosts; we just stop listening to them.
+	 */
+	public synchronized void cancel() {
+		generation++;
+		if (executor == null)
+			return;
+
+		executor.shutdownNow();
+		executor = null;
+
+		String cancelled = manager.res.getString(R.string.fleet_cancelled);
+		for (Result result : results) {
+			if (result.cancelIfPending(cancelled))
+				setState(result, Result.STATE_FAILED, true);
+		}
+	}
+
+	/**
+	 * @return the results of the latest run
+	 */
+	public synchronized List<Result> getResults() {
+		return results;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Cancel any run and close all pooled connections.
+	 */
+	public void close() {
+		cancel();
+		pool.closeAll();
+	}
+
+	private void execute(Result result, String command, List<KeyHolder> keys, int run) {
+		final HostBean host = result.host;
+		Connection connection = null;
+
+		if (!result.start())
+			return;
+
+		try {
+			setState(result, Result.STATE_CONNECTING, true);
+
+			connection = pool.acquire(poolKey(host));
+			if (connection == null)
+				connection = connect(result, keys);
+			if (connection == null)
+				return;
+
+			Session session;
+			try {
+				session = connection.openSession();
+			} catch (IOException e) {
+				// a pooled connection may have died while it was idle
+				connection.close();
+				connection = connect(result, keys);
+				if (connection == null)
+					return;
+				session = connection.openSession();
+			}
+
+			setState(result, Result.STATE_RUNNING, true);
+
+			try {
+				session.execCommand(command);
+				session.getStdin().close();
+				collect(result, session, run);
+
+				result.exitStatus = session.getExitStatus();
+				result.exitSignal = session.getExitSignal();
+			} finally {
+				session.close();
+			}
+
+			if (run != generation) {
+				fail(result, manager.res.getString(R.string.fleet_cancelled));
+				return;
+			}
+
+			setState(result, Result.STATE_DONE, true);
+
+			pool.release(poolKey(host), connection);
+			connection = null;
+		} catch (IOException e) {
+			Log.w(TAG, "Could not run command on " + host.getNickname(), e);
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			fail(result, cause.getMessage() != null ? cause.getMessage() : cause.toString());
+		} finally {
+			if (connection != null)
+				connection.close();
+		}
+	}
+
+	private void collect(Result result, Session session, int run) throws IOException {
+		InputStream stdout = session.getStdout();
+		InputStream stderr = session.getStderr();
+		byte[] buf = new byte[4096];
+
+		while (run == generation) {
+			if (stdout.available() == 0 && stderr.available() == 0) {
+				int conditions = session.waitForCondition(CONDITIONS, 1000);
+				if ((conditions & ChannelCondition.EOF) != 0
+						&& (conditions & (ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA)) == 0)
+					break;
+				continue;
+			}
+
+			while (stdout.available() > 0) {
+				int n = stdout.read(buf, 0, Math.min(buf.length, stdout.available()));
+				if (n > 0)
+					result.stdout.append(buf, n);
+			}
+
+			while (stderr.available() > 0) {
+				int n = stderr.read(buf, 0, Math.min(buf.length, stderr.available()));
+				if (n > 0)
+					result.stderr.append(buf, n);
+			}
+
+			setState(result, Result.STATE_RUNNING, false);
+		}
+
+		// the exit status usually follows right after EOF
+		session.waitForCondition(ChannelCondition.EXIT_STATUS, 2000);
+	}
+
+	private Connection connect(final Result result, List<KeyHolder> keys) throws IOException {
+		final HostBean host = result.host;
+		final boolean[] hostKeyKnown = { true };
+
+		Connection connection = new Connection(host.getHostname(), host.getPort());
+		connection.setHostnameResolver(manager.dnsCache);
+		connection.setCompression(host.getCompression());
+
+		try {
+			connection.connect(new ServerHostKeyVerifier() {
+				public boolean verifyServerHostKey(String hostname, int port,
+						String serverHostKeyAlgorithm, byte[] serverHostKey) {
+					hostKeyKnown[0] = manager.hostdb.verifyKnownHost(hostname, port,
+							serverHostKeyAlgorithm, serverHostKey) == KnownHosts.HOSTKEY_IS_OK;
+					return hostKeyKnown[0];
+				}
+			}, CONNECT_TIMEOUT, KEX_TIMEOUT);
+		} catch (IOException e) {
+			connection.close();
+			if (hostKeyKnown[0]) {
+				// The host may have moved; look it up again next time.
+				manager.dnsCache.invalidate(host.getHostname());
+				throw e;
+			}
+
+			fail(result, manager.res.getString(R.string.fleet_error_hostkey));
+			return null;
+		}
+
+		manager.dnsCache.recordWinner(host.getHostname(), connection.getRemoteAddress());
+
+		try {
+			if (authenticate(connection, host, keys))
+				return connection;
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+
+		connection.close();
+		fail(result, manager.res.getString(R.string.fleet_error_auth));
+		return null;
+	}
+
+	private boolean authenticate(Connection connection, HostBean host, List<KeyHolder> keys) throws IOException {
+		final String username = host.getUsername();
+
+		if (connection.authenticateWithNone(username))
+			return true;
+
+		final long pubkeyId = host.getPubkeyId();
+		if (pubkeyId == HostDatabase.PUBKEYID_NEVER
+				|| !connection.isAuthMethodAvailable(username, "publickey"))
+			return false;
+
+		if (pubkeyId == HostDatabase.PUBKEYID_ANY) {
+			List<KeyHolder> holders = new ArrayList<KeyHolder>();
+			List<PublicKey> publicKeys = new ArrayList<PublicKey>();
+			for (KeyHolder key : keys) {
+				// keys that want confirmation would need to ask
+				if (key.bean.isConfirmUse())
+					continue;
+
+				PublicKey publicKey = key.getPublicKey();
+				if (publicKey == null)
+					continue;
+
+				holders.add(key);
+				publicKeys.add(publicKey);
+			}
+
+			// only the keys the server takes are decoded and signed with
+			PublicKey[] probe = publicKeys.toArray(new PublicKey[publicKeys.size()]);
+			int i = -1;
+			while ((i = connection.queryPublicKeys(username, probe, i + 1)) >= 0) {
+				KeyPair pair = holders.get(i).getPair();
+				if (pair != null && connection.authenticateWithPublicKey(username, pair))
+					return true;
+			}
+			return false;
+		}
+
+		PubkeyBean pubkey = manager.pubkeydb.findPubkeyById(pubkeyId);
+		if (pubkey == null || pubkey.isConfirmUse())
+			return false;
+
+		KeyPair pair = manager.getKey(pubkey.getNickname());
+		if (pair == null && !pubkey.isEncrypted())
+			pair = decode(pubkey);
+
+		return pair != null && connection.authenticateWithPublicKey(username, pair);
+	}
+
+	private static KeyPair decode(PubkeyBean pubkey) {
+		try {
+			if (PubkeyDatabase.KEY_TYPE_IMPORTED.equals(pubkey.getType()))
+				return PEMDecoder.decode(new String(pubkey.getPrivateKey()).toCharArray(), null);
+
+			PrivateKey privKey = PubkeyUtils.decodePrivate(pubkey.getPrivateKey(), pubkey.getType());
+			PublicKey pubKey = PubkeyUtils.decodePublic(pubkey.getPublicKey(), pubkey.getType());
+			return new KeyPair(pubKey, privKey);
+		} catch (Exception e) {
+			Log.e(TAG, String.format("Could not decode key '%s'", pubkey.getNickname()), e);
+			return null;
+		}
+	}
+
+	private static String poolKey(HostBean host) {
+		return host.getUsername() + "@" + host.getHostname() + ":" + host.getPort();
+	}
+
+	private void fail(Result result, String error) {
+		result.error = error;
+		setState(result, Result.STATE_FAILED, true);
+	}
+
+	private void setState(Result result, int state, boolean force) {
+		result.state = state;
+
+		long now = System.currentTimeMillis();
+		if (!force && now - result.lastUpdate < UPDATE_INTERVAL)
+			return;
+		result.lastUpdate = now;
+
+		Listener l = listener;
+		if (l != null)
+			l.onHostUpdated(result);
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.vx.connectbot.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+
+/**
+ * Glyphs rendered once and then copied to the screen. Each glyph is kept as
+ * an alpha mask the size of its cell in a big {@link Config#ALPHA_8} bitmap,
+ * so it can be drawn in any color; underlining is drawn separately, which
+ * leaves the character as the only key. Full width characters take two
+ * cells and live in a bitmap of their own.
+ * <p>
+ * The bitmaps are sized to a memory budget when the first glyph is needed.
+ * Once one is full, the glyph that was used the longest time ago makes
+ * room for the new one.
+ */
+public class GlyphAtlas {
+	/** Default memory budget in bytes, for both bitmaps together */
+	public final static int DEFAULT_BUDGET = 512 * 1024;
+
+	/* Keep bitmaps within what every GPU can take as a texture */
+	private final static int MAX_BITMAP_WIDTH = 2048;
+
+	private final Paint textPaint;
+	private final Paint glyphPaint = new Paint();
+	private final int budget;
+
+	private int charWidth = -1;
+	private int charHeight = -1;
+	private int charTop = -1;
+
+	private final Page narrow = new Page(1);
+	private final Page wide = new Page(2);
+
+	private final char[] one = new char[1];
+	private final Rect src = new Rect();
+	private final Rect dst = new Rect();
+
+	private class Page {
+		final int cells;
+
+		Bitmap bitmap;
+		Canvas canvas;
+		int columns;
+		int slots;
+		int used;
+
+		/* glyph to slot, least recently used first */
+		final LinkedHashMap<Character, Integer> glyphs =
+				new LinkedHashMap<Character, Integer>(256, 0.75f, true);
+
+		Page(int cells) {
+			this.cells = cells;
+		}
+
+		int slotWidth() {
+			return cells * charWidth;
+		}
+
+		void allocate(int bytes) {
+			int slotWidth = slotWidth();
+			slots = Math.max(1, bytes / (slotWidth * charHeight));
+			columns = Math.max(1, Math.min(slots, MAX_BITMAP_WIDTH / slotWidth));
+			int rows = (slots + columns - 1) / columns;
+
+			bitmap = Bitmap.createBitmap(columns * slotWidth, rows * charHeight, Config.ALPHA_8);
+			canvas = new Canvas(bitmap);
+		}
+
+		/*
+		 * Find the glyph, rendering it first if it is not here yet.
+		 */
+		int slotFor(char c) {
+			Integer slot = glyphs.get(c);
+			if (slot != null)
+				return slot;
+
+			if (bitmap == null)
+				allocate(cells == 1 ? budget - budget / 4 : budget / 4);
+
+			int s;
+			if (used < slots) {
+				s = used++;
+			} else {
+				Iterator<Map.Entry<Character, Integer>> eldest = glyphs.entrySet().iterator();
+				s = eldest.next().getValue();
+				eldest.remove();
+			}
+
+			int x = (s % columns) * slotWidth();
+			int y = (s / columns) * charHeight;
+
+			canvas.save(Canvas.CLIP_SAVE_FLAG);
+			canvas.clipRect(x, y, x + slotWidth(), y + charHeight);
+			canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+			one[0] = c;
+			canvas.drawText(one, 0, 1, x, y - charTop, glyphPaint);
+			canvas.restore();
+
+			glyphs.put(c, s);
+			return s;
+		}
+
+		void clear() {
+			if (bitmap != null)
+				bitmap.recycle();
+			bitmap = null;
+			canvas = null;
+			used = 0;
+			glyphs.clear();
+		}
+	}
+
+	/**
+	 * @param textPaint paint with the font the glyphs are rendered in; it is
+	 *        read again on every {@link #setCharSize}
+	 * @param budget bytes the bitmaps may take
+	 */
+	public GlyphAtlas(Paint textPaint, int budget) {
+		this.textPaint = textPaint;
+		this.budget = budget;
+	}
+
+	/**
+	 * Start over with glyphs for a new font or size.
+	 * @param width width of a cell in pixels
+	 * @param height height of a cell in pixels
+	 * @param top the font's top, negative, to place glyphs in their cell
+	 */
+	public void setCharSize(int width, int height, int top) {
+		clear();
+
+		charWidth = width;
+		charHeight = height;
+		charTop = top;
+
+		glyphPaint.set(textPaint);
+		glyphPaint.setColor(Color.WHITE);
+		glyphPaint.setUnderlineText(false);
+	}
+
+	/**
+	 * Throw away every glyph and the bitmaps holding them.
+	 */
+	public void clear() {
+		narrow.clear();
+		wide.clear();
+	}
+
+	/**
+	 * @return number of glyphs kept right now
+	 */
+	public int size() {
+		return narrow.glyphs.size() + wide.glyphs.size();
+	}
+
+	/**
+	 * Draw one glyph with its top left corner at x, y.
+	 * @param fullWidth whether the character takes two cells
+	 * @param paint used for its color only
+	 */
+	public void draw(Canvas canvas, char c, boolean fullWidth, int x, int y, Paint paint) {
+		Page page = fullWidth ? wide : narrow;
+		int slot = page.slotFor(c);
+
+		int slotWidth = page.slotWidth();
+		int sx = (slot % page.columns) * slotWidth;
+		int sy = (slot / page.columns) * charHeight;
+
+		src.set(sx, sy, sx + slotWidth, sy + charHeight);
+		dst.set(x, y, x + slotWidth, y + charHeight);
+		canvas.drawBitmap(page.bitmap, src, dst, paint);
+	}
+}
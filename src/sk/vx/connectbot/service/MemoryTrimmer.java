@@ -0,0 +1,139 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package sk.vx.connectbot.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+/**
+ * Keeps the memory taken by terminals that are not on screen in check.
+ * <p>
+ * Each bridge holds a full screen bitmap and the scrollback that has not
+ * gone to disk yet. A bridge that is out of sight gives up its bitmap,
+ * which is redrawn from the buffer when it is shown again, and moves its
+ * scrollback to disk if it keeps one there. This happens to every bridge
+ * but the one on screen when the system asks the app to trim its memory,
+ * and to the bridges drawn least recently whenever those not on screen
+ * take more than the budget together.
+ */
+public class MemoryTrimmer {
+	private static final String TAG = "ConnectBot.MemoryTrimmer";
+
+	public static final int DEFAULT_BUDGET_MB = 32;
+
+	private final TerminalManager manager;
+
+	private volatile long budget = DEFAULT_BUDGET_MB * 1024L * 1024L;
+
+	public MemoryTrimmer(TerminalManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * @param megabytes memory all terminals together may take, 0 for no limit
+	 */
+	public void setBudget(int megabytes) {
+		budget = megabytes > 0 ? megabytes * 1024L * 1024L : Long.MAX_VALUE;
+	}
+
+	/**
+	 * React to {@link ComponentCallbacks2#onTrimMemory(int)}.
+	 */
+	public void trim(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			// nothing is on screen, so nothing needs its bitmap
+			release(null, Long.MAX_VALUE);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			release(visibleBridge(), Long.MAX_VALUE);
+		} else {
+			enforce(visibleBridge());
+		}
+	}
+
+	/**
+	 * Release memory of the bridges drawn least recently until the others
+	 * fit into the budget.
+	 * @param keep a bridge that neither counts nor is touched, typically
+	 *             the one on screen
+	 */
+	public void enforce(TerminalBridge keep) {
+		long total = 0;
+		for (TerminalBridge bridge : getBridges()) {
+			if (bridge != keep)
+				total += bridge.getMemoryFootprint();
+		}
+
+		if (total > budget)
+			release(keep, total - budget);
+	}
+
+	/*
+	 * Release bitmaps and then scrollback, least recently drawn bridges
+	 * first, until at least "wanted" bytes are freed.
+	 */
+	private void release(TerminalBridge keep, long wanted) {
+		List<TerminalBridge> bridges = getBridges();
+
+		Collections.sort(bridges, new Comparator<TerminalBridge>() {
+			public int compare(TerminalBridge a, TerminalBridge b) {
+				long lhs = a.getLastDrawn(), rhs = b.getLastDrawn();
+				return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+			}
+		});
+
+		long released = 0;
+
+		for (TerminalBridge bridge : bridges) {
+			if (released >= wanted)
+				break;
+			if (bridge == keep || (keep != null && bridge.isVisible()))
+				continue;
+			released += bridge.releaseBitmap();
+		}
+
+		for (TerminalBridge bridge : bridges) {
+			if (released >= wanted)
+				break;
+			if (bridge == keep)
+				continue;
+			released += bridge.spillScrollback();
+		}
+
+		Log.d(TAG, String.format("Released %d KiB of terminal memory", released / 1024));
+	}
+
+	private TerminalBridge visibleBridge() {
+		for (TerminalBridge bridge : getBridges()) {
+			if (bridge.isVisible())
+				return bridge;
+		}
+		return manager.defaultBridge;
+	}
+
+	private List<TerminalBridge> getBridges() {
+		synchronized (manager.bridges) {
+			return new ArrayList<TerminalBridge>(manager.bridges);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package sk.vx.connectbot.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Sends text to the remote end a chunk at a time, the way it would arrive
+ * if it was typed very fast. Only one chunk is ever encoded at once, so a
+ * large paste is not copied into memory again as a whole. Every write
+ * blocks while the channel window is closed, which keeps the paste from
+ * running ahead of the remote end. The paste can be cancelled between
+ * chunks.
+ * <p>
+ * A bracketed paste is wrapped in <code>ESC [200~</code> and
+ * <code>ESC [201~</code> so that applications which asked for it can tell
+ * pasted text from typed text. Escape characters are left out of the
+ * pasted text then, so that it cannot end the bracket early.
+ */
+public class PasteSender implements Runnable {
+	public static final int CHUNK_SIZE = 4096;
+
+	private static final char ESC = 27;
+	private static final String BRACKET_START = ESC + "[200~";
+	private static final String BRACKET_END = ESC + "[201~";
+
+	/**
+	 * Where the encoded text goes.
+	 */
+	public interface Sink {
+		void write(byte[] buffer, int offset, int length) throws IOException;
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the sending thread after each chunk.
+		 * @param sent characters of the text sent so far
+		 * @param total length of the text
+		 */
+		void onProgress(int sent, int total);
+
+		/**
+		 * Called on the sending thread when the paste is over.
+		 * @param completed whether all of the text was sent
+		 */
+		void onFinished(PasteSender sender, boolean completed);
+	}
+
+	private final String text;
+	private final Charset charset;
+	private final boolean bracketed;
+	private final Sink sink;
+
+	private Listener listener;
+
+	private volatile boolean cancelled = false;
+	private volatile int sent = 0;
+
+	public PasteSender(String text, String encoding, boolean bracketed, Sink sink) {
+		this.text = text;
+		this.charset = Charset.forName(encoding);
+		this.bracketed = bracketed;
+		this.sink = sink;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Stop after the chunk being sent now. A bracketed paste still gets its
+	 * closing bracket.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return characters of the text sent so far
+	 */
+	public int getSent() {
+		return sent;
+	}
+
+	public int getTotal() {
+		return text.length();
+	}
+
+	public void run() {
+		boolean completed = false;
+
+		try {
+			completed = send();
+		} catch (IOException e) {
+			// the connection went away, nothing more can be sent
+		} finally {
+			if (listener != null)
+				listener.onFinished(this, completed);
+		}
+	}
+
+	/**
+	 * Sends the text on the calling thread.
+	 * @return whether all of it was sent, false if cancelled
+	 */
+	public boolean send() throws IOException {
+		CharsetEncoder encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		char[] chars = new char[CHUNK_SIZE];
+		ByteBuffer out = ByteBuffer.allocate((int) Math.ceil(encoder.maxBytesPerChar() * CHUNK_SIZE));
+
+		if (bracketed)
+			write(encoder, BRACKET_START, out);
+
+		int length = text.length();
+		int start = 0;
+
+		while (start < length && !cancelled) {
+			int end = Math.min(start + CHUNK_SIZE, length);
+
+			// keep surrogate pairs together
+			if (end < length && Character.isHighSurrogate(text.charAt(end - 1)) && end - 1 > start)
+				end--;
+
+			text.getChars(start, end, chars, 0);
+			int count = end - start;
+
+			if (bracketed)
+				count = removeEscapes(chars, count);
+
+			encode(encoder, CharBuffer.wrap(chars, 0, count), out, false);
+
+			start = end;
+			sent = start;
+
+			Listener listener = this.listener;
+			if (listener != null)
+				listener.onProgress(start, length);
+		}
+
+		encode(encoder, CharBuffer.wrap(chars, 0, 0), out, true);
+
+		if (bracketed)
+			write(encoder, BRACKET_END, out);
+
+		return start == length;
+	}
+
+	private void write(CharsetEncoder encoder, String s, ByteBuffer out) throws IOException {
+		encoder.reset();
+		encode(encoder, CharBuffer.wrap(s), out, true);
+		encoder.reset();
+	}
+
+	private void encode(CharsetEncoder encoder, CharBuffer in, ByteBuffer out, boolean last)
+			throws IOException {
+		CoderResult result;
+		do {
+			result = encoder.encode(in, out, last);
+			drain(out);
+		} while (result.isOverflow());
+
+		if (last) {
+			do {
+				result = encoder.flush(out);
+				drain(out);
+			} while (result.isOverflow());
+		}
+	}
+
+	private void drain(ByteBuffer out) throws IOException {
+		out.flip();
+		if (out.hasRemaining())
+			sink.write(out.array(), out.arrayOffset() + out.position(), out.remaining());
+		out.clear();
+	}
+
+	private static int removeEscapes(char[] chars, int count) {
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			if (chars[i] != ESC)
+				chars[kept++] = chars[i];
+		}
+		return kept;
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.service;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Decides when bridges that lost their connection get to try again.
+ * <p>
+ * At most {@link #MAX_CONCURRENT} reconnects run at a time, so a network
+ * flap does not make every bridge hit DNS, TCP and key exchange at once on
+ * a weak radio. The bridge on screen goes first. A bridge whose attempt
+ * fails waits exponentially longer each time, with jitter so that bridges
+ * which failed together do not retry together. While there is no network,
+ * nothing that needs one is started.
+ * <p>
+ * A bridge asks again through {@link TerminalManager#requestReconnect} when
+ * its attempt fails, which is how failures are noticed. Success is reported
+ * with {@link #onConnected(TerminalBridge)}.
+ */
+public class ReconnectScheduler {
+	private static final String TAG = "ConnectBot.ReconnectScheduler";
+
+	public static final int MAX_CONCURRENT = 2;
+
+	static final long BASE_DELAY = 2 * 1000;
+	static final long MAX_DELAY = 5 * 60 * 1000;
+
+	/* An attempt that neither failed nor succeeded by now (maybe it waits
+	 * for a password) no longer holds up the others. */
+	static final long ATTEMPT_TIMEOUT = 60 * 1000;
+
+	/**
+	 * Snapshot of one queued bridge, for diagnostics.
+	 */
+	public static class Status {
+		public final String nickname;
+		public final int failures;
+		public final boolean connecting;
+		/** Milliseconds until the next attempt may start, 0 if it may now */
+		public final long delay;
+
+		Status(String nickname, int failures, boolean connecting, long delay) {
+			this.nickname = nickname;
+			this.failures = failures;
+			this.connecting = connecting;
+			this.delay = delay;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %s, %d failures, next in %d ms", nickname,
+					connecting ? "connecting" : "waiting", failures, delay);
+		}
+	}
+
+	private static class Entry {
+		final WeakReference<TerminalBridge> ref;
+		int failures;
+		long notBefore;
+		long startedAt = -1;
+
+		Entry(TerminalBridge bridge) {
+			ref = new WeakReference<TerminalBridge>(bridge);
+		}
+
+		boolean isConnecting() {
+			return startedAt >= 0;
+		}
+	}
+
+	private final TerminalManager manager;
+
+	private final List<Entry> entries = new LinkedList<Entry>();
+	private final Timer timer = new Timer("ReconnectScheduler", true);
+	private final Random random = new Random();
+
+	private TimerTask pending;
+	private boolean online;
+	private boolean closed;
+
+	public ReconnectScheduler(TerminalManager manager, boolean online) {
+		this.manager = manager;
+		this.online = online;
+	}
+
+	/**
+	 * Queue a reconnect of <code>bridge</code>. If the bridge was already
+	 * trying, that attempt failed and the next one is delayed. A bridge
+	 * that is already waiting keeps its place.
+	 */
+	public synchronized void request(TerminalBridge bridge) {
+		long now = SystemClock.elapsedRealtime();
+
+		Entry entry = find(bridge);
+		if (entry == null) {
+			entry = new Entry(bridge);
+			entry.notBefore = now;
+			entries.add(entry);
+		} else if (entry.isConnecting()) {
+			entry.startedAt = -1;
+			entry.failures++;
+			entry.notBefore = now + backoff(entry.failures);
+			Log.d(TAG, String.format("Reconnect of %s failed %d times, next try in %d ms",
+					bridge.host.getNickname(), entry.failures, entry.notBefore - now));
+		}
+
+		schedule(0);
+	}
+
+	/**
+	 * The bridge is connected again and leaves the queue.
+	 */
+	public synchronized void onConnected(TerminalBridge bridge) {
+		if (remove(bridge))
+			schedule(0);
+	}
+
+	/**
+	 * Forget about a bridge that is closed for good.
+	 * @return whether it was queued
+	 */
+	public synchronized boolean remove(TerminalBridge bridge) {
+		Entry entry = find(bridge);
+		if (entry == null)
+			return false;
+
+		entries.remove(entry);
+		return true;
+	}
+
+	/**
+	 * Connectivity changed. Losing it stops everything that needs the
+	 * network; getting it back retries them right away, since earlier
+	 * failures were most likely down to the missing network.
+	 */
+	public synchronized void setOnline(boolean online) {
+		this.online = online;
+
+		long now = SystemClock.elapsedRealtime();
+		for (Entry entry : entries) {
+			if (online) {
+				entry.failures = 0;
+				entry.notBefore = now;
+			} else {
+				// whatever is connecting now will fail and ask again
+				entry.startedAt = -1;
+			}
+		}
+
+		if (online)
+			schedule(0);
+		else if (pending != null) {
+			pending.cancel();
+			pending = null;
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * @return the state of every queued bridge, in queue order
+	 */
+	public synchronized List<Status> getQueue() {
+		long now = SystemClock.elapsedRealtime();
+		List<Status> queue = new ArrayList<Status>(entries.size());
+
+		for (Entry entry : entries) {
+			TerminalBridge bridge = entry.ref.get();
+			if (bridge == null)
+				continue;
+			queue.add(new Status(bridge.host.getNickname(), entry.failures,
+					entry.isConnecting(), Math.max(0, entry.notBefore - now)));
+		}
+
+		return queue;
+	}
+
+	public synchronized void close() {
+		closed = true;
+		timer.cancel();
+	}
+
+	/*
+	 * Somewhere between half and one and a half times the doubled delay.
+	 */
+	private long backoff(int failures) {
+		long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(failures - 1, 16));
+		return delay / 2 + (long) (random.nextDouble() * delay);
+	}
+
+	private Entry find(TerminalBridge bridge) {
+		for (Entry entry : entries) {
+			if (entry.ref.get() == bridge)
+				return entry;
+		}
+		return null;
+	}
+
+	private void schedule(long delay) {
+		if (pending != null)
+			pending.cancel();
+		if (closed)
+			return;
+
+		pending = new TimerTask() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		};
+		timer.schedule(pending, delay);
+	}
+
+	private void dispatch() {
+		List<TerminalBridge> start = new LinkedList<TerminalBridge>();
+
+		synchronized (this) {
+			pending = null;
+
+			final long now = SystemClock.elapsedRealtime();
+			final TerminalBridge foreground = manager.defaultBridge;
+			long next = Long.MAX_VALUE;
+			int connecting = 0;
+
+			for (Iterator<Entry> i = entries.iterator(); i.hasNext(); ) {
+				Entry entry = i.next();
+				if (entry.ref.get() == null) {
+					i.remove();
+				} else if (entry.isConnecting() && now - entry.startedAt < ATTEMPT_TIMEOUT) {
+					connecting++;
+					next = Math.min(next, entry.startedAt + ATTEMPT_TIMEOUT);
+				}
+			}
+
+			while (connecting < MAX_CONCURRENT) {
+				Entry best = null;
+				for (Entry entry : entries) {
+					TerminalBridge bridge = entry.ref.get();
+					if (bridge == null || entry.isConnecting() || entry.notBefore > now
+							|| (!online && bridge.isUsingNetwork()))
+						continue;
+
+					if (bridge == foreground) {
+						best = entry;
+						break;
+					}
+					if (best == null || entry.notBefore < best.notBefore)
+						best = entry;
+				}
+
+				if (best == null)
+					break;
+
+				TerminalBridge bridge = best.ref.get();
+				best.startedAt = now;
+				start.add(bridge);
+				connecting++;
+				next = Math.min(next, now + ATTEMPT_TIMEOUT);
+			}
+
+			for (Entry entry : entries) {
+				TerminalBridge bridge = entry.ref.get();
+				if (bridge != null && !entry.isConnecting() && entry.notBefore > now
+						&& (online || !bridge.isUsingNetwork()))
+					next = Math.min(next, entry.notBefore);
+			}
+
+			if (next != Long.MAX_VALUE)
+				schedule(next - now);
+		}
+
+		for (TerminalBridge bridge : start) {
+			Log.d(TAG, "Reconnecting " + bridge.host.getNickname());
+			bridge.startConnection();
+		}
+	}
+}
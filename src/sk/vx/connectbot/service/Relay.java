@@ -28,6 +28,7 @@ import java.nio.charset.CodingErrorAction;
 import org.apache.harmony.niochar.charset.additional.IBM437;
 
 import sk.vx.connectbot.transport.AbsTransport;
+import sk.vx.connectbot.util.SessionRecorder;
 import android.graphics.Paint;
 import android.text.AndroidCharacter;
 import android.util.Log;
@@ -50,6 +51,8 @@ public class Relay implements Runnable {
 
 	private vt320 buffer;
 
+	private SessionRecorder recorder;
+
 	private ByteBuffer byteBuffer;
 	private CharBuffer charBuffer;
 
@@ -87,9 +90,19 @@ public class Relay implements Runnable {
 		currentCharset = charset;
 		synchronized (this) {
 			decoder = newCd;
+			if (recorder != null)
+				recorder.setCharset(charset);
 		}
 	}
 
+	/**
+	 * Record everything received from now on. The recorder is closed when
+	 * the relay stops. Must be called before the relay thread is started.
+	 */
+	public void setRecorder(SessionRecorder recorder) {
+		this.recorder = recorder;
+	}
+
 	public Charset getCharset() {
 		return currentCharset;
 	}
@@ -120,6 +133,9 @@ public class Relay implements Runnable {
 				bytesRead = transport.read(byteArray, offset, bytesToRead);
 
 				if (bytesRead > 0) {
+					if (recorder != null)
+						recorder.write(byteArray, offset, bytesRead);
+
 					byteBuffer.limit(byteBuffer.limit() + bytesRead);
 
 					synchronized (this) {
@@ -136,7 +152,19 @@ public class Relay implements Runnable {
 					offset = charBuffer.position();
 
 					eastAsianWidthMeasure(charArray, 0, offset, wideAttribute, bridge.defaultPaint, charWidth);
-					buffer.putString(charArray, wideAttribute, 0, charBuffer.position());
+
+					SessionMetrics metrics = bridge.getSessionMetrics();
+					if (metrics == null)
+						buffer.putString(charArray, wideAttribute, 0, charBuffer.position());
+					else {
+						int row = buffer.getCursorRow();
+						int column = buffer.getCursorColumn();
+						long start = System.nanoTime();
+						buffer.putString(charArray, wideAttribute, 0, charBuffer.position());
+						metrics.read(bytesRead, System.nanoTime() - start,
+								row != buffer.getCursorRow() || column != buffer.getCursorColumn());
+					}
+
 					bridge.propagateConsoleText(charArray, charBuffer.position());
 					charBuffer.clear();
 					bridge.redraw();
@@ -144,6 +172,9 @@ public class Relay implements Runnable {
 			}
 		} catch (IOException e) {
 			Log.e(TAG, "Problem while handling incoming data in relay thread", e);
+		} finally {
+			if (recorder != null)
+				recorder.close();
 		}
 	}
 }
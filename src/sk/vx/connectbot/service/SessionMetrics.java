@@ -0,0 +1,254 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.service;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Counters for finding out why a terminal feels slow: how much the relay
+ * reads and how long the emulator takes to parse it, how many frames are
+ * drawn and how long they take, how long typed keys take to be echoed and
+ * how long the whole process was stalled.
+ * <p>
+ * A bridge only has an instance while measuring is turned on; otherwise
+ * every place that feeds it pays for one <code>null</code> check. Echo
+ * latency is the time from a key being written to the next read that moves
+ * the cursor; a key nothing answers within {@link #ECHO_TIMEOUT} is not
+ * counted. Stalls are seen by a thread that sleeps {@link #PAUSE_INTERVAL}
+ * at a time and wakes up late, garbage collection being the usual reason.
+ * All times are in nanoseconds.
+ */
+public class SessionMetrics {
+	static final long ECHO_TIMEOUT = 5000L * 1000000L;
+
+	static final long PAUSE_INTERVAL = 50L * 1000000L;
+	static final long PAUSE_THRESHOLD = 16L * 1000000L;
+
+	/**
+	 * Counters at one point in time.
+	 */
+	public static class Snapshot {
+		/** Time since measuring started */
+		public final long elapsed;
+
+		public final long bytesRead;
+		public final long reads;
+		public final long parseTime;
+
+		public final long frames;
+		public final long renderTime;
+		public final long maxRenderTime;
+
+		public final long echoes;
+		public final long echoTime;
+		public final long lastEcho;
+		public final long maxEcho;
+
+		public final long pauses;
+		public final long pauseTime;
+		public final long maxPause;
+
+		private Snapshot(SessionMetrics m) {
+			elapsed = System.nanoTime() - m.created;
+			bytesRead = m.bytesRead;
+			reads = m.reads;
+			parseTime = m.parseTime;
+			frames = m.frames;
+			renderTime = m.renderTime;
+			maxRenderTime = m.maxRenderTime;
+			echoes = m.echoes;
+			echoTime = m.echoTime;
+			lastEcho = m.lastEcho;
+			maxEcho = m.maxEcho;
+			pauses = m.pauses;
+			pauseTime = m.pauseTime;
+			maxPause = m.maxPause;
+		}
+
+		/**
+		 * Multi line summary with times in milliseconds, meant for people.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+
+			sb.append("elapsed ").append(elapsed / 1000000L).append(" ms\n");
+			sb.append("read ").append(bytesRead).append(" bytes in ").append(reads)
+					.append(" reads, parsed in ").append(parseTime / 1000000L).append(" ms\n");
+			sb.append("drew ").append(frames).append(" frames in ").append(renderTime / 1000000L)
+					.append(" ms (max ").append(maxRenderTime / 1000000L).append(")\n");
+
+			if (echoes > 0)
+				sb.append("echo ").append(echoTime / echoes / 1000000L).append(" ms avg (last ")
+						.append(lastEcho / 1000000L).append(", max ").append(maxEcho / 1000000L)
+						.append(") over ").append(echoes).append(" keys\n");
+
+			sb.append("pauses ").append(pauses).append(", ").append(pauseTime / 1000000L)
+					.append(" ms (max ").append(maxPause / 1000000L).append(")");
+
+			return sb.toString();
+		}
+	}
+
+	/* Metrics that want to hear about pauses; the detector runs while there are any */
+	private static final List<SessionMetrics> open = new LinkedList<SessionMetrics>();
+	private static Thread pauseDetector;
+
+	private final long created = System.nanoTime();
+
+	private long bytesRead;
+	private long reads;
+	private long parseTime;
+
+	private long frames;
+	private long renderTime;
+	private long maxRenderTime;
+
+	private long keySentAt = -1;
+	private long echoes;
+	private long echoTime;
+	private long lastEcho;
+	private long maxEcho;
+
+	private long pauses;
+	private long pauseTime;
+	private long maxPause;
+
+	/**
+	 * Start watching for pauses of the process.
+	 */
+	public void start() {
+		synchronized (open) {
+			if (open.contains(this))
+				return;
+
+			open.add(this);
+
+			if (pauseDetector == null) {
+				pauseDetector = new Thread(new PauseDetector(), "PauseDetector");
+				pauseDetector.setDaemon(true);
+				pauseDetector.start();
+			}
+		}
+	}
+
+	/**
+	 * Stop watching for pauses. The counters stay readable.
+	 */
+	public void stop() {
+		synchronized (open) {
+			open.remove(this);
+
+			if (open.isEmpty() && pauseDetector != null) {
+				pauseDetector.interrupt();
+				pauseDetector = null;
+			}
+		}
+	}
+
+	/**
+	 * The relay read <code>bytes</code> and the emulator took
+	 * <code>parse</code> to process them.
+	 * @param cursorMoved whether that moved the cursor, which is taken as
+	 * the echo of a key sent before
+	 */
+	public synchronized void read(int bytes, long parse, boolean cursorMoved) {
+		reads++;
+		bytesRead += bytes;
+		parseTime += parse;
+
+		if (keySentAt < 0)
+			return;
+
+		long echo = System.nanoTime() - keySentAt;
+		if (echo > ECHO_TIMEOUT) {
+			keySentAt = -1;
+		} else if (cursorMoved) {
+			keySentAt = -1;
+			echoes++;
+			echoTime += echo;
+			lastEcho = echo;
+			maxEcho = Math.max(maxEcho, echo);
+		}
+	}
+
+	/**
+	 * A frame was drawn in <code>time</code>.
+	 */
+	public synchronized void frame(long time) {
+		frames++;
+		renderTime += time;
+		maxRenderTime = Math.max(maxRenderTime, time);
+	}
+
+	/**
+	 * A key was written to the host. While an earlier key is still waiting
+	 * for its echo, the time is kept from that one.
+	 */
+	public synchronized void keySent() {
+		long now = System.nanoTime();
+		if (keySentAt < 0 || now - keySentAt > ECHO_TIMEOUT)
+			keySentAt = now;
+	}
+
+	/* package */ synchronized void pause(long time) {
+		pauses++;
+		pauseTime += time;
+		maxPause = Math.max(maxPause, time);
+	}
+
+	public synchronized Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	private static class PauseDetector implements Runnable {
+		public void run() {
+			long last = System.nanoTime();
+
+			while (true) {
+				try {
+					Thread.sleep(PAUSE_INTERVAL / 1000000L);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				long now = System.nanoTime();
+				long pause = now - last - PAUSE_INTERVAL;
+				last = now;
+
+				if (pause < PAUSE_THRESHOLD)
+					continue;
+
+				synchronized (open) {
+					// a detector that was stopped and replaced does not report
+					if (pauseDetector != Thread.currentThread())
+						return;
+
+					for (SessionMetrics metrics : open)
+						metrics.pause(pause);
+				}
+			}
+		}
+	}
+}
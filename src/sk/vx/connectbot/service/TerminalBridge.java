@@ -27,6 +27,10 @@ import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,6 +43,8 @@ import sk.vx.connectbot.transport.AbsTransport;
 import sk.vx.connectbot.transport.TransportFactory;
 import sk.vx.connectbot.util.HostDatabase;
 import sk.vx.connectbot.util.PreferenceConstants;
+import sk.vx.connectbot.util.SessionRecorder;
+import sk.vx.connectbot.util.TerminalPainter;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -49,6 +55,7 @@ import android.graphics.Paint;
 import android.graphics.Paint.FontMetrics;
 import android.graphics.Typeface;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.text.ClipboardManager;
 import android.text.Editable;
 import android.text.method.CharacterPickerDialog;
@@ -58,10 +65,14 @@ import android.view.KeyEvent;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.Button;
+import de.mud.terminal.BufferSearch;
+import de.mud.terminal.ScrollbackStore;
 import de.mud.terminal.VDUBuffer;
 import de.mud.terminal.VDUDisplay;
 import de.mud.terminal.vt320;
 
+import com.trilead.ssh2.ConnectionMetrics;
+
 
 /**
  * Provides a bridge between a MUD terminal buffer and a possible TerminalView.
@@ -76,6 +87,16 @@ import de.mud.terminal.vt320;
 public class TerminalBridge implements VDUDisplay {
 	public final static String TAG = "ConnectBot.TerminalBridge";
 
+	/** Prefix of the scrollback files kept in the cache directory */
+	public final static String SCROLLBACK_FILE_PREFIX = "scrollback";
+
+	/** Directory session transcripts are written to */
+	public final static String SESSION_LOG_DIR = "sessions";
+
+	/* Start a new transcript file after this much data or time */
+	private final static long SESSION_LOG_MAX_BYTES = 16 * 1024 * 1024;
+	private final static long SESSION_LOG_MAX_MILLIS = 24 * 60 * 60 * 1000L;
+
 	public final static int DEFAULT_FONT_SIZE = 10;
 	private final static int FONT_SIZE_STEP = 2;
 
@@ -93,6 +114,7 @@ public class TerminalBridge implements VDUDisplay {
 	final Paint defaultPaint;
 
 	private Relay relay;
+	private SessionRecorder recorder;
 
 	private final String emulation;
 	private final int scrollback;
@@ -103,9 +125,20 @@ public class TerminalBridge implements VDUDisplay {
 	private TerminalView parent = null;
 	private final Canvas canvas = new Canvas();
 
+	/* When the bitmap was last drawn on screen, for trimming memory */
+	private volatile long lastDrawn = 0;
+
+	private final TerminalPainter painter = new TerminalPainter();
+	private final CanvasRenderer renderer;
+	private GlyphAtlas glyphs;
+
 	private boolean disconnected = false;
 	private boolean awaitingClose = false;
 
+	/* Sends pastes one after the other; its thread goes away when idle */
+	private ThreadPoolExecutor paster;
+	private final List<PasteSender> pastes = new LinkedList<PasteSender>();
+
 	private boolean forcedSize = false;
 	private int columns;
 	private int rows;
@@ -115,6 +148,21 @@ public class TerminalBridge implements VDUDisplay {
 	private boolean selectingForCopy = false;
 	private final SelectionArea selectionArea;
 
+	private BufferSearch search;
+	private BufferSearch.Listener searchListener;
+	private final SelectionArea searchArea = new SelectionArea();
+
+	private boolean showLinkMetrics = false;
+	private long linkSampledAt = -1;
+	private long linkBytesIn, linkBytesOut;
+	private String[] linkSummary;
+
+	/* Null unless measuring is turned on */
+	private volatile SessionMetrics sessionMetrics;
+	private boolean showSessionMetrics = false;
+	private SessionMetrics.Snapshot sessionSample;
+	private String[] sessionSummary;
+
 	// TODO add support for the new clipboard API
 	private ClipboardManager clipboard;
 
@@ -160,6 +208,9 @@ public class TerminalBridge implements VDUDisplay {
 
 		defaultPaint = new Paint();
 
+		renderer = new CanvasRenderer(defaultPaint, null);
+		renderer.setCanvas(canvas);
+
 		selectionArea = new SelectionArea();
 		scrollback = 1;
 
@@ -195,6 +246,12 @@ public class TerminalBridge implements VDUDisplay {
 		defaultPaint.setTypeface(Typeface.MONOSPACE);
 		defaultPaint.setFakeBoldText(true); // more readable?
 
+		renderer = new CanvasRenderer(defaultPaint, null);
+		renderer.setCanvas(canvas);
+
+		glyphs = new GlyphAtlas(defaultPaint, GlyphAtlas.DEFAULT_BUDGET);
+		renderer.setGlyphAtlas(glyphs);
+
 		localOutput = new LinkedList<String>();
 
 		fontSizeChangedListeners = new LinkedList<FontSizeChangedListener>();
@@ -261,17 +318,30 @@ public class TerminalBridge implements VDUDisplay {
 		};
 
 		// Don't keep any scrollback if a session is not being opened.
-		if (host.getWantSession())
+		if (host.getWantSession()) {
+			// Long histories go to a file in the cache instead of the heap
+			if (scrollback > buffer.getRows() + VDUBuffer.RECENT_LINES) {
+				try {
+					File file = File.createTempFile(SCROLLBACK_FILE_PREFIX, null, manager.getCacheDir());
+					buffer.setScrollbackStore(new ScrollbackStore(file, true));
+				} catch (IOException e) {
+					Log.w(TAG, "Could not create scrollback file, keeping it all in memory", e);
+				}
+			}
 			buffer.setBufferSize(scrollback);
-		else
+		} else
 			buffer.setBufferSize(0);
 
+		buffer.setReflow(manager.prefs.getBoolean(PreferenceConstants.REFLOW, false));
+
 		resetColors();
 		buffer.setDisplay(this);
 
 		selectionArea = new SelectionArea();
 
 		keyListener = new TerminalKeyListener(manager, this, buffer, host.getEncoding());
+
+		setMeasuring(manager.prefs.getBoolean(PreferenceConstants.SESSION_METRICS, false));
 	}
 
 	public PromptHelper getPromptHelper() {
@@ -282,6 +352,11 @@ public class TerminalBridge implements VDUDisplay {
 	 * Spawn thread to open connection and start login process.
 	 */
 	protected void startConnection() {
+		// a reconnect that fails has to be able to report it again
+		synchronized (this) {
+			disconnected = false;
+		}
+
 		transport = TransportFactory.getTransport(host.getProtocol());
 		transport.setBridge(this);
 		transport.setManager(manager);
@@ -290,6 +365,7 @@ public class TerminalBridge implements VDUDisplay {
 		// TODO make this more abstract so we don't litter on AbsTransport
 		transport.setCompression(host.getCompression());
 		transport.setUseAuthAgent(host.getUseAuthAgent());
+		transport.setLinkMetrics(manager.prefs.getBoolean(PreferenceConstants.LINK_METRICS, false));
 		transport.setEmulation(emulation);
 
 		if (transport.canForwardPorts()) {
@@ -362,23 +438,74 @@ public class TerminalBridge implements VDUDisplay {
 
 	/**
 	 * Inject a specific string into this terminal. Used for post-login strings
-	 * and pasting clipboard.
+	 * and text typed into the prompt. Large strings are sent a chunk at a
+	 * time in the background, after anything injected before.
 	 */
-	public void injectString(final String string) {
+	public void injectString(String string) {
+		send(string, false);
+	}
+
+	/**
+	 * Paste text as if it was typed, bracketed if the remote application
+	 * asked for it.
+	 */
+	public void paste(String string) {
+		send(string, ((vt320) buffer).isBracketedPaste());
+	}
+
+	private synchronized void send(String string, boolean bracketed) {
 		if (string == null || string.length() == 0)
 			return;
 
-		Thread injectStringThread = new Thread(new Runnable() {
-			public void run() {
-				try {
-					transport.write(string.getBytes(host.getEncoding()));
-				} catch (Exception e) {
-					Log.e(TAG, "Couldn't inject string to remote host: ", e);
+		if (paster == null) {
+			paster = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "InjectString");
+					t.setDaemon(true);
+					return t;
 				}
+			});
+			paster.allowCoreThreadTimeOut(true);
+		}
+
+		PasteSender sender;
+		try {
+			sender = new PasteSender(string, host.getEncoding(), bracketed,
+					new PasteSender.Sink() {
+				public void write(byte[] buffer, int offset, int length) throws IOException {
+					transport.write(buffer, offset, length);
+				}
+			});
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Couldn't inject string to remote host: ", e);
+			return;
+		}
+		sender.setListener(new PasteSender.Listener() {
+			public void onProgress(int sent, int total) {
+			}
+
+			public void onFinished(PasteSender sender, boolean completed) {
+				synchronized (TerminalBridge.this) {
+					pastes.remove(sender);
+				}
+				if (!completed)
+					Log.d(TAG, String.format("Paste stopped after %d of %d characters",
+							sender.getSent(), sender.getTotal()));
 			}
 		});
-		injectStringThread.setName("InjectString");
-		injectStringThread.start();
+
+		pastes.add(sender);
+		paster.execute(sender);
+	}
+
+	/**
+	 * Stop sending whatever is being pasted and drop queued pastes.
+	 */
+	public synchronized void cancelPastes() {
+		for (PasteSender sender : pastes)
+			sender.cancel();
+		pastes.clear();
 	}
 
 	/**
@@ -388,6 +515,8 @@ public class TerminalBridge implements VDUDisplay {
 	public void onConnected() {
 		disconnected = false;
 
+		manager.reconnectScheduler.onConnected(this);
+
 		((vt320) buffer).reset();
 
 		// We no longer need our local output.
@@ -404,6 +533,8 @@ public class TerminalBridge implements VDUDisplay {
 
 		// create thread to relay incoming connection data to buffer
 		relay = new Relay(this, transport, (vt320) buffer, host.getEncoding());
+		if (manager.prefs.getBoolean(PreferenceConstants.SESSION_LOG, false))
+			relay.setRecorder(createRecorder());
 		Thread relayThread = new Thread(relay);
 		relayThread.setDaemon(true);
 		relayThread.setName("Relay");
@@ -416,6 +547,26 @@ public class TerminalBridge implements VDUDisplay {
 		injectString(host.getPostLogin());
 	}
 
+	/**
+	 * Set up a transcript of the session that is about to start. Every
+	 * connection gets its own files.
+	 */
+	private SessionRecorder createRecorder() {
+		File dir = manager.getExternalFilesDir(SESSION_LOG_DIR);
+		if (dir == null)
+			dir = new File(manager.getFilesDir(), SESSION_LOG_DIR);
+
+		String name = host.getNickname().replaceAll("[^A-Za-z0-9._@-]", "_");
+
+		recorder = new SessionRecorder(dir, name, relay.getCharset());
+		recorder.setTiming(manager.prefs.getBoolean(PreferenceConstants.SESSION_LOG_TIMING, false));
+		recorder.setCompress(manager.prefs.getBoolean(PreferenceConstants.SESSION_LOG_COMPRESS, true));
+		recorder.setRotation(SESSION_LOG_MAX_BYTES, SESSION_LOG_MAX_MILLIS);
+		recorder.setTerminalSize(columns, rows);
+		recorder.start();
+		return recorder;
+	}
+
 	/**
 	 * @return whether a session is open or not
 	 */
@@ -444,6 +595,10 @@ public class TerminalBridge implements VDUDisplay {
 		// Cancel any pending prompts.
 		promptHelper.cancelPrompt();
 
+		cancelPastes();
+
+		closeSearch();
+
 		// disconnection request hangs if we havent really connected to a host yet
 		// temporary fix is to just spawn disconnection into a thread
 		Thread disconnectThread = new Thread(new Runnable() {
@@ -487,6 +642,266 @@ public class TerminalBridge implements VDUDisplay {
 		}
 	}
 
+	/**
+	 * Close and delete the on-disk part of the scrollback, if any. Called
+	 * once the bridge has been disconnected for good.
+	 */
+	public void closeScrollback() {
+		closeSearch();
+
+		ScrollbackStore store = buffer.getScrollbackStore();
+		if (store != null)
+			store.close();
+	}
+
+	/*
+	 * End the search thread, if there is one. Searching again starts over.
+	 */
+	private synchronized void closeSearch() {
+		if (search != null) {
+			search.close();
+			search = null;
+		}
+	}
+
+	/**
+	 * Search the scrollback for <code>query</code>, starting at the current
+	 * match or the bottom of the screen. The window follows the match.
+	 * @param query text to find; empty to stop searching
+	 */
+	public void searchFor(String query) {
+		getSearch().setQuery(query);
+	}
+
+	/**
+	 * Move to the previous match, further up in the scrollback.
+	 */
+	public void searchOlder() {
+		getSearch().findOlder();
+	}
+
+	/**
+	 * Move to the next match, further down in the scrollback.
+	 */
+	public void searchNewer() {
+		getSearch().findNewer();
+	}
+
+	/**
+	 * Stop searching and remove the highlight.
+	 */
+	public void stopSearch() {
+		if (search != null) {
+			search.cancel();
+			redraw();
+		}
+	}
+
+	/**
+	 * @param listener told about every match and miss, on the search thread
+	 */
+	public void setSearchListener(BufferSearch.Listener listener) {
+		searchListener = listener;
+	}
+
+	private synchronized BufferSearch getSearch() {
+		if (search == null) {
+			search = new BufferSearch(buffer, new BufferSearch.Listener() {
+				public void onFound(long line, int column, int length) {
+					synchronized (buffer) {
+						int row = (int) (line - buffer.getScrolledLines());
+						if (row < buffer.getWindowBase() || row >= buffer.getWindowBase() + buffer.getRows())
+							buffer.setWindowBase(row - buffer.getRows() / 2);
+					}
+					redraw();
+
+					BufferSearch.Listener listener = searchListener;
+					if (listener != null)
+						listener.onFound(line, column, length);
+				}
+
+				public void onNotFound(String query) {
+					BufferSearch.Listener listener = searchListener;
+					if (listener != null)
+						listener.onNotFound(query);
+				}
+			});
+		}
+		return search;
+	}
+
+	/**
+	 * Get the current search match as an area of the visible window.
+	 * @return the area to highlight, or null if no match is visible
+	 */
+	public SelectionArea getSearchArea() {
+		BufferSearch search = this.search;
+		if (search == null || !search.hasMatch())
+			return null;
+
+		int row = (int) (search.getMatchLine() - buffer.getScrolledLines()) - buffer.getWindowBase();
+		if (row < 0 || row >= buffer.getRows())
+			return null;
+
+		int column = search.getMatchColumn();
+		searchArea.reset();
+		searchArea.setBounds(buffer.getColumns(), buffer.getRows());
+		searchArea.setColumn(column);
+		searchArea.setRow(row);
+		searchArea.finishSelectingOrigin();
+		searchArea.setColumn(column + search.getMatchLength() - 1);
+		searchArea.setRow(row);
+		return searchArea;
+	}
+
+	/**
+	 * @return the link counters of the current connection, or null if they
+	 * are not being kept
+	 */
+	public ConnectionMetrics getLinkMetrics() {
+		AbsTransport transport = this.transport;
+		if (transport == null)
+			return null;
+		return transport.getLinkMetrics();
+	}
+
+	public void setShowLinkMetrics(boolean showLinkMetrics) {
+		this.showLinkMetrics = showLinkMetrics;
+		linkSampledAt = -1;
+		redraw();
+	}
+
+	public boolean isShowingLinkMetrics() {
+		return showLinkMetrics && getLinkMetrics() != null;
+	}
+
+	/**
+	 * Lines for the link metrics overlay. Throughput is averaged over the
+	 * time since the previous sample, which is taken at most once a second.
+	 */
+	public String[] getLinkSummary() {
+		ConnectionMetrics metrics = getLinkMetrics();
+		if (metrics == null)
+			return null;
+
+		long now = SystemClock.elapsedRealtime();
+		if (linkSampledAt >= 0 && now - linkSampledAt < 1000)
+			return linkSummary;
+
+		long bytesIn = metrics.getBytesReceived();
+		long bytesOut = metrics.getBytesSent();
+		long rateIn = 0, rateOut = 0;
+		if (linkSampledAt >= 0) {
+			rateIn = (bytesIn - linkBytesIn) * 1000 / (now - linkSampledAt);
+			rateOut = (bytesOut - linkBytesOut) * 1000 / (now - linkSampledAt);
+		}
+		linkSampledAt = now;
+		linkBytesIn = bytesIn;
+		linkBytesOut = bytesOut;
+
+		String rtt;
+		if (metrics.getRttSamples() > 0)
+			rtt = manager.res.getString(R.string.link_rtt,
+					metrics.getSmoothedRtt() / 1000000L, metrics.getRttVariance() / 1000000L);
+		else
+			rtt = manager.res.getString(R.string.link_rtt_unknown);
+
+		linkSummary = new String[] {
+			rtt,
+			manager.res.getString(R.string.link_throughput, rateIn / 1024f, rateOut / 1024f),
+			manager.res.getString(R.string.link_window_stalls,
+					metrics.getWindowStalls(), metrics.getWindowStallTime() / 1000000L),
+			manager.res.getString(R.string.link_kex,
+					metrics.getKexCount(), metrics.getLastKexTime() / 1000000L),
+		};
+		return linkSummary;
+	}
+
+	/**
+	 * Start or stop keeping {@link SessionMetrics} for this bridge. Starting
+	 * again begins from zero.
+	 */
+	public void setMeasuring(boolean measuring) {
+		SessionMetrics metrics = sessionMetrics;
+		if (metrics != null)
+			metrics.stop();
+
+		if (measuring) {
+			metrics = new SessionMetrics();
+			metrics.start();
+			sessionMetrics = metrics;
+		} else {
+			sessionMetrics = null;
+			showSessionMetrics = false;
+		}
+
+		sessionSample = null;
+		redraw();
+	}
+
+	/**
+	 * @return the terminal performance counters, or null if they are not
+	 * being kept
+	 */
+	public SessionMetrics getSessionMetrics() {
+		return sessionMetrics;
+	}
+
+	public void setShowSessionMetrics(boolean showSessionMetrics) {
+		this.showSessionMetrics = showSessionMetrics;
+		sessionSample = null;
+		redraw();
+	}
+
+	public boolean isShowingSessionMetrics() {
+		return showSessionMetrics && sessionMetrics != null;
+	}
+
+	/**
+	 * Lines for the terminal performance overlay. Rates are over the time
+	 * since the previous sample, which is taken at most once a second;
+	 * echo and pause figures are for the whole session.
+	 */
+	public String[] getSessionSummary() {
+		SessionMetrics metrics = sessionMetrics;
+		if (metrics == null)
+			return null;
+
+		SessionMetrics.Snapshot previous = sessionSample;
+		SessionMetrics.Snapshot now = metrics.snapshot();
+		if (previous != null && now.elapsed - previous.elapsed < 1000000000L)
+			return sessionSummary;
+
+		float readRate = 0, parseRate = 0, frameRate = 0, renderAverage = 0;
+		if (previous != null) {
+			float seconds = (now.elapsed - previous.elapsed) / 1e9f;
+			long frames = now.frames - previous.frames;
+			readRate = (now.bytesRead - previous.bytesRead) / 1024f / seconds;
+			parseRate = (now.parseTime - previous.parseTime) / 1e6f / seconds;
+			frameRate = frames / seconds;
+			if (frames > 0)
+				renderAverage = (now.renderTime - previous.renderTime) / 1e6f / frames;
+		}
+		sessionSample = now;
+
+		String echo;
+		if (now.echoes > 0)
+			echo = manager.res.getString(R.string.perf_echo, now.lastEcho / 1000000L,
+					now.echoTime / now.echoes / 1000000L, now.maxEcho / 1000000L);
+		else
+			echo = manager.res.getString(R.string.perf_echo_unknown);
+
+		sessionSummary = new String[] {
+			manager.res.getString(R.string.perf_read, readRate, parseRate),
+			manager.res.getString(R.string.perf_render, frameRate, renderAverage,
+					now.maxRenderTime / 1e6f),
+			echo,
+			manager.res.getString(R.string.perf_pauses, now.pauses,
+					now.pauseTime / 1000000L, now.maxPause / 1000000L),
+		};
+		return sessionSummary;
+	}
+
 	public void setSelectingForCopy(boolean selectingForCopy) {
 		this.selectingForCopy = selectingForCopy;
 	}
@@ -522,6 +937,7 @@ public class TerminalBridge implements VDUDisplay {
 		defaultPaint.getTextWidths("X", widths);
 		charWidth = (int)FloatMath.ceil(widths[0]);
 		charHeight = (int)FloatMath.ceil(fm.descent - fm.top);
+		renderer.setCharSize(charWidth, charHeight, charTop);
 
 		// refresh any bitmap with new font size
 		if(parent != null)
@@ -586,40 +1002,18 @@ public class TerminalBridge implements VDUDisplay {
 
 			// If nothing has changed in the terminal dimensions and not an intial
 			// draw then don't blow away scroll regions and such.
-			if (newColumns == columns && newRows == rows)
+			if (newColumns == columns && newRows == rows) {
+				// the bitmap may have been released while out of sight
+				if (bitmap == null)
+					allocateBitmap(width, height);
 				return;
+			}
 
 			columns = newColumns;
 			rows = newRows;
 		}
 
-		// reallocate new bitmap if needed
-		boolean newBitmap = (bitmap == null);
-		if(bitmap != null)
-			newBitmap = (bitmap.getWidth() != width || bitmap.getHeight() != height);
-
-		if (newBitmap) {
-			discardBitmap();
-			bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-			canvas.setBitmap(bitmap);
-		}
-
-		// clear out any old buffer information
-		defaultPaint.setColor(Color.BLACK);
-		canvas.drawPaint(defaultPaint);
-
-		// Stroke the border of the terminal if the size is being forced;
-		if (forcedSize) {
-			int borderX = (columns * charWidth) + 1;
-			int borderY = (rows * charHeight) + 1;
-
-			defaultPaint.setColor(Color.GRAY);
-			defaultPaint.setStrokeWidth(0.0f);
-			if (width >= borderX)
-				canvas.drawLine(borderX, 0, borderX, borderY + 1, defaultPaint);
-			if (height >= borderY)
-				canvas.drawLine(0, borderY, borderX + 1, borderY, defaultPaint);
-		}
+		allocateBitmap(width, height);
 
 		try {
 			// request a terminal pty resize
@@ -629,6 +1023,9 @@ public class TerminalBridge implements VDUDisplay {
 
 			if(transport != null)
 				transport.setDimensions(columns, rows, width, height);
+
+			if (recorder != null)
+				recorder.setTerminalSize(columns, rows);
 		} catch(Exception e) {
 			Log.e(TAG, "Problem while trying to resize screen or PTY", e);
 		}
@@ -659,6 +1056,130 @@ public class TerminalBridge implements VDUDisplay {
 	public synchronized void parentDestroyed() {
 		parent = null;
 		discardBitmap();
+
+		// glyphs come back as they are drawn again
+		if (glyphs != null)
+			glyphs.clear();
+	}
+
+	/*
+	 * Reallocate the bitmap if needed, clear it and draw the border of a
+	 * forced size. Everything else is drawn by the next full redraw.
+	 */
+	private void allocateBitmap(int width, int height) {
+		boolean newBitmap = (bitmap == null);
+		if(bitmap != null)
+			newBitmap = (bitmap.getWidth() != width || bitmap.getHeight() != height);
+
+		if (newBitmap) {
+			discardBitmap();
+			bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+			canvas.setBitmap(bitmap);
+		}
+
+		// clear out any old buffer information
+		defaultPaint.setColor(Color.BLACK);
+		canvas.drawPaint(defaultPaint);
+
+		// Stroke the border of the terminal if the size is being forced;
+		if (forcedSize) {
+			int borderX = (columns * charWidth) + 1;
+			int borderY = (rows * charHeight) + 1;
+
+			defaultPaint.setColor(Color.GRAY);
+			defaultPaint.setStrokeWidth(0.0f);
+			if (width >= borderX)
+				canvas.drawLine(borderX, 0, borderX, borderY + 1, defaultPaint);
+			if (height >= borderY)
+				canvas.drawLine(0, borderY, borderX + 1, borderY, defaultPaint);
+		}
+
+		fullRedraw = true;
+	}
+
+	/**
+	 * Give up the bitmap and cached glyphs to save memory. They come back
+	 * with {@link #restoreBitmap()} when the terminal is drawn again.
+	 * @return bytes released
+	 */
+	public synchronized long releaseBitmap() {
+		long released = getBitmapSize();
+		discardBitmap();
+
+		if (glyphs != null)
+			glyphs.clear();
+
+		return released;
+	}
+
+	/**
+	 * Bring back a bitmap given up by {@link #releaseBitmap()}.
+	 */
+	public void restoreBitmap() {
+		synchronized (this) {
+			if (bitmap != null || parent == null)
+				return;
+
+			int width = parent.getWidth();
+			int height = parent.getHeight();
+			if (width <= 0 || height <= 0)
+				return;
+
+			allocateBitmap(width, height);
+		}
+
+		if (manager != null)
+			manager.memoryTrimmer.enforce(this);
+	}
+
+	/**
+	 * Move the scrollback held in memory to disk, if this bridge keeps it
+	 * there at all.
+	 * @return bytes released
+	 */
+	public long spillScrollback() {
+		synchronized (buffer) {
+			long before = buffer.getHeapSize();
+			if (buffer.spillScrollback() == 0)
+				return 0;
+			return before - buffer.getHeapSize();
+		}
+	}
+
+	/**
+	 * @return estimated bytes taken by the bitmap and the scrollback in
+	 *         memory
+	 */
+	public long getMemoryFootprint() {
+		long size;
+		synchronized (buffer) {
+			size = buffer.getHeapSize();
+		}
+		synchronized (this) {
+			return size + getBitmapSize();
+		}
+	}
+
+	private long getBitmapSize() {
+		if (bitmap == null || bitmap.isRecycled())
+			return 0;
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/**
+	 * @return whether the terminal is on screen now
+	 */
+	public boolean isVisible() {
+		TerminalView parent = this.parent;
+		return parent != null && parent.isShown();
+	}
+
+	/**
+	 * @return when the terminal was last drawn, in
+	 *         {@link SystemClock#elapsedRealtime()} time
+	 */
+	public long getLastDrawn() {
+		return lastDrawn;
 	}
 
 	private void discardBitmap() {
@@ -682,104 +1203,10 @@ public class TerminalBridge implements VDUDisplay {
 	}
 
 	public void onDraw() {
-		int fg, bg;
-		synchronized (buffer) {
-			boolean entireDirty = buffer.update[0] || fullRedraw;
-			boolean isWideCharacter = false;
-
-			// walk through all lines in the buffer
-			for(int l = 0; l < buffer.height; l++) {
-
-				// check if this line is dirty and needs to be repainted
-				// also check for entire-buffer dirty flags
-				if (!entireDirty && !buffer.update[l + 1]) continue;
-
-				// reset dirty flag for this line
-				buffer.update[l + 1] = false;
-
-				// walk through all characters in this line
-				for (int c = 0; c < buffer.width; c++) {
-					int addr = 0;
-					int currAttr = buffer.charAttributes[buffer.windowBase + l][c];
-
-					{
-						int fgcolor = defaultFg;
-
-						// check if foreground color attribute is set
-						if ((currAttr & VDUBuffer.COLOR_FG) != 0)
-							fgcolor = ((currAttr & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT) - 1;
-
-						if (fgcolor < 8 && (currAttr & VDUBuffer.BOLD) != 0)
-							fg = color[fgcolor + 8];
-						else
-							fg = color[fgcolor];
-					}
+		lastDrawn = SystemClock.elapsedRealtime();
 
-					// check if background color attribute is set
-					if ((currAttr & VDUBuffer.COLOR_BG) != 0)
-						bg = color[((currAttr & VDUBuffer.COLOR_BG) >> VDUBuffer.COLOR_BG_SHIFT) - 1];
-					else
-						bg = color[defaultBg];
-
-					// support character inversion by swapping background and foreground color
-					if ((currAttr & VDUBuffer.INVERT) != 0) {
-						int swapc = bg;
-						bg = fg;
-						fg = swapc;
-					}
-
-					// set underlined attributes if requested
-					defaultPaint.setUnderlineText((currAttr & VDUBuffer.UNDERLINE) != 0);
-
-					isWideCharacter = (currAttr & VDUBuffer.FULLWIDTH) != 0;
-
-					if (isWideCharacter)
-						addr++;
-					else {
-						// determine the amount of continuous characters with the same settings and print them all at once
-						while(c + addr < buffer.width
-								&& buffer.charAttributes[buffer.windowBase + l][c + addr] == currAttr) {
-							addr++;
-						}
-					}
-
-					// Save the current clip region
-					canvas.save(Canvas.CLIP_SAVE_FLAG);
-
-					// clear this dirty area with background color
-					defaultPaint.setColor(bg);
-					if (isWideCharacter) {
-						canvas.clipRect(c * charWidth,
-								l * charHeight,
-								(c + 2) * charWidth,
-								(l + 1) * charHeight);
-					} else {
-						canvas.clipRect(c * charWidth,
-								l * charHeight,
-								(c + addr) * charWidth,
-								(l + 1) * charHeight);
-					}
-					canvas.drawPaint(defaultPaint);
-
-					// write the text string starting at 'c' for 'addr' number of characters
-					defaultPaint.setColor(fg);
-					if((currAttr & VDUBuffer.INVISIBLE) == 0)
-						canvas.drawText(buffer.charArray[buffer.windowBase + l], c,
-							addr, c * charWidth, (l * charHeight) - charTop,
-							defaultPaint);
-
-					// Restore the previous clip region
-					canvas.restore();
-
-					// advance to the next text block with different characteristics
-					c += addr - 1;
-					if (isWideCharacter)
-						c++;
-				}
-			}
-
-			// reset entire-buffer flags
-			buffer.update[0] = false;
+		synchronized (buffer) {
+			painter.paint(buffer, fullRedraw, renderer);
 		}
 		fullRedraw = false;
 	}
@@ -975,6 +1402,7 @@ public class TerminalBridge implements VDUDisplay {
 		defaultBg = defaults[1];
 
 		color = manager.hostdb.getColorsForScheme(HostDatabase.DEFAULT_COLOR_SCHEME);
+		painter.setColors(color, defaultFg, defaultBg);
 	}
 
 	private static Pattern urlPattern = null;
@@ -1017,9 +1445,11 @@ public class TerminalBridge implements VDUDisplay {
 		}
 
 		char[] visibleBuffer = new char[buffer.height * buffer.width];
-		for (int l = 0; l < buffer.height; l++)
-			System.arraycopy(buffer.charArray[buffer.windowBase + l], 0,
-					visibleBuffer, l * buffer.width, buffer.width);
+		synchronized (buffer) {
+			for (int l = 0; l < buffer.height; l++)
+				System.arraycopy(buffer.getLineChars(buffer.windowBase + l), 0,
+						visibleBuffer, l * buffer.width, buffer.width);
+		}
 
 		Matcher urlMatcher = urlPattern.matcher(new String(visibleBuffer));
 		while (urlMatcher.find())
@@ -110,9 +110,9 @@ public class TerminalKeyListener implements OnKeyListener, OnSharedPreferenceCha
 		try {
 			switch (event.getAction()) {
 			case KeyEvent.ACTION_MULTIPLE:
-				return handleMultipleKeyDown(v, event);
+				return keySent(handleMultipleKeyDown(v, event), event);
 			case KeyEvent.ACTION_DOWN:
-				return handleKeyDown(v, event);
+				return keySent(handleKeyDown(v, event), event);
 			case KeyEvent.ACTION_UP:
 				return handleKeyUp(v, event);
 			default:
@@ -134,6 +134,30 @@ public class TerminalKeyListener implements OnKeyListener, OnSharedPreferenceCha
 		return false;
 	}
 
+	/*
+	 * Tell the session metrics, if kept, about a key that was written to the
+	 * host: any handled key but the meta keys and those moving a selection.
+	 */
+	private boolean keySent(boolean handled, KeyEvent event) {
+		SessionMetrics metrics = bridge.getSessionMetrics();
+		if (metrics == null || !handled || bridge.isSelectingForCopy())
+			return handled;
+
+		switch (event.getKeyCode()) {
+		case KeyEvent.KEYCODE_CTRL_LEFT:
+		case KeyEvent.KEYCODE_CTRL_RIGHT:
+		case KeyEvent.KEYCODE_ALT_LEFT:
+		case KeyEvent.KEYCODE_ALT_RIGHT:
+		case KeyEvent.KEYCODE_SHIFT_LEFT:
+		case KeyEvent.KEYCODE_SHIFT_RIGHT:
+			break;
+		default:
+			metrics.keySent();
+		}
+
+		return handled;
+	}
+
 	public boolean handleMultipleKeyDown(View v, KeyEvent event) throws UnsupportedEncodingException, IOException {
 		if(event.getCharacters().equals("£")) {
 			bridge.transport.write(Character.valueOf('#').toString().getBytes(encoding));
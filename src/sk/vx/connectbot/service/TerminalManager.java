@@ -17,12 +17,18 @@
 
 package sk.vx.connectbot.service;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.RSAPublicKey;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -30,11 +36,18 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import sk.vx.connectbot.R;
 import sk.vx.connectbot.bean.HostBean;
 import sk.vx.connectbot.bean.PubkeyBean;
 import sk.vx.connectbot.transport.TransportFactory;
+import sk.vx.connectbot.util.DnsCache;
 import sk.vx.connectbot.util.HostDatabase;
 import sk.vx.connectbot.util.PreferenceConstants;
 import sk.vx.connectbot.util.PubkeyDatabase;
@@ -59,6 +72,9 @@ import android.os.Vibrator;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import com.trilead.ssh2.ConnectionMetrics;
+import com.trilead.ssh2.ConnectionTrace;
+
 /**
  * Manager for SSH connections that runs as a service. This service holds a list
  * of currently connected SSH bridges that are ready for connection up to a GUI
@@ -83,11 +99,20 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	public Map<String, KeyHolder> loadedKeypairs = new HashMap<String, KeyHolder>();
 
+	/* Encoded public keys offered to forwarded agents, null when stale */
+	private Map<String, byte[]> agentIdentities;
+
 	public Resources res;
 
 	public HostDatabase hostdb;
 	public PubkeyDatabase pubkeydb;
 
+	public final DnsCache dnsCache = new DnsCache();
+
+	public final FleetExec fleetExec = new FleetExec(this);
+
+	final MemoryTrimmer memoryTrimmer = new MemoryTrimmer(this);
+
 	protected SharedPreferences prefs;
 
 	final private IBinder binder = new TerminalBinder();
@@ -99,6 +124,8 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	private Timer pubkeyTimer;
 
+	private ExecutorService keyLoader;
+
 	private Timer idleTimer;
 	private final long IDLE_TIMEOUT = 300000; // 5 minutes
 
@@ -114,11 +141,14 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	private boolean savingKeys;
 
-	protected List<WeakReference<TerminalBridge>> mPendingReconnect
-			= new LinkedList<WeakReference<TerminalBridge>>();
+	ReconnectScheduler reconnectScheduler;
 
 	public boolean hardKeyboardHidden;
 
+	private static final int CONNECTION_TRACE_HISTORY = 10;
+	private final Map<String, LinkedList<ConnectionTrace>> connectionTraces =
+		new HashMap<String, LinkedList<ConnectionTrace>>();
+
 	@Override
 	public void onCreate() {
 		Log.i(TAG, "Starting service");
@@ -128,25 +158,43 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 		res = getResources();
 
+		updateMemoryBudget();
+
 		pubkeyTimer = new Timer("pubkeyTimer", true);
 
 		hostdb = new HostDatabase(this);
 		pubkeydb = new PubkeyDatabase(this);
 
-		// load all marked pubkeys into memory
+		deleteScrollbackFiles();
+
+		// load all marked pubkeys into memory; decoding happens in the
+		// background, or on demand when a connection needs a key first
 		updateSavingKeys();
 		List<PubkeyBean> pubkeys = pubkeydb.getAllStartPubkeys();
 
-		for (PubkeyBean pubkey : pubkeys) {
-			try {
-				PrivateKey privKey = PubkeyUtils.decodePrivate(pubkey.getPrivateKey(), pubkey.getType());
-				PublicKey pubKey = PubkeyUtils.decodePublic(pubkey.getPublicKey(), pubkey.getType());
-				KeyPair pair = new KeyPair(pubKey, privKey);
-
-				addKey(pubkey, pair);
-			} catch (Exception e) {
-				Log.d(TAG, String.format("Problem adding key '%s' to in-memory cache", pubkey.getNickname()), e);
+		keyLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "keyLoader");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
 			}
+		});
+
+		for (final PubkeyBean pubkey : pubkeys) {
+			if (!savingKeys)
+				break;
+
+			KeyHolder keyHolder = new KeyHolder(pubkey, new Callable<KeyPair>() {
+				public KeyPair call() throws Exception {
+					PrivateKey privKey = PubkeyUtils.decodePrivate(pubkey.getPrivateKey(), pubkey.getType());
+					PublicKey pubKey = PubkeyUtils.decodePublic(pubkey.getPublicKey(), pubkey.getType());
+					return new KeyPair(pubKey, privKey);
+				}
+			});
+
+			addKey(keyHolder);
+			keyLoader.execute(keyHolder.task);
 		}
 
 		vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
@@ -162,6 +210,23 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 		connectivityManager = new ConnectivityReceiver(this, lockingWifi);
 
+		reconnectScheduler = new ReconnectScheduler(this, connectivityManager.isConnected());
+
+	}
+
+	/**
+	 * Scrollback files belong to bridges of an earlier process that did not
+	 * get to clean up after themselves.
+	 */
+	private void deleteScrollbackFiles() {
+		File[] files = getCacheDir().listFiles();
+		if (files == null)
+			return;
+
+		for (File file : files) {
+			if (file.getName().startsWith(TerminalBridge.SCROLLBACK_FILE_PREFIX))
+				file.delete();
+		}
 	}
 
 	private void updateSavingKeys() {
@@ -174,6 +239,10 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 		disconnectAll(true);
 
+		fleetExec.close();
+
+		reconnectScheduler.close();
+
 		if(hostdb != null) {
 			hostdb.close();
 			hostdb = null;
@@ -191,6 +260,9 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 				pubkeyTimer.cancel();
 		}
 
+		if (keyLoader != null)
+			keyLoader.shutdownNow();
+
 		connectivityManager.cleanup();
 
 		connectionNotifier.hideRunningNotification(this);
@@ -268,6 +340,39 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		return prefs.getString(PreferenceConstants.EMULATION, "screen");
 	}
 
+	private void updateMemoryBudget() {
+		int budget = MemoryTrimmer.DEFAULT_BUDGET_MB;
+		try {
+			budget = Integer.parseInt(prefs.getString(PreferenceConstants.MEMORY_BUDGET,
+					Integer.toString(MemoryTrimmer.DEFAULT_BUDGET_MB)));
+		} catch(Exception e) {
+		}
+		memoryTrimmer.setBudget(budget);
+	}
+
+	/**
+	 * Called by the console when it shows another terminal. The ones out of
+	 * sight may then have to give up memory.
+	 */
+	public void onBridgeShown(TerminalBridge bridge) {
+		defaultBridge = bridge;
+		memoryTrimmer.enforce(bridge);
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		Log.d(TAG, "onTrimMemory(" + level + ")");
+		memoryTrimmer.trim(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		Log.d(TAG, "onLowMemory()");
+		memoryTrimmer.trim(TRIM_MEMORY_COMPLETE);
+	}
+
 	public int getScrollback() {
 		int scrollback = 140;
 		try {
@@ -348,8 +453,10 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 				connectivityManager.decRef();
 			}
 
+			reconnectScheduler.remove(bridge);
+
 			if (bridges.size() == 0 &&
-					mPendingReconnect.size() == 0) {
+					reconnectScheduler.isEmpty()) {
 				shouldHideRunningNotification = true;
 			}
 		}
@@ -358,6 +465,9 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 			disconnected.add(bridge.host);
 		}
 
+		bridge.closeScrollback();
+		bridge.setMeasuring(false);
+
 		if (shouldHideRunningNotification) {
 			connectionNotifier.hideRunningNotification(this);
 		}
@@ -379,16 +489,16 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		if (!savingKeys && !force)
 			return;
 
-		removeKey(pubkey.getNickname());
+		addKey(new KeyHolder(pubkey, pair));
+	}
 
-		byte[] sshPubKey = PubkeyUtils.extractOpenSSHPublic(pair);
+	private void addKey(KeyHolder keyHolder) {
+		PubkeyBean pubkey = keyHolder.bean;
 
-		KeyHolder keyHolder = new KeyHolder();
-		keyHolder.bean = pubkey;
-		keyHolder.pair = pair;
-		keyHolder.openSSHPubkey = sshPubKey;
+		removeKey(pubkey.getNickname());
 
 		loadedKeypairs.put(pubkey.getNickname(), keyHolder);
+		identitiesChanged();
 
 		if (pubkey.getLifetime() > 0) {
 			final String nickname = pubkey.getNickname();
@@ -406,13 +516,57 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	public boolean removeKey(String nickname) {
 		Log.d(TAG, String.format("Removed key '%s' to in-memory cache", nickname));
-		return loadedKeypairs.remove(nickname) != null;
+		boolean removed = loadedKeypairs.remove(nickname) != null;
+		if (removed)
+			identitiesChanged();
+		return removed;
+	}
+
+	public void removeAllKeys() {
+		Log.d(TAG, "Removed all keys from in-memory cache");
+		loadedKeypairs.clear();
+		identitiesChanged();
+	}
+
+	/**
+	 * @return the OpenSSH encoding of each loaded RSA and DSA public key by
+	 *         nickname, as offered to forwarded agents. The same unmodifiable
+	 *         map is returned until a key is added or removed, so callers
+	 *         may cache whatever they build from it by identity.
+	 */
+	public synchronized Map<String, byte[]> getAgentIdentities() {
+		if (agentIdentities != null)
+			return agentIdentities;
+
+		Map<String, byte[]> identities = new HashMap<String, byte[]>(loadedKeypairs.size());
+
+		for (Entry<String, KeyHolder> entry : loadedKeypairs.entrySet()) {
+			KeyHolder holder = entry.getValue();
+			PublicKey pubKey = holder.getPublicKey();
+			if (!(pubKey instanceof RSAPublicKey) && !(pubKey instanceof DSAPublicKey))
+				continue;
+
+			byte[] encoded = holder.getOpenSSHPubkey();
+			if (encoded != null)
+				identities.put(entry.getKey(), encoded);
+		}
+
+		agentIdentities = Collections.unmodifiableMap(identities);
+		return agentIdentities;
+	}
+
+	/*
+	 * Waits for a running getAgentIdentities() to finish, so that it cannot
+	 * store a map that misses this change.
+	 */
+	private synchronized void identitiesChanged() {
+		agentIdentities = null;
 	}
 
 	public boolean removeKey(byte[] publicKey) {
 		String nickname = null;
 		for (Entry<String,KeyHolder> entry : loadedKeypairs.entrySet()) {
-			if (Arrays.equals(entry.getValue().openSSHPubkey, publicKey)) {
+			if (Arrays.equals(entry.getValue().getOpenSSHPubkey(), publicKey)) {
 				nickname = entry.getKey();
 				break;
 			}
@@ -428,27 +582,60 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 	public KeyPair getKey(String nickname) {
 		if (loadedKeypairs.containsKey(nickname)) {
 			KeyHolder keyHolder = loadedKeypairs.get(nickname);
-			return keyHolder.pair;
+			return keyHolder.getPair();
 		} else
 			return null;
 	}
 
 	public KeyPair getKey(byte[] publicKey) {
 		for (KeyHolder keyHolder : loadedKeypairs.values()) {
-			if (Arrays.equals(keyHolder.openSSHPubkey, publicKey))
-				return keyHolder.pair;
+			if (Arrays.equals(keyHolder.getOpenSSHPubkey(), publicKey))
+				return keyHolder.getPair();
 		}
 		return null;
 	}
 
 	public String getKeyNickname(byte[] publicKey) {
 		for (Entry<String,KeyHolder> entry : loadedKeypairs.entrySet()) {
-			if (Arrays.equals(entry.getValue().openSSHPubkey, publicKey))
+			if (Arrays.equals(entry.getValue().getOpenSSHPubkey(), publicKey))
 				return entry.getKey();
 		}
 		return null;
 	}
 
+	/**
+	 * Remember the setup timing of a connection to the given host. Only the
+	 * last {@link #CONNECTION_TRACE_HISTORY} connections per host are kept.
+	 */
+	public void addConnectionTrace(String nickname, ConnectionTrace trace) {
+		synchronized (connectionTraces) {
+			LinkedList<ConnectionTrace> history = connectionTraces.get(nickname);
+			if (history == null) {
+				history = new LinkedList<ConnectionTrace>();
+				connectionTraces.put(nickname, history);
+			}
+
+			history.addFirst(trace);
+			while (history.size() > CONNECTION_TRACE_HISTORY)
+				history.removeLast();
+		}
+
+		Log.d(TAG, String.format("Connection to %s set up in %s", nickname, trace));
+	}
+
+	/**
+	 * @return setup timing of recent connections to the given host, newest
+	 *         first
+	 */
+	public List<ConnectionTrace> getConnectionTraces(String nickname) {
+		synchronized (connectionTraces) {
+			LinkedList<ConnectionTrace> history = connectionTraces.get(nickname);
+			if (history == null)
+				return new LinkedList<ConnectionTrace>();
+			return new LinkedList<ConnectionTrace>(history);
+		}
+	}
+
 	private void stopWithDelay() {
 		// TODO add in a way to check whether keys loaded are encrypted and only
 		// set timer when we have an encrypted key loaded
@@ -479,6 +666,34 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		}
 	}
 
+	/**
+	 * Print the counters of every bridge, for
+	 * <code>adb shell dumpsys activity service TerminalManager</code>.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+		List<TerminalBridge> current;
+		synchronized (bridges) {
+			current = new LinkedList<TerminalBridge>(bridges);
+		}
+
+		for (TerminalBridge bridge : current) {
+			pw.println(bridge.host.getNickname() + ":");
+
+			SessionMetrics session = bridge.getSessionMetrics();
+			if (session != null)
+				pw.println(session);
+			else
+				pw.println("not measuring");
+
+			ConnectionMetrics link = bridge.getLinkMetrics();
+			if (link != null)
+				pw.println(link);
+
+			pw.println();
+		}
+	}
+
 	public class TerminalBinder extends Binder {
 		public TerminalManager getService() {
 			return TerminalManager.this;
@@ -639,6 +854,15 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 			connectivityManager.setWantWifiLock(lockingWifi);
 		} else if (PreferenceConstants.MEMKEYS.equals(key)) {
 			updateSavingKeys();
+		} else if (PreferenceConstants.MEMORY_BUDGET.equals(key)) {
+			updateMemoryBudget();
+			memoryTrimmer.enforce(defaultBridge);
+		} else if (PreferenceConstants.SESSION_METRICS.equals(key)) {
+			boolean measuring = prefs.getBoolean(PreferenceConstants.SESSION_METRICS, false);
+			synchronized (bridges) {
+				for (TerminalBridge bridge : bridges)
+					bridge.setMeasuring(measuring);
+			}
 		}
 	}
 
@@ -662,10 +886,104 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		return this.fullScreen;
 	}
 
+	/**
+	 * A key in the in-memory cache. Keys loaded at startup are only decoded
+	 * when somebody asks for them (or when the background loader gets to
+	 * them), so the service does not have to wait for all of them at once.
+	 * The public half is read from the stored public key where there is
+	 * one, so listing or offering keys does not decode any private key.
+	 */
 	public static class KeyHolder {
-		public PubkeyBean bean;
-		public KeyPair pair;
-		public byte[] openSSHPubkey;
+		public final PubkeyBean bean;
+		private final FutureTask<KeyPair> task;
+		private final KeyPair pair;
+		private volatile PublicKey publicKey;
+		private volatile byte[] openSSHPubkey;
+
+		public KeyHolder(PubkeyBean bean, KeyPair pair) {
+			this.bean = bean;
+			this.task = null;
+			this.pair = pair;
+			this.publicKey = pair.getPublic();
+			this.openSSHPubkey = PubkeyUtils.extractOpenSSHPublic(pair);
+		}
+
+		public KeyHolder(PubkeyBean bean, Callable<KeyPair> loader) {
+			this.bean = bean;
+			this.task = new FutureTask<KeyPair>(loader);
+			this.pair = null;
+		}
+
+		/**
+		 * @return whether the key has been decoded (or failed to decode)
+		 */
+		public boolean isLoaded() {
+			return task == null || task.isDone();
+		}
+
+		/**
+		 * Returns the key pair, decoding it on the calling thread if the
+		 * background loader has not started on it yet. If the loader is
+		 * busy with this very key, waits for it instead.
+		 *
+		 * @return the key pair, or null if it could not be decoded
+		 */
+		public KeyPair getPair() {
+			if (task == null)
+				return pair;
+
+			task.run();
+
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				Log.d(TAG, String.format("Problem adding key '%s' to in-memory cache", bean.getNickname()),
+						e.getCause());
+			}
+			return null;
+		}
+
+		/**
+		 * Returns the public key. It is decoded from the stored public key
+		 * when there is one; imported keys only have their private half
+		 * stored, so for those the whole pair is decoded.
+		 *
+		 * @return the public key, or null if it could not be decoded
+		 */
+		public PublicKey getPublicKey() {
+			if (publicKey != null)
+				return publicKey;
+
+			byte[] encoded = bean.getPublicKey();
+			if (encoded != null && !PubkeyDatabase.KEY_TYPE_IMPORTED.equals(bean.getType())) {
+				try {
+					publicKey = PubkeyUtils.decodePublic(encoded, bean.getType());
+					return publicKey;
+				} catch (Exception e) {
+					Log.d(TAG, String.format("Could not decode public key of '%s'", bean.getNickname()), e);
+				}
+			}
+
+			KeyPair pair = getPair();
+			if (pair != null)
+				publicKey = pair.getPublic();
+			return publicKey;
+		}
+
+		/**
+		 * @return the OpenSSH encoding of the public key, or null if the key
+		 *         could not be decoded
+		 */
+		public byte[] getOpenSSHPubkey() {
+			if (openSSHPubkey == null) {
+				PublicKey pubKey = getPublicKey();
+				if (pubKey != null)
+					openSSHPubkey = PubkeyUtils.extractOpenSSHPublic(pubKey);
+			}
+			return openSSHPubkey;
+		}
 	}
 
 	/**
@@ -673,6 +991,8 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 	 * we'll be getting a different connection any time soon.
 	 */
 	public void onConnectivityLost() {
+		reconnectScheduler.setOnline(false);
+
 		final Thread t = new Thread() {
 			@Override
 			public void run() {
@@ -687,47 +1007,24 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 	 * Called when connectivity to the network is restored.
 	 */
 	public void onConnectivityRestored() {
-		final Thread t = new Thread() {
-			@Override
-			public void run() {
-				reconnectPending();
-			}
-		};
-		t.setName("Reconnector");
-		t.start();
+		reconnectScheduler.setOnline(true);
 	}
 
 	/**
-	 * Insert request into reconnect queue to be executed either immediately
-	 * or later when connectivity is restored depending on whether we're
-	 * currently connected.
+	 * Insert request into reconnect queue. The scheduler starts it when the
+	 * network is there and a slot is free; a bridge asking again after a
+	 * failed attempt backs off.
 	 *
 	 * @param bridge the TerminalBridge to reconnect when possible
 	 */
 	public void requestReconnect(TerminalBridge bridge) {
-		synchronized (mPendingReconnect) {
-			mPendingReconnect.add(new WeakReference<TerminalBridge>(bridge));
-			if (!bridge.isUsingNetwork() ||
-					connectivityManager.isConnected()) {
-				reconnectPending();
-			}
-		}
+		reconnectScheduler.request(bridge);
 	}
 
 	/**
-	 * Reconnect all bridges that were pending a reconnect when connectivity
-	 * was lost.
+	 * @return the bridges waiting to reconnect, for diagnostics
 	 */
-	private void reconnectPending() {
-		synchronized (mPendingReconnect) {
-			for (WeakReference<TerminalBridge> ref : mPendingReconnect) {
-				TerminalBridge bridge = ref.get();
-				if (bridge == null) {
-					continue;
-				}
-				bridge.startConnection();
-			}
-			mPendingReconnect.clear();
-		}
+	public List<ReconnectScheduler.Status> getReconnectQueue() {
+		return reconnectScheduler.getQueue();
 	}
 }
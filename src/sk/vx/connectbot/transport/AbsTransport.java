@@ -28,6 +28,8 @@ import sk.vx.connectbot.service.TerminalManager;
 import android.content.Context;
 import android.net.Uri;
 
+import com.trilead.ssh2.ConnectionMetrics;
+
 /**
  * @author Kenny Root
  *
@@ -91,6 +93,21 @@ public abstract class AbsTransport {
 	 */
 	public abstract void write(byte[] buffer) throws IOException;
 
+	/**
+	 * Writes part of a buffer to the transport. See {@link #write(byte[])}
+	 * for behavior details. This copies the bytes; transports that can
+	 * write them in place override it.
+	 * @param buffer bytes to write to transport
+	 * @param offset where the bytes to write start
+	 * @param length how many bytes to write
+	 * @throws IOException when there is a problem writing after connection
+	 */
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		byte[] part = new byte[length];
+		System.arraycopy(buffer, offset, part, 0, length);
+		write(part);
+	}
+
 	/**
 	 * Writes to the transport. See {@link #write(byte[])} for behavior details.
 	 * @param c character to write to the transport
@@ -135,6 +152,18 @@ public abstract class AbsTransport {
 		// do nothing
 	}
 
+	public void setLinkMetrics(boolean enabled) {
+		// do nothing
+	}
+
+	/**
+	 * @return traffic and latency counters of the link, or null if this
+	 * transport does not keep them or they are turned off
+	 */
+	public ConnectionMetrics getLinkMetrics() {
+		return null;
+	}
+
 	public void setEmulation(String emulation) {
 		this.emulation = emulation;
 	}
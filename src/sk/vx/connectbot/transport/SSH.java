@@ -27,18 +27,14 @@ import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.interfaces.DSAPrivateKey;
-import java.security.interfaces.DSAPublicKey;
-import java.security.interfaces.RSAPrivateKey;
-import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -61,7 +57,9 @@ import com.trilead.ssh2.AuthAgentCallback;
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.ConnectionInfo;
+import com.trilead.ssh2.ConnectionMetrics;
 import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.ConnectionTrace;
 import com.trilead.ssh2.DynamicPortForwarder;
 import com.trilead.ssh2.InteractiveCallback;
 import com.trilead.ssh2.KnownHosts;
@@ -70,8 +68,6 @@ import com.trilead.ssh2.SCPClient;
 import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.Session;
 import com.trilead.ssh2.crypto.PEMDecoder;
-import com.trilead.ssh2.signature.DSASHA1Verify;
-import com.trilead.ssh2.signature.RSASHA1Verify;
 
 /**
  * @author Kenny Root
@@ -100,12 +96,16 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 
 	private final static int AUTH_TRIES = 20;
 
+	/* How often to ping the server for a round trip time when measuring */
+	private final static long LINK_PROBE_INTERVAL = 30 * 1000;
+
 	static final Pattern hostmask;
 	static {
 		hostmask = Pattern.compile("^(.+)@([0-9a-z.-]+)(:(\\d+))?$", Pattern.CASE_INSENSITIVE);
 	}
 
 	private boolean compression = false;
+	private boolean linkMetrics = false;
 	private volatile boolean authenticated = false;
 	private volatile boolean connected = false;
 	private volatile boolean sessionOpen = false;
@@ -141,12 +141,8 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		public boolean verifyServerHostKey(String hostname, int port,
 				String serverHostKeyAlgorithm, byte[] serverHostKey) throws IOException {
 
-			// read in all known hosts from hostdb
-			KnownHosts hosts = manager.hostdb.getKnownHosts();
 			Boolean result;
 
-			String matchName = String.format(Locale.US, "%s:%d", hostname, port);
-
 			String fingerprint = KnownHosts.createHexFingerprint(serverHostKeyAlgorithm, serverHostKey);
 
 			String algorithmName;
@@ -156,10 +152,13 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 				algorithmName = "DSA";
 			else if (serverHostKeyAlgorithm.startsWith("ecdsa-"))
 			    algorithmName = "EC";
+			else if ("ssh-ed25519".equals(serverHostKeyAlgorithm))
+				algorithmName = "Ed25519";
 			else
 				algorithmName = serverHostKeyAlgorithm;
 
-			switch(hosts.verifyHostkey(matchName, serverHostKeyAlgorithm, serverHostKey)) {
+			// only this host's keys are looked up, and cached by hostdb
+			switch(manager.hostdb.verifyKnownHost(hostname, port, serverHostKeyAlgorithm, serverHostKey)) {
 			case KnownHosts.HOSTKEY_IS_OK:
 				bridge.outputLine(manager.res.getString(R.string.terminal_sucess, algorithmName, fingerprint));
 				return true;
@@ -234,13 +233,34 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 					// try each of the in-memory keys
 					bridge.outputLine(manager.res
 							.getString(R.string.terminal_auth_pubkey_any));
-					for (Entry<String, KeyHolder> entry : manager.loadedKeypairs.entrySet()) {
-						if (entry.getValue().bean.isConfirmUse()
-								&& !promptForPubkeyUse(entry.getKey()))
+					List<KeyHolder> holders = new ArrayList<KeyHolder>();
+					List<PublicKey> publicKeys = new ArrayList<PublicKey>();
+					for (KeyHolder holder : manager.loadedKeypairs.values()) {
+						PublicKey publicKey = holder.getPublicKey();
+						if (publicKey == null)
 							continue;
 
-						if (this.tryPublicKey(host.getUsername(), entry.getKey(),
-								entry.getValue().pair)) {
+						holders.add(holder);
+						publicKeys.add(publicKey);
+					}
+
+					// ask which key the server takes before decoding or signing with any
+					PublicKey[] keys = publicKeys.toArray(new PublicKey[publicKeys.size()]);
+
+					int i = -1;
+					while ((i = connection.queryPublicKeys(host.getUsername(), keys, i + 1)) >= 0) {
+						KeyHolder holder = holders.get(i);
+						String nickname = holder.bean.getNickname();
+						if (holder.bean.isConfirmUse()
+								&& !promptForPubkeyUse(nickname))
+							continue;
+
+						// only waits for this key if it is still being decoded
+						KeyPair pair = holder.getPair();
+						if (pair == null)
+							continue;
+
+						if (this.tryPublicKey(host.getUsername(), nickname, pair)) {
 							finishConnection();
 							break;
 						}
@@ -311,6 +331,8 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			}
 
 			pair = manager.getKey(pubkey.getNickname());
+			if (pair == null)
+				return false;
 		} else {
 			// otherwise load key from database and prompt for password as needed
 			String password = null;
@@ -370,6 +392,9 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	private void finishConnection() {
 		authenticated = true;
 
+		if (linkMetrics)
+			startLinkProbe();
+
 		for (PortForwardBean portForward : portForwards) {
 			try {
 				enablePortForward(portForward);
@@ -379,14 +404,19 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			}
 		}
 
+		ConnectionTrace trace = connection.getConnectionTrace();
+
 		if (!host.getWantSession()) {
+			manager.addConnectionTrace(host.getNickname(), trace);
 			bridge.outputLine(manager.res.getString(R.string.terminal_no_session));
 			bridge.onConnected();
 			return;
 		}
 
 		try {
+			trace.begin(ConnectionTrace.PHASE_CHANNEL_OPEN);
 			session = connection.openSession();
+			trace.end(ConnectionTrace.PHASE_CHANNEL_OPEN);
 
 			if (!useAuthAgent.equals(HostDatabase.AUTHAGENT_NO))
 				session.requestAuthAgentForwarding(this);
@@ -399,8 +429,15 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 				}
 			}
 
+			trace.begin(ConnectionTrace.PHASE_PTY);
 			session.requestPTY(getEmulation(), columns, rows, width, height, null);
+			trace.end(ConnectionTrace.PHASE_PTY);
+
+			trace.begin(ConnectionTrace.PHASE_SHELL);
 			session.startShell();
+			trace.end(ConnectionTrace.PHASE_SHELL);
+
+			manager.addConnectionTrace(host.getNickname(), trace);
 
 			stdin = session.getStdin();
 			stdout = session.getStdout();
@@ -419,6 +456,7 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	public void connect() {
 		connection = new Connection(host.getHostname(), host.getPort());
 		connection.addConnectionMonitor(this);
+		connection.setHostnameResolver(manager.dnsCache);
 
 		try {
 			connection.setCompression(compression);
@@ -426,6 +464,9 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			Log.e(TAG, "Could not enable compression!", e);
 		}
 
+		if (linkMetrics)
+			connection.setConnectionMetrics(new ConnectionMetrics());
+
 		try {
 			/* Uncomment when debugging SSH protocol:
 			DebugLogger logger = new DebugLogger() {
@@ -441,6 +482,8 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			connectionInfo = connection.connect(new HostKeyVerifier());
 			connected = true;
 
+			manager.dnsCache.recordWinner(host.getHostname(), connection.getRemoteAddress());
+
 			if (connectionInfo.clientToServerCryptoAlgorithm
 					.equals(connectionInfo.serverToClientCryptoAlgorithm)
 					&& connectionInfo.clientToServerMACAlgorithm
@@ -462,6 +505,9 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		} catch (IOException e) {
 			Log.e(TAG, "Problem in SSH connection thread during authentication", e);
 
+			// The host may have moved; look it up again next time.
+			manager.dnsCache.invalidate(host.getHostname());
+
 			// Display the reason in the text.
 			bridge.outputLine(e.getCause().getMessage());
 
@@ -483,6 +529,33 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		}
 	}
 
+	/**
+	 * Ping the server every now and then so the link metrics have a round
+	 * trip time, for as long as this connection lasts.
+	 */
+	private void startLinkProbe() {
+		final Connection probed = connection;
+
+		Thread probe = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (connected && connection == probed) {
+						probed.ping();
+						Thread.sleep(LINK_PROBE_INTERVAL);
+					}
+				} catch (InterruptedException e) {
+				} catch (IllegalStateException e) {
+					// closed in between
+				} catch (IOException e) {
+					Log.d(TAG, "Link probe stopped", e);
+				}
+			}
+		});
+		probe.setName("LinkProbe");
+		probe.setDaemon(true);
+		probe.start();
+	}
+
 	@Override
 	public void close() {
 		connected = false;
@@ -544,6 +617,12 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			stdin.write(buffer);
 	}
 
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		if (stdin != null)
+			stdin.write(buffer, offset, length);
+	}
+
 	@Override
 	public void write(int c) throws IOException {
 		if (stdin != null)
@@ -901,6 +980,19 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		this.compression = compression;
 	}
 
+	@Override
+	public void setLinkMetrics(boolean enabled) {
+		this.linkMetrics = enabled;
+	}
+
+	@Override
+	public ConnectionMetrics getLinkMetrics() {
+		Connection connection = this.connection;
+		if (connection == null)
+			return null;
+		return connection.getConnectionMetrics();
+	}
+
 	public static String getFormatHint(Context context) {
 		return String.format("%s@%s:%s",
 				context.getString(R.string.format_username),
@@ -914,27 +1006,7 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	}
 
 	public Map<String,byte[]> retrieveIdentities() {
-		Map<String,byte[]> pubKeys = new HashMap<String,byte[]>(manager.loadedKeypairs.size());
-
-		for (Entry<String,KeyHolder> entry : manager.loadedKeypairs.entrySet()) {
-			KeyPair pair = entry.getValue().pair;
-
-			try {
-				PrivateKey privKey = pair.getPrivate();
-				if (privKey instanceof RSAPrivateKey) {
-					RSAPublicKey pubkey = (RSAPublicKey) pair.getPublic();
-					pubKeys.put(entry.getKey(), RSASHA1Verify.encodeSSHRSAPublicKey(pubkey));
-				} else if (privKey instanceof DSAPrivateKey) {
-					DSAPublicKey pubkey = (DSAPublicKey) pair.getPublic();
-					pubKeys.put(entry.getKey(), DSASHA1Verify.encodeSSHDSAPublicKey(pubkey));
-				} else
-					continue;
-			} catch (IOException e) {
-				continue;
-			}
-		}
-
-		return pubKeys;
+		return manager.getAgentIdentities();
 	}
 
 	public KeyPair getKeyPair(byte[] publicKey) {
@@ -972,7 +1044,7 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	}
 
 	public boolean removeAllIdentities() {
-		manager.loadedKeypairs.clear();
+		manager.removeAllKeys();
 		return true;
 	}
 
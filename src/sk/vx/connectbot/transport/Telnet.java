@@ -93,6 +93,12 @@ public class Telnet extends AbsTransport {
 					os.write(b);
 			}
 
+			@Override
+			protected void write(byte[] b, int offset, int length) throws IOException {
+				if (os != null)
+					os.write(b, offset, length);
+			}
+
 			/** sent on IAC EOR (prompt terminator for remote access systems). */
 			@Override
 			public void notifyEndOfRecord() {
@@ -179,30 +185,19 @@ public class Telnet extends AbsTransport {
 
 	@Override
 	public int read(byte[] buffer, int start, int len) throws IOException {
-		/* process all already read bytes */
-		int n = 0;
+		int n;
 
+		/* telnet commands are taken out in place; keep reading if that was all */
 		do {
-			n = handler.negotiate(buffer, start);
-			if (n > 0)
-				return n;
-		} while (n == 0);
-
-		while (n <= 0) {
-			do {
-				n = handler.negotiate(buffer, start);
-				if (n > 0)
-					return n;
-			} while (n == 0);
 			n = is.read(buffer, start, len);
 			if (n < 0) {
 				bridge.dispatchDisconnect(false);
 				throw new IOException("Remote end closed connection.");
 			}
 
-			handler.inputfeed(buffer, start, n);
-			n = handler.negotiate(buffer, start);
-		}
+			n = handler.negotiate(buffer, start, n);
+		} while (n == 0);
+
 		return n;
 	}
 
@@ -210,7 +205,17 @@ public class Telnet extends AbsTransport {
 	public void write(byte[] buffer) throws IOException {
 		try {
 			if (os != null)
-				os.write(buffer);
+				handler.transpose(buffer);
+		} catch (SocketException e) {
+			bridge.dispatchDisconnect(false);
+		}
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		try {
+			if (os != null)
+				handler.transpose(buffer, offset, length);
 		} catch (SocketException e) {
 			bridge.dispatchDisconnect(false);
 		}
@@ -220,7 +225,7 @@ public class Telnet extends AbsTransport {
 	public void write(int c) throws IOException {
 		try {
 			if (os != null)
-				os.write(c);
+				handler.transpose((byte) c);
 		} catch (SocketException e) {
 			bridge.dispatchDisconnect(false);
 		}
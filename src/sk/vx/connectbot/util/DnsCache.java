@@ -0,0 +1,157 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.util;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.trilead.ssh2.HostnameResolver;
+
+/**
+ * Remembers resolved host addresses for a while, so that reconnecting after
+ * a network change does not have to wait for DNS again. Also remembers which
+ * address family the last successful connection to a host used and puts
+ * that family first next time.
+ */
+public class DnsCache implements HostnameResolver {
+	private static final String TAG = "ConnectBot.DnsCache";
+
+	/* We don't get to see the real TTL, so stay well below common ones. */
+	public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+	public static final String FAMILY_IPV4 = "IPv4";
+	public static final String FAMILY_IPV6 = "IPv6";
+
+	private static class Entry {
+		InetAddress[] addresses;
+		long expires;
+	}
+
+	private final long ttl;
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final Map<String, String> winners = new HashMap<String, String>();
+
+	public DnsCache() {
+		this(DEFAULT_TTL);
+	}
+
+	public DnsCache(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public InetAddress[] resolve(String hostname) throws UnknownHostException {
+		final String key = hostname.toLowerCase();
+		InetAddress[] addresses = null;
+
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expires > SystemClock.elapsedRealtime())
+				addresses = entry.addresses;
+		}
+
+		if (addresses == null) {
+			addresses = InetAddress.getAllByName(hostname);
+
+			Entry entry = new Entry();
+			entry.addresses = addresses;
+			entry.expires = SystemClock.elapsedRealtime() + ttl;
+
+			synchronized (entries) {
+				entries.put(key, entry);
+			}
+		} else {
+			Log.d(TAG, String.format("Using cached addresses for %s", hostname));
+		}
+
+		return preferFamily(addresses, getWinningFamily(hostname));
+	}
+
+	/**
+	 * Forget the addresses of a host, e.g. because none of them could be
+	 * reached.
+	 */
+	public void invalidate(String hostname) {
+		synchronized (entries) {
+			entries.remove(hostname.toLowerCase());
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Record the address a connection to <code>hostname</code> ended up using.
+	 */
+	public void recordWinner(String hostname, InetAddress address) {
+		if (address == null)
+			return;
+
+		String family = getFamily(address);
+		synchronized (winners) {
+			winners.put(hostname.toLowerCase(), family);
+		}
+
+		Log.d(TAG, String.format("Connected to %s over %s (%s)", hostname, family,
+				address.getHostAddress()));
+	}
+
+	/**
+	 * @return {@link #FAMILY_IPV4} or {@link #FAMILY_IPV6} for the last
+	 *         successful connection to <code>hostname</code>, or null
+	 */
+	public String getWinningFamily(String hostname) {
+		synchronized (winners) {
+			return winners.get(hostname.toLowerCase());
+		}
+	}
+
+	public static String getFamily(InetAddress address) {
+		return (address instanceof Inet6Address) ? FAMILY_IPV6 : FAMILY_IPV4;
+	}
+
+	/*
+	 * Stable partition with the given family first; the connection code
+	 * takes the first address's family as the one to start with.
+	 */
+	private static InetAddress[] preferFamily(InetAddress[] addresses, String family) {
+		if (family == null || addresses.length < 2)
+			return addresses;
+
+		List<InetAddress> sorted = new ArrayList<InetAddress>(addresses.length);
+		for (InetAddress address : addresses)
+			if (family.equals(getFamily(address)))
+				sorted.add(address);
+		for (InetAddress address : addresses)
+			if (!family.equals(getFamily(address)))
+				sorted.add(address);
+
+		return sorted.toArray(new InetAddress[sorted.size()]);
+	}
+}
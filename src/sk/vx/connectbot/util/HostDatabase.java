@@ -17,10 +17,16 @@
 
 package sk.vx.connectbot.util;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -34,6 +40,7 @@ import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
 import com.trilead.ssh2.KnownHosts;
+import com.trilead.ssh2.crypto.Base64;
 
 /**
  * Contains information about various SSH hosts, include public hostkey if known
@@ -46,7 +53,7 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 	public final static String TAG = "ConnectBot.HostDatabase";
 
 	public final static String DB_NAME = "hosts";
-	public final static int DB_VERSION = 23;
+	public final static int DB_VERSION = 24;
 
 	public final static String TABLE_HOSTS = "hosts";
 	public final static String FIELD_HOST_NICKNAME = "nickname";
@@ -72,6 +79,12 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 	public final static String FIELD_HOST_X11HOST = "x11host";
 	public final static String FIELD_HOST_X11PORT = "x11port";
 
+	public final static String TABLE_KNOWNHOSTS = "knownhosts";
+	public final static String FIELD_KNOWNHOST_HOSTNAME = "hostname";
+	public final static String FIELD_KNOWNHOST_PORT = "port";
+	public final static String FIELD_KNOWNHOST_HOSTKEYALGO = "hostkeyalgo";
+	public final static String FIELD_KNOWNHOST_HOSTKEY = "hostkey";
+
 	public final static String TABLE_PORTFORWARDS = "portforwards";
 	public final static String FIELD_PORTFORWARD_HOSTID = "hostid";
 	public final static String FIELD_PORTFORWARD_NICKNAME = "nickname";
@@ -119,6 +132,12 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 
 	public static final int DEFAULT_COLOR_SCHEME = 0;
 
+	/**
+	 * Port of known host entries whose hostname field is an OpenSSH pattern
+	 * list (wildcards, negations or hashed names) rather than a hostname.
+	 */
+	public final static int KNOWNHOST_PORT_PATTERN = -1;
+
 	// Table creation strings
 	public static final String CREATE_TABLE_COLOR_DEFAULTS =
 		"CREATE TABLE " + TABLE_COLOR_DEFAULTS
@@ -129,9 +148,24 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 		"CREATE INDEX " + TABLE_COLOR_DEFAULTS + FIELD_COLOR_SCHEME + "index ON "
 		+ TABLE_COLOR_DEFAULTS + " (" + FIELD_COLOR_SCHEME + ");";
 
+	public static final String CREATE_TABLE_KNOWNHOSTS =
+		"CREATE TABLE " + TABLE_KNOWNHOSTS
+		+ " (_id INTEGER PRIMARY KEY, "
+		+ FIELD_KNOWNHOST_HOSTNAME + " TEXT NOT NULL, "
+		+ FIELD_KNOWNHOST_PORT + " INTEGER NOT NULL, "
+		+ FIELD_KNOWNHOST_HOSTKEYALGO + " TEXT NOT NULL, "
+		+ FIELD_KNOWNHOST_HOSTKEY + " BLOB NOT NULL)";
+	public static final String CREATE_TABLE_KNOWNHOSTS_INDEX =
+		"CREATE UNIQUE INDEX " + TABLE_KNOWNHOSTS + FIELD_KNOWNHOST_HOSTNAME + "index ON "
+		+ TABLE_KNOWNHOSTS + " (" + FIELD_KNOWNHOST_HOSTNAME + ", " + FIELD_KNOWNHOST_PORT + ", "
+		+ FIELD_KNOWNHOST_HOSTKEYALGO + ");";
+
 	private static final String WHERE_SCHEME_AND_COLOR = FIELD_COLOR_SCHEME + " = ? AND "
 			+ FIELD_COLOR_NUMBER + " = ?";
 
+	private static final String WHERE_KNOWNHOST = FIELD_KNOWNHOST_HOSTNAME + " = ? AND "
+			+ FIELD_KNOWNHOST_PORT + " = ?";
+
 	static {
 		addTableName(TABLE_HOSTS);
 		addTableName(TABLE_PORTFORWARDS);
@@ -140,10 +174,32 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 		addIndexName(TABLE_COLORS + FIELD_COLOR_SCHEME + "index");
 		addTableName(TABLE_COLOR_DEFAULTS);
 		addIndexName(TABLE_COLOR_DEFAULTS + FIELD_COLOR_SCHEME + "index");
+		addTableName(TABLE_KNOWNHOSTS);
+		addIndexName(TABLE_KNOWNHOSTS + FIELD_KNOWNHOST_HOSTNAME + "index");
 	}
 
 	public static final Object[] dbLock = new Object[0];
 
+	private static class KnownHostKey {
+		final String hostkeyalgo;
+		final byte[] hostkey;
+
+		KnownHostKey(String hostkeyalgo, byte[] hostkey) {
+			this.hostkeyalgo = hostkeyalgo;
+			this.hostkey = hostkey;
+		}
+	}
+
+	/*
+	 * Known host keys that have been looked up so far, keyed by "host:port",
+	 * and the pattern entries (loaded on first use). Shared by all instances
+	 * and guarded by dbLock, so that a save through one instance is seen by
+	 * the others.
+	 */
+	private static final Map<String, List<KnownHostKey>> knownHostCache =
+		new HashMap<String, List<KnownHostKey>>();
+	private static Map<String, List<KnownHostKey>> knownHostPatterns = null;
+
 	public HostDatabase(Context context) {
 		super(context, DB_NAME, null, DB_VERSION);
 
@@ -202,6 +258,9 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 
 		db.execSQL(CREATE_TABLE_COLOR_DEFAULTS);
 		db.execSQL(CREATE_TABLE_COLOR_DEFAULTS_INDEX);
+
+		db.execSQL(CREATE_TABLE_KNOWNHOSTS);
+		db.execSQL(CREATE_TABLE_KNOWNHOSTS_INDEX);
 	}
 
 	@Override
@@ -274,6 +333,19 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 					+ " ADD COLUMN " + FIELD_HOST_X11HOST + " TEXT DEFAULT '" + X11HOST_DEFAULT + "'");
 			db.execSQL("ALTER TABLE " + TABLE_HOSTS
 					+ " ADD COLUMN " + FIELD_HOST_X11PORT + " INTEGER DEFAULT " + X11PORT_DEFAULT);
+		case 23:
+			// Move host keys out of the hosts table into their own index
+			db.execSQL(CREATE_TABLE_KNOWNHOSTS);
+			db.execSQL(CREATE_TABLE_KNOWNHOSTS_INDEX);
+			db.execSQL("INSERT OR REPLACE INTO " + TABLE_KNOWNHOSTS + " ("
+					+ FIELD_KNOWNHOST_HOSTNAME + ", " + FIELD_KNOWNHOST_PORT + ", "
+					+ FIELD_KNOWNHOST_HOSTKEYALGO + ", " + FIELD_KNOWNHOST_HOSTKEY + ") SELECT "
+					+ "LOWER(" + FIELD_HOST_HOSTNAME + "), " + FIELD_HOST_PORT + ", "
+					+ FIELD_HOST_HOSTKEYALGO + ", " + FIELD_HOST_HOSTKEY + " FROM " + TABLE_HOSTS
+					+ " WHERE " + FIELD_HOST_HOSTNAME + " IS NOT NULL AND "
+					+ FIELD_HOST_PORT + " IS NOT NULL AND "
+					+ "LENGTH(" + FIELD_HOST_HOSTKEYALGO + ") > 0 AND "
+					+ "LENGTH(" + FIELD_HOST_HOSTKEY + ") > 0");
 		}
 	}
 
@@ -343,6 +415,23 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 		synchronized (dbLock) {
 			SQLiteDatabase db = this.getWritableDatabase();
 			db.delete(TABLE_HOSTS, "_id = ?", new String[] { String.valueOf(host.getId()) });
+
+			// Forget the host key too, unless another entry still uses it
+			if (host.getHostname() != null) {
+				String[] knownHost = new String[] { host.getHostname().toLowerCase(Locale.US),
+						String.valueOf(host.getPort()) };
+
+				Cursor c = db.query(TABLE_HOSTS, new String[] { "_id" },
+						"LOWER(" + FIELD_HOST_HOSTNAME + ") = ? AND " + FIELD_HOST_PORT + " = ?",
+						knownHost, null, null, null);
+				boolean stillUsed = c.moveToFirst();
+				c.close();
+
+				if (!stillUsed) {
+					db.delete(TABLE_KNOWNHOSTS, WHERE_KNOWNHOST, knownHost);
+					knownHostCache.remove(getKnownHostKey(host.getHostname(), host.getPort()));
+				}
+			}
 		}
 	}
 
@@ -514,8 +603,133 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 		return host;
 	}
 
+	private static String getKnownHostKey(String hostname, int port) {
+		return hostname.toLowerCase(Locale.US) + ":" + port;
+	}
+
+	private static void addKnownHostKey(Map<String, List<KnownHostKey>> map, String key,
+			String hostkeyalgo, byte[] hostkey) {
+		List<KnownHostKey> keys = map.get(key);
+		if (keys == null) {
+			keys = new LinkedList<KnownHostKey>();
+			map.put(key, keys);
+		}
+		keys.add(new KnownHostKey(hostkeyalgo, hostkey));
+	}
+
+	/**
+	 * Compares <code>hostkey</code> with the keys in <code>keys</code>. Like
+	 * KnownHosts.checkKey, any stored key that does not match, whatever its
+	 * type, means the key has changed; otherwise a server could offer a key
+	 * of another type to get the new host prompt instead of the warning.
+	 * @return one of the KnownHosts.HOSTKEY_* results
+	 */
+	private static int checkKnownHostKeys(List<KnownHostKey> keys, String hostkeyalgo, byte[] hostkey) {
+		for (KnownHostKey known : keys) {
+			if (known.hostkeyalgo.equals(hostkeyalgo) && Arrays.equals(known.hostkey, hostkey))
+				return KnownHosts.HOSTKEY_IS_OK;
+		}
+
+		return keys.isEmpty() ? KnownHosts.HOSTKEY_IS_NEW : KnownHosts.HOSTKEY_HAS_CHANGED;
+	}
+
+	/**
+	 * Looks up the keys known for this host in the knownhosts index, going to
+	 * the database only the first time a host is asked for. Must be called
+	 * with dbLock held.
+	 */
+	private List<KnownHostKey> getKnownHostKeys(String hostname, int port) {
+		String key = getKnownHostKey(hostname, port);
+		List<KnownHostKey> keys = knownHostCache.get(key);
+		if (keys != null)
+			return keys;
+
+		keys = new LinkedList<KnownHostKey>();
+
+		SQLiteDatabase db = this.getReadableDatabase();
+		Cursor c = db.query(TABLE_KNOWNHOSTS, new String[] { FIELD_KNOWNHOST_HOSTKEYALGO,
+				FIELD_KNOWNHOST_HOSTKEY }, WHERE_KNOWNHOST,
+				new String[] { hostname.toLowerCase(Locale.US), String.valueOf(port) },
+				null, null, null);
+
+		if (c != null) {
+			while (c.moveToNext())
+				keys.add(new KnownHostKey(c.getString(0), c.getBlob(1)));
+			c.close();
+		}
+
+		knownHostCache.put(key, keys);
+		return keys;
+	}
+
+	/**
+	 * Loads the imported pattern entries, keyed by their host pattern list.
+	 * Must be called with dbLock held.
+	 */
+	private Map<String, List<KnownHostKey>> getKnownHostPatterns() {
+		if (knownHostPatterns != null)
+			return knownHostPatterns;
+
+		Map<String, List<KnownHostKey>> patterns = new HashMap<String, List<KnownHostKey>>();
+
+		SQLiteDatabase db = this.getReadableDatabase();
+		Cursor c = db.query(TABLE_KNOWNHOSTS, new String[] { FIELD_KNOWNHOST_HOSTNAME,
+				FIELD_KNOWNHOST_HOSTKEYALGO, FIELD_KNOWNHOST_HOSTKEY },
+				FIELD_KNOWNHOST_PORT + " = ?", new String[] { String.valueOf(KNOWNHOST_PORT_PATTERN) },
+				null, null, null);
+
+		if (c != null) {
+			while (c.moveToNext())
+				addKnownHostKey(patterns, c.getString(0), c.getString(1), c.getBlob(2));
+			c.close();
+		}
+
+		knownHostPatterns = patterns;
+		return patterns;
+	}
+
 	/**
-	 * Record the given hostkey into database under this nickname.
+	 * Verifies a host key against the known hosts. Only the keys stored for
+	 * this exact host and port are read, and they are cached afterwards, so
+	 * reconnecting to a host does not touch the database at all. Imported
+	 * pattern entries are only consulted when none of the host's own keys
+	 * matches; a match there is copied into the index for next time.
+	 *
+	 * @param hostname
+	 * @param port
+	 * @param hostkeyalgo
+	 * @param hostkey
+	 * @return one of KnownHosts.HOSTKEY_IS_OK, HOSTKEY_IS_NEW or HOSTKEY_HAS_CHANGED
+	 */
+	public int verifyKnownHost(String hostname, int port, String hostkeyalgo, byte[] hostkey) {
+		synchronized (dbLock) {
+			int result = checkKnownHostKeys(getKnownHostKeys(hostname, port), hostkeyalgo, hostkey);
+			if (result == KnownHosts.HOSTKEY_IS_OK)
+				return result;
+
+			String patternHost = (port == 22) ? hostname : "[" + hostname + "]:" + port;
+
+			for (Entry<String, List<KnownHostKey>> pattern : getKnownHostPatterns().entrySet()) {
+				if (!KnownHosts.matchesHostPatterns(pattern.getKey(), patternHost))
+					continue;
+
+				int patternResult = checkKnownHostKeys(pattern.getValue(), hostkeyalgo, hostkey);
+				if (patternResult == KnownHosts.HOSTKEY_IS_OK) {
+					saveKnownHost(hostname, port, hostkeyalgo, hostkey);
+					return patternResult;
+				}
+
+				if (patternResult == KnownHosts.HOSTKEY_HAS_CHANGED)
+					result = patternResult;
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Record the given hostkey into the known hosts index. Replaces any key
+	 * of the same type recorded for this host before.
 	 * @param hostname
 	 * @param port
 	 * @param hostkeyalgo
@@ -523,37 +737,143 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 	 */
 	public void saveKnownHost(String hostname, int port, String hostkeyalgo, byte[] hostkey) {
 		ContentValues values = new ContentValues();
-		values.put(FIELD_HOST_HOSTKEYALGO, hostkeyalgo);
-		values.put(FIELD_HOST_HOSTKEY, hostkey);
+		values.put(FIELD_KNOWNHOST_HOSTNAME, hostname.toLowerCase(Locale.US));
+		values.put(FIELD_KNOWNHOST_PORT, port);
+		values.put(FIELD_KNOWNHOST_HOSTKEYALGO, hostkeyalgo);
+		values.put(FIELD_KNOWNHOST_HOSTKEY, hostkey);
 
 		synchronized (dbLock) {
-			SQLiteDatabase db = getReadableDatabase();
+			SQLiteDatabase db = getWritableDatabase();
 
-			db.update(TABLE_HOSTS, values,
-					FIELD_HOST_HOSTNAME + " = ? AND " + FIELD_HOST_PORT + " = ?",
-					new String[] { hostname, String.valueOf(port) });
+			db.replace(TABLE_KNOWNHOSTS, null, values);
+			knownHostCache.remove(getKnownHostKey(hostname, port));
 			Log.d(TAG, String.format("Finished saving hostkey information for '%s'", hostname));
 		}
 	}
 
+	/**
+	 * Imports the entries of an OpenSSH known_hosts file. Plain host names go
+	 * into the index; hashed, wildcard and negated entries are kept as
+	 * patterns. Lines that cannot be parsed, and @cert-authority or @revoked
+	 * markers, are skipped.
+	 * @param reader contents of the known_hosts file
+	 * @return number of host keys imported
+	 * @throws IOException
+	 */
+	public int importKnownHosts(Reader reader) throws IOException {
+		BufferedReader br = new BufferedReader(reader);
+		int imported = 0;
+
+		synchronized (dbLock) {
+			SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					line = line.trim();
+
+					if (line.length() == 0 || line.startsWith("#") || line.startsWith("@"))
+						continue;
+
+					String[] fields = line.split("\\s+");
+					if (fields.length < 3)
+						continue;
+
+					String hostkeyalgo = fields[1];
+					if (!hostkeyalgo.equals("ssh-rsa") && !hostkeyalgo.equals("ssh-dss")
+							&& !hostkeyalgo.equals("ssh-ed25519")
+							&& !hostkeyalgo.startsWith("ecdsa-sha2-"))
+						continue;
+
+					byte[] hostkey;
+					try {
+						hostkey = Base64.decode(fields[2].toCharArray());
+					} catch (IOException e) {
+						Log.w(TAG, "Skipping known_hosts entry with invalid key", e);
+						continue;
+					}
+
+					if (isKnownHostPattern(fields[0])) {
+						insertKnownHost(db, fields[0], KNOWNHOST_PORT_PATTERN, hostkeyalgo, hostkey);
+						imported++;
+						continue;
+					}
+
+					for (String name : fields[0].split(",")) {
+						int port = 22;
+
+						if (name.startsWith("[")) {
+							int end = name.indexOf("]:");
+							if (end < 0)
+								continue;
+							try {
+								port = Integer.parseInt(name.substring(end + 2));
+							} catch (NumberFormatException e) {
+								continue;
+							}
+							name = name.substring(1, end);
+						}
+
+						if (name.length() == 0)
+							continue;
+
+						insertKnownHost(db, name.toLowerCase(Locale.US), port, hostkeyalgo, hostkey);
+						imported++;
+					}
+				}
+
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+
+				knownHostCache.clear();
+				knownHostPatterns = null;
+			}
+		}
+
+		Log.d(TAG, String.format("Imported %d known host keys", imported));
+
+		return imported;
+	}
+
+	private static boolean isKnownHostPattern(String hostpatterns) {
+		return hostpatterns.startsWith("|") || hostpatterns.indexOf('*') >= 0
+				|| hostpatterns.indexOf('?') >= 0 || hostpatterns.indexOf('!') >= 0;
+	}
+
+	private static void insertKnownHost(SQLiteDatabase db, String hostname, int port,
+			String hostkeyalgo, byte[] hostkey) {
+		ContentValues values = new ContentValues();
+		values.put(FIELD_KNOWNHOST_HOSTNAME, hostname);
+		values.put(FIELD_KNOWNHOST_PORT, port);
+		values.put(FIELD_KNOWNHOST_HOSTKEYALGO, hostkeyalgo);
+		values.put(FIELD_KNOWNHOST_HOSTKEY, hostkey);
+
+		db.replace(TABLE_KNOWNHOSTS, null, values);
+	}
+
 	/**
 	 * Build list of known hosts for Trilead library.
 	 * @return
+	 * @deprecated use {@link #verifyKnownHost(String, int, String, byte[])},
+	 *             which does not load every key into memory
 	 */
+	@Deprecated
 	public KnownHosts getKnownHosts() {
 		KnownHosts known = new KnownHosts();
 
 		synchronized (dbLock) {
 			SQLiteDatabase db = this.getReadableDatabase();
-			Cursor c = db.query(TABLE_HOSTS, new String[] { FIELD_HOST_HOSTNAME,
-					FIELD_HOST_PORT, FIELD_HOST_HOSTKEYALGO, FIELD_HOST_HOSTKEY },
-					null, null, null, null, null);
+			Cursor c = db.query(TABLE_KNOWNHOSTS, new String[] { FIELD_KNOWNHOST_HOSTNAME,
+					FIELD_KNOWNHOST_PORT, FIELD_KNOWNHOST_HOSTKEYALGO, FIELD_KNOWNHOST_HOSTKEY },
+					FIELD_KNOWNHOST_PORT + " != ?", new String[] { String.valueOf(KNOWNHOST_PORT_PATTERN) },
+					null, null, null);
 
 			if (c != null) {
-				int COL_HOSTNAME = c.getColumnIndexOrThrow(FIELD_HOST_HOSTNAME),
-					COL_PORT = c.getColumnIndexOrThrow(FIELD_HOST_PORT),
-					COL_HOSTKEYALGO = c.getColumnIndexOrThrow(FIELD_HOST_HOSTKEYALGO),
-					COL_HOSTKEY = c.getColumnIndexOrThrow(FIELD_HOST_HOSTKEY);
+				int COL_HOSTNAME = c.getColumnIndexOrThrow(FIELD_KNOWNHOST_HOSTNAME),
+					COL_PORT = c.getColumnIndexOrThrow(FIELD_KNOWNHOST_PORT),
+					COL_HOSTKEYALGO = c.getColumnIndexOrThrow(FIELD_KNOWNHOST_HOSTKEYALGO),
+					COL_HOSTKEY = c.getColumnIndexOrThrow(FIELD_KNOWNHOST_HOSTKEY);
 
 				while (c.moveToNext()) {
 					String hostname = c.getString(COL_HOSTNAME),
@@ -561,9 +881,6 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 					int port = c.getInt(COL_PORT);
 					byte[] hostkey = c.getBlob(COL_HOSTKEY);
 
-					if (hostkeyalgo == null || hostkeyalgo.length() == 0) continue;
-					if (hostkey == null || hostkey.length == 0) continue;
-
 					try {
 						known.addHostkey(new String[] { String.format("%s:%d", hostname, port) }, hostkeyalgo, hostkey);
 					} catch(Exception e) {
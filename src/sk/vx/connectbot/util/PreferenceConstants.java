@@ -37,6 +37,18 @@ public class PreferenceConstants {
 
 	public static final String SCROLLBACK = "scrollback";
 
+	public static final String REFLOW = "reflow";
+
+	public static final String MEMORY_BUDGET = "memoryBudget";
+
+	public static final String SESSION_LOG = "sessionLog";
+	public static final String SESSION_LOG_TIMING = "sessionLogTiming";
+	public static final String SESSION_LOG_COMPRESS = "sessionLogCompress";
+
+	public static final String LINK_METRICS = "linkMetrics";
+
+	public static final String SESSION_METRICS = "sessionMetrics";
+
 	public static final String EMULATION = "emulation";
 
 	public static final String ROTATION = "rotation";
@@ -30,6 +30,8 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.security.interfaces.DSAParams;
 import java.security.interfaces.DSAPrivateKey;
 import java.security.interfaces.DSAPublicKey;
@@ -38,6 +40,7 @@ import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPrivateCrtKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.DSAPublicKeySpec;
+import java.security.spec.ECFieldFp;
 import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPoint;
 import java.security.spec.ECPublicKeySpec;
@@ -53,14 +56,13 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.EncryptedPrivateKeyInfo;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.keyczar.jce.EcCore;
-
 import sk.vx.connectbot.bean.PubkeyBean;
 import android.util.Log;
 
@@ -224,18 +226,62 @@ public class PubkeyUtils {
 			ECPrivateKey ecPriv = (ECPrivateKey) priv;
 			ECParameterSpec params = ecPriv.getParams();
 
-			// Calculate public key Y
-			ECPoint generator = params.getGenerator();
-			BigInteger[] wCoords = EcCore.multiplyPointA(new BigInteger[] { generator.getAffineX(),
-					generator.getAffineY() }, ecPriv.getS(), params);
-			ECPoint w = new ECPoint(wCoords[0], wCoords[1]);
-
-			return kf.generatePublic(new ECPublicKeySpec(w, params));
+			return kf.generatePublic(new ECPublicKeySpec(recoverEcPoint(kf, ecPriv), params));
 		} else {
 			throw new NoSuchAlgorithmException("Key type must be RSA, DSA, or EC");
 		}
 	}
 
+	/*
+	 * Works out the public point of an EC key using only the platform
+	 * provider, so that the private scalar never goes through EcCore, which
+	 * is not constant-time. ECDH with the generator gives the x coordinate;
+	 * of the two points with that x, the right one is the one that verifies
+	 * a signature made with the private key. Needs a curve prime that is
+	 * 3 mod 4, as all the NIST curves have.
+	 */
+	private static ECPoint recoverEcPoint(KeyFactory kf, ECPrivateKey priv)
+			throws NoSuchAlgorithmException, InvalidKeySpecException {
+		ECParameterSpec params = priv.getParams();
+		BigInteger p = ((ECFieldFp) params.getCurve().getField()).getP();
+		if (!p.testBit(0) || !p.testBit(1))
+			throw new InvalidKeySpecException("Unsupported curve");
+
+		try {
+			PublicKey generator = kf.generatePublic(new ECPublicKeySpec(params.getGenerator(), params));
+
+			KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+			ka.init(priv);
+			ka.doPhase(generator, true);
+			BigInteger x = new BigInteger(1, ka.generateSecret());
+
+			// y^2 = x^3 + ax + b, and y = (y^2)^((p + 1) / 4) for p = 3 mod 4
+			BigInteger rhs = x.pow(3).add(params.getCurve().getA().multiply(x))
+					.add(params.getCurve().getB()).mod(p);
+			BigInteger y = rhs.modPow(p.add(BigInteger.ONE).shiftRight(2), p);
+
+			byte[] data = new byte[32];
+			new SecureRandom().nextBytes(data);
+			Signature signer = Signature.getInstance("SHA256withECDSA");
+			signer.initSign(priv);
+			signer.update(data);
+			byte[] signature = signer.sign();
+
+			ECPoint w = new ECPoint(x, y);
+			Signature verifier = Signature.getInstance("SHA256withECDSA");
+			verifier.initVerify(kf.generatePublic(new ECPublicKeySpec(w, params)));
+			verifier.update(data);
+			if (verifier.verify(signature))
+				return w;
+
+			return new ECPoint(x, p.subtract(y));
+		} catch (InvalidKeyException e) {
+			throw new InvalidKeySpecException(e.toString());
+		} catch (SignatureException e) {
+			throw new InvalidKeySpecException(e.toString());
+		}
+	}
+
 	/*
 	 * OpenSSH compatibility methods
 	 */
@@ -272,14 +318,17 @@ public class PubkeyUtils {
 	 * @return OpenSSH-encoded pubkey
 	 */
 	public static byte[] extractOpenSSHPublic(KeyPair pair) {
+		return extractOpenSSHPublic(pair.getPublic());
+	}
+
+	public static byte[] extractOpenSSHPublic(PublicKey pubKey) {
 		try {
-			PublicKey pubKey = pair.getPublic();
 			if (pubKey instanceof RSAPublicKey) {
-				return RSASHA1Verify.encodeSSHRSAPublicKey((RSAPublicKey) pair.getPublic());
+				return RSASHA1Verify.encodeSSHRSAPublicKey((RSAPublicKey) pubKey);
 			} else if (pubKey instanceof DSAPublicKey) {
-				return DSASHA1Verify.encodeSSHDSAPublicKey((DSAPublicKey) pair.getPublic());
+				return DSASHA1Verify.encodeSSHDSAPublicKey((DSAPublicKey) pubKey);
 			} else if (pubKey instanceof ECPublicKey) {
-				return ECDSASHA2Verify.encodeSSHECDSAPublicKey((ECPublicKey) pair.getPublic());
+				return ECDSASHA2Verify.encodeSSHECDSAPublicKey((ECPublicKey) pubKey);
 			} else {
 				return null;
 			}
@@ -0,0 +1,274 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.util;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates RSA key pairs using every core. Finding the two primes is
+ * nearly all of the work, so several threads race to find each of them,
+ * each sieving its own run of random candidates against small primes before
+ * spending a probable prime test on what is left. The first prime found
+ * wins and the other threads are stopped.
+ * <p>
+ * The result is an ordinary {@link KeyPair} built through the "RSA"
+ * {@link KeyFactory}, with public exponent 65537 and CRT parameters.
+ */
+public class RsaKeyGenerator {
+	public static final BigInteger PUBLIC_EXPONENT = BigInteger.valueOf(65537);
+
+	/* Candidates sieved at a time, counting odd numbers only */
+	private static final int SIEVE_SIZE = 4096;
+
+	private static final int[] SMALL_PRIMES = smallPrimes(2048);
+
+	private static final int CERTAINTY = 100;
+
+	public interface ProgressListener {
+		/**
+		 * Called on one of the worker threads after each probable prime test.
+		 * @param tested candidates that got as far as a probable prime test
+		 * @param primes primes found so far, out of two
+		 */
+		void onProgress(int tested, int primes);
+	}
+
+	private final int bits;
+	private final SecureRandom random;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private ProgressListener listener;
+
+	private final AtomicInteger tested = new AtomicInteger();
+	private volatile int primes;
+
+	private volatile boolean cancelled = false;
+	private ExecutorService executor;
+
+	/**
+	 * @param bits size of the modulus
+	 * @param random source of all randomness; every worker is seeded from it
+	 */
+	public RsaKeyGenerator(int bits, SecureRandom random) {
+		if (bits < 512)
+			throw new IllegalArgumentException("RSA keys need at least 512 bits");
+
+		this.bits = bits;
+		this.random = random;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Stop generating. {@link #generate()} then throws a
+	 * {@link CancellationException}.
+	 */
+	public void cancel() {
+		ExecutorService executor;
+
+		synchronized (this) {
+			cancelled = true;
+			executor = this.executor;
+		}
+
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Generate the key pair, blocking until it is done.
+	 * @throws CancellationException if {@link #cancel()} was called
+	 */
+	public KeyPair generate() throws GeneralSecurityException, InterruptedException {
+		synchronized (this) {
+			if (cancelled)
+				throw new CancellationException();
+			executor = Executors.newFixedThreadPool(threads);
+		}
+
+		try {
+			int pBits = (bits + 1) / 2;
+			int qBits = bits - pBits;
+
+			while (true) {
+				BigInteger p = findPrime(pBits);
+				BigInteger q = findPrime(qBits);
+
+				// with the top two bits set the modulus has the full length;
+				// start over in the unlikely case that p and q are too close
+				BigInteger n = p.multiply(q);
+				if (n.bitLength() != bits || p.subtract(q).abs().bitLength() < bits / 2 - 100) {
+					primes = 0;
+					continue;
+				}
+
+				return toKeyPair(p, q);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private BigInteger findPrime(final int bitLength) throws InterruptedException {
+		List<Callable<BigInteger>> searches = new ArrayList<Callable<BigInteger>>(threads);
+
+		for (int i = 0; i < threads; i++) {
+			// setSeed() after first use adds to the seed instead of replacing it
+			final SecureRandom workerRandom = new SecureRandom();
+			workerRandom.nextInt();
+			byte[] seed = new byte[32];
+			random.nextBytes(seed);
+			workerRandom.setSeed(seed);
+
+			searches.add(new Callable<BigInteger>() {
+				public BigInteger call() {
+					return search(bitLength, workerRandom);
+				}
+			});
+		}
+
+		try {
+			BigInteger prime = executor.invokeAny(searches);
+			primes++;
+			return prime;
+		} catch (ExecutionException e) {
+			if (cancelled)
+				throw new CancellationException();
+			throw new RuntimeException(e.getCause());
+		} catch (RejectedExecutionException e) {
+			throw new CancellationException();
+		}
+	}
+
+	/*
+	 * Look for a prime of bitLength bits with the two top bits set, such
+	 * that p - 1 is coprime to the public exponent. Starts at a random odd
+	 * number and sieves SIEVE_SIZE odd numbers from there at a time.
+	 */
+	private BigInteger search(int bitLength, SecureRandom random) {
+		boolean[] composite = new boolean[SIEVE_SIZE];
+
+		while (true) {
+			BigInteger base = new BigInteger(bitLength, random)
+					.setBit(bitLength - 1).setBit(bitLength - 2).setBit(0);
+
+			for (int i = 0; i < SIEVE_SIZE; i++)
+				composite[i] = false;
+
+			// candidate i is base + 2i; cross out multiples of each small prime
+			for (int prime : SMALL_PRIMES) {
+				int r = base.mod(BigInteger.valueOf(prime)).intValue();
+				// smallest i with base + 2i = 0 (mod prime)
+				int i = ((prime - r) % prime) * ((prime + 1) / 2) % prime;
+				for (; i < SIEVE_SIZE; i += prime)
+					composite[i] = true;
+			}
+
+			for (int i = 0; i < SIEVE_SIZE; i++) {
+				if (composite[i])
+					continue;
+
+				if (cancelled || Thread.currentThread().isInterrupted())
+					throw new CancellationException();
+
+				BigInteger candidate = base.add(BigInteger.valueOf(2 * i));
+				if (candidate.bitLength() != bitLength)
+					break;
+
+				if (candidate.mod(PUBLIC_EXPONENT).equals(BigInteger.ONE))
+					continue;
+
+				boolean isPrime = candidate.isProbablePrime(CERTAINTY);
+
+				int count = tested.incrementAndGet();
+				ProgressListener listener = this.listener;
+				if (listener != null)
+					listener.onProgress(count, primes);
+
+				if (isPrime)
+					return candidate;
+			}
+		}
+	}
+
+	private KeyPair toKeyPair(BigInteger p, BigInteger q) throws GeneralSecurityException {
+		if (p.compareTo(q) < 0) {
+			BigInteger t = p;
+			p = q;
+			q = t;
+		}
+
+		BigInteger n = p.multiply(q);
+		BigInteger p1 = p.subtract(BigInteger.ONE);
+		BigInteger q1 = q.subtract(BigInteger.ONE);
+		BigInteger phi = p1.multiply(q1);
+
+		BigInteger e = PUBLIC_EXPONENT;
+		BigInteger d = e.modInverse(phi);
+
+		KeyFactory kf = KeyFactory.getInstance("RSA");
+		return new KeyPair(
+				kf.generatePublic(new RSAPublicKeySpec(n, e)),
+				kf.generatePrivate(new RSAPrivateCrtKeySpec(n, e, d, p, q,
+						d.mod(p1), d.mod(q1), q.modInverse(p))));
+	}
+
+	private static int[] smallPrimes(int limit) {
+		boolean[] composite = new boolean[limit];
+		List<Integer> found = new ArrayList<Integer>();
+
+		// 2 is left out, candidates are odd anyway
+		for (int i = 3; i < limit; i += 2) {
+			if (composite[i])
+				continue;
+			found.add(i);
+			for (int j = i * i; j < limit; j += 2 * i)
+				composite[j] = true;
+		}
+
+		int[] result = new int[found.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = found.get(i);
+		return result;
+	}
+}
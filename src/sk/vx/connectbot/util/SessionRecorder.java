@@ -0,0 +1,513 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+import android.util.Log;
+
+/**
+ * Records everything a session receives to a transcript file without
+ * slowing down the thread that receives it.
+ * <p>
+ * The relay thread hands its bytes to {@link #write(byte[], int, int)},
+ * which only copies them into a single-producer, single-consumer ring
+ * buffer. It never takes a lock, never waits and never touches the disk. If
+ * the writer has fallen so far behind that the ring is full, the chunk is
+ * dropped and counted instead.
+ * <p>
+ * A background thread empties the ring into large buffered appends. The
+ * transcript is either the raw byte stream (like <code>script(1)</code>) or
+ * an asciicast v2 file with a timing record for every chunk. Files can be
+ * gzipped and are rotated after a given size or age.
+ */
+public class SessionRecorder {
+	private static final String TAG = "ConnectBot.SessionRecorder";
+
+	public static final int DEFAULT_RING_SIZE = 256 * 1024;
+
+	/* Largest chunk kept in one ring record; longer writes are split. */
+	static final int MAX_RECORD = 16 * 1024;
+
+	/* Record header: payload length (4 bytes) and System.nanoTime() (8 bytes) */
+	private static final int HEADER_SIZE = 12;
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/* How long written data may sit in our buffers before it is flushed. */
+	private static final long FLUSH_INTERVAL_NANOS = 1000000000L;
+
+	private final File directory;
+	private final String prefix;
+
+	private final byte[] ring;
+	private final int mask;
+
+	/* Only written by the producer */
+	private volatile long writePosition;
+	private volatile long droppedBytes;
+	private volatile long droppedChunks;
+
+	/* Only written by the writer thread */
+	private volatile long readPosition;
+	private volatile boolean parked;
+	private volatile long writtenBytes;
+
+	private volatile boolean closed;
+	private volatile Charset charset;
+	private volatile int columns = 80;
+	private volatile int rows = 24;
+
+	private boolean timing;
+	private boolean compress;
+	private long maxFileBytes;
+	private long maxFileNanos;
+
+	private volatile Thread writer;
+
+	/* State of the writer thread */
+	private OutputStream out;
+	private File file;
+	private long fileBytes;
+	private int part;
+	private long fileStartNanos;
+	private long lastFlushNanos;
+	private boolean dirty;
+
+	private CharsetDecoder decoder;
+	private ByteBuffer decodeIn;
+	private CharBuffer decodeOut;
+	private StringBuilder event;
+	private byte[] record;
+	private byte[] ascii;
+
+	/**
+	 * @param directory where transcripts are created
+	 * @param prefix start of every transcript file name, e.g. the host nickname
+	 * @param charset used to decode the stream for asciicast files
+	 */
+	public SessionRecorder(File directory, String prefix, Charset charset) {
+		this(directory, prefix, charset, DEFAULT_RING_SIZE);
+	}
+
+	/**
+	 * @param ringSize bytes buffered between relay and writer, rounded up to
+	 *                 a power of two
+	 */
+	public SessionRecorder(File directory, String prefix, Charset charset, int ringSize) {
+		int size = Integer.highestOneBit(Math.max(ringSize, 2 * (MAX_RECORD + HEADER_SIZE)) - 1) << 1;
+
+		this.directory = directory;
+		this.prefix = prefix;
+		this.charset = charset;
+		ring = new byte[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Write asciicast v2 files with timing information instead of the raw
+	 * byte stream.
+	 */
+	public void setTiming(boolean timing) {
+		this.timing = timing;
+	}
+
+	/**
+	 * Gzip transcripts. Compressed data only reaches the disk in full when
+	 * the file is rotated or the recorder is closed.
+	 */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Start a new file once the current one reaches either limit.
+	 * @param maxBytes transcript size before compression, or 0 for no limit
+	 * @param maxMillis age, or 0 for no limit
+	 */
+	public void setRotation(long maxBytes, long maxMillis) {
+		maxFileBytes = maxBytes;
+		maxFileNanos = maxMillis * 1000000L;
+	}
+
+	/**
+	 * Terminal size written to the header of the next asciicast file.
+	 */
+	public void setTerminalSize(int columns, int rows) {
+		this.columns = columns;
+		this.rows = rows;
+	}
+
+	/**
+	 * Charset used to decode what is written from now on.
+	 */
+	public void setCharset(Charset charset) {
+		if (charset != null)
+			this.charset = charset;
+	}
+
+	/**
+	 * Start the writer thread. Call once, after configuring the recorder.
+	 */
+	public synchronized void start() {
+		if (writer != null)
+			return;
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		});
+		writer.setName("SessionRecorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queue bytes for recording. Must only be called from a single thread.
+	 * Never blocks.
+	 *
+	 * @return false if the ring was full and the bytes were dropped
+	 */
+	public boolean write(byte[] b, int off, int len) {
+		boolean written = true;
+
+		while (len > 0) {
+			int n = Math.min(len, MAX_RECORD);
+			written &= put(b, off, n);
+			off += n;
+			len -= n;
+		}
+
+		return written;
+	}
+
+	private boolean put(byte[] b, int off, int len) {
+		if (closed)
+			return false;
+
+		final long position = writePosition;
+		if (ring.length - (position - readPosition) < HEADER_SIZE + len) {
+			droppedBytes += len;
+			droppedChunks++;
+			return false;
+		}
+
+		long nanos = System.nanoTime();
+		int p = (int) position;
+		for (int i = 24; i >= 0; i -= 8)
+			ring[p++ & mask] = (byte) (len >>> i);
+		for (int i = 56; i >= 0; i -= 8)
+			ring[p++ & mask] = (byte) (nanos >>> i);
+
+		int start = p & mask;
+		int first = Math.min(len, ring.length - start);
+		System.arraycopy(b, off, ring, start, first);
+		System.arraycopy(b, off + first, ring, 0, len - first);
+
+		writePosition = position + HEADER_SIZE + len;
+
+		if (parked)
+			LockSupport.unpark(writer);
+
+		return true;
+	}
+
+	/**
+	 * Stop recording. Whatever is still in the ring is written out and the
+	 * file is closed by the writer thread; this does not wait for it.
+	 */
+	public void close() {
+		closed = true;
+
+		Thread t = writer;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+	/**
+	 * Wait for the writer thread to finish after {@link #close()}.
+	 */
+	void join(long millis) throws InterruptedException {
+		Thread t = writer;
+		if (t != null)
+			t.join(millis);
+	}
+
+	/**
+	 * @return bytes that were dropped because the writer fell behind
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	/**
+	 * @return number of writes that were dropped, in full or in part
+	 */
+	public long getDroppedChunks() {
+		return droppedChunks;
+	}
+
+	/**
+	 * @return bytes written to transcript files so far, before compression
+	 */
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	/**
+	 * @return the file currently being written, or null
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	private void drain() {
+		record = new byte[MAX_RECORD];
+
+		try {
+			while (true) {
+				// Read this first: after close() nothing more will be written.
+				boolean done = closed;
+				long position = readPosition;
+				long end = writePosition;
+
+				if (position == end) {
+					if (done)
+						break;
+
+					long now = System.nanoTime();
+					if (dirty && now - lastFlushNanos >= FLUSH_INTERVAL_NANOS)
+						flush(now);
+
+					parked = true;
+					if (writePosition == position && !closed)
+						LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+					parked = false;
+					continue;
+				}
+
+				while (position < end) {
+					int p = (int) position;
+					int len = 0;
+					for (int i = 0; i < 4; i++)
+						len = (len << 8) | (ring[p++ & mask] & 0xff);
+					long nanos = 0;
+					for (int i = 0; i < 8; i++)
+						nanos = (nanos << 8) | (ring[p++ & mask] & 0xff);
+
+					int start = p & mask;
+					int first = Math.min(len, ring.length - start);
+					System.arraycopy(ring, start, record, 0, first);
+					System.arraycopy(ring, 0, record, first, len - first);
+
+					position += HEADER_SIZE + len;
+					emit(record, len, nanos);
+				}
+
+				// Hand the space back to the producer.
+				readPosition = position;
+
+				long now = System.nanoTime();
+				if (now - lastFlushNanos >= FLUSH_INTERVAL_NANOS)
+					flush(now);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not write session transcript, recording stopped", e);
+			closed = true;
+		} finally {
+			closeFile();
+
+			if (droppedChunks > 0)
+				Log.w(TAG, String.format("Dropped %d bytes in %d chunks while recording",
+						droppedBytes, droppedChunks));
+		}
+	}
+
+	private void emit(byte[] b, int len, long nanos) throws IOException {
+		if (out == null)
+			openFile(nanos);
+		else if ((maxFileBytes > 0 && fileBytes >= maxFileBytes)
+				|| (maxFileNanos > 0 && nanos - fileStartNanos >= maxFileNanos)) {
+			closeFile();
+			openFile(nanos);
+		}
+
+		if (timing)
+			writeEvent(b, len, nanos);
+		else {
+			out.write(b, 0, len);
+			fileBytes += len;
+			writtenBytes += len;
+		}
+
+		dirty = true;
+	}
+
+	private void writeEvent(byte[] b, int len, long nanos) throws IOException {
+		if (decoder == null || !decoder.charset().equals(charset)) {
+			decoder = charset.newDecoder();
+			decoder.onMalformedInput(CodingErrorAction.REPLACE);
+			decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			if (decodeIn == null) {
+				decodeIn = ByteBuffer.allocate(MAX_RECORD + 16);
+				decodeOut = CharBuffer.allocate(MAX_RECORD + 16);
+				event = new StringBuilder(MAX_RECORD + 64);
+			}
+			decodeIn.clear();
+		}
+
+		decodeIn.put(b, 0, len);
+		decodeIn.flip();
+		decodeOut.clear();
+
+		CoderResult result;
+		do {
+			result = decoder.decode(decodeIn, decodeOut, false);
+			if (result.isOverflow()) {
+				CharBuffer bigger = CharBuffer.allocate(decodeOut.capacity() * 2);
+				decodeOut.flip();
+				bigger.put(decodeOut);
+				decodeOut = bigger;
+			}
+		} while (result.isOverflow());
+
+		// keep an incomplete multi-byte sequence for the next chunk
+		decodeIn.compact();
+
+		if (decodeOut.position() == 0)
+			return;
+
+		long micros = (nanos - fileStartNanos) / 1000;
+		event.setLength(0);
+		event.append('[').append(micros / 1000000).append('.');
+		String fraction = Long.toString(1000000 + micros % 1000000);
+		event.append(fraction, 1, fraction.length());
+		event.append(", \"o\", \"");
+		appendEscaped(event, decodeOut.array(), decodeOut.position());
+		event.append("\"]\n");
+
+		writeAscii(event);
+	}
+
+	/*
+	 * JSON string escaping; everything outside of printable ASCII is
+	 * written as \\u escapes so the file is plain ASCII.
+	 */
+	static void appendEscaped(StringBuilder sb, char[] chars, int length) {
+		for (int i = 0; i < length; i++) {
+			char c = chars[i];
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c > 0x7e) {
+					sb.append("\\u");
+					String hex = Integer.toHexString(0x10000 | c);
+					sb.append(hex, 1, hex.length());
+				} else
+					sb.append(c);
+			}
+		}
+	}
+
+	private void writeAscii(CharSequence s) throws IOException {
+		final int length = s.length();
+		if (ascii == null || ascii.length < length)
+			ascii = new byte[Math.max(length, MAX_RECORD)];
+
+		// appendEscaped() leaves nothing but ASCII
+		for (int i = 0; i < length; i++)
+			ascii[i] = (byte) s.charAt(i);
+		out.write(ascii, 0, length);
+		fileBytes += length;
+		writtenBytes += length;
+	}
+
+	private void openFile(long nanos) throws IOException {
+		directory.mkdirs();
+
+		String name = prefix + "-" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+		String suffix = (timing ? ".cast" : ".log") + (compress ? ".gz" : "");
+
+		// numbered so that the parts of a session sort in order
+		File f;
+		do {
+			f = new File(directory, String.format(Locale.US, "%s-%03d%s", name, part++, suffix));
+		} while (f.exists());
+
+		OutputStream stream = new FileOutputStream(f);
+		if (compress)
+			stream = new GZIPOutputStream(stream, WRITE_BUFFER_SIZE / 4);
+		out = new BufferedOutputStream(stream, WRITE_BUFFER_SIZE);
+		file = f;
+		fileBytes = 0;
+		fileStartNanos = nanos;
+
+		if (timing)
+			writeAscii("{\"version\": 2, \"width\": " + columns + ", \"height\": " + rows
+					+ ", \"timestamp\": " + (System.currentTimeMillis() / 1000) + "}\n");
+	}
+
+	private void flush(long now) throws IOException {
+		if (out != null)
+			out.flush();
+		lastFlushNanos = now;
+		dirty = false;
+	}
+
+	private void closeFile() {
+		if (out == null)
+			return;
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not close session transcript " + file, e);
+		}
+		out = null;
+	}
+}
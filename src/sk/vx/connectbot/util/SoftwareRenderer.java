@@ -0,0 +1,140 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.vx.connectbot.util;
+
+/**
+ * A {@link TerminalRenderer} that draws into an ARGB <code>int[]</code>,
+ * without any graphics library. It does not know any fonts: every glyph
+ * other than a blank is drawn as a block one pixel inside its cell, unless
+ * a subclass overrides {@link #drawGlyph}. That is enough to check what
+ * went where and in which colors, to compare frames against known good
+ * ones, and to time the painting on a plain JVM.
+ * <p>
+ * Cursor and highlights invert the colors under them, like the cursor on
+ * the screen does.
+ */
+public class SoftwareRenderer implements TerminalRenderer {
+	private final int charWidth;
+	private final int charHeight;
+	private final int width;
+	private final int height;
+	private final int[] pixels;
+
+	/**
+	 * @param columns width of the screen in cells
+	 * @param rows height of the screen in cells
+	 * @param charWidth width of a cell in pixels
+	 * @param charHeight height of a cell in pixels
+	 */
+	public SoftwareRenderer(int columns, int rows, int charWidth, int charHeight) {
+		this.charWidth = charWidth;
+		this.charHeight = charHeight;
+		width = columns * charWidth;
+		height = rows * charHeight;
+		pixels = new int[width * height];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the framebuffer, row after row, <code>getWidth()</code>
+	 *         pixels each
+	 */
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	public int getPixel(int x, int y) {
+		return pixels[y * width + x];
+	}
+
+	public void drawRun(int column, int row, int cells, char[] chars, int offset, int length,
+			int fg, int bg, int flags) {
+		int x = column * charWidth;
+		int y = row * charHeight;
+
+		fillRect(x, y, x + cells * charWidth, y + charHeight, bg);
+
+		if ((flags & INVISIBLE) != 0)
+			return;
+
+		int glyphWidth = cells / length * charWidth;
+		for (int i = 0; i < length; i++)
+			drawGlyph(chars[offset + i], x + i * glyphWidth, y, glyphWidth, fg);
+
+		if ((flags & UNDERLINE) != 0)
+			fillRect(x, y + charHeight - 1, x + cells * charWidth, y + charHeight, fg);
+	}
+
+	public void drawCursor(int column, int row, int cells) {
+		invertRect(column * charWidth, row * charHeight,
+				(column + cells) * charWidth, (row + 1) * charHeight);
+	}
+
+	public void drawHighlight(int left, int top, int right, int bottom) {
+		invertRect(left * charWidth, top * charHeight,
+				(right + 1) * charWidth, (bottom + 1) * charHeight);
+	}
+
+	/**
+	 * Draw one glyph into the cell at x, y. Anything but a blank becomes a
+	 * block one pixel smaller than the cell on every side.
+	 * @param width width of the glyph, two cells for full width characters
+	 */
+	protected void drawGlyph(char c, int x, int y, int width, int color) {
+		if (c == ' ' || c == 0)
+			return;
+
+		fillRect(x + 1, y + 1, x + width - 1, y + charHeight - 1, color);
+	}
+
+	/**
+	 * Fill the pixels from (x0, y0) up to, not including, (x1, y1), cut to
+	 * the framebuffer.
+	 */
+	protected void fillRect(int x0, int y0, int x1, int y1, int color) {
+		x0 = Math.max(x0, 0);
+		y0 = Math.max(y0, 0);
+		x1 = Math.min(x1, width);
+		y1 = Math.min(y1, height);
+
+		for (int y = y0; y < y1; y++) {
+			int line = y * width;
+			for (int x = x0; x < x1; x++)
+				pixels[line + x] = color;
+		}
+	}
+
+	private void invertRect(int x0, int y0, int x1, int y1) {
+		x0 = Math.max(x0, 0);
+		y0 = Math.max(y0, 0);
+		x1 = Math.min(x1, width);
+		y1 = Math.min(y1, height);
+
+		for (int y = y0; y < y1; y++) {
+			int line = y * width;
+			for (int x = x0; x < x1; x++)
+				pixels[line + x] ^= 0x00ffffff;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.vx.connectbot.util;
+
+import sk.vx.connectbot.bean.SelectionArea;
+import de.mud.terminal.VDUBuffer;
+
+/**
+ * Turns what a {@link VDUBuffer} holds into calls to a
+ * {@link TerminalRenderer}. Only rows marked as changed in
+ * {@link VDUBuffer#update} are drawn, as runs of cells with the same
+ * attributes, with the colors looked up in the palette. Cursor and
+ * highlights are drawn separately since they do not belong to the buffer.
+ */
+public class TerminalPainter {
+	private Integer[] color;
+	private int defaultFg;
+	private int defaultBg;
+
+	/**
+	 * Set the palette to draw with. The array is not copied, so later
+	 * changes to it show up in what is drawn next.
+	 * @param color ARGB colors, indexed by the colors in the attributes
+	 * @param defaultFg index of the color of text without a color
+	 * @param defaultBg index of the background without a color
+	 */
+	public void setColors(Integer[] color, int defaultFg, int defaultBg) {
+		this.color = color;
+		this.defaultFg = defaultFg;
+		this.defaultBg = defaultBg;
+	}
+
+	/**
+	 * Draw the rows of the visible window that changed and mark them as
+	 * drawn. The buffer has to be locked while this runs.
+	 * @param entire draw every row, changed or not
+	 * @return the number of rows drawn
+	 */
+	public int paint(VDUBuffer buffer, boolean entire, TerminalRenderer renderer) {
+		boolean entireDirty = buffer.update[0] || entire;
+		int drawn = 0;
+
+		// walk through all lines in the buffer
+		for (int l = 0; l < buffer.height; l++) {
+			// check if this line is dirty and needs to be repainted
+			// also check for entire-buffer dirty flags
+			if (!entireDirty && !buffer.update[l + 1])
+				continue;
+
+			// reset dirty flag for this line
+			buffer.update[l + 1] = false;
+			drawn++;
+
+			// lines above the in-memory buffer are paged in from disk
+			final char[] lineChars = buffer.getLineChars(buffer.windowBase + l);
+			final int[] lineAttributes = buffer.getLineAttributes(buffer.windowBase + l);
+
+			for (int c = 0; c < buffer.width; ) {
+				int currAttr = lineAttributes[c];
+				int fg, bg;
+
+				int fgcolor = defaultFg;
+
+				// check if foreground color attribute is set
+				if ((currAttr & VDUBuffer.COLOR_FG) != 0)
+					fgcolor = ((currAttr & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT) - 1;
+
+				if (fgcolor < 8 && (currAttr & VDUBuffer.BOLD) != 0)
+					fg = color[fgcolor + 8];
+				else
+					fg = color[fgcolor];
+
+				// check if background color attribute is set
+				if ((currAttr & VDUBuffer.COLOR_BG) != 0)
+					bg = color[((currAttr & VDUBuffer.COLOR_BG) >> VDUBuffer.COLOR_BG_SHIFT) - 1];
+				else
+					bg = color[defaultBg];
+
+				// support character inversion by swapping background and foreground color
+				if ((currAttr & VDUBuffer.INVERT) != 0) {
+					int swapc = bg;
+					bg = fg;
+					fg = swapc;
+				}
+
+				int flags = 0;
+				if ((currAttr & VDUBuffer.UNDERLINE) != 0)
+					flags |= TerminalRenderer.UNDERLINE;
+				if ((currAttr & VDUBuffer.INVISIBLE) != 0)
+					flags |= TerminalRenderer.INVISIBLE;
+
+				if ((currAttr & VDUBuffer.FULLWIDTH) != 0) {
+					renderer.drawRun(c, l, 2, lineChars, c, 1, fg, bg, flags);
+					c += 2;
+				} else {
+					// determine the amount of continuous characters with the same settings and print them all at once
+					int addr = 1;
+					while (c + addr < buffer.width && lineAttributes[c + addr] == currAttr)
+						addr++;
+
+					renderer.drawRun(c, l, addr, lineChars, c, addr, fg, bg, flags);
+					c += addr;
+				}
+			}
+		}
+
+		// reset entire-buffer flags
+		buffer.update[0] = false;
+
+		return drawn;
+	}
+
+	/**
+	 * Draw the cursor, if it is visible and on screen, and the highlighted
+	 * areas over the screen.
+	 * @param selection area being selected for copying, or null
+	 * @param match search match to show, or null
+	 */
+	public void paintOverlays(VDUBuffer buffer, SelectionArea selection, SelectionArea match,
+			TerminalRenderer renderer) {
+		if (buffer.isCursorVisible()) {
+			int column = buffer.getCursorColumn();
+			int row = buffer.getCursorRow() + buffer.screenBase - buffer.windowBase;
+
+			if (column == buffer.getColumns())
+				column = buffer.getColumns() - 1;
+
+			if (column >= 0 && buffer.getCursorRow() >= 0) {
+				boolean wide = (buffer.getAttributes(column, buffer.getCursorRow()) & VDUBuffer.FULLWIDTH) != 0;
+				renderer.drawCursor(column, row, wide ? 2 : 1);
+			}
+		}
+
+		if (selection != null)
+			renderer.drawHighlight(selection.getLeft(), selection.getTop(),
+					selection.getRight(), selection.getBottom());
+
+		if (match != null)
+			renderer.drawHighlight(match.getLeft(), match.getTop(),
+					match.getRight(), match.getBottom());
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.vx.connectbot.util;
+
+/**
+ * Draws a terminal screen somewhere: on an Android canvas, into a plain
+ * framebuffer, or anywhere else. {@link TerminalPainter} walks the buffer
+ * and hands the renderer runs of cells with their colors already worked
+ * out, so a renderer only needs to know how to put cells on its surface.
+ * Positions are in cells, colors are ARGB.
+ */
+public interface TerminalRenderer {
+	/** Underline the run */
+	public final static int UNDERLINE = 1;
+	/** Draw only the background of the run */
+	public final static int INVISIBLE = 2;
+
+	/**
+	 * Draw a run of cells that all look the same, background included.
+	 * A full width character is one char covering two cells.
+	 * @param column first cell of the run
+	 * @param row row on the screen
+	 * @param cells number of cells the run covers
+	 * @param chars text of the run
+	 * @param offset where the text starts in chars
+	 * @param length number of chars
+	 * @param fg text color
+	 * @param bg background color
+	 * @param flags {@link #UNDERLINE} and {@link #INVISIBLE}
+	 */
+	public void drawRun(int column, int row, int cells, char[] chars, int offset, int length,
+			int fg, int bg, int flags);
+
+	/**
+	 * Draw the cursor over what is already there.
+	 * @param cells 2 if the cursor is on a full width character, 1 otherwise
+	 */
+	public void drawCursor(int column, int row, int cells);
+
+	/**
+	 * Highlight a rectangle of cells, such as a selection, over what is
+	 * already there. All bounds are inclusive.
+	 */
+	public void drawHighlight(int left, int top, int right, int bottom);
+}
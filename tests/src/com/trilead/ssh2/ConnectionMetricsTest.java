@@ -0,0 +1,51 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2;
+
+import android.test.AndroidTestCase;
+
+public class ConnectionMetricsTest extends AndroidTestCase {
+	public void testSmoothedRtt() {
+		ConnectionMetrics metrics = new ConnectionMetrics();
+
+		metrics.rttSample(80);
+		assertEquals(80, metrics.getSmoothedRtt());
+		assertEquals(40, metrics.getRttVariance());
+
+		// one slow sample only moves it by an eighth
+		metrics.rttSample(160);
+		assertEquals(90, metrics.getSmoothedRtt());
+		assertEquals(50, metrics.getRttVariance());
+		assertEquals(160, metrics.getLastRtt());
+		assertEquals(2, metrics.getRttSamples());
+	}
+
+	public void testKex() {
+		ConnectionMetrics metrics = new ConnectionMetrics();
+
+		metrics.kexEnd();
+		assertEquals(0, metrics.getKexCount());
+
+		metrics.kexBegin();
+		metrics.kexBegin();
+		metrics.kexEnd();
+		metrics.kexEnd();
+		assertEquals(1, metrics.getKexCount());
+		assertEquals(metrics.getKexTime(), metrics.getLastKexTime());
+	}
+}
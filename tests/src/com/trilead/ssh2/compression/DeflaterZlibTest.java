@@ -0,0 +1,153 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.compression;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+public class DeflaterZlibTest extends AndroidTestCase {
+	private static final int PACKET_SIZE = 16384;
+
+	private final Random random = new Random(42);
+
+	private byte[] textPacket(int n) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < PACKET_SIZE)
+			sb.append("drwxr-xr-x  2 user user 4096 Oct ").append(n % 31).append(" 12:00 dir").append(n++).append('\n');
+		return Arrays.copyOf(sb.toString().getBytes(), PACKET_SIZE);
+	}
+
+	private byte[] randomPacket() {
+		byte[] b = new byte[PACKET_SIZE];
+		random.nextBytes(b);
+		return b;
+	}
+
+	/*
+	 * Pushes one packet through the same buffer handling as
+	 * TransportConnection and checks it arrives unchanged.
+	 */
+	private int roundTrip(ICompressor send, ICompressor recv, byte[] packet) {
+		byte[] out = new byte[packet.length + 1024];
+		int len = send.compress(packet, 0, packet.length, out);
+
+		byte[] in = new byte[35000];
+		System.arraycopy(out, 0, in, 5, len);
+		int[] uncomp_len = new int[] { len };
+		in = recv.uncompress(in, 5, uncomp_len);
+
+		assertNotNull(in);
+		assertEquals(packet.length, uncomp_len[0]);
+		assertTrue(Arrays.equals(packet, Arrays.copyOfRange(in, 5, 5 + packet.length)));
+
+		return len;
+	}
+
+	public void testRoundTrip_MixedContent() {
+		if (!DeflaterZlib.isSupported())
+			return;
+
+		DeflaterZlib send = new DeflaterZlib();
+		DeflaterZlib recv = new DeflaterZlib();
+
+		for (int i = 0; i < 64; i++)
+			roundTrip(send, recv, (i / 8) % 2 == 0 ? textPacket(i) : randomPacket());
+	}
+
+	public void testInteroperatesWithJZlib() {
+		if (!DeflaterZlib.isSupported())
+			return;
+
+		DeflaterZlib ours = new DeflaterZlib();
+		Zlib theirs = new Zlib();
+
+		for (int i = 0; i < 16; i++) {
+			roundTrip(ours, theirs, i % 4 == 3 ? randomPacket() : textPacket(i));
+			roundTrip(theirs, ours, textPacket(i));
+		}
+	}
+
+	public void testIncompressible_Bypassed() {
+		if (!DeflaterZlib.isSupported())
+			return;
+
+		DeflaterZlib send = new DeflaterZlib();
+		DeflaterZlib recv = new DeflaterZlib();
+
+		for (int i = 0; i < 4; i++)
+			roundTrip(send, recv, randomPacket());
+
+		assertEquals(0, send.getLevel());
+
+		/* Stored blocks only add a few bytes of framing */
+		int len = roundTrip(send, recv, randomPacket());
+		assertTrue(len < PACKET_SIZE + 64);
+	}
+
+	public void testText_StaysCompressed() {
+		if (!DeflaterZlib.isSupported())
+			return;
+
+		DeflaterZlib send = new DeflaterZlib();
+		DeflaterZlib recv = new DeflaterZlib();
+
+		for (int i = 0; i < 16; i++) {
+			int len = roundTrip(send, recv, textPacket(i));
+			assertTrue(len < PACKET_SIZE / 2);
+		}
+
+		assertTrue(send.getLevel() > 0);
+	}
+
+	public void testFastLink_LowersLevel() {
+		if (!DeflaterZlib.isSupported())
+			return;
+
+		DeflaterZlib send = new DeflaterZlib();
+		DeflaterZlib recv = new DeflaterZlib();
+
+		/* 10 GB/s: nothing is worth compressing for */
+		send.linkWriteCompleted(10 * 1024 * 1024, 1000000L);
+
+		for (int i = 0; i < 64; i++)
+			roundTrip(send, recv, textPacket(i));
+
+		assertTrue(send.getLevel() < 5);
+	}
+
+	public void testClose_EndsStreamsOnce() {
+		if (!DeflaterZlib.isSupported())
+			return;
+
+		DeflaterZlib send = new DeflaterZlib();
+		DeflaterZlib recv = new DeflaterZlib();
+
+		roundTrip(send, recv, textPacket(0));
+
+		send.close();
+		recv.close();
+
+		/* TransportConnection may close a compressor it already replaced */
+		send.close();
+		recv.close();
+
+		new DeflaterZlib().close();
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.crypto;
+
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+
+import com.trilead.ssh2.signature.Ed25519PublicKey;
+import com.trilead.ssh2.signature.Ed25519Verify;
+
+/**
+ * Known answers from RFC 7748 section 6.1 and RFC 8032 section 7.1.
+ */
+public class Curve25519Test extends AndroidTestCase {
+	private static final byte[] ALICE_PRIVATE = hex("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+	private static final byte[] ALICE_PUBLIC = hex("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a");
+	private static final byte[] BOB_PRIVATE = hex("5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb");
+	private static final byte[] BOB_PUBLIC = hex("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f");
+	private static final byte[] SHARED = hex("4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742");
+
+	private static final byte[] ED_PUBLIC = hex("3d4017c3e843895a92b70aa74d1b7ebc9c982ccf2ec4968cc0cd55f12af4660c");
+	private static final byte[] ED_MESSAGE = hex("72");
+	private static final byte[] ED_SIGNATURE = hex("92a009a9f0d4cab8720e820b5f642540a2b27b5416503f8fb3762223ebdb69da"
+			+ "085ac1e43e15996e458f3613d0f11d8c387b2eaeb4302aeeb00d291612bb0c00");
+
+	private static byte[] hex(String s) {
+		byte[] out = new byte[s.length() / 2];
+		for (int i = 0; i < out.length; i++)
+			out[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		return out;
+	}
+
+	public void testX25519_PublicKey() {
+		assertTrue(Arrays.equals(ALICE_PUBLIC, Curve25519.publicKey(ALICE_PRIVATE)));
+		assertTrue(Arrays.equals(BOB_PUBLIC, Curve25519.publicKey(BOB_PRIVATE)));
+	}
+
+	public void testX25519_SharedSecret() {
+		assertTrue(Arrays.equals(SHARED, Curve25519.scalarMult(ALICE_PRIVATE, BOB_PUBLIC)));
+		assertTrue(Arrays.equals(SHARED, Curve25519.scalarMult(BOB_PRIVATE, ALICE_PUBLIC)));
+	}
+
+	public void testEd25519_Verify_Success() throws Exception {
+		Ed25519PublicKey key = new Ed25519PublicKey(ED_PUBLIC);
+		assertTrue(Ed25519Verify.verifySignature(ED_MESSAGE, ED_SIGNATURE, key));
+	}
+
+	public void testEd25519_Verify_WrongMessage_Failure() throws Exception {
+		Ed25519PublicKey key = new Ed25519PublicKey(ED_PUBLIC);
+		assertFalse(Ed25519Verify.verifySignature(new byte[] { 0x73 }, ED_SIGNATURE, key));
+	}
+
+	public void testEd25519_Verify_CorruptSignature_Failure() throws Exception {
+		Ed25519PublicKey key = new Ed25519PublicKey(ED_PUBLIC);
+		byte[] sig = ED_SIGNATURE.clone();
+		sig[10] ^= 0x01;
+		assertFalse(Ed25519Verify.verifySignature(ED_MESSAGE, sig, key));
+	}
+
+	public void testEd25519_EncodeDecode() throws Exception {
+		Ed25519PublicKey key = new Ed25519PublicKey(ED_PUBLIC);
+		byte[] blob = Ed25519Verify.encodeSSHEd25519PublicKey(key);
+		assertEquals(key, Ed25519Verify.decodeSSHEd25519PublicKey(blob));
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.packets;
+
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+
+public class TypesWriterTest extends AndroidTestCase {
+	/* What writeString(String) did before it learned to skip the copy */
+	private static byte[] encoded(String s) throws Exception {
+		byte[] b = s.getBytes("ISO-8859-1");
+		TypesWriter tw = new TypesWriter();
+		tw.writeUINT32(b.length);
+		tw.writeBytes(b);
+		return tw.getBytes();
+	}
+
+	private static byte[] written(String s) {
+		TypesWriter tw = new TypesWriter();
+		tw.writeString(s);
+		return tw.getBytes();
+	}
+
+	public void testWriteString_MatchesLatin1Encoding() throws Exception {
+		String[] strings = {
+				"",
+				"window-change",
+				"caf\u00e9 \u00ff\u0000",
+				"euro \u20ac",
+				"clef \ud834\udd1e",
+				"lone \ud834",
+		};
+
+		for (String s : strings)
+			assertTrue(s, Arrays.equals(encoded(s), written(s)));
+	}
+
+	public void testWriteString_GrowsBuffer() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			sb.append((char) (i & 0xff));
+		String s = sb.toString();
+
+		assertTrue(Arrays.equals(encoded(s), written(s)));
+	}
+
+	public void testReset_ReusesArray() {
+		TypesWriter tw = new TypesWriter();
+		tw.writeString("a longer first packet");
+		byte[] array = tw.getArray();
+
+		tw.reset();
+		assertEquals(0, tw.length());
+
+		PacketChannelTrileadPing.writeTo(tw, 7);
+		assertSame(array, tw.getArray());
+		assertEquals(tw.length(), tw.getBytes().length);
+
+		byte[] expected = new PacketChannelTrileadPing(7).getPayload();
+		assertEquals(expected.length, tw.length());
+		assertTrue(Arrays.equals(expected, Arrays.copyOf(tw.getArray(), tw.length())));
+	}
+
+	public void testWriteTo_MatchesPayload() {
+		TypesWriter tw = new TypesWriter();
+		PacketSessionPtyResize.writeTo(tw, 3, 80, 24, 640, 480);
+
+		byte[] expected = new PacketSessionPtyResize(3, 80, 24, 640, 480).getPayload();
+		assertTrue(Arrays.equals(expected, tw.getBytes()));
+	}
+}
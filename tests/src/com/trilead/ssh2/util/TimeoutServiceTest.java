@@ -0,0 +1,113 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.AndroidTestCase;
+
+import com.trilead.ssh2.util.TimeoutService.TimeoutToken;
+
+public class TimeoutServiceTest extends AndroidTestCase {
+	public void testFiresInOrderAndNotEarly() throws Exception {
+		final CountDownLatch done = new CountDownLatch(3);
+		final StringBuffer order = new StringBuffer();
+		final long start = System.currentTimeMillis();
+		final long[] firedAt = new long[1];
+
+		TimeoutService.schedule(450, new Runnable() {
+			public void run() {
+				firedAt[0] = System.currentTimeMillis();
+				order.append('c');
+				done.countDown();
+			}
+		});
+		TimeoutService.addTimeoutHandler(start + 50, new Runnable() {
+			public void run() {
+				order.append('a');
+				done.countDown();
+			}
+		});
+		TimeoutService.schedule(250, new Runnable() {
+			public void run() {
+				order.append('b');
+				done.countDown();
+			}
+		});
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("abc", order.toString());
+		assertTrue(firedAt[0] - start >= 450);
+	}
+
+	public void testNeverFiresEarly() throws Exception {
+		final int count = 25;
+		final CountDownLatch done = new CountDownLatch(count);
+		final long[] early = new long[1];
+
+		// spread over more than a tick, so some are scheduled right before a tick boundary
+		for (int i = 0; i < count; i++) {
+			final long scheduled = System.nanoTime();
+			TimeoutService.schedule(TimeoutService.TICK_MILLIS, new Runnable() {
+				public void run() {
+					long elapsed = System.nanoTime() - scheduled;
+					synchronized (early) {
+						if (elapsed < TimeoutService.TICK_MILLIS * 1000000L)
+							early[0]++;
+					}
+					done.countDown();
+				}
+			});
+			Thread.sleep(7);
+		}
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, early[0]);
+	}
+
+	public void testCancel() throws Exception {
+		final AtomicInteger fired = new AtomicInteger();
+		final CountDownLatch last = new CountDownLatch(1);
+
+		TimeoutToken[] tokens = new TimeoutToken[10000];
+		for (int i = 0; i < tokens.length; i++) {
+			tokens[i] = TimeoutService.schedule(100 + i % 300, new Runnable() {
+				public void run() {
+					fired.incrementAndGet();
+				}
+			});
+		}
+
+		for (int i = 0; i < tokens.length; i += 2)
+			TimeoutService.cancelTimeoutHandler(tokens[i]);
+
+		TimeoutService.schedule(600, new Runnable() {
+			public void run() {
+				last.countDown();
+			}
+		});
+
+		assertTrue(last.await(5, TimeUnit.SECONDS));
+		assertEquals(tokens.length / 2, fired.get());
+
+		// cancelling what already fired is harmless
+		TimeoutService.cancelTimeoutHandler(tokens[1]);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.telnet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+
+public class TelnetProtocolHandlerTest extends AndroidTestCase {
+	private static final byte IAC = (byte) 255;
+	private static final byte WILL = (byte) 251;
+	private static final byte DO = (byte) 253;
+	private static final byte ECHO = 1;
+
+	private ByteArrayOutputStream sent;
+	private TelnetProtocolHandler handler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		sent = new ByteArrayOutputStream();
+		handler = new TelnetProtocolHandler() {
+			@Override
+			protected String getTerminalType() { return "vt100"; }
+			@Override
+			protected int[] getWindowSize() { return new int[] { 80, 24 }; }
+			@Override
+			protected void setLocalEcho(boolean echo) {}
+			@Override
+			protected void notifyEndOfRecord() {}
+			@Override
+			protected String getCharsetName() { return "UTF-8"; }
+			@Override
+			protected void write(byte[] b) {
+				sent.write(b, 0, b.length);
+			}
+		};
+	}
+
+	public void testNegotiate_PlainDataUntouched() throws Exception {
+		byte[] buf = "xxhello".getBytes();
+		assertEquals(5, handler.negotiate(buf, 2, 5));
+		assertTrue(Arrays.equals("xxhello".getBytes(), buf));
+		assertEquals(0, sent.size());
+	}
+
+	public void testNegotiate_CommandsTakenOutAcrossReads() throws Exception {
+		byte[] first = { 'a', IAC, WILL };
+		byte[] second = { ECHO, 'b', IAC, IAC, 'c' };
+
+		assertEquals(1, handler.negotiate(first, 0, first.length));
+		assertEquals('a', first[0]);
+
+		assertEquals(3, handler.negotiate(second, 0, second.length));
+		assertEquals('b', second[0]);
+		assertEquals(IAC, second[1]);
+		assertEquals('c', second[2]);
+
+		assertTrue(Arrays.equals(new byte[] { IAC, DO, ECHO }, sent.toByteArray()));
+	}
+
+	public void testTranspose_EscapesIACAndNewlines() throws Exception {
+		handler.transpose(new byte[] { 'a', IAC, '\r', 'b', '\n' });
+		assertTrue(Arrays.equals(new byte[] { 'a', IAC, IAC, '\r', 0, 'b', '\r', '\n' },
+				sent.toByteArray()));
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.terminal;
+
+import java.io.File;
+
+import android.test.AndroidTestCase;
+
+public class BufferSearchTest extends AndroidTestCase {
+	private static final int WIDTH = 80;
+	private static final int HEIGHT = 24;
+
+	private ScrollbackStore store;
+	private VDUBuffer buffer;
+
+	private long foundLine;
+	private int foundColumn;
+	private boolean done;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		store = new ScrollbackStore(File.createTempFile("scrollback", null), true);
+		buffer = new VDUBuffer(WIDTH, HEIGHT);
+		buffer.setDisplay(new VDUDisplay() {
+			public void redraw() {}
+			public void updateScrollBar() {}
+			public void setVDUBuffer(VDUBuffer buffer) {}
+			public VDUBuffer getVDUBuffer() { return null; }
+			public void setColor(int index, int red, int green, int blue) {}
+			public void resetColors() {}
+		});
+		buffer.setScrollbackStore(store);
+		buffer.setBufferSize(10000);
+
+		for (int i = 0; i < 2000; i++) {
+			buffer.insertLine(HEIGHT - 1);
+			buffer.putString(0, HEIGHT - 1, i % 500 == 7 ? "needle " + i + " NeEdLe" : "line " + i);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		store.close();
+		super.tearDown();
+	}
+
+	private static int[] shift(char[] pattern) {
+		int[] shift = new int[256];
+		for (int i = 0; i < shift.length; i++)
+			shift[i] = pattern.length;
+		for (int k = 0; k < pattern.length - 1; k++)
+			shift[pattern[k] & 0xff] = pattern.length - 1 - k;
+		return shift;
+	}
+
+	public void testIndexOf_CaseInsensitive() {
+		char[] pattern = "abc".toCharArray();
+		char[] text = "xxABCxxabcx".toCharArray();
+		assertEquals(2, BufferSearch.indexOf(text, 0, pattern, shift(pattern)));
+		assertEquals(7, BufferSearch.indexOf(text, 3, pattern, shift(pattern)));
+		assertEquals(-1, BufferSearch.indexOf(text, 8, pattern, shift(pattern)));
+		assertEquals(7, BufferSearch.lastIndexOf(text, 10, pattern, shift(pattern)));
+		assertEquals(2, BufferSearch.lastIndexOf(text, 6, pattern, shift(pattern)));
+		assertEquals(-1, BufferSearch.lastIndexOf(text, 1, pattern, shift(pattern)));
+	}
+
+	private synchronized void await() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!done && System.currentTimeMillis() < deadline)
+			wait(100);
+		assertTrue(done);
+		done = false;
+	}
+
+	private BufferSearch newSearch() {
+		return new BufferSearch(buffer, new BufferSearch.Listener() {
+			public void onFound(long line, int column, int length) {
+				synchronized (BufferSearchTest.this) {
+					foundLine = line;
+					foundColumn = column;
+					done = true;
+					BufferSearchTest.this.notifyAll();
+				}
+			}
+
+			public void onNotFound(String query) {
+				synchronized (BufferSearchTest.this) {
+					foundLine = -1;
+					done = true;
+					BufferSearchTest.this.notifyAll();
+				}
+			}
+		});
+	}
+
+	private static int searchThreads() {
+		int count = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			if ("BufferSearch".equals(t.getName()) && t.isAlive())
+				count++;
+		return count;
+	}
+
+	public void testSearch_WalksThroughScrollback() throws InterruptedException {
+		BufferSearch search = newSearch();
+
+		String[] expected = { "needle 1507 NeEdLe", "needle 1007 NeEdLe", "needle 507 NeEdLe", "needle 7 NeEdLe" };
+
+		search.setQuery("needle");
+		await();
+		for (int i = 0; i < expected.length; i++) {
+			assertTrue(foundLine >= 0);
+			String line = new String(buffer.getLineChars((int) (foundLine - buffer.getScrolledLines()))).trim();
+			assertEquals(expected[i], line);
+			assertEquals(line.length() - 6, foundColumn);
+
+			search.findOlder();
+			await();
+			if (foundLine >= 0) {
+				assertEquals(0, foundColumn);
+				search.findOlder();
+				await();
+			}
+		}
+		assertEquals(-1, foundLine);
+
+		search.close();
+	}
+
+	public void testClose_EndsThread() throws InterruptedException {
+		int before = searchThreads();
+
+		BufferSearch search = newSearch();
+		search.setQuery("needle");
+		await();
+		assertEquals(before + 1, searchThreads());
+
+		search.close();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (searchThreads() > before && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(before, searchThreads());
+		assertFalse(search.hasMatch());
+
+		// searching again after close starts a new thread
+		search.setQuery("needle");
+		await();
+		assertTrue(foundLine >= 0);
+		search.close();
+	}
+}
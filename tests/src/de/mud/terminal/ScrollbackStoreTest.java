@@ -0,0 +1,147 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.terminal;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+
+public class ScrollbackStoreTest extends AndroidTestCase {
+	private static final int WIDTH = 80;
+	private static final int HEIGHT = 24;
+
+	private File file;
+	private ScrollbackStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("scrollback", null);
+		store = new ScrollbackStore(file, true);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		store.close();
+		super.tearDown();
+	}
+
+	private static String line(int n) {
+		return "line " + n + " " + (n % 3 == 0 ? "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx" : "");
+	}
+
+	private static String trim(char[] chars) {
+		return new String(chars).replaceAll(" +$", "");
+	}
+
+	private void append(int n) {
+		char[] chars = new char[WIDTH];
+		int[] attributes = new int[WIDTH];
+		String s = line(n);
+		java.util.Arrays.fill(chars, ' ');
+		s.getChars(0, s.length(), chars, 0);
+		attributes[0] = n;
+		attributes[1] = VDUBuffer.BOLD;
+		store.append(chars, attributes);
+	}
+
+	public void testAppend_ReadBack() {
+		store.setCapacity(1000);
+
+		for (int i = 0; i < 300; i++)
+			append(i);
+
+		assertEquals(300, store.getLineCount());
+
+		for (int i = 0; i < 300; i++) {
+			assertEquals(line(i).trim(), trim(store.getChars(i, WIDTH)));
+			int[] attributes = store.getAttributes(i, WIDTH);
+			assertEquals(i, attributes[0]);
+			assertEquals(VDUBuffer.BOLD, attributes[1]);
+			assertEquals(0, attributes[WIDTH - 1]);
+		}
+	}
+
+	public void testCapacity_DropsOldestPages() {
+		store.setCapacity(200);
+
+		for (int i = 0; i < 1000; i++)
+			append(i);
+
+		int count = store.getLineCount();
+		assertTrue(count >= 200);
+		assertTrue(count < 200 + ScrollbackStore.PAGE_LINES);
+
+		// the newest line is always the last one
+		assertEquals(line(999).trim(), trim(store.getChars(count - 1, WIDTH)));
+		assertEquals(line(1000 - count).trim(), trim(store.getChars(0, WIDTH)));
+	}
+
+	public void testNarrowerWidth_Cut() {
+		store.setCapacity(1000);
+
+		for (int i = 0; i < 100; i++)
+			append(i);
+
+		assertEquals(10, store.getChars(3, 10).length);
+		assertEquals("line 3 xxx", new String(store.getChars(3, 10)));
+		assertEquals(120, store.getAttributes(3, 120).length);
+	}
+
+	public void testVDUBuffer_KeepsHistoryOnDisk() throws IOException {
+		VDUBuffer buffer = new VDUBuffer(WIDTH, HEIGHT);
+		buffer.setDisplay(new VDUDisplay() {
+			public void redraw() {}
+			public void updateScrollBar() {}
+			public void setVDUBuffer(VDUBuffer buffer) {}
+			public VDUBuffer getVDUBuffer() { return null; }
+			public void setColor(int index, int red, int green, int blue) {}
+			public void resetColors() {}
+		});
+		buffer.setScrollbackStore(store);
+		buffer.setBufferSize(10000);
+
+		assertEquals(HEIGHT + VDUBuffer.RECENT_LINES, buffer.getMaxBufferSize());
+
+		for (int i = 0; i < 2000; i++) {
+			buffer.insertLine(HEIGHT - 1);
+			buffer.putString(0, HEIGHT - 1, line(i));
+		}
+
+		assertEquals(HEIGHT + VDUBuffer.RECENT_LINES, buffer.getBufferSize());
+
+		int total = buffer.getHistoryLines() + buffer.getBufferSize();
+		assertTrue(total > 2000);
+
+		// every line that was written is still there, in order
+		int first = -buffer.getHistoryLines();
+		int expected = 0;
+		for (int row = first; row < buffer.getBufferSize() && expected < 2000; row++) {
+			String s = trim(buffer.getLineChars(row));
+			if (s.length() == 0)
+				continue;
+			assertEquals(line(expected).trim(), s);
+			expected++;
+		}
+		assertEquals(2000, expected);
+
+		buffer.setWindowBase(-1000000);
+		assertEquals(first, buffer.getWindowBase());
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.terminal;
+
+import java.io.File;
+
+import android.test.AndroidTestCase;
+
+public class VDUBufferTest extends AndroidTestCase {
+	private VDUBuffer buffer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		buffer = new VDUBuffer(10, 3);
+		buffer.setDisplay(new VDUDisplay() {
+			public void redraw() {}
+			public void updateScrollBar() {}
+			public void setVDUBuffer(VDUBuffer buffer) {}
+			public VDUBuffer getVDUBuffer() { return null; }
+			public void setColor(int index, int red, int green, int blue) {}
+			public void resetColors() {}
+		});
+		buffer.setBufferSize(100);
+	}
+
+	private String line(int row) {
+		return new String(buffer.getLineChars(row), 0, buffer.width);
+	}
+
+	public void testResize_KeepsColumnsPastNarrowScreen() {
+		buffer.putString(0, 0, "0123456789");
+		char[] row = buffer.charArray[buffer.screenBase];
+
+		buffer.setScreenSize(5, 3, false);
+		assertEquals("01234", line(buffer.screenBase));
+		assertSame(row, buffer.charArray[buffer.screenBase]);
+
+		buffer.setScreenSize(12, 3, false);
+		assertEquals("0123456789  ", line(buffer.screenBase));
+	}
+
+	public void testResize_WidensScrollbackOnRead() {
+		buffer.putString(0, 0, "old");
+		buffer.insertLine(2);
+		int row = buffer.screenBase - 1;
+
+		buffer.setScreenSize(20, 3, false);
+		assertEquals(10, buffer.charArray[row].length);
+		assertEquals("old                 ", line(row));
+		assertEquals(20, buffer.getLineAttributes(row).length);
+	}
+
+	public void testReflow_JoinsAndRewrapsLines() {
+		buffer.setReflow(true);
+		buffer.putString(0, 0, "abcdefghij");
+		buffer.setLineWrapped(0);
+		buffer.putString(0, 1, "klm");
+		buffer.setCursorPosition(3, 1);
+
+		buffer.setScreenSize(20, 3, false);
+		assertEquals("abcdefghijklm       ", line(buffer.screenBase));
+		assertEquals(13, buffer.getCursorColumn());
+		assertEquals(0, buffer.getCursorRow());
+
+		buffer.setScreenSize(4, 3, false);
+		assertEquals("abcd", line(buffer.screenBase - 1));
+		assertEquals("efgh", line(buffer.screenBase));
+		assertEquals("ijkl", line(buffer.screenBase + 1));
+		assertEquals("m   ", line(buffer.screenBase + 2));
+		assertEquals(1, buffer.getCursorColumn());
+		assertEquals(2, buffer.getCursorRow());
+	}
+
+	public void testSpillScrollback_KeepsLines() throws Exception {
+		File file = File.createTempFile("scrollback", null);
+		ScrollbackStore store = new ScrollbackStore(file, false);
+		buffer.setScrollbackStore(store);
+		buffer.setBufferSize(VDUBuffer.RECENT_LINES + 100);
+
+		buffer.putString(0, 0, "first");
+		buffer.insertLine(2);
+		buffer.putString(0, 0, "second");
+		buffer.insertLine(2);
+		buffer.putString(0, 0, "screen");
+		long scrolled = buffer.getScrolledLines();
+
+		assertEquals(2, buffer.spillScrollback());
+		assertEquals(0, buffer.screenBase);
+		assertEquals(3, buffer.getBufferSize());
+		assertEquals(scrolled + 2, buffer.getScrolledLines());
+		assertEquals("screen    ", line(0));
+		assertEquals("second    ", line(-1));
+		assertEquals("first     ", line(-2));
+
+		assertEquals(0, buffer.spillScrollback());
+		store.close();
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar.jce;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.security.spec.ECParameterSpec;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.trilead.ssh2.signature.ECDSASHA2Verify;
+
+public class EcCoreTest extends AndroidTestCase {
+	private static final String TAG = "ConnectBot.EcCoreTest";
+
+	private static final ECParameterSpec[] CURVES = new ECParameterSpec[] {
+			ECDSASHA2Verify.EllipticCurves.nistp256,
+			ECDSASHA2Verify.EllipticCurves.nistp384,
+			ECDSASHA2Verify.EllipticCurves.nistp521,
+	};
+
+	/* Known answer from the original keyczar self-test. */
+	private static final BigInteger K = new BigInteger(
+			"a9231e0d113abdacd3bb5edb24124fbef6f562c5f90b835670f5e48f775019f2", 16);
+
+	private static final BigInteger[] KG = new BigInteger[] {
+			new BigInteger("86645e0320c0f9dc1a9b8456396cc105754df67a9829c21e13ab6ecf944cf68c", 16),
+			new BigInteger("ea1721a578043d48f12738359b5eb5f0dac2242ec6128ee0ab6ff40c8fe0cae6", 16),
+	};
+
+	private static final BigInteger[] KKG = new BigInteger[] {
+			new BigInteger("97a82a834b9e6b50660ae30d43dac9b200276e8bcd2ed6a6593048de09276d1a", 16),
+			new BigInteger("30a9590a01066d8ef54a910afcc8648dbc7400c01750af423ce95547f2154d56", 16),
+	};
+
+	private final SecureRandom random = new SecureRandom();
+
+	private static BigInteger[] generator(ECParameterSpec params) {
+		return new BigInteger[] { params.getGenerator().getAffineX(),
+				params.getGenerator().getAffineY() };
+	}
+
+	private BigInteger randomScalar(ECParameterSpec params) {
+		BigInteger k;
+		do {
+			k = new BigInteger(params.getOrder().bitLength(), random);
+		} while (k.signum() == 0 || k.compareTo(params.getOrder()) >= 0);
+		return k;
+	}
+
+	public void testMultiplyGenerator_KnownAnswer() {
+		BigInteger[] r = EcCore.multiplyGenerator(K, ECDSASHA2Verify.EllipticCurves.nistp256);
+		assertEquals(KG[0], r[0]);
+		assertEquals(KG[1], r[1]);
+	}
+
+	public void testMultiplyPoint_KnownAnswer() {
+		BigInteger[] r = EcCore.multiplyPoint(KG, K, ECDSASHA2Verify.EllipticCurves.nistp256);
+		assertEquals(KKG[0], r[0]);
+		assertEquals(KKG[1], r[1]);
+	}
+
+	public void testMultiplyPoint_MatchesAffine() {
+		for (ECParameterSpec params : CURVES) {
+			BigInteger[] g = generator(params);
+			for (int i = 0; i < 5; i++) {
+				BigInteger k = randomScalar(params);
+				BigInteger[] expected = EcCore.multiplyPointA(g, k, params);
+
+				BigInteger[] r = EcCore.multiplyPoint(g, k, params);
+				assertEquals(expected[0], r[0]);
+				assertEquals(expected[1], r[1]);
+
+				r = EcCore.multiplyGenerator(k, params);
+				assertEquals(expected[0], r[0]);
+				assertEquals(expected[1], r[1]);
+
+				assertTrue(EcCore.isOnCurve(r, params));
+			}
+		}
+	}
+
+	public void testMultiplyPoint_Order_IsInfinity() {
+		for (ECParameterSpec params : CURVES) {
+			BigInteger[] r = EcCore.multiplyGenerator(params.getOrder(), params);
+			assertNull(r[0]);
+			assertNull(r[1]);
+		}
+	}
+
+	public void testMultiplyGeneratorAndPoint() {
+		for (ECParameterSpec params : CURVES) {
+			BigInteger k = randomScalar(params);
+			BigInteger l = randomScalar(params);
+			BigInteger d = randomScalar(params);
+			BigInteger[] q = EcCore.multiplyPointA(generator(params), d, params);
+
+			// k * G + l * (d * G) = (k + l * d) * G
+			BigInteger[] expected = EcCore.multiplyPointA(generator(params),
+					k.add(l.multiply(d)).mod(params.getOrder()), params);
+
+			BigInteger[] r = EcCore.multiplyGeneratorAndPoint(k, q, l, params);
+			assertEquals(expected[0], r[0]);
+			assertEquals(expected[1], r[1]);
+		}
+	}
+
+	public void testIsOnCurve_Invalid() {
+		BigInteger[] p = new BigInteger[] { KG[0], KG[1].add(BigInteger.ONE) };
+		assertFalse(EcCore.isOnCurve(p, ECDSASHA2Verify.EllipticCurves.nistp256));
+	}
+
+	/**
+	 * Compares the Jacobian engine with the affine double-and-add it replaces.
+	 * Results go to the log; there is no pass/fail threshold.
+	 */
+	public void testMultiplyPoint_Benchmark() {
+		final int iterations = 5;
+
+		for (ECParameterSpec params : CURVES) {
+			BigInteger[] g = generator(params);
+			BigInteger[] q = EcCore.multiplyGenerator(randomScalar(params), params);
+			BigInteger k = randomScalar(params);
+
+			// Warm up, and build the generator table outside the timed loop.
+			EcCore.multiplyPointA(q, k, params);
+			EcCore.multiplyPoint(q, k, params);
+			EcCore.multiplyGenerator(k, params);
+
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				EcCore.multiplyPointA(q, k, params);
+			long affine = (System.nanoTime() - start) / iterations;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				EcCore.multiplyPoint(q, k, params);
+			long jacobian = (System.nanoTime() - start) / iterations;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				EcCore.multiplyGenerator(k, params);
+			long fixedBase = (System.nanoTime() - start) / iterations;
+
+			Log.i(TAG, String.format("P-%d: affine %d us, jacobian %d us, generator table %d us",
+					params.getCurve().getField().getFieldSize(), affine / 1000,
+					jacobian / 1000, fixedBase / 1000));
+
+			assertEquals(EcCore.multiplyPointA(g, k, params)[0],
+					EcCore.multiplyGenerator(k, params)[0]);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.service;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+import com.trilead.ssh2.Connection;
+
+public class ConnectionPoolTest extends AndroidTestCase {
+	private static class CountingConnection extends Connection {
+		final CountDownLatch closed = new CountDownLatch(1);
+
+		CountingConnection() {
+			super("localhost", 22);
+		}
+
+		@Override
+		public synchronized void close() {
+			closed.countDown();
+			super.close();
+		}
+
+		boolean isClosed() {
+			return closed.getCount() == 0;
+		}
+	}
+
+	public void testAcquire_ReusesReleasedConnection() {
+		ConnectionPool pool = new ConnectionPool(60 * 1000);
+		CountingConnection connection = new CountingConnection();
+
+		assertNull(pool.acquire("user@host:22"));
+
+		pool.release("user@host:22", connection);
+		assertEquals(1, pool.size());
+		assertNull(pool.acquire("other@host:22"));
+		assertSame(connection, pool.acquire("user@host:22"));
+		assertEquals(0, pool.size());
+		assertNull(pool.acquire("user@host:22"));
+		assertFalse(connection.isClosed());
+	}
+
+	public void testRelease_ClosesReplacedConnection() {
+		ConnectionPool pool = new ConnectionPool(60 * 1000);
+		CountingConnection first = new CountingConnection();
+		CountingConnection second = new CountingConnection();
+
+		pool.release("user@host:22", first);
+		pool.release("user@host:22", second);
+
+		assertTrue(first.isClosed());
+		assertFalse(second.isClosed());
+		assertSame(second, pool.acquire("user@host:22"));
+	}
+
+	public void testIdleConnection_IsEvictedWithoutUse() throws Exception {
+		ConnectionPool pool = new ConnectionPool(100);
+		CountingConnection idle = new CountingConnection();
+
+		pool.release("user@host:22", idle);
+
+		assertTrue(idle.closed.await(5, TimeUnit.SECONDS));
+		assertEquals(0, pool.size());
+	}
+
+	public void testAcquiredConnection_IsNotEvicted() throws Exception {
+		ConnectionPool pool = new ConnectionPool(100);
+		CountingConnection taken = new CountingConnection();
+
+		pool.release("user@host:22", taken);
+		assertSame(taken, pool.acquire("user@host:22"));
+
+		assertFalse(taken.closed.await(500, TimeUnit.MILLISECONDS));
+	}
+
+	public void testCloseAll() {
+		ConnectionPool pool = new ConnectionPool(60 * 1000);
+		CountingConnection a = new CountingConnection();
+		CountingConnection b = new CountingConnection();
+
+		pool.release("a@host:22", a);
+		pool.release("b@host:22", b);
+		pool.closeAll();
+
+		assertTrue(a.isClosed());
+		assertTrue(b.isClosed());
+		assertEquals(0, pool.size());
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.service;
+
+import java.util.Arrays;
+
+import sk.vx.connectbot.bean.HostBean;
+import sk.vx.connectbot.service.FleetExec.Result;
+import android.test.AndroidTestCase;
+
+public class FleetExecTest extends AndroidTestCase {
+	public void testCancel_FailsHostThatDidNotStart() {
+		Result result = new Result(new HostBean());
+		assertEquals(Result.STATE_PENDING, result.getState());
+
+		assertTrue(result.cancelIfPending("cancelled"));
+		assertEquals(Result.STATE_FAILED, result.getState());
+		assertEquals("cancelled", result.getError());
+
+		// a worker that gets to it afterwards leaves it alone
+		assertFalse(result.start());
+		assertEquals(Result.STATE_FAILED, result.getState());
+	}
+
+	public void testCancel_LeavesStartedHostAlone() {
+		Result result = new Result(new HostBean());
+
+		assertTrue(result.start());
+		assertEquals(Result.STATE_CONNECTING, result.getState());
+
+		assertFalse(result.cancelIfPending("cancelled"));
+		assertEquals(Result.STATE_CONNECTING, result.getState());
+		assertNull(result.getError());
+	}
+
+	public void testOutput_GrowsUpToLimit() {
+		FleetExec.Output output = new FleetExec.Output();
+		byte[] chunk = new byte[1000];
+		Arrays.fill(chunk, (byte) 'x');
+
+		output.append(chunk, 10);
+		assertEquals(10, output.toString("US-ASCII").length());
+		assertEquals(0, output.dropped);
+
+		for (int i = 0; i < 100; i++)
+			output.append(chunk, chunk.length);
+
+		assertEquals(FleetExec.MAX_OUTPUT, output.toString("US-ASCII").length());
+		assertEquals(10 + 100 * chunk.length - FleetExec.MAX_OUTPUT, output.dropped);
+	}
+}
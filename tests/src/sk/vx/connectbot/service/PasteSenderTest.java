@@ -0,0 +1,87 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+
+public class PasteSenderTest extends AndroidTestCase {
+	private ByteArrayOutputStream received;
+	private int writes;
+
+	private final PasteSender.Sink sink = new PasteSender.Sink() {
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			received.write(buffer, offset, length);
+			writes++;
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		received = new ByteArrayOutputStream();
+		writes = 0;
+	}
+
+	public void testLargePasteIsSentInChunks() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 3 * PasteSender.CHUNK_SIZE; i++)
+			sb.append((char) ('a' + i % 26));
+		// a surrogate pair right across the first chunk boundary
+		sb.replace(PasteSender.CHUNK_SIZE - 1, PasteSender.CHUNK_SIZE + 1, "\ud83d\ude00");
+		String text = sb.toString();
+
+		PasteSender sender = new PasteSender(text, "UTF-8", false, sink);
+		assertTrue(sender.send());
+
+		assertEquals(text, new String(received.toByteArray(), "UTF-8"));
+		assertTrue("Written in more than one piece", writes > 1);
+		assertEquals(text.length(), sender.getSent());
+	}
+
+	public void testBracketedPaste() throws Exception {
+		PasteSender sender = new PasteSender("ls\u001b[201~\r", "UTF-8", true, sink);
+		assertTrue(sender.send());
+
+		assertEquals("\u001b[200~ls[201~\r\u001b[201~", new String(received.toByteArray(), "UTF-8"));
+	}
+
+	public void testCancelStopsAfterChunk() throws Exception {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 4 * PasteSender.CHUNK_SIZE; i++)
+			sb.append('x');
+
+		final PasteSender sender = new PasteSender(sb.toString(), "US-ASCII", true, sink);
+		sender.setListener(new PasteSender.Listener() {
+			public void onProgress(int sent, int total) {
+				sender.cancel();
+			}
+
+			public void onFinished(PasteSender s, boolean completed) {
+				assertFalse(completed);
+			}
+		});
+		sender.run();
+
+		String got = new String(received.toByteArray(), "US-ASCII");
+		assertTrue(got.endsWith("\u001b[201~"));
+		assertEquals(PasteSender.CHUNK_SIZE + 12, got.length());
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.service;
+
+import android.test.AndroidTestCase;
+
+public class SessionMetricsTest extends AndroidTestCase {
+	public void testEcho_WaitsForCursorToMove() throws Exception {
+		SessionMetrics metrics = new SessionMetrics();
+
+		metrics.keySent();
+		Thread.sleep(5);
+		metrics.read(10, 1000, false);
+		assertEquals(0, metrics.snapshot().echoes);
+
+		// a second key does not restart the clock
+		metrics.keySent();
+		metrics.read(1, 1000, true);
+
+		SessionMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(1, snapshot.echoes);
+		assertTrue("Measured from the first key", snapshot.lastEcho >= 5 * 1000000L);
+		assertEquals(snapshot.lastEcho, snapshot.maxEcho);
+		assertEquals(11, snapshot.bytesRead);
+		assertEquals(2, snapshot.reads);
+		assertEquals(2000, snapshot.parseTime);
+	}
+
+	public void testEcho_OutputWithoutKeyIsNotCounted() throws Exception {
+		SessionMetrics metrics = new SessionMetrics();
+
+		metrics.read(100, 1000, true);
+		metrics.keySent();
+		metrics.read(1, 1000, true);
+		metrics.read(1, 1000, true);
+
+		assertEquals(1, metrics.snapshot().echoes);
+	}
+
+	public void testFramesAndPauses() throws Exception {
+		SessionMetrics metrics = new SessionMetrics();
+
+		metrics.frame(3000);
+		metrics.frame(5000);
+		metrics.pause(20000000L);
+
+		SessionMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(2, snapshot.frames);
+		assertEquals(8000, snapshot.renderTime);
+		assertEquals(5000, snapshot.maxRenderTime);
+		assertEquals(1, snapshot.pauses);
+		assertEquals(20000000L, snapshot.maxPause);
+	}
+}
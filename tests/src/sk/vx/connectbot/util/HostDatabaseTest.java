@@ -0,0 +1,69 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.util;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.trilead.ssh2.KnownHosts;
+
+public class HostDatabaseTest extends AndroidTestCase {
+	private static final byte[] ECDSA_KEY = { 1, 2, 3, 4 };
+	private static final byte[] RSA_KEY = { 5, 6, 7, 8 };
+
+	private Context context;
+	private HostDatabase hostdb;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = new RenamingDelegatingContext(getContext(), "test.");
+		hostdb = new HostDatabase(context);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		hostdb.close();
+		context.deleteDatabase(HostDatabase.DB_NAME);
+		super.tearDown();
+	}
+
+	public void testVerifyKnownHost_SameKeyIsOk() {
+		hostdb.saveKnownHost("same.example.org", 22, "ecdsa-sha2-nistp256", ECDSA_KEY);
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK,
+				hostdb.verifyKnownHost("same.example.org", 22, "ecdsa-sha2-nistp256", ECDSA_KEY));
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW,
+				hostdb.verifyKnownHost("same.example.org", 2222, "ecdsa-sha2-nistp256", ECDSA_KEY));
+	}
+
+	public void testVerifyKnownHost_OtherKeyOfSameTypeHasChanged() {
+		hostdb.saveKnownHost("changed.example.org", 22, "ssh-rsa", RSA_KEY);
+
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED,
+				hostdb.verifyKnownHost("changed.example.org", 22, "ssh-rsa", ECDSA_KEY));
+	}
+
+	public void testVerifyKnownHost_KeyOfOtherTypeHasChanged() {
+		hostdb.saveKnownHost("pinned.example.org", 22, "ecdsa-sha2-nistp256", ECDSA_KEY);
+
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED,
+				hostdb.verifyKnownHost("pinned.example.org", 22, "ssh-rsa", RSA_KEY));
+	}
+}
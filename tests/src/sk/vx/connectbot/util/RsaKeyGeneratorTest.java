@@ -0,0 +1,74 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.util;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.CancellationException;
+
+import android.test.AndroidTestCase;
+
+public class RsaKeyGeneratorTest extends AndroidTestCase {
+	public void testGenerate() throws Exception {
+		RsaKeyGenerator generator = new RsaKeyGenerator(1025, new SecureRandom());
+		generator.setThreads(3);
+		KeyPair pair = generator.generate();
+
+		RSAPublicKey pub = (RSAPublicKey) pair.getPublic();
+		RSAPrivateCrtKey priv = (RSAPrivateCrtKey) pair.getPrivate();
+		assertEquals(1025, pub.getModulus().bitLength());
+		assertEquals(pub.getModulus(), priv.getPrimeP().multiply(priv.getPrimeQ()));
+
+		// survives the round trip through PKCS#8 that saving the key takes
+		PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(priv.getEncoded());
+		RSAPrivateCrtKey decoded = (RSAPrivateCrtKey) KeyFactory.getInstance("RSA").generatePrivate(spec);
+
+		Signature signer = Signature.getInstance("SHA1withRSA");
+		signer.initSign(decoded);
+		signer.update("hello".getBytes());
+		byte[] signature = signer.sign();
+
+		Signature verifier = Signature.getInstance("SHA1withRSA");
+		verifier.initVerify(pub);
+		verifier.update("hello".getBytes());
+		assertTrue(verifier.verify(signature));
+	}
+
+	public void testCancel() throws Exception {
+		final RsaKeyGenerator generator = new RsaKeyGenerator(8192, new SecureRandom());
+		generator.setThreads(2);
+		generator.setProgressListener(new RsaKeyGenerator.ProgressListener() {
+			public void onProgress(int tested, int primes) {
+				if (tested == 10)
+					generator.cancel();
+			}
+		});
+
+		try {
+			generator.generate();
+			fail("generated a key although cancelled");
+		} catch (CancellationException e) {
+			assertTrue(generator.isCancelled());
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sk.vx.connectbot.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import android.test.AndroidTestCase;
+
+public class SessionRecorderTest extends AndroidTestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("sessions", null);
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+		super.tearDown();
+	}
+
+	private static byte[] read(File f) throws IOException {
+		InputStream in = new FileInputStream(f);
+		if (f.getName().endsWith(".gz"))
+			in = new GZIPInputStream(in);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			out.write(buf, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+
+	private File[] awaitFiles(SessionRecorder recorder) throws InterruptedException {
+		recorder.close();
+		recorder.join(10000);
+
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		return files;
+	}
+
+	public void testRaw_RotatesAndKeepsEverything() throws Exception {
+		SessionRecorder recorder = new SessionRecorder(dir, "host", Charset.forName("UTF-8"));
+		recorder.setCompress(true);
+		recorder.setRotation(4000, 0);
+		recorder.start();
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int i = 0; i < 1000; i++) {
+			byte[] line = ("line " + i + "\r\n").getBytes();
+			while (!recorder.write(line, 0, line.length))
+				Thread.sleep(1);
+			expected.write(line);
+		}
+
+		File[] files = awaitFiles(recorder);
+		assertTrue(files.length > 1);
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		for (File f : files) {
+			assertTrue(f.getName().startsWith("host-"));
+			assertTrue(f.getName().endsWith(".log.gz"));
+			actual.write(read(f));
+		}
+		assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+	}
+
+	public void testTiming_WritesAsciicast() throws Exception {
+		SessionRecorder recorder = new SessionRecorder(dir, "host", Charset.forName("UTF-8"));
+		recorder.setTiming(true);
+		recorder.setCompress(false);
+		recorder.setTerminalSize(100, 30);
+		recorder.start();
+
+		// a multi-byte character split across two reads
+		byte[] data = "a\"bé\r\n\u001b[0m".getBytes("UTF-8");
+		recorder.write(data, 0, 4);
+		recorder.write(data, 4, data.length - 4);
+
+		File[] files = awaitFiles(recorder);
+		assertEquals(1, files.length);
+		assertTrue(files[0].getName().endsWith(".cast"));
+
+		String[] lines = new String(read(files[0]), "US-ASCII").split("\n");
+		assertTrue(lines[0].startsWith("{\"version\": 2, \"width\": 100, \"height\": 30, "));
+
+		StringBuilder output = new StringBuilder();
+		for (int i = 1; i < lines.length; i++) {
+			assertTrue(lines[i], lines[i].matches("\\[\\d+\\.\\d{6}, \"o\", \".*\"\\]"));
+			output.append(lines[i].substring(lines[i].indexOf(", \"o\", \"") + 8, lines[i].length() - 2));
+		}
+		assertEquals("a\\\"b\\u00e9\\r\\n\\u001b[0m", output.toString());
+	}
+
+	public void testOverflow_DropsInsteadOfBlocking() {
+		// the writer is never started, so nothing is taken out of the ring
+		SessionRecorder recorder = new SessionRecorder(dir, "host", Charset.forName("UTF-8"), 0);
+		byte[] chunk = new byte[4096];
+
+		int accepted = 0;
+		for (int i = 0; i < 100; i++)
+			if (recorder.write(chunk, 0, chunk.length))
+				accepted++;
+
+		assertTrue(accepted > 0);
+		assertEquals(100 - accepted, recorder.getDroppedChunks());
+		assertEquals((100 - accepted) * 4096L, recorder.getDroppedBytes());
+
+		recorder.close();
+		assertFalse(recorder.write(chunk, 0, chunk.length));
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.vx.connectbot.util;
+
+import android.test.AndroidTestCase;
+import de.mud.terminal.VDUBuffer;
+import de.mud.terminal.VDUDisplay;
+
+public class TerminalPainterTest extends AndroidTestCase {
+	private static final int BLACK = 0xff000000;
+	private static final int RED = 0xffff0000;
+	private static final int WHITE = 0xffffffff;
+	private static final int BRIGHT_RED = 0xffff8080;
+
+	private VDUBuffer buffer;
+	private TerminalPainter painter;
+	private SoftwareRenderer renderer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		buffer = new VDUBuffer(4, 2);
+		buffer.setDisplay(new VDUDisplay() {
+			public void redraw() {}
+			public void updateScrollBar() {}
+			public void setVDUBuffer(VDUBuffer buffer) {}
+			public VDUBuffer getVDUBuffer() { return null; }
+			public void setColor(int index, int red, int green, int blue) {}
+			public void resetColors() {}
+		});
+		buffer.setBufferSize(0);
+
+		Integer[] color = new Integer[16];
+		for (int i = 0; i < color.length; i++)
+			color[i] = BLACK;
+		color[1] = RED;
+		color[7] = WHITE;
+		color[9] = BRIGHT_RED;
+
+		painter = new TerminalPainter();
+		painter.setColors(color, 7, 0);
+		renderer = new SoftwareRenderer(4, 2, 4, 6);
+	}
+
+	public void testPaint_ResolvesColors() {
+		buffer.putChar(0, 0, 'a');
+		buffer.putChar(1, 0, 'b', (2 << VDUBuffer.COLOR_FG_SHIFT) | VDUBuffer.BOLD);
+		buffer.putChar(2, 0, 'c', VDUBuffer.INVERT);
+
+		assertEquals(2, painter.paint(buffer, true, renderer));
+
+		// glyphs are blocks inside their cells, on the background
+		assertEquals(BLACK, renderer.getPixel(0, 0));
+		assertEquals(WHITE, renderer.getPixel(1, 1));
+		assertEquals(BRIGHT_RED, renderer.getPixel(5, 1));
+		assertEquals(WHITE, renderer.getPixel(8, 0));
+		assertEquals(BLACK, renderer.getPixel(9, 1));
+		assertEquals(BLACK, renderer.getPixel(13, 1));
+	}
+
+	public void testPaint_OnlyDirtyRows() {
+		painter.paint(buffer, true, renderer);
+		assertEquals(0, painter.paint(buffer, false, renderer));
+
+		buffer.putChar(3, 1, 'x');
+		assertEquals(1, painter.paint(buffer, false, renderer));
+		assertEquals(WHITE, renderer.getPixel(13, 7));
+	}
+
+	public void testPaintOverlays_InvertsCursor() {
+		painter.paint(buffer, true, renderer);
+		buffer.setCursorPosition(1, 1);
+		painter.paintOverlays(buffer, null, null, renderer);
+
+		assertEquals(WHITE, renderer.getPixel(4, 6));
+		assertEquals(BLACK, renderer.getPixel(8, 6));
+	}
+}